@@ -0,0 +1,169 @@
+package com.motussoft.heresense.provider;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Device timings of poi bounding box lookups at 100k cached pois, with and without the
+ * GeoCell ranges in front of the lat/lon box.  Without them SQLite scans the table, as poi
+ * lookups did before the cell index.  Logs p50 and p99 per lookup under TAG.
+ *
+ * Boxes are POIS_RANGE (250m) around random points in the area the pois cover.
+ */
+@RunWith( AndroidJUnit4.class )
+public class GeoCellBenchmark {
+
+    private static final String TAG = "GeoCellBenchmark";
+
+    private static final int POI_COUNT = 100000;
+    private static final int WARMUP_LOOKUPS = 20;
+    private static final int LOOKUPS = 200;
+
+    /** Pois spread over about 55 x 45 km around the south bay. */
+    private static final double MIN_LAT = 37.2;
+    private static final double MIN_LON = -122.3;
+    private static final double SPAN = 0.5;
+
+    /** 250m in degrees. */
+    private static final double LAT_RANGE = 250 / 111195.08;
+    private static final double LON_RANGE = LAT_RANGE / Math.cos( Math.toRadians( MIN_LAT + SPAN / 2 ) );
+
+    /** As PoiSearch.POI_SELECTION, minus its name and type filters. */
+    private static final String BOX_SELECTION =
+            HereSenseContract.Pois.LATITUDE + "<?"
+            + " AND " + HereSenseContract.Pois.LATITUDE + ">?"
+            + " AND " + HereSenseContract.Pois.LONGITUDE + "<?"
+            + " AND " + HereSenseContract.Pois.LONGITUDE + ">?";
+
+    private static final String DB_NAME = TAG + ".db";
+
+    private Context mContext;
+    private SQLiteDatabase mDb;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase( DB_NAME );
+        mDb = mContext.openOrCreateDatabase( DB_NAME, Context.MODE_PRIVATE, null );
+        HereSenseContract.PoisTable.create( mDb );
+        fill();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mDb.close();
+        mContext.deleteDatabase( DB_NAME );
+    }
+
+    private void fill() {
+        final String table = HereSenseContract.PoisTable.TABLE_NAME;
+        SQLiteStatement insert = mDb.compileStatement( "INSERT INTO " + table + " ("
+                + HereSenseContract.Pois.POI_SCAN_IDX + "," + HereSenseContract.Pois.POI_RADIUS + ","
+                + HereSenseContract.Pois.POI_PROMINENCE + "," + HereSenseContract.Pois.PLACE_ID + ","
+                + HereSenseContract.Pois.NAME + "," + HereSenseContract.Pois.LATITUDE + ","
+                + HereSenseContract.Pois.LONGITUDE + "," + HereSenseContract.Pois.TYPES + ","
+                + HereSenseContract.Pois.CELL + ") VALUES (?,?,?,?,?,?,?,?,?)" );
+        Random random = new Random( 1 );
+        mDb.beginTransaction();
+        try {
+            for ( int i = 0; i < POI_COUNT; i++ ) {
+                double lat = MIN_LAT + random.nextDouble() * SPAN;
+                double lon = MIN_LON + random.nextDouble() * SPAN;
+                insert.bindLong( 1, i / 20 );
+                insert.bindLong( 2, 25 + random.nextInt( 100 ) );
+                insert.bindLong( 3, random.nextInt( 5 ) );
+                insert.bindString( 4, "ChIJ" + i );
+                insert.bindString( 5, "Place " + i );
+                insert.bindDouble( 6, lat );
+                insert.bindDouble( 7, lon );
+                insert.bindString( 8, "cafe:food:store:establishment" );
+                insert.bindLong( 9, GeoCell.getCellId( lat, lon ) );
+                insert.executeInsert();
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+            insert.close();
+        }
+        mDb.execSQL( "ANALYZE" );
+    }
+
+    /**
+     * Run lookups around the same points with and without cell ranges.
+     * @return  Nanos per lookup, sorted.
+     */
+    private long[] time(boolean bCells, int[] outCounts) {
+        Random random = new Random( 2 );
+        long[] times = new long[LOOKUPS];
+        for ( int i = -WARMUP_LOOKUPS; i < LOOKUPS; i++ ) {
+            double lat = MIN_LAT + random.nextDouble() * SPAN;
+            double lon = MIN_LON + random.nextDouble() * SPAN;
+            String[] args = {
+                    Double.toString( lat + LAT_RANGE ), Double.toString( lat - LAT_RANGE ),
+                    Double.toString( lon + LON_RANGE ), Double.toString( lon - LON_RANGE ) };
+            String selection = BOX_SELECTION;
+            long start = System.nanoTime();
+            if ( bCells ) {
+                selection = GeoCell.appendCellRangeSelection( new StringBuilder(), HereSenseContract.Pois.CELL,
+                        lat - LAT_RANGE, lat + LAT_RANGE, lon - LON_RANGE, lon + LON_RANGE )
+                        .append( " AND " ).append( BOX_SELECTION ).toString();
+            }
+            Cursor c = mDb.query( HereSenseContract.PoisTable.TABLE_NAME, null, selection, args,
+                    null, null, null );
+            try {
+                int count = 0;
+                while ( c.moveToNext() ) {
+                    count++;
+                }
+                if ( i >= 0 ) {
+                    times[i] = System.nanoTime() - start;
+                    outCounts[i] = count;
+                }
+            } finally {
+                c.close();
+            }
+        }
+        Arrays.sort( times );
+        return times;
+    }
+
+    private static String percentiles(long[] sorted) {
+        return "p50Us=" + sorted[sorted.length / 2] / 1000
+                + " p99Us=" + sorted[sorted.length * 99 / 100] / 1000;
+    }
+
+    @Test
+    public void lookupWithAndWithoutCells() throws Exception {
+        int[] scanCounts = new int[LOOKUPS];
+        int[] cellCounts = new int[LOOKUPS];
+        long[] scan = time( false, scanCounts );
+        long[] cells = time( true, cellCounts );
+
+        // Same pois either way.
+        assertArrayEquals( scanCounts, cellCounts );
+        int total = 0;
+        for ( int count : cellCounts ) {
+            total += count;
+        }
+        assertTrue( total > 0 );
+
+        Log.i( TAG, "pois=" + POI_COUNT + " lookups=" + LOOKUPS + " poisPerLookup=" + total / LOOKUPS );
+        Log.i( TAG, "table scan: " + percentiles( scan ) );
+        Log.i( TAG, "cell index: " + percentiles( cells ) );
+    }
+}
@@ -0,0 +1,79 @@
+package com.motussoft.heresense.provider;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * GeoCell.getCellIdSql() on the device SQLite against GeoCell.getCellId(), at the poles, the
+ * antimeridian and random points.  The upgrade backfill relies on the two agreeing.
+ */
+@RunWith( AndroidJUnit4.class )
+public class GeoCellSqlTest {
+
+    private static final double[][] EDGE_POINTS = {
+            { 90, 0 }, { 90, 180 }, { 90, -180 }, { -90, 0 }, { -90, 180 },
+            { 0, 180 }, { 0, -180 }, { 0, 179.9999999 }, { 89.9999999, 180 },
+            { 45.5, 179.9999 }, { -33.9, 151.2 }, { 37.422, -122.084 }, { 0, 0 },
+    };
+
+    private SQLiteDatabase mDb;
+
+    @Before
+    public void setUp() throws Exception {
+        mDb = SQLiteDatabase.create( null );
+        mDb.execSQL( "CREATE TABLE points (lat REAL NOT NULL, lon REAL NOT NULL, cell_id INTEGER NOT NULL)" );
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mDb.close();
+    }
+
+    private void insert(SQLiteStatement insert, double lat, double lon) {
+        insert.bindDouble( 1, lat );
+        insert.bindDouble( 2, lon );
+        insert.bindLong( 3, GeoCell.getCellId( lat, lon ) );
+        insert.executeInsert();
+    }
+
+    @Test
+    public void sqlMatchesGetCellId() throws Exception {
+        SQLiteStatement insert = mDb.compileStatement( "INSERT INTO points VALUES (?,?,?)" );
+        mDb.beginTransaction();
+        try {
+            for ( double[] point : EDGE_POINTS ) {
+                insert( insert, point[0], point[1] );
+            }
+            Random random = new Random( 5 );
+            for ( int i = 0; i < 10000; i++ ) {
+                insert( insert, random.nextDouble() * 180 - 90, random.nextDouble() * 360 - 180 );
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+            insert.close();
+        }
+
+        Cursor c = mDb.rawQuery( "SELECT lat, lon, cell_id, " + GeoCell.getCellIdSql( "lat", "lon" )
+                + " FROM points", null );
+        try {
+            assertEquals( EDGE_POINTS.length + 10000, c.getCount() );
+            while ( c.moveToNext() ) {
+                assertEquals( c.getDouble( 0 ) + "," + c.getDouble( 1 ), c.getLong( 2 ), c.getLong( 3 ) );
+            }
+        } finally {
+            c.close();
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package com.motussoft.heresense.provider;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Device timings of caching a 60 poi scan through HereSenseProvider.applyBatch(), in one
+ * transaction, against applying the same operations one by one, as ContentProvider's
+ * default applyBatch() did, each in its own transaction.  Operations are built as
+ * PoiSearch.cacheSearchResults() builds them.
+ *
+ * An app can't count fsyncs, so commits stand in for them:  each commit syncs the journal
+ * and the database.  Also logs write syscalls from /proc/self/io, where the kernel keeps them.
+ */
+@RunWith( AndroidJUnit4.class )
+public class PoiBatchBenchmark {
+
+    private static final String TAG = "PoiBatchBenchmark";
+
+    private static final int POI_COUNT = 60;
+    private static final int WARMUP_SCANS = 3;
+    private static final int SCANS = 20;
+
+    private static final double LAT = 37.422;
+    private static final double LON = -122.084;
+
+    private TestDbContext mContext;
+    private HereSenseProvider mProvider;
+    private int mScanNum = 0;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = new TestDbContext( InstrumentationRegistry.getTargetContext(), TAG + "_" );
+        mProvider = mContext.newProvider();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mContext.deleteDatabase( HereSenseDbOpenHelper.DB_NAME );
+    }
+
+    /**
+     * Poi scan insert, then a poi upsert per poi back referencing it.  New place ids each scan.
+     */
+    private ArrayList<ContentProviderOperation> newScanOperations() {
+        int scanNum = mScanNum++;
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        ContentValues scan = new ContentValues();
+        scan.put( HereSenseContract.PoiScans.POI_SCAN_LAT, (float) LAT );
+        scan.put( HereSenseContract.PoiScans.POI_SCAN_LON, (float) LON );
+        scan.put( HereSenseContract.PoiScans.POI_SCAN_TIME, System.currentTimeMillis() );
+        operations.add( ContentProviderOperation
+                .newInsert( HereSenseContract.PoiScans.CONTENT_URI )
+                .withValues( scan )
+                .build() );
+
+        Uri upsertUri = HereSenseContract.Pois.CONTENT_URI.buildUpon()
+                .appendQueryParameter( HereSenseContract.Pois.PARAM_UPSERT, "true" )
+                .build();
+        for ( int i = 0; i < POI_COUNT; i++ ) {
+            ContentValues cv = new ContentValues();
+            cv.put( HereSenseContract.Pois.POI_RADIUS, 25 + i % 50 );
+            cv.put( HereSenseContract.Pois.POI_PROMINENCE, i % 5 );
+            cv.put( HereSenseContract.Pois.PLACE_ID, "ChIJ" + scanNum + "_" + i );
+            cv.put( HereSenseContract.Pois.NAME, "Place " + i );
+            cv.put( HereSenseContract.Pois.LATITUDE, LAT + ( i % 8 ) * 0.0003 );
+            cv.put( HereSenseContract.Pois.LONGITUDE, LON + ( i / 8 ) * 0.0003 );
+            cv.put( HereSenseContract.Pois.ADDRESS, i + " Amphitheatre Pkwy, Mountain View" );
+            cv.put( HereSenseContract.Pois.TYPES, "cafe:food:store:establishment" );
+            cv.put( HereSenseContract.Pois.RATING, 4.2f );
+            operations.add( ContentProviderOperation
+                    .newInsert( upsertUri )
+                    .withValues( cv )
+                    .withValueBackReference( HereSenseContract.Pois.POI_SCAN_IDX, 0 )
+                    .withYieldAllowed( ( i + 1 ) % 50 == 0 )
+                    .build() );
+        }
+        return operations;
+    }
+
+    /** As ContentProvider.applyBatch() before the override. */
+    private ContentProviderResult[] applyOneByOne(ArrayList<ContentProviderOperation> operations)
+            throws Exception {
+        ContentProviderResult[] results = new ContentProviderResult[operations.size()];
+        for ( int i = 0; i < operations.size(); i++ ) {
+            results[i] = operations.get( i ).apply( mProvider, results, i );
+        }
+        return results;
+    }
+
+    /** @return  Write syscalls by this process so far, or -1 if not reported. */
+    private static long getWriteSyscalls() {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader( new FileReader( "/proc/self/io" ) );
+            String line;
+            while ( ( line = reader.readLine() ) != null ) {
+                if ( line.startsWith( "syscw:" ) ) {
+                    return Long.parseLong( line.substring( 6 ).trim() );
+                }
+            }
+        } catch (IOException e) {
+            // Not reported.
+        } catch (NumberFormatException e) {
+            // Not reported.
+        } finally {
+            if ( reader != null ) {
+                try {
+                    reader.close();
+                } catch (IOException e) { /* Do nothing */ }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Cache scans one way.
+     * @return  Report line.
+     */
+    private String time(boolean bBatch) throws Exception {
+        long[] times = new long[SCANS];
+        long writes = ( getWriteSyscalls() < 0 ? -1 : 0 );
+        for ( int i = -WARMUP_SCANS; i < SCANS; i++ ) {
+            ArrayList<ContentProviderOperation> operations = newScanOperations();
+            long syscw = getWriteSyscalls();
+            long start = System.nanoTime();
+            ContentProviderResult[] results = ( bBatch ? mProvider.applyBatch( operations ) : applyOneByOne( operations ) );
+            long end = System.nanoTime();
+            if ( i >= 0 ) {
+                times[i] = end - start;
+                if ( writes >= 0 ) {
+                    writes += getWriteSyscalls() - syscw;
+                }
+            }
+
+            // Every poi cached under the scan.
+            long poiScanId = ContentUris.parseId( results[0].uri );
+            Cursor c = mProvider.query( HereSenseContract.Pois.CONTENT_URI, null,
+                    HereSenseContract.Pois.POI_SCAN_IDX + "=" + poiScanId, null, null );
+            try {
+                assertEquals( POI_COUNT, c.getCount() );
+            } finally {
+                c.close();
+            }
+        }
+        Arrays.sort( times );
+        // One commit per batch, uncontended here so it never yields.  One per operation otherwise.
+        int commits = ( bBatch ? 1 : POI_COUNT + 1 );
+        return "p50Ms=" + times[SCANS / 2] / 1e6
+                + " maxMs=" + times[SCANS - 1] / 1e6
+                + " commitsPerScan=" + commits
+                + " writeSyscallsPerScan=" + ( writes < 0 ? "n/a" : Long.toString( writes / SCANS ) );
+    }
+
+    @Test
+    public void applyBatchAgainstOneByOne() throws Exception {
+        String oneByOne = time( false );
+        String batch = time( true );
+        Log.i( TAG, "pois=" + POI_COUNT + " scans=" + SCANS );
+        Log.i( TAG, "one by one: " + oneByOne );
+        Log.i( TAG, "applyBatch: " + batch );
+    }
+}
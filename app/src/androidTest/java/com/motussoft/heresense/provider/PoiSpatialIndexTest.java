@@ -0,0 +1,166 @@
+package com.motussoft.heresense.provider;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+import android.provider.BaseColumns;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+
+/**
+ * Pois bounding box queries through the provider with spatial_index=rtree and
+ * spatial_index=cell, on the same pois in both indexes.  Both must select the same pois.
+ * Logs p50 and p99 per query for each under TAG.
+ */
+@RunWith( AndroidJUnit4.class )
+public class PoiSpatialIndexTest {
+
+    private static final String TAG = "PoiSpatialIndexTest";
+
+    private static final int POI_COUNT = 20000;
+    private static final int WARMUP_QUERIES = 20;
+    private static final int QUERIES = 200;
+
+    /** Pois spread over about 11 x 9 km. */
+    private static final double MIN_LAT = 37.35;
+    private static final double MIN_LON = -122.1;
+    private static final double SPAN = 0.1;
+
+    /** 250m in degrees. */
+    private static final double LAT_RANGE = 250 / 111195.08;
+    private static final double LON_RANGE = LAT_RANGE / Math.cos( Math.toRadians( MIN_LAT + SPAN / 2 ) );
+
+    private TestDbContext mContext;
+    private HereSenseProvider mProvider;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = new TestDbContext( InstrumentationRegistry.getTargetContext(), TAG + "_" );
+        mProvider = mContext.newProvider();
+        fill();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mContext.deleteDatabase( HereSenseDbOpenHelper.DB_NAME );
+    }
+
+    /**
+     * Insert pois with their cells, then their rtree boxes, as the provider keeps them.
+     */
+    private void fill() {
+        SQLiteDatabase db = new HereSenseDbOpenHelper( mContext ).getWritableDatabase();
+        if ( !HereSenseContract.PoisRTreeTable.exists( db ) ) {
+            db.close();
+            assumeTrue( "No rtree support", false );
+        }
+        SQLiteStatement insert = db.compileStatement( "INSERT INTO " + HereSenseContract.PoisTable.TABLE_NAME + " ("
+                + HereSenseContract.Pois.POI_SCAN_IDX + "," + HereSenseContract.Pois.POI_RADIUS + ","
+                + HereSenseContract.Pois.POI_PROMINENCE + "," + HereSenseContract.Pois.PLACE_ID + ","
+                + HereSenseContract.Pois.NAME + "," + HereSenseContract.Pois.LATITUDE + ","
+                + HereSenseContract.Pois.LONGITUDE + "," + HereSenseContract.Pois.CELL
+                + ") VALUES (?,?,?,?,?,?,?,?)" );
+        Random random = new Random( 3 );
+        db.beginTransaction();
+        try {
+            for ( int i = 0; i < POI_COUNT; i++ ) {
+                double lat = MIN_LAT + random.nextDouble() * SPAN;
+                double lon = MIN_LON + random.nextDouble() * SPAN;
+                insert.bindLong( 1, i / 20 );
+                insert.bindLong( 2, 25 + random.nextInt( 100 ) );
+                insert.bindLong( 3, random.nextInt( 5 ) );
+                insert.bindString( 4, "ChIJ" + i );
+                insert.bindString( 5, "Place " + i );
+                insert.bindDouble( 6, lat );
+                insert.bindDouble( 7, lon );
+                insert.bindLong( 8, GeoCell.getCellId( lat, lon ) );
+                insert.executeInsert();
+            }
+            HereSenseContract.PoisRTreeTable.sync( db, null, null );
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insert.close();
+        }
+        db.execSQL( "ANALYZE" );
+        db.close();
+    }
+
+    private static Uri getBboxUri(double lat, double lon, String spatialIndex) {
+        return HereSenseContract.Pois.CONTENT_URI.buildUpon()
+                .appendQueryParameter( HereSenseContract.Pois.PARAM_BBOX, ( lat - LAT_RANGE ) + ","
+                        + ( lon - LON_RANGE ) + "," + ( lat + LAT_RANGE ) + "," + ( lon + LON_RANGE ) )
+                .appendQueryParameter( HereSenseContract.Pois.PARAM_SPATIAL_INDEX, spatialIndex )
+                .build();
+    }
+
+    /**
+     * Query boxes around the same points through spatial index.
+     * @return  Nanos per query, sorted.
+     */
+    private long[] time(String spatialIndex, List<long[]> outIds) {
+        String[] projection = { HereSenseContract.PoisTable.TABLE_NAME + "." + BaseColumns._ID };
+        Random random = new Random( 4 );
+        long[] times = new long[QUERIES];
+        for ( int i = -WARMUP_QUERIES; i < QUERIES; i++ ) {
+            Uri uri = getBboxUri( MIN_LAT + random.nextDouble() * SPAN, MIN_LON + random.nextDouble() * SPAN,
+                    spatialIndex );
+            long start = System.nanoTime();
+            Cursor c = mProvider.query( uri, projection, null, null, null );
+            try {
+                long[] ids = new long[c.getCount()];
+                for ( int j = 0; c.moveToNext(); j++ ) {
+                    ids[j] = c.getLong( 0 );
+                }
+                if ( i >= 0 ) {
+                    times[i] = System.nanoTime() - start;
+                    Arrays.sort( ids );
+                    outIds.add( ids );
+                }
+            } finally {
+                c.close();
+            }
+        }
+        Arrays.sort( times );
+        return times;
+    }
+
+    private static String percentiles(long[] sorted) {
+        return "p50Us=" + sorted[sorted.length / 2] / 1000
+                + " p99Us=" + sorted[sorted.length * 99 / 100] / 1000;
+    }
+
+    @Test
+    public void bboxSameThroughRTreeAndCells() throws Exception {
+        List<long[]> rtreeIds = new ArrayList<long[]>();
+        List<long[]> cellIds = new ArrayList<long[]>();
+        long[] rtree = time( HereSenseContract.Pois.SPATIAL_INDEX_RTREE, rtreeIds );
+        long[] cells = time( HereSenseContract.Pois.SPATIAL_INDEX_CELL, cellIds );
+
+        int total = 0;
+        for ( int i = 0; i < QUERIES; i++ ) {
+            assertArrayEquals( "query " + i, rtreeIds.get( i ), cellIds.get( i ) );
+            total += cellIds.get( i ).length;
+        }
+        assertTrue( total > 0 );
+
+        Log.i( TAG, "pois=" + POI_COUNT + " queries=" + QUERIES + " poisPerQuery=" + total / QUERIES );
+        Log.i( TAG, "rtree: " + percentiles( rtree ) );
+        Log.i( TAG, "cell:  " + percentiles( cells ) );
+    }
+}
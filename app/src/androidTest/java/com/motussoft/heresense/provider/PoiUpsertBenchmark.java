@@ -0,0 +1,178 @@
+package com.motussoft.heresense.provider;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Device timings of caching a 60 poi scan through Pois.PARAM_UPSERT inserts, one batch,
+ * against the query-then-insert path it replaced:  a batch of updates by place id, then a
+ * second batch inserting the pois no update matched.  Half of each scan's pois are already
+ * cached, as at a place visited before.  Logs p50 and max per scan under TAG.
+ */
+@RunWith( AndroidJUnit4.class )
+public class PoiUpsertBenchmark {
+
+    private static final String TAG = "PoiUpsertBenchmark";
+
+    private static final int POI_COUNT = 60;
+    private static final int CACHED_COUNT = 30;
+    private static final int WARMUP_SCANS = 3;
+    private static final int SCANS = 20;
+
+    private static final double LAT = 37.422;
+    private static final double LON = -122.084;
+
+    private TestDbContext mContext;
+    private HereSenseProvider mProvider;
+    private int mScanNum = 0;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = new TestDbContext( InstrumentationRegistry.getTargetContext(), TAG + "_" );
+        mProvider = mContext.newProvider();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mContext.deleteDatabase( HereSenseDbOpenHelper.DB_NAME );
+    }
+
+    /**
+     * Pois of the next scan.  The first CACHED_COUNT place ids are shared by all scans,
+     * the rest are new each scan.
+     */
+    private ContentValues[] newScanPois() {
+        int scanNum = mScanNum++;
+        ContentValues[] pois = new ContentValues[POI_COUNT];
+        for ( int i = 0; i < POI_COUNT; i++ ) {
+            String placeId = ( i < CACHED_COUNT ? "ChIJ" + i : "ChIJ" + scanNum + "_" + i );
+            pois[i] = PoiUpsertTest.newPoi( 0, placeId, "Place " + i,
+                    LAT + ( i % 8 ) * 0.0003, LON + ( i / 8 ) * 0.0003 );
+            pois[i].remove( HereSenseContract.Pois.POI_SCAN_IDX );
+        }
+        return pois;
+    }
+
+    private static ContentProviderOperation newScanInsert() {
+        ContentValues scan = new ContentValues();
+        scan.put( HereSenseContract.PoiScans.POI_SCAN_LAT, (float) LAT );
+        scan.put( HereSenseContract.PoiScans.POI_SCAN_LON, (float) LON );
+        scan.put( HereSenseContract.PoiScans.POI_SCAN_TIME, System.currentTimeMillis() );
+        return ContentProviderOperation.newInsert( HereSenseContract.PoiScans.CONTENT_URI )
+                .withValues( scan ).build();
+    }
+
+    /** As PoiSearch.cacheSearchResults() does. */
+    private long cacheUpsert(ContentValues[] pois) throws Exception {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add( newScanInsert() );
+        int opCount = 0;
+        for ( ContentValues poi : pois ) {
+            operations.add( ContentProviderOperation.newInsert( PoiUpsertTest.UPSERT_URI )
+                    .withValues( poi )
+                    .withValueBackReference( HereSenseContract.Pois.POI_SCAN_IDX, 0 )
+                    .withYieldAllowed( ++opCount % 50 == 0 )
+                    .build() );
+        }
+        return ContentUris.parseId( mProvider.applyBatch( operations )[0].uri );
+    }
+
+    /** As PoiSearch.cacheSearchResults() did before the upsert. */
+    private long cacheReplaced(ContentValues[] pois) throws Exception {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add( newScanInsert() );
+        int opCount = 0;
+        for ( ContentValues poi : pois ) {
+            operations.add( ContentProviderOperation.newUpdate( HereSenseContract.Pois.CONTENT_URI )
+                    .withSelection( HereSenseContract.Pois.PLACE_ID + "=?",
+                            new String[] { poi.getAsString( HereSenseContract.Pois.PLACE_ID ) } )
+                    .withValues( poi )
+                    .withValueBackReference( HereSenseContract.Pois.POI_SCAN_IDX, 0 )
+                    .withYieldAllowed( ++opCount % 50 == 0 )
+                    .build() );
+        }
+        ContentProviderResult[] updateResults = mProvider.applyBatch( operations );
+        long poiScanId = ContentUris.parseId( updateResults[0].uri );
+
+        operations.clear();
+        opCount = 0;
+        for ( int i = 0; i < pois.length; i++ ) {
+            ContentProviderResult updateResult = updateResults[i + 1];
+            boolean bUpdated = ( updateResult.uri != null
+                    || updateResult.count != null && updateResult.count > 0 );
+            if ( bUpdated ) {
+                continue;
+            }
+            operations.add( ContentProviderOperation.newInsert( HereSenseContract.Pois.CONTENT_URI )
+                    .withValues( pois[i] )
+                    .withValue( HereSenseContract.Pois.POI_SCAN_IDX, poiScanId )
+                    .withYieldAllowed( ++opCount % 50 == 0 )
+                    .build() );
+        }
+        mProvider.applyBatch( operations );
+        return poiScanId;
+    }
+
+    private int getPoiCount(String selection) {
+        Cursor c = mProvider.query( HereSenseContract.Pois.CONTENT_URI, null, selection, null, null );
+        try {
+            return c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Cache scans one way.
+     * @return  Nanos per scan, sorted.
+     */
+    private long[] time(boolean bUpsert) throws Exception {
+        long[] times = new long[SCANS];
+        for ( int i = -WARMUP_SCANS; i < SCANS; i++ ) {
+            ContentValues[] pois = newScanPois();
+            int countBefore = getPoiCount( null );
+            long start = System.nanoTime();
+            long poiScanId = ( bUpsert ? cacheUpsert( pois ) : cacheReplaced( pois ) );
+            long end = System.nanoTime();
+            if ( i >= 0 ) {
+                times[i] = end - start;
+            }
+
+            // Cached pois updated, new ones inserted, all under this scan.
+            assertEquals( POI_COUNT, getPoiCount( HereSenseContract.Pois.POI_SCAN_IDX + "=" + poiScanId ) );
+            int added = getPoiCount( null ) - countBefore;
+            assertEquals( countBefore == 0 ? POI_COUNT : POI_COUNT - CACHED_COUNT, added );
+        }
+        Arrays.sort( times );
+        return times;
+    }
+
+    private static String percentiles(long[] sorted) {
+        return "p50Ms=" + sorted[sorted.length / 2] / 1e6 + " maxMs=" + sorted[sorted.length - 1] / 1e6;
+    }
+
+    @Test
+    public void upsertAgainstReplaced() throws Exception {
+        long[] replaced = time( false );
+        long[] upsert = time( true );
+        Log.i( TAG, "pois=" + POI_COUNT + " cached=" + CACHED_COUNT + " scans=" + SCANS );
+        Log.i( TAG, "query-then-insert: " + percentiles( replaced ) );
+        Log.i( TAG, "upsert:            " + percentiles( upsert ) );
+    }
+}
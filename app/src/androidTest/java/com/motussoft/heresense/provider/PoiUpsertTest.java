@@ -0,0 +1,173 @@
+package com.motussoft.heresense.provider;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+/**
+ * Pois.PARAM_UPSERT inserts through HereSenseProvider:  a poi with a cached place id is
+ * updated in place, keeping its _id and moving its rtree box, a new one is inserted, and
+ * the returned uris carry the row ids, alone and in a batch.
+ */
+@RunWith( AndroidJUnit4.class )
+public class PoiUpsertTest {
+
+    private static final String TAG = "PoiUpsertTest";
+
+    static final Uri UPSERT_URI = HereSenseContract.Pois.CONTENT_URI.buildUpon()
+            .appendQueryParameter( HereSenseContract.Pois.PARAM_UPSERT, "true" )
+            .build();
+
+    private TestDbContext mContext;
+    private HereSenseProvider mProvider;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = new TestDbContext( InstrumentationRegistry.getTargetContext(), TAG + "_" );
+        mProvider = mContext.newProvider();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mContext.deleteDatabase( HereSenseDbOpenHelper.DB_NAME );
+    }
+
+    static ContentValues newPoi(long poiScanId, String placeId, String name, double lat, double lon) {
+        ContentValues cv = new ContentValues();
+        cv.put( HereSenseContract.Pois.POI_SCAN_IDX, poiScanId );
+        cv.put( HereSenseContract.Pois.POI_RADIUS, 50 );
+        cv.put( HereSenseContract.Pois.POI_PROMINENCE, 1 );
+        cv.put( HereSenseContract.Pois.PLACE_ID, placeId );
+        cv.put( HereSenseContract.Pois.NAME, name );
+        cv.put( HereSenseContract.Pois.LATITUDE, lat );
+        cv.put( HereSenseContract.Pois.LONGITUDE, lon );
+        cv.put( HereSenseContract.Pois.TYPES, "cafe:food:establishment" );
+        return cv;
+    }
+
+    private long getPoiCount() {
+        Cursor c = mProvider.query( HereSenseContract.Pois.CONTENT_URI, null, null, null, null );
+        try {
+            return c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+
+    /** { _id, poi_scan_id, name, latitude } of the poi with placeId.  Null if none. */
+    private Object[] getPoi(String placeId) {
+        Cursor c = mProvider.query( HereSenseContract.Pois.CONTENT_URI,
+                new String[] { HereSenseContract.Pois._ID, HereSenseContract.Pois.POI_SCAN_IDX,
+                        HereSenseContract.Pois.NAME, HereSenseContract.Pois.LATITUDE },
+                HereSenseContract.Pois.PLACE_ID + "=?", new String[] { placeId }, null );
+        try {
+            assertTrue( c.getCount() <= 1 );
+            if ( !c.moveToFirst() ) {
+                return null;
+            }
+            return new Object[] { c.getLong( 0 ), c.getLong( 1 ), c.getString( 2 ), c.getDouble( 3 ) };
+        } finally {
+            c.close();
+        }
+    }
+
+    /** Pois whose rtree box covers lat,lon. */
+    private long[] getCoveringIds(double lat, double lon) {
+        Uri uri = HereSenseContract.Pois.CONTENT_URI.buildUpon()
+                .appendQueryParameter( HereSenseContract.Pois.PARAM_COVERS, lat + "," + lon )
+                .appendQueryParameter( HereSenseContract.Pois.PARAM_SPATIAL_INDEX,
+                        HereSenseContract.Pois.SPATIAL_INDEX_RTREE )
+                .build();
+        Cursor c = mProvider.query( uri,
+                new String[] { HereSenseContract.PoisTable.TABLE_NAME + "." + HereSenseContract.Pois._ID },
+                null, null, null );
+        try {
+            long[] ids = new long[c.getCount()];
+            for ( int i = 0; c.moveToNext(); i++ ) {
+                ids[i] = c.getLong( 0 );
+            }
+            return ids;
+        } finally {
+            c.close();
+        }
+    }
+
+    @Test
+    public void insertThenUpdateInPlace() throws Exception {
+        Uri inserted = mProvider.insert( UPSERT_URI, newPoi( 1, "ChIJa", "Cafe", 37.422, -122.084 ) );
+        long id = ContentUris.parseId( inserted );
+        assertEquals( ContentUris.withAppendedId( HereSenseContract.Pois.CONTENT_URI, id ), inserted );
+        assertArrayEquals( new Object[] { id, 1L, "Cafe", 37.422 }, getPoi( "ChIJa" ) );
+
+        // Same place id, moved and renamed under a new scan.  Same row.
+        Uri updated = mProvider.insert( UPSERT_URI, newPoi( 2, "ChIJa", "Cafe Renamed", 37.43, -122.09 ) );
+        assertEquals( id, ContentUris.parseId( updated ) );
+        assertEquals( 1, getPoiCount() );
+        assertArrayEquals( new Object[] { id, 2L, "Cafe Renamed", 37.43 }, getPoi( "ChIJa" ) );
+
+        // New place id.  New row.
+        long otherId = ContentUris.parseId( mProvider.insert( UPSERT_URI, newPoi( 2, "ChIJb", "Deli", 37.5, -122.1 ) ) );
+        assertTrue( otherId != id );
+        assertEquals( 2, getPoiCount() );
+        assertEquals( otherId, getPoi( "ChIJb" )[0] );
+
+        // Rtree box followed the move, where the device has rtree.
+        SQLiteDatabase db = new HereSenseDbOpenHelper( mContext ).getReadableDatabase();
+        try {
+            if ( HereSenseContract.PoisRTreeTable.exists( db ) ) {
+                assertEquals( 2, DatabaseUtils.queryNumEntries( db, HereSenseContract.PoisRTreeTable.TABLE_NAME ) );
+                assertArrayEquals( new long[] { id }, getCoveringIds( 37.43, -122.09 ) );
+                assertArrayEquals( new long[0], getCoveringIds( 37.422, -122.084 ) );
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    @Test
+    public void batchReturnsRowIds() throws Exception {
+        long existingId = ContentUris.parseId( mProvider.insert( UPSERT_URI,
+                newPoi( 1, "ChIJa", "Cafe", 37.422, -122.084 ) ) );
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        ContentValues scan = new ContentValues();
+        scan.put( HereSenseContract.PoiScans.POI_SCAN_LAT, 37.422f );
+        scan.put( HereSenseContract.PoiScans.POI_SCAN_LON, -122.084f );
+        scan.put( HereSenseContract.PoiScans.POI_SCAN_TIME, System.currentTimeMillis() );
+        operations.add( ContentProviderOperation.newInsert( HereSenseContract.PoiScans.CONTENT_URI )
+                .withValues( scan ).build() );
+        String[] placeIds = { "ChIJb", "ChIJa", "ChIJc" };
+        for ( String placeId : placeIds ) {
+            operations.add( ContentProviderOperation.newInsert( UPSERT_URI )
+                    .withValues( newPoi( 0, placeId, placeId, 37.422, -122.084 ) )
+                    .withValueBackReference( HereSenseContract.Pois.POI_SCAN_IDX, 0 )
+                    .build() );
+        }
+
+        ContentProviderResult[] results = mProvider.applyBatch( operations );
+        long poiScanId = ContentUris.parseId( results[0].uri );
+        assertEquals( 3, getPoiCount() );
+        for ( int i = 0; i < placeIds.length; i++ ) {
+            Object[] poi = getPoi( placeIds[i] );
+            assertEquals( placeIds[i], poi[0], ContentUris.parseId( results[i + 1].uri ) );
+            assertEquals( poiScanId, poi[1] );
+        }
+        assertEquals( existingId, ContentUris.parseId( results[2].uri ) );
+    }
+}
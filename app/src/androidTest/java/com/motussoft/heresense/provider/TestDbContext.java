@@ -0,0 +1,53 @@
+package com.motussoft.heresense.provider;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.database.DatabaseErrorHandler;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.io.File;
+
+/**
+ * Target context whose databases are renamed with a prefix, so a HereSenseProvider attached
+ * to it works on its own heresense.db and leaves the app's alone.
+ */
+class TestDbContext extends ContextWrapper {
+
+    private final String mPrefix;
+
+    TestDbContext(Context base, String prefix) {
+        super( base );
+        mPrefix = prefix;
+    }
+
+    /**
+     * New provider on a fresh database.
+     */
+    HereSenseProvider newProvider() {
+        deleteDatabase( HereSenseDbOpenHelper.DB_NAME );
+        HereSenseProvider provider = new HereSenseProvider();
+        provider.attachInfo( this, null );
+        return provider;
+    }
+
+    @Override
+    public File getDatabasePath(String name) {
+        return super.getDatabasePath( mPrefix + name );
+    }
+
+    @Override
+    public SQLiteDatabase openOrCreateDatabase(String name, int mode, SQLiteDatabase.CursorFactory factory) {
+        return super.openOrCreateDatabase( mPrefix + name, mode, factory );
+    }
+
+    @Override
+    public SQLiteDatabase openOrCreateDatabase(String name, int mode, SQLiteDatabase.CursorFactory factory,
+                                               DatabaseErrorHandler errorHandler) {
+        return super.openOrCreateDatabase( mPrefix + name, mode, factory, errorHandler );
+    }
+
+    @Override
+    public boolean deleteDatabase(String name) {
+        return super.deleteDatabase( mPrefix + name );
+    }
+}
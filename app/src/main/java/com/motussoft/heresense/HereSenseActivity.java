@@ -10,29 +10,33 @@ import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.FileObserver;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.text.TextUtils;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
 import android.widget.CheckBox;
 import android.widget.EditText;
-import android.widget.ScrollView;
+import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.motussoft.heresense.logging.LogFileIndex;
 import com.motussoft.heresense.logging.LoggingService;
 import com.motussoft.heresense.logging.LogsUploadActivity;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
 import java.util.Date;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 
 public class HereSenseActivity extends Activity {
@@ -52,6 +56,9 @@ public class HereSenseActivity extends Activity {
         super.onCreate( savedInstanceState );
         setContentView( R.layout.activity_heresense_debug );
 
+        mLogAdapter = new LogLinesAdapter();
+        ( (ListView) findViewById( R.id.logList ) ).setAdapter( mLogAdapter );
+
         boolean isRunning = HereSenseService.isDetecting( this );
         ((CheckBox ) findViewById( R.id.poiDetectionService )).setChecked( isRunning );
         enableCtrls( isRunning );
@@ -79,9 +86,7 @@ public class HereSenseActivity extends Activity {
     @Override
     protected void onStart() {
         super.onStart();
-        readLogFile();
-        scrollLogToBottom();
-        mHandler.postDelayed( mUpdateLogDisplay, 1000 );
+        startLogViewer();
     }
 
     @Override
@@ -97,7 +102,7 @@ public class HereSenseActivity extends Activity {
     @Override
     protected void onStop() {
         super.onStop();
-        mHandler.removeCallbacks( mUpdateLogDisplay );
+        stopLogViewer();
     }
 
     @Override
@@ -152,128 +157,141 @@ public class HereSenseActivity extends Activity {
         }
     }
 
-    private long mLogFileTimeStamp = 0;
-    private long mReadBufferSize = 0;
+    /****************************************************************
+     * Log viewer.
+     *
+     * Today's log is line indexed incrementally off a memory-mapped file on a worker
+     * thread, woken by a FileObserver.  Only visible lines are decoded, by a recycling
+     * list adapter.
+     ****************************************************************/
 
-    private void readLogFile() {
-        File logFile = LoggingService.getLogFile( this );
+    private final Handler mHandler = new Handler();
+    private HandlerThread mLogThread;
+    private Handler mLogHandler;
+    private FileObserver mLogObserver;
+    private final AtomicBoolean mLogUpdatePending = new AtomicBoolean( false );
+    private LogLinesAdapter mLogAdapter;
 
-        StringBuilder sb = new StringBuilder();
-        BufferedReader br = null;
-        try {
-            br = new BufferedReader( new FileReader( logFile ) );
-            while ( true ) {
-                String line = null;
-                try {
-                    line = br.readLine();
-                } catch (IOException e) {
-                }
-                if ( line == null ) {
-                    break;
+    // Log worker thread only.
+    private LogFileIndex mLogIndex;
+
+    private void startLogViewer() {
+        mLogThread = new HandlerThread( TAG );
+        mLogThread.start();
+        mLogHandler = new Handler( mLogThread.getLooper() );
+
+        mLogObserver = new FileObserver( getFilesDir().getPath(),
+                FileObserver.MODIFY | FileObserver.CREATE | FileObserver.DELETE ) {
+            @Override
+            public void onEvent(int event, String path) {
+                if ( path != null && path.startsWith( "poi_" ) && path.endsWith( ".log" ) ) {
+                    requestLogUpdate();
                 }
-                sb.append( "\n" );
-                sb.append( line );
             }
+        };
+        mLogObserver.startWatching();
+
+        requestLogUpdate();
+    }
+
+    private void stopLogViewer() {
+        mLogObserver.stopWatching();
+        mLogObserver = null;
 
-            mLogFileTimeStamp = logFile.lastModified();
-            mReadBufferSize = logFile.length();
-        } catch (FileNotFoundException e) {
-        } finally {
-            if ( br != null ) {
-                try {
-                    br.close();
-                } catch (IOException e) {
+        mLogHandler.removeCallbacksAndMessages( null );
+        mLogHandler.post( new Runnable() {
+            @Override
+            public void run() {
+                if ( mLogIndex != null ) {
+                    mLogIndex.close();
+                    mLogIndex = null;
                 }
+                Looper.myLooper().quit();
             }
-        }
-
-        TextView textLog = (TextView) findViewById( R.id.textLog );
-        TextView textUpdate = (TextView) findViewById( R.id.textUpdate );
-        textLog.setText( sb.toString() );
-        textUpdate.setText( null );
+        } );
+        mLogUpdatePending.set( false );
+        mLogHandler = null;
+        mLogThread = null;
     }
 
-    private Handler mHandler = new Handler();
-    private long LIMIT = 0x10000;
+    /** Any thread.  Coalesces requests until the worker picks one up. */
+    private void requestLogUpdate() {
+        Handler logHandler = mLogHandler;
+        if ( logHandler != null && mLogUpdatePending.compareAndSet( false, true ) ) {
+            logHandler.post( mUpdateLogIndex );
+        }
+    }
 
-    private Runnable mUpdateLogDisplay = new Runnable() {
+    private final Runnable mUpdateLogIndex = new Runnable() {
         @Override
         public void run() {
-            if ( HereSenseActivity.this.isFinishing() ) {
-                mHandler.removeCallbacks( this );
-                return;
-            }
+            mLogUpdatePending.set( false );
 
+            // Switch over at day roll over.
             File logFile = LoggingService.getLogFile( HereSenseActivity.this );
-            long timeStamp = logFile.lastModified();
-            if ( timeStamp != mLogFileTimeStamp ) {
-                // Log changed.
-                long fileSize = logFile.length();
-                long diffSize = fileSize - mReadBufferSize;
-
-                boolean bLogAtBottom = isLogScrolledToBottom();
-
-                if ( diffSize > LIMIT ) {
-                    // Reread the whole file.
-                    readLogFile();
-                } else if ( diffSize > 0 ) {
-                    // Only read the update.
-                    StringBuilder sb = new StringBuilder();
-                    RandomAccessFile rf = null;
-                    try {
-                        rf = new RandomAccessFile( logFile, "r" );
-                        rf.seek( mReadBufferSize );
-                        while ( true ) {
-                            String line = rf.readLine();
-                            if ( line == null ) {
-                                break;
-                            }
-                            sb.append( line );
-                            sb.append( "\n" );
-                        }
-
-                        mLogFileTimeStamp = timeStamp;
-                    } catch (FileNotFoundException e) {
-                    } catch (IOException e) {
-                    } finally {
-                        if ( rf != null ) {
-                            try {
-                                rf.close();
-                            } catch (IOException e) {
-                            }
-                        }
-                    }
-
-                    TextView textUpdate = (TextView) findViewById( R.id.textUpdate );
-                    textUpdate.setText( sb.toString() );
-
+            if ( mLogIndex == null || !mLogIndex.getFile().equals( logFile ) ) {
+                if ( mLogIndex != null ) {
+                    mLogIndex.close();
                 }
+                mLogIndex = new LogFileIndex( logFile );
+            }
 
-                if ( bLogAtBottom ) {
-                    scrollLogToBottom();
+            final LogFileIndex index = mLogIndex;
+            final int lineCount = index.update();
+            mHandler.post( new Runnable() {
+                @Override
+                public void run() {
+                    mLogAdapter.setLines( index, lineCount );
                 }
+            } );
+        }
+    };
+
+    private class LogLinesAdapter extends BaseAdapter {
+        private LogFileIndex mIndex;
+        private int mCount = 0;
+        private boolean mScrolledToBottom = false;
+
+        void setLines(LogFileIndex index, int count) {
+            if ( index == mIndex && count == mCount ) {
+                return;
             }
+            mIndex = index;
+            mCount = count;
+            notifyDataSetChanged();
+
+            if ( !mScrolledToBottom && count > 0 ) {
+                // Start at latest.  List keeps following the bottom from here on.
+                ( (ListView) findViewById( R.id.logList ) ).setSelection( count - 1 );
+                mScrolledToBottom = true;
+            }
+        }
 
-            // Schedule next update.
-            mHandler.postDelayed( this, 1000 );
+        @Override
+        public int getCount() {
+            return mCount;
         }
-    };
 
-    private boolean isLogScrolledToBottom() {
-        final ScrollView scrollView = (ScrollView) findViewById( R.id.scrollView );
-        View lastChild = (View) scrollView.getChildAt( scrollView.getChildCount() - 1 );
-        int yDiff = ( lastChild.getBottom() - ( scrollView.getHeight() + scrollView.getScrollY() + lastChild.getTop() ) );
-        return ( yDiff == 0 );
-    }
+        @Override
+        public Object getItem(int position) {
+            return ( mIndex == null ? null : mIndex.getLine( position ) );
+        }
 
-    private void scrollLogToBottom() {
-        final ScrollView scrollView = (ScrollView) findViewById( R.id.scrollView );
-        scrollView.post( new Runnable() {
-            @Override
-            public void run() {
-                scrollView.fullScroll( View.FOCUS_DOWN );
+        @Override
+        public long getItemId(int position) {
+            return position;
+        }
+
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent) {
+            TextView textView = (TextView) convertView;
+            if ( textView == null ) {
+                textView = (TextView) getLayoutInflater()
+                        .inflate( R.layout.list_item_log_line, parent, false );
             }
-        } );
+            textView.setText( (String) getItem( position ) );
+            return textView;
+        }
     }
 
     /**
@@ -315,14 +333,26 @@ public class HereSenseActivity extends Activity {
 
     private static final String EMAIL_LOGS_SUBJECT = "POI logs";
 
+    private static final long FLUSH_LOGS_TIMEOUT = 500;
+
     private void emailPoiLogs() {
-        String logFile = LoggingService.getLogFile( this ).toString();
+        // Seal the active segment, and attach today's sealed segments.
+        LoggingService.sealLogs( this, FLUSH_LOGS_TIMEOUT );
+        Calendar cal = Calendar.getInstance();
+        cal.set( Calendar.HOUR_OF_DAY, 0 );
+        cal.set( Calendar.MINUTE, 0 );
+        cal.set( Calendar.SECOND, 0 );
+        cal.set( Calendar.MILLISECOND, 0 );
+        ArrayList<Uri> logFiles = new ArrayList<Uri>();
+        for ( File logFile : LoggingService.getSealedLogs( this, cal.getTimeInMillis(), Long.MAX_VALUE ) ) {
+            logFiles.add( Uri.fromFile( logFile ) );
+        }
 
-        Intent emailIntent = new Intent( Intent.ACTION_SEND )
-                .setType( "text/plain" )
+        Intent emailIntent = new Intent( Intent.ACTION_SEND_MULTIPLE )
+                .setType( "application/gzip" )
                 .putExtra( Intent.EXTRA_SUBJECT, EMAIL_LOGS_SUBJECT )
                 .putExtra(Intent.EXTRA_TEXT, "POI logs attached..." )
-                .putExtra( Intent.EXTRA_STREAM, Uri.parse( "file://" + logFile ) );
+                .putParcelableArrayListExtra( Intent.EXTRA_STREAM, logFiles );
 
         startActivity( Intent.createChooser( emailIntent, "Send POI logs via email..." ) );
     }
@@ -350,11 +380,7 @@ public class HereSenseActivity extends Activity {
     private void deletePoiLogs() {
         // Delete all logs prior to now.
         LoggingService.deleteLogs( this, System.currentTimeMillis() );
-
-        TextView textLog = (TextView) findViewById( R.id.textLog );
-        TextView textUpdate = (TextView) findViewById( R.id.textUpdate );
-        textLog.setText( null );
-        textUpdate.setText( null );
+        requestLogUpdate();
 
         Toast.makeText( this, "Logs deleted...", Toast.LENGTH_LONG )
                 .show();
@@ -1,8 +1,8 @@
 package com.motussoft.heresense;
 
 import android.app.AlarmManager;
-import android.app.IntentService;
 import android.app.PendingIntent;
+import android.app.Service;
 import android.content.BroadcastReceiver;
 import android.content.ContentResolver;
 import android.content.Context;
@@ -11,16 +11,20 @@ import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.location.Location;
 import android.net.Uri;
+import android.os.IBinder;
 
 import com.motussoft.heresense.dwelldetection.DetectDwellService;
+import com.motussoft.heresense.logging.EventLog;
 import com.motussoft.heresense.logging.LoggingService;
 import com.motussoft.heresense.logging.LogsUploadActivity;
 import com.motussoft.heresense.mapsapi.MapsApi;
 import com.motussoft.heresense.mapsapi.PlacesSearch;
+import com.motussoft.heresense.mapsapi.RequestLimiter;
 import com.motussoft.heresense.models.Dwell;
 import com.motussoft.heresense.models.Transit;
 import com.motussoft.heresense.poi.Poi;
 import com.motussoft.heresense.provider.HereSenseContract;
+import com.motussoft.heresense.poi.PoiQueryCache;
 import com.motussoft.heresense.poi.PoiSearch;
 
 import java.util.ArrayList;
@@ -28,8 +32,9 @@ import java.util.Calendar;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
-public class HereSenseService extends IntentService {
+public class HereSenseService extends Service {
 
     private static final String TAG = "HereSenseService";
 
@@ -71,6 +76,8 @@ public class HereSenseService extends IntentService {
     public static final int POI_EVENT_COARSE_DWELL = 1;
     public static final int POI_EVENT_DWELL = 2;
     public static final int POI_EVENT_EXIT = 3;
+    /** Later search pages were merged into the poi cache.  EXTRA_NEARBY_POIS holds the refined pois. */
+    public static final int POI_EVENT_REFINED = 4;
 
     public static final String EXTRA_POI = "EXTRA_POI";
     public static final String EXTRA_NEARBY_POIS = "EXTRA_NEARBY_POIS";
@@ -79,10 +86,6 @@ public class HereSenseService extends IntentService {
      * Life cycle
      ****************************************************************/
 
-    public HereSenseService() {
-        super( TAG );
-    }
-
     @Override
     public void onCreate() {
         super.onCreate();
@@ -92,44 +95,161 @@ public class HereSenseService extends IntentService {
         super.onDestroy();
     }
 
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    /****************************************************************
+     * Work lanes
+     ****************************************************************/
+
+    /** Motion state transitions.  Latency critical, and kept in order. */
+    private static final int LANE_MOTION = 0;
+    /** Poi searches on dwells.  May wait on the web and the request limiter. */
+    private static final int LANE_POI = 1;
+    /** Poi aging, log uploads and state dumps. */
+    private static final int LANE_MAINTENANCE = 2;
+
+    private static final ServiceLanes sLanes = new ServiceLanes( TAG, "motion", "poi", "maintenance" );
+
+    /** Bumped on each dwell exit.  Poi searches for a dwell exited meanwhile aren't broadcast. */
+    private static final AtomicInteger sExitCount = new AtomicInteger();
+
+    /**
+     * Dwell exits so far.  Background poi work for a dwell compares it against the count
+     * taken when it started, as isStaleDwell() does.
+     */
+    public static int getExitCount() {
+        return sExitCount.get();
+    }
+
+    /** Tasks queued or running.  The service stops itself when it gets back to 0. */
+    private int mPending = 0;
+    private int mLastStartId;
+
+    private void execute(int lane, String action, final Runnable task) {
+        synchronized ( this ) {
+            mPending++;
+        }
+        sLanes.execute( lane, action, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } finally {
+                    synchronized ( HereSenseService.this ) {
+                        if ( --mPending == 0 ) {
+                            stopSelf( mLastStartId );
+                        }
+                    }
+                }
+            }
+        } );
+    }
+
     /****************************************************************
      * Handle Intent
      ****************************************************************/
 
     @Override
-    protected void onHandleIntent(Intent intent) {
-        String action = ( intent == null ? null : intent.getAction() );
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        synchronized ( this ) {
+            mLastStartId = startId;
+        }
+        dispatch( intent );
+        synchronized ( this ) {
+            if ( mPending == 0 ) {
+                stopSelf( startId );
+            }
+        }
+        return START_NOT_STICKY;
+    }
+
+    /**
+     * Queue intent's handler on its lane.  Called on the main thread, in intent order.
+     */
+    private void dispatch(Intent intent) {
+        final String action = ( intent == null ? null : intent.getAction() );
         if ( action == null ) {
             return;
         }
 
         if ( ACTION_START_POI_DETECTION.equals( action ) ) {
-            handleStartPoiDetection();
+            execute( LANE_MOTION, action, new Runnable() {
+                @Override
+                public void run() {
+                    handleStartPoiDetection();
+                }
+            } );
         } else if ( ACTION_STOP_POI_DETECTION.equals( action ) ) {
-            handleStopPoiDetection();
+            sExitCount.incrementAndGet();
+            execute( LANE_MOTION, action, new Runnable() {
+                @Override
+                public void run() {
+                    handleStopPoiDetection();
+                }
+            } );
         } else if ( DetectDwellService.ACTION_ON_COARSE_DWELL_DETECTED.equals( action ) ) {
-            // On coarse dwell detected.
-            Location dwellLocation = intent.getParcelableExtra( DetectDwellService.EXTRA_ON_DWELL_LOCATION );
-            long dwellTime = intent.getLongExtra( DetectDwellService.EXTRA_ON_DWELL_TIMESTAMP, 0 );
-            handleOnCoarseDwellDetected( dwellLocation, dwellTime );
+            // On coarse dwell detected.  No state change, only the poi search.
+            final Location dwellLocation = intent.getParcelableExtra( DetectDwellService.EXTRA_ON_DWELL_LOCATION );
+            final long dwellTime = intent.getLongExtra( DetectDwellService.EXTRA_ON_DWELL_TIMESTAMP, 0 );
+            final int exitCount = sExitCount.get();
+            execute( LANE_POI, action, new Runnable() {
+                @Override
+                public void run() {
+                    handleOnCoarseDwellDetected( dwellLocation, dwellTime, exitCount );
+                }
+            } );
         } else if ( DetectDwellService.ACTION_ON_DWELL_DETECTED.equals( action ) ) {
-            // On dwell detected.
-            Location dwellLocation = intent.getParcelableExtra( DetectDwellService.EXTRA_ON_DWELL_LOCATION );
-            long dwellTime = intent.getLongExtra( DetectDwellService.EXTRA_ON_DWELL_TIMESTAMP, 0 );
-            handleOnDwellDetected( dwellLocation, dwellTime );
+            // On dwell detected.  State change first, then the poi search on its own lane.
+            final Location dwellLocation = intent.getParcelableExtra( DetectDwellService.EXTRA_ON_DWELL_LOCATION );
+            final long dwellTime = intent.getLongExtra( DetectDwellService.EXTRA_ON_DWELL_TIMESTAMP, 0 );
+            final int exitCount = sExitCount.get();
+            execute( LANE_MOTION, action, new Runnable() {
+                @Override
+                public void run() {
+                    handleOnDwellDetected( dwellLocation, dwellTime );
+                    execute( LANE_POI, ACTION_FIND_DWELL_POIS, new Runnable() {
+                        @Override
+                        public void run() {
+                            handleFindDwellPois( dwellLocation, exitCount );
+                        }
+                    } );
+                }
+            } );
         } else if ( DetectDwellService.ACTION_IN_TRANSIT_DETECTED.equals( action ) ) {
             // In transit detected.
-            long transitTime = intent.getLongExtra( DetectDwellService.EXTRA_IN_TRANSIT_TIMESTAMP, 0 );
-            handleInTransitDetected( transitTime );
+            sExitCount.incrementAndGet();
+            final long transitTime = intent.getLongExtra( DetectDwellService.EXTRA_IN_TRANSIT_TIMESTAMP, 0 );
+            execute( LANE_MOTION, action, new Runnable() {
+                @Override
+                public void run() {
+                    handleInTransitDetected( transitTime );
+                }
+            } );
         } else if ( ACTION_POI_AGING.equals( action ) ) {
-            handleOnPoiAging();
+            execute( LANE_MAINTENANCE, action, new Runnable() {
+                @Override
+                public void run() {
+                    handleOnPoiAging();
+                }
+            } );
         } else if ( ACTION_UPLOAD_POI_LOGS.equals( action ) ) {
-            handleOnUploadPoiLogs();
+            execute( LANE_MAINTENANCE, action, new Runnable() {
+                @Override
+                public void run() {
+                    handleOnUploadPoiLogs();
+                }
+            } );
         } else if ( ACTION_DUMP_STATES.equals( action ) ) {
-            handleOnDumpStates();
+            execute( LANE_MAINTENANCE, action, new Runnable() {
+                @Override
+                public void run() {
+                    handleOnDumpStates();
+                }
+            } );
         }
-
-        return;
     }
 
     /** Wrap all broadcast intents to HereSenseService intents with intent action & extras*/
@@ -183,10 +303,24 @@ public class HereSenseService extends IntentService {
 
     private static final String PREF_KEY_ON_DWELL_TIMESTAMP = "PREF_KEY_ON_DWELL_TIMESTAMP";
 
+    /** Metrics key of the poi search queued by a dwell. */
+    private static final String ACTION_FIND_DWELL_POIS = "ACTION_FIND_DWELL_POIS";
+
+    /**
+     * Whether the dwell searched for was exited while searching.
+     */
+    private boolean isStaleDwell(int exitCount, String what) {
+        if ( exitCount == sExitCount.get() ) {
+            return false;
+        }
+        LoggingService.logToFile( this, "Dwell exited during poi search.  Dropping " + what + " broadcast." );
+        return true;
+    }
+
     /**
      * Callback placeholder.
      */
-    private void handleOnCoarseDwellDetected(Location dwellLocation, long dwellTimeStamp) {
+    private void handleOnCoarseDwellDetected(Location dwellLocation, long dwellTimeStamp, int exitCount) {
         // FIXME!!!
         // !!! Check for null on dwellLocation!!!
 
@@ -204,6 +338,9 @@ public class HereSenseService extends IntentService {
         LoggingService.logToFile( this, "Coarse dwelling nearby " + sb.toString() );
 
         // Send notification broadcast.
+        if ( isStaleDwell( exitCount, "coarse dwell" ) ) {
+            return;
+        }
         sendBroadcast( new Intent( ACTION_POI_EVENT )
                 .putParcelableArrayListExtra( EXTRA_NEARBY_POIS, (ArrayList) nearbyPois )
                 .putExtra( EXTRA_POI_EVENT_TYPE, POI_EVENT_COARSE_DWELL ) );
@@ -230,6 +367,14 @@ public class HereSenseService extends IntentService {
         getSharedPreferences( TAG, MODE_PRIVATE ).edit()
                 .putLong( PREF_KEY_ON_DWELL_TIMESTAMP, dwellTimeStamp ).apply();
 
+        // Logging
+        LoggingService.logToFile( this, "Starting dwell at " + dwellLocation.toString() );
+    }
+
+    /**
+     * Poi search for a dwell, queued on the poi lane after handleOnDwellDetected().
+     */
+    private void handleFindDwellPois(Location dwellLocation, int exitCount) {
         // Look for nearby pois.
         List<Poi> nearbyMapsApiPois = PoiSearch.findNearbyPois(getApplicationContext(),
                 dwellLocation, null, MapsApi.Type.establishment.toString(), null);
@@ -249,10 +394,10 @@ public class HereSenseService extends IntentService {
             // poiName = " at " + poi.getName();
         }
 
-        // Logging
-        LoggingService.logToFile( this, "Starting dwell at " + dwellLocation.toString() );
-
         // Send notification broadcast.
+        if ( isStaleDwell( exitCount, "dwell" ) ) {
+            return;
+        }
         sendBroadcast( new Intent( ACTION_POI_EVENT )
                 .putExtra( EXTRA_POI, poi )
                 .putParcelableArrayListExtra( EXTRA_NEARBY_POIS, (ArrayList) nearbyPois )
@@ -427,6 +572,7 @@ public class HereSenseService extends IntentService {
 
         // Logging
         LoggingService.logToFile( this, "setMotionState: " + newState.toString() );
+        EventLog.logMotionState( this, newTime, oldState.name(), newState.name() );
 
         if ( newState == MotionState.eUndef ) {
             // Turn off motion detection services.
@@ -609,6 +755,12 @@ public class HereSenseService extends IntentService {
                     state instanceof Transit ? ((Transit) state).toString() :
                     state.toString()  );
         }
+
+        // Poi cache, request and service queue metrics.
+        LoggingService.logToFile( this, PoiQueryCache.getStats() );
+        LoggingService.logToFile( this, RequestLimiter.getInstance( this ).getStats() );
+        LoggingService.logToFile( this, sLanes.getStats() );
+        LoggingService.logToFile( this, DetectDwellService.getStats() );
     }
 
     private static Comparator<Object> mSortDwellTransitStates = new Comparator<Object>() {
@@ -0,0 +1,119 @@
+package com.motussoft.heresense;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A few independent work lanes for a service, instead of the single worker thread of an
+ * IntentService, so slow work on one lane doesn't hold up work on another.
+ *
+ * Each lane is a single thread running its tasks in order.  Queue depth and wait time,
+ * from queued to started, are tracked per action for logging.
+ */
+public class ServiceLanes {
+
+    private static final String TAG = "ServiceLanes";
+
+    /** Per action metrics, since process start. */
+    private static class ActionStats {
+        int queued;
+        int maxQueued;
+        int runs;
+        long totalWaitMs;
+        long maxWaitMs;
+        long totalRunMs;
+    }
+
+    private final String[] mLaneNames;
+    private final ExecutorService[] mLanes;
+    private final TreeMap<String, ActionStats> mStats = new TreeMap<String, ActionStats>();
+
+    /**
+     * @param name  Thread name prefix.
+     * @param laneNames  One lane per name.  Lanes are referred to by index.
+     */
+    public ServiceLanes(String name, String... laneNames) {
+        mLaneNames = laneNames;
+        mLanes = new ExecutorService[laneNames.length];
+        for ( int i = 0; i < laneNames.length; i++ ) {
+            final String threadName = name + "-" + laneNames[i];
+            mLanes[i] = Executors.newSingleThreadExecutor( new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread( r, threadName );
+                    thread.setDaemon( true );
+                    return thread;
+                }
+            } );
+        }
+    }
+
+    /**
+     * Queue task at the end of lane.
+     *
+     * @param action  Metrics key.
+     */
+    public void execute(int lane, final String action, final Runnable task) {
+        final long queuedTime = System.currentTimeMillis();
+        synchronized ( this ) {
+            ActionStats stats = getActionStats( action );
+            stats.queued++;
+            stats.maxQueued = Math.max( stats.maxQueued, stats.queued );
+        }
+
+        mLanes[lane].execute( new Runnable() {
+            @Override
+            public void run() {
+                long startTime = System.currentTimeMillis();
+                try {
+                    task.run();
+                } finally {
+                    long wait = startTime - queuedTime;
+                    long run = System.currentTimeMillis() - startTime;
+                    synchronized ( ServiceLanes.this ) {
+                        ActionStats stats = getActionStats( action );
+                        stats.queued--;
+                        stats.runs++;
+                        stats.totalWaitMs += wait;
+                        stats.maxWaitMs = Math.max( stats.maxWaitMs, wait );
+                        stats.totalRunMs += run;
+                    }
+                }
+            }
+        } );
+    }
+
+    private ActionStats getActionStats(String action) {
+        ActionStats stats = mStats.get( action );
+        if ( stats == null ) {
+            stats = new ActionStats();
+            mStats.put( action, stats );
+        }
+        return stats;
+    }
+
+    /**
+     * Queue depth and wait times per action, for logging.
+     */
+    public synchronized String getStats() {
+        StringBuilder sb = new StringBuilder( TAG + ": lanes=" );
+        for ( int i = 0; i < mLaneNames.length; i++ ) {
+            sb.append( i == 0 ? "" : "," ).append( mLaneNames[i] );
+        }
+        for ( Map.Entry<String, ActionStats> entry : mStats.entrySet() ) {
+            ActionStats stats = entry.getValue();
+            sb.append( " " ).append( entry.getKey() )
+                    .append( "[queued=" ).append( stats.queued )
+                    .append( " maxQueued=" ).append( stats.maxQueued )
+                    .append( " runs=" ).append( stats.runs )
+                    .append( " avgWaitMs=" ).append( stats.runs == 0 ? 0 : stats.totalWaitMs / stats.runs )
+                    .append( " maxWaitMs=" ).append( stats.maxWaitMs )
+                    .append( " avgRunMs=" ).append( stats.runs == 0 ? 0 : stats.totalRunMs / stats.runs )
+                    .append( "]" );
+        }
+        return sb.toString();
+    }
+}
@@ -1,19 +1,16 @@
 package com.motussoft.heresense.dwelldetection;
 
 import android.Manifest;
-import android.annotation.TargetApi;
 import android.app.AlarmManager;
-import android.app.IntentService;
 import android.app.PendingIntent;
+import android.app.Service;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.location.Location;
 import android.location.LocationManager;
-import android.os.Build;
-import android.os.Bundle;
+import android.os.IBinder;
 import android.support.v4.app.ActivityCompat;
 import android.util.Log;
 
@@ -25,22 +22,21 @@ import com.google.android.gms.location.DetectedActivity;
 import com.google.android.gms.location.FusedLocationProviderApi;
 import com.google.android.gms.location.LocationRequest;
 import com.google.android.gms.location.LocationServices;
+import com.motussoft.heresense.ServiceLanes;
+import com.motussoft.heresense.logging.EventLog;
+import com.motussoft.heresense.logging.EventLogFormat;
 import com.motussoft.heresense.logging.LoggingService;
+import com.motussoft.heresense.poi.PoiPrefetcher;
 
-import java.io.FileNotFoundException;
+import java.io.File;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.Serializable;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
-public class DetectDwellService extends IntentService implements
-        GoogleApiClient.ConnectionCallbacks,
-        GoogleApiClient.OnConnectionFailedListener {
+public class DetectDwellService extends Service {
 
     private static final String TAG = "DetectDwellService";
 
@@ -89,42 +85,129 @@ public class DetectDwellService extends IntentService implements
      * Life cycle
      ****************************************************************/
 
-    public DetectDwellService() {
-        super( TAG );
-    }
-
     @Override
     public void onCreate() {
         super.onCreate();
 
-        mGoogleApiClient = new GoogleApiClient.Builder( this )
-                .addApi( ActivityRecognition.API )
-                .addApi( LocationServices.API )
-                .addConnectionCallbacks( this )
-                .addOnConnectionFailedListener( this )
-                .build();
+        mState = DwellState.getInstance( this );
     }
 
     public void onDestroy() {
         super.onDestroy();
+
+        // Sync location history journal at end of service life cycle.  On the lane, after any
+        // intent still queued, as LocHistory is only accessed from there.
+        sLanes.execute( LANE_DETECT, "syncLocHistory", new Runnable() {
+            @Override
+            public void run() {
+                LocHistory.getInstance().sync();
+            }
+        } );
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
     }
 
     /****************************************************************
-     * GoogleApiClient
+     * Detection engine
      ****************************************************************/
 
-    private GoogleApiClient mGoogleApiClient;
+    /**
+     * Intents are handled in order on one lane thread, and the GoogleApiClient stays
+     * connected across intents and service restarts for as long as dwell or transit
+     * detection is on.  Only the service instance comes and goes between events.
+     */
+    private static final ServiceLanes sLanes = new ServiceLanes( TAG, "detect" );
+    private static final int LANE_DETECT = 0;
 
-    @Override
-    public void onConnected(Bundle bundle) {
+    private static final long CONNECT_TIMEOUT_MS = 30 * 1000;
+
+    /** Process wide client.  Only accessed from the lane thread. */
+    private static GoogleApiClient sGoogleApiClient;
+
+    /** Client connects since process start. */
+    private static int sConnects = 0;
+    private static int sConnectFailures = 0;
+    private static long sConnectTotalMs = 0;
+    private static int sDroppedIntents = 0;
+
+    /** Detection state.  Flushed to preferences once per handled intent. */
+    private DwellState mState;
+
+    /** Intents queued or running.  The service stops itself when it gets back to 0. */
+    private int mPending = 0;
+    private int mLastStartId;
+
+    /**
+     * Client connects, fixes per detected dwell, and queue wait and handling time per
+     * action, for logging.
+     */
+    public static String getStats() {
+        synchronized ( DetectDwellService.class ) {
+            return TAG + ": connects=" + sConnects + " connectFailures=" + sConnectFailures
+                    + " avgConnectMs=" + ( sConnects == 0 ? 0 : sConnectTotalMs / sConnects )
+                    + " droppedIntents=" + sDroppedIntents
+                    + " dwellFixes=" + sDwellFixes + " dwells=" + sDwellsDetected
+                    + " fixesPerDwell=" + ( sDwellsDetected == 0 ? 0 : sDwellFixes / sDwellsDetected )
+                    + " " + sLanes.getStats();
+        }
     }
 
-    @Override
-    public void onConnectionSuspended(int i) {
+    /** Connect attempts per intent, before the intent is dropped. */
+    private static final int MAX_CONNECT_ATTEMPTS = 2;
+
+    /**
+     * @return  Whether the client is connected.  Activity recognition and location apis
+     *          throw IllegalStateException on a disconnected client.
+     */
+    private boolean ensureConnected() {
+        if ( sGoogleApiClient == null ) {
+            sGoogleApiClient = new GoogleApiClient.Builder( getApplicationContext() )
+                    .addApi( ActivityRecognition.API )
+                    .addApi( LocationServices.API )
+                    .build();
+        }
+
+        for ( int attempt = 0; attempt < MAX_CONNECT_ATTEMPTS; attempt++ ) {
+            if ( sGoogleApiClient.isConnected() ) {
+                return true;
+            }
+
+            long start = System.currentTimeMillis();
+            ConnectionResult result = sGoogleApiClient.blockingConnect( CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS );
+            synchronized ( DetectDwellService.class ) {
+                sConnects++;
+                sConnectTotalMs += System.currentTimeMillis() - start;
+                if ( !result.isSuccess() ) {
+                    sConnectFailures++;
+                }
+            }
+            if ( !result.isSuccess() ) {
+                LoggingService.logToFile( this, "GoogleApiClient connect failed: " + result );
+            }
+        }
+        return sGoogleApiClient.isConnected();
     }
 
-    @Override
-    public void onConnectionFailed(ConnectionResult connectionResult) {
+    /**
+     * Release the client once neither dwell nor transit detection is on.  Not while more
+     * intents are queued, as a dwell/transit switch stops one before starting the other.
+     */
+    private void releaseIfIdle() {
+        synchronized ( this ) {
+            if ( mPending > 1 ) {
+                return;
+            }
+        }
+        if ( sGoogleApiClient != null && sGoogleApiClient.isConnected()
+                && !mState.isDetectingDwell() && !mState.isDetectingTransit() ) {
+            sGoogleApiClient.disconnect();
+
+            // Connects and per action latency, once per detection session.
+            LoggingService.logToFile( this, getStats() );
+        }
     }
 
     /****************************************************************
@@ -132,13 +215,48 @@ public class DetectDwellService extends IntentService implements
      ****************************************************************/
 
     @Override
-    protected void onHandleIntent(Intent intent) {
+    public int onStartCommand(final Intent intent, int flags, int startId) {
         String action = ( intent == null ? null : intent.getAction() );
-        if ( action == null ) {
-            return;
+        synchronized ( this ) {
+            mLastStartId = startId;
+            if ( action == null ) {
+                if ( mPending == 0 ) {
+                    stopSelf( startId );
+                }
+                return START_NOT_STICKY;
+            }
+            mPending++;
         }
 
-        mGoogleApiClient.blockingConnect();
+        sLanes.execute( LANE_DETECT, action, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    handleIntent( intent );
+                } finally {
+                    synchronized ( DetectDwellService.this ) {
+                        if ( --mPending == 0 ) {
+                            stopSelf( mLastStartId );
+                        }
+                    }
+                }
+            }
+        } );
+        return START_NOT_STICKY;
+    }
+
+    private void handleIntent(Intent intent) {
+        String action = intent.getAction();
+
+        if ( !ensureConnected() ) {
+            // Nothing can be requested or removed without a client.  Drop the intent, and
+            // let the next one connect again.
+            synchronized ( DetectDwellService.class ) {
+                sDroppedIntents++;
+            }
+            LoggingService.logToFile( this, "Dropped " + action + ", GoogleApiClient not connected." );
+            return;
+        }
 
         if ( action.equals( ACTION_START_DETECT_DWELL ) ) {
             handleStartDetectDwell();
@@ -173,7 +291,10 @@ public class DetectDwellService extends IntentService implements
             handleDwellGpsUpdate( null, false );
         }
 
-        mGoogleApiClient.disconnect();
+        releaseIfIdle();
+
+        // One preferences write for all state changed while handling the intent.
+        mState.flush();
     }
 
     /****************************************************************
@@ -185,19 +306,16 @@ public class DetectDwellService extends IntentService implements
      */
     private static final String ACTION_START_DETECT_DWELL = "ACTION_START_DETECT_DWELL";
     private static final String ACTION_STOP_DETECT_DWELL = "ACTION_STOP_DETECT_DWELL";
-    private static final String KEY_DETECTING_DWELL = "KEY_DETECTING_DWELL";
 
     private void handleStartDetectDwell() {
-        if ( getSharedPreferences( TAG, MODE_PRIVATE )
-                .getBoolean( KEY_DETECTING_DWELL, false ) ) {
+        if ( mState.isDetectingDwell() ) {
             return; // Do nothing.
         }
 
         // Logging.
         LoggingService.logToFile( this, "StartDetectDwell()" );
 
-        getSharedPreferences( TAG, MODE_PRIVATE ).edit()
-                .putBoolean( KEY_DETECTING_DWELL, true ).apply();
+        mState.setDetectingDwell( true );
 
         startDwellActivityRecognitionUpdates();
     }
@@ -209,18 +327,16 @@ public class DetectDwellService extends IntentService implements
         stopDwellActivityRecognitionUpdates();
         stopDetectDwellLocationUpdates();
 
-        getSharedPreferences( TAG, MODE_PRIVATE ).edit()
-                .putBoolean( KEY_DETECTING_DWELL, false ).apply();
+        mState.setDetectingDwell( false );
     }
 
     private void onCoarseDwellDetected() {
         // Logging.
         LoggingService.logToFile( this, "onCoarseDwellDetected()" );
 
-        getSharedPreferences( TAG, MODE_PRIVATE ).edit()
-                .putBoolean( ACTION_COARSE_DWELL_GPS_UPDATE, true ).commit();
+        mState.setDwellGpsPending( true, true );
 
-        Location dwellLocation = LocationServices.FusedLocationApi.getLastLocation( mGoogleApiClient );
+        Location dwellLocation = LocationServices.FusedLocationApi.getLastLocation( sGoogleApiClient );
 
         if ( ( dwellLocation != null ) && ( dwellLocation.getAccuracy() <= 30 ) ) {
             // Use current location fix.
@@ -237,10 +353,9 @@ public class DetectDwellService extends IntentService implements
 
         handleStopDetectDwell();
 
-        getSharedPreferences( TAG, MODE_PRIVATE ).edit()
-                .putBoolean( ACTION_DWELL_GPS_UPDATE, true ).commit();
+        mState.setDwellGpsPending( false, true );
 
-        Location dwellLocation = LocationServices.FusedLocationApi.getLastLocation( mGoogleApiClient );
+        Location dwellLocation = LocationServices.FusedLocationApi.getLastLocation( sGoogleApiClient );
 
         if ( ( dwellLocation != null ) && ( dwellLocation.getAccuracy() <= 30 ) ) {
             // Use current location fix.
@@ -259,8 +374,7 @@ public class DetectDwellService extends IntentService implements
     private static final String ACTION_DWELL_GPS_TIMEOUT = "ACTION_DWELL_GPS_TIMEOUT";
 
     private void handleDwellGpsUpdate(Location dwellLocation, boolean bCoarseDwell) {
-        if ( !getSharedPreferences( TAG, MODE_PRIVATE )
-                .getBoolean( bCoarseDwell ? ACTION_COARSE_DWELL_GPS_UPDATE : ACTION_DWELL_GPS_UPDATE, false ) ) {
+        if ( !mState.isDwellGpsPending( bCoarseDwell ) ) {
             return;  // Do nothing.
         }
 
@@ -269,7 +383,7 @@ public class DetectDwellService extends IntentService implements
 
         // In case gps timed out and no location, use whatever is avail.
         dwellLocation = ( dwellLocation != null ? dwellLocation :
-                LocationServices.FusedLocationApi.getLastLocation( mGoogleApiClient ) );
+                LocationServices.FusedLocationApi.getLastLocation( sGoogleApiClient ) );
 
         // Logging
         LoggingService.logToFile( this,
@@ -281,8 +395,7 @@ public class DetectDwellService extends IntentService implements
                 .putExtra( EXTRA_ON_DWELL_LOCATION, dwellLocation )
                 .putExtra( EXTRA_ON_DWELL_TIMESTAMP, System.currentTimeMillis() ) );
 
-        getSharedPreferences( TAG, MODE_PRIVATE ).edit()
-                .putBoolean( bCoarseDwell ? ACTION_COARSE_DWELL_GPS_UPDATE : ACTION_DWELL_GPS_UPDATE, false ).apply();
+        mState.setDwellGpsPending( bCoarseDwell, false );
     }
 
     public static class DwellGpsUpdate extends BroadcastReceiver {
@@ -364,28 +477,21 @@ public class DetectDwellService extends IntentService implements
     private static final String ACTION_START_DETECT_TRANSIT = "ACTION_START_DETECT_TRANSIT";
     private static final String ACTION_STOP_DETECT_TRANSIT = "ACTION_STOP_DETECT_TRANSIT";
     private static final String EXTRA_DWELL_POI_LOCATION = "EXTRA_DWELL_POI_LOCATION";
-    private static final String KEY_DETECTING_TRANSIT = "KEY_DETECTING_TRANSIT";
 
     private void handleStartDetectTransit(Location dwellLocation) {
-        if ( getSharedPreferences( TAG, MODE_PRIVATE )
-                .getBoolean( KEY_DETECTING_TRANSIT, false ) ) {
+        if ( mState.isDetectingTransit() ) {
             return;  // Do nothing.
         }
 
         // Logging
         LoggingService.logToFile( this, "StartDetectTransit()" );
 
-        getSharedPreferences( TAG, MODE_PRIVATE ).edit()
-                .putBoolean( KEY_DETECTING_TRANSIT, true )
-                .apply();
+        mState.setDetectingTransit( true );
 
         startTransitActivityRecognitionUpdates();
         // Persist dwellLocation for later TransitLocationUpdate detections.
-        getSharedPreferences( TAG, MODE_PRIVATE ).edit()
-                .putFloat( KEY_DWELL_POI_LOCATION_LAT, (float) dwellLocation.getLatitude() )
-                .putFloat( KEY_DWELL_POI_LOCATION_LON, (float) dwellLocation.getLongitude() )
-                .putFloat( KEY_DWELL_POI_LOCATION_RADIUS, dwellLocation.getAccuracy() )
-                .apply();
+        mState.setDwellPoiLocation( (float) dwellLocation.getLatitude(),
+                (float) dwellLocation.getLongitude(), dwellLocation.getAccuracy() );
     }
 
     private void handleStopDetectTransit() {
@@ -395,8 +501,7 @@ public class DetectDwellService extends IntentService implements
         stopTransitActivityRecognitionUpdates();
         stopDetectTransitLocationUpdates();
 
-        getSharedPreferences( TAG, MODE_PRIVATE ).edit()
-                .putBoolean( KEY_DETECTING_TRANSIT, false ).apply();
+        mState.setDetectingTransit( false );
     }
 
     private void inTransitDetected() {
@@ -422,8 +527,7 @@ public class DetectDwellService extends IntentService implements
     private static final long DWELL_ACTIVITY_RECOGNITION_INTERVAL = 30 * 1000;  // 30 secs.
 
     private void startDwellActivityRecognitionUpdates() {
-        if ( getSharedPreferences( TAG, MODE_PRIVATE )
-                .getBoolean( ACTION_DWELL_ACTIVITY_RECOGNITION, false ) ) {
+        if ( mState.hasDwellActivityUpdates() ) {
             return;
         }
 
@@ -436,11 +540,10 @@ public class DetectDwellService extends IntentService implements
                         PendingIntent.FLAG_UPDATE_CURRENT );
 
         ActivityRecognition.ActivityRecognitionApi.requestActivityUpdates(
-                mGoogleApiClient, DWELL_ACTIVITY_RECOGNITION_INTERVAL,
+                sGoogleApiClient, DWELL_ACTIVITY_RECOGNITION_INTERVAL,
                 activityRecognitionPendingIntent );
 
-        getSharedPreferences( TAG, MODE_PRIVATE ).edit()
-                .putBoolean( ACTION_DWELL_ACTIVITY_RECOGNITION, true ).apply();
+        mState.setDwellActivityUpdates( true );
     }
 
     private void stopDwellActivityRecognitionUpdates() {
@@ -455,10 +558,9 @@ public class DetectDwellService extends IntentService implements
                         PendingIntent.FLAG_UPDATE_CURRENT );
 
         ActivityRecognition.ActivityRecognitionApi.removeActivityUpdates(
-                mGoogleApiClient, activityRecognitionPendingIntent );
+                sGoogleApiClient, activityRecognitionPendingIntent );
 
-        getSharedPreferences( TAG, MODE_PRIVATE ).edit()
-                .putBoolean( ACTION_DWELL_ACTIVITY_RECOGNITION, false ).apply();
+        mState.setDwellActivityUpdates( false );
     }
 
     /**
@@ -468,8 +570,7 @@ public class DetectDwellService extends IntentService implements
     private static final long TRANSIT_ACTIVITY_RECOGNITION_INTERVAL = 2 * 60 * 1000;  // 2 mins.
 
     private void startTransitActivityRecognitionUpdates() {
-        if ( getSharedPreferences( TAG, MODE_PRIVATE )
-                .getBoolean( ACTION_TRANSIT_ACTIVITY_RECOGNITION, false ) ) {
+        if ( mState.hasTransitActivityUpdates() ) {
             return;
         }
 
@@ -482,11 +583,10 @@ public class DetectDwellService extends IntentService implements
                         PendingIntent.FLAG_UPDATE_CURRENT );
 
         ActivityRecognition.ActivityRecognitionApi.requestActivityUpdates(
-                mGoogleApiClient, TRANSIT_ACTIVITY_RECOGNITION_INTERVAL,
+                sGoogleApiClient, TRANSIT_ACTIVITY_RECOGNITION_INTERVAL,
                 activityRecognitionPendingIntent );
 
-        getSharedPreferences( TAG, MODE_PRIVATE ).edit()
-                .putBoolean( ACTION_TRANSIT_ACTIVITY_RECOGNITION, true ).apply();
+        mState.setTransitActivityUpdates( true );
     }
 
     private void stopTransitActivityRecognitionUpdates() {
@@ -501,10 +601,9 @@ public class DetectDwellService extends IntentService implements
                         PendingIntent.FLAG_UPDATE_CURRENT );
 
         ActivityRecognition.ActivityRecognitionApi.removeActivityUpdates(
-                mGoogleApiClient, activityRecognitionPendingIntent );
+                sGoogleApiClient, activityRecognitionPendingIntent );
 
-        getSharedPreferences( TAG, MODE_PRIVATE ).edit()
-                .putBoolean( ACTION_TRANSIT_ACTIVITY_RECOGNITION, false ).apply();
+        mState.setTransitActivityUpdates( false );
     }
 
     /**
@@ -523,22 +622,19 @@ public class DetectDwellService extends IntentService implements
         }
     }
 
-    private static final String KEY_ACTIVITY_STATE = "KEY_ACTIVITY_STATE";
     private static final int ACTIVITY_CONFIDENCE_THRESHOLD = 66;
 
     private void handleActivityRecognition(String action, ActivityRecognitionResult result) {
-        SharedPreferences prefs = getSharedPreferences( TAG, MODE_PRIVATE );
-        if ( !prefs.getBoolean( ACTION_DWELL_ACTIVITY_RECOGNITION, false )
-            && !prefs.getBoolean( ACTION_TRANSIT_ACTIVITY_RECOGNITION, false ) ) {
+        if ( !mState.hasDwellActivityUpdates() && !mState.hasTransitActivityUpdates() ) {
             return;  // Do nothing.
         }
 
         // Logging.
         LoggingService.logToFile( this, getActivities( result ) );
+        logActivityEvent( result );
 
         // Old state.
-        int oldActivityState = getSharedPreferences( TAG, MODE_PRIVATE )
-                .getInt( KEY_ACTIVITY_STATE, -1 ); // Default to undefined.
+        int oldActivityState = mState.getActivityState();
 
         // Run some rules checks.
         int newActivityState = result.getMostProbableActivity().getType();
@@ -560,6 +656,26 @@ public class DetectDwellService extends IntentService implements
         setActivityState( action, newActivityState );
     }
 
+    /** Helper func */
+    private void logActivityEvent(ActivityRecognitionResult result) {
+        List<DetectedActivity> probableActivities = result.getProbableActivities();
+        int count = probableActivities.size();
+        int[] types = new int[count + 1];
+        int[] confidences = new int[count + 1];
+        types[0] = result.getMostProbableActivity().getType();
+        confidences[0] = result.getMostProbableActivity().getConfidence();
+        int i = 1;
+        for ( DetectedActivity activity : probableActivities ) {
+            if ( activity.getType() == types[0] ) {
+                continue;  // Already first.
+            }
+            types[i] = activity.getType();
+            confidences[i++] = activity.getConfidence();
+        }
+        EventLog.logActivity( this, result.getTime(),
+                Arrays.copyOf( types, i ), Arrays.copyOf( confidences, i ) );
+    }
+
     /** Helper func */
     private static String getActivities(ActivityRecognitionResult result) {
         StringBuilder sb = new StringBuilder();
@@ -615,14 +731,11 @@ public class DetectDwellService extends IntentService implements
         }
     }
 
-    private static final String KEY_ACTIVITY_IN_VEHICLE = "KEY_ACTIVITY_IN_VEHICLE";
-    private static final String KEY_ACTIVITY_ON_FOOT = "KEY_ACTIVITY_ON_FOOT";
     private static final long BOOST_GPS_ACCURACY_SINCE_VEHICLE = 5 * 60 * 1000;  // 5 mins
     private static final long BOOST_GPS_ACCURACY_DURATION = 2 * 60 * 1000;  // 2 mins
 
     private void setActivityState(String action, int newState) {
-        SharedPreferences prefs = getSharedPreferences( TAG, MODE_PRIVATE );
-        int oldActivityState = prefs.getInt( KEY_ACTIVITY_STATE, -1 ); // Default to undefined.
+        int oldActivityState = mState.getActivityState();
 
         if ( oldActivityState != newState ) {
 
@@ -652,12 +765,11 @@ public class DetectDwellService extends IntentService implements
                 if ( action.equals( ACTION_DWELL_ACTIVITY_RECOGNITION ) ) {
                     // Capture first ON_FOOT within 5 mins since exiting car.
                     long now = System.currentTimeMillis();
-                    long sinceVehicle = now - prefs.getLong( KEY_ACTIVITY_IN_VEHICLE, 0 );
-                    long sinceOnFoot = now - prefs.getLong( KEY_ACTIVITY_ON_FOOT, 0 );
+                    long sinceVehicle = now - mState.getInVehicleTime();
+                    long sinceOnFoot = now - mState.getOnFootTime();
                     boolean bFirstOnFoot = ( sinceVehicle < sinceOnFoot
                             && sinceVehicle < BOOST_GPS_ACCURACY_SINCE_VEHICLE );
-                    boolean bBoostAccuracy = ( bFirstOnFoot ||
-                            prefs.getBoolean( KEY_DETECT_DWELL_HIGH_ACCURACY, false ) );
+                    boolean bBoostAccuracy = ( bFirstOnFoot || mState.isHighAccuracy() );
                     LoggingService.logToFile( this, "sinceVehicle:" + sinceVehicle +
                             ", boostAccuracy:" + bBoostAccuracy );
 
@@ -672,24 +784,24 @@ public class DetectDwellService extends IntentService implements
             } else if ( newState == DetectedActivity.UNKNOWN
                     || newState == DetectedActivity.TILTING ) {
                 if ( action.equals( ACTION_DWELL_ACTIVITY_RECOGNITION ) ) {
-                    boolean bBoostAccuracy = prefs.getBoolean( KEY_DETECT_DWELL_HIGH_ACCURACY, false );
+                    boolean bBoostAccuracy = mState.isHighAccuracy();
                     startDetectDwellLocationUpdates( bBoostAccuracy );
                 } else if ( action.equals( ACTION_TRANSIT_ACTIVITY_RECOGNITION ) ) {
                     startDetectTransitLocationUpdates();
                 }
             }
 
-            prefs.edit().putInt( KEY_ACTIVITY_STATE, newState ).apply();
+            mState.setActivityState( newState );
         }
 
         if ( newState == DetectedActivity.IN_VEHICLE &&
                 action.equals( ACTION_DWELL_ACTIVITY_RECOGNITION ) ) {
-            prefs.edit().putLong( KEY_ACTIVITY_IN_VEHICLE, System.currentTimeMillis() ).apply();
+            mState.setInVehicleTime( System.currentTimeMillis() );
         } else if ( ( newState == DetectedActivity.ON_FOOT
                 || newState == DetectedActivity.WALKING
                 || newState == DetectedActivity.RUNNING ) &&
                 action.equals( ACTION_DWELL_ACTIVITY_RECOGNITION ) ) {
-            prefs.edit().putLong( KEY_ACTIVITY_ON_FOOT, System.currentTimeMillis() ).apply();
+            mState.setOnFootTime( System.currentTimeMillis() );
         }
     }
 
@@ -702,14 +814,12 @@ public class DetectDwellService extends IntentService implements
      */
     private static final String ACTION_DETECT_DWELL_LOCATION_UPDATE = "ACTION_DETECT_DWELL_LOCATION_UPDATE";
     private static final String KEY_DETECT_DWELL_HIGH_ACCURACY = "KEY_DETECT_DWELL_HIGH_ACCURACY";
-    private static final String KEY_BOOST_ACCURACY_TIMESTAMP = "KEY_BOOST_ACCURACY_TIMESTAMP";
     private static final long DWELL_LOCATION_UPDATE_INTERVAL = 30 * 1000;  // 30 secs.
     private static final long DWELL_LOCATION_FASTEST_UPDATE_INTERVAL = 15 * 1000; // 15 secs.
+    private static final long DWELL_LOCATION_MAX_UPDATE_INTERVAL = 2 * 60 * 1000;  // 2 mins.
 
     private void startDetectDwellLocationUpdates(boolean bBoostAccuracy) {
-        SharedPreferences prefs = getSharedPreferences( TAG, MODE_PRIVATE );
-        if ( prefs.getBoolean( ACTION_DETECT_DWELL_LOCATION_UPDATE, false )
-            && prefs.getBoolean( KEY_DETECT_DWELL_HIGH_ACCURACY, false ) == bBoostAccuracy ) {
+        if ( mState.hasDwellLocationUpdates() && mState.isHighAccuracy() == bBoostAccuracy ) {
             return;
         }
 
@@ -717,11 +827,23 @@ public class DetectDwellService extends IntentService implements
         LoggingService.logToFile( this, "startDetectDwellLocUpdates(): boostAccuracy="
                 + Boolean.toString( bBoostAccuracy ) );
 
+        requestDwellLocationUpdates( bBoostAccuracy, sDwellSampling.reset() );
+
+        mState.setDwellLocationUpdates( true, bBoostAccuracy,
+                bBoostAccuracy ? System.currentTimeMillis() : 0 );
+    }
+
+    /**
+     * (Re)request dwell location updates as planned.  Boosted updates ignore the plan, and
+     * run at the fastest interval on high accuracy.
+     */
+    private void requestDwellLocationUpdates(boolean bBoostAccuracy, SamplingScheduler.Plan plan) {
         LocationRequest locationRequest = new LocationRequest()
-                .setFastestInterval( DWELL_LOCATION_FASTEST_UPDATE_INTERVAL )
+                .setFastestInterval( plan.fastestInterval )
                 .setInterval( bBoostAccuracy ?
                         DWELL_LOCATION_FASTEST_UPDATE_INTERVAL :
-                        DWELL_LOCATION_UPDATE_INTERVAL )
+                        plan.interval )
+                .setSmallestDisplacement( bBoostAccuracy ? 0f : plan.smallestDisplacement )
                 .setPriority( bBoostAccuracy ?
                         LocationRequest.PRIORITY_HIGH_ACCURACY :
                         LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY );
@@ -730,13 +852,7 @@ public class DetectDwellService extends IntentService implements
                         .putExtra( KEY_DETECT_DWELL_HIGH_ACCURACY, bBoostAccuracy ),
                 PendingIntent.FLAG_UPDATE_CURRENT );
         LocationServices.FusedLocationApi.requestLocationUpdates(
-                mGoogleApiClient, locationRequest, locationUpdatePendingIntent);
-
-        prefs.edit()
-                .putBoolean( ACTION_DETECT_DWELL_LOCATION_UPDATE, true )
-                .putBoolean( KEY_DETECT_DWELL_HIGH_ACCURACY, bBoostAccuracy )
-                .putLong( KEY_BOOST_ACCURACY_TIMESTAMP, bBoostAccuracy ? System.currentTimeMillis() : 0 )
-                .apply();
+                sGoogleApiClient, locationRequest, locationUpdatePendingIntent);
     }
 
     private void stopDetectDwellLocationUpdates() {
@@ -747,13 +863,9 @@ public class DetectDwellService extends IntentService implements
                 new Intent( ACTION_DETECT_DWELL_LOCATION_UPDATE ), PendingIntent.FLAG_UPDATE_CURRENT );
 
         LocationServices.FusedLocationApi.removeLocationUpdates(
-                mGoogleApiClient, locationUpdatePendingIntent );
+                sGoogleApiClient, locationUpdatePendingIntent );
 
-        getSharedPreferences( TAG, MODE_PRIVATE ).edit()
-                .putBoolean( ACTION_DETECT_DWELL_LOCATION_UPDATE, false )
-                .remove( KEY_DETECT_DWELL_HIGH_ACCURACY )
-                .remove( KEY_BOOST_ACCURACY_TIMESTAMP )
-                .apply();
+        mState.setDwellLocationUpdates( false, false, 0 );
     }
 
     /**
@@ -762,33 +874,33 @@ public class DetectDwellService extends IntentService implements
     private static final String ACTION_DETECT_TRANSIT_LOCATION_UPDATE = "ACTION_DETECT_TRANSIT_LOCATION_UPDATE";
     private static final long TRANSIT_LOCATION_UPDATE_INTERVAL = 1 * 60 * 1000;  // 1 mins.
     private static final long TRANSIT_LOCATION_FASTEST_UPDATE_INTERVAL = 30 * 1000; // 30 secs.
-
-    private static final String KEY_DWELL_POI_LOCATION_LAT = "KEY_DWELL_POI_LOCATION_LAT";
-    private static final String KEY_DWELL_POI_LOCATION_LON = "KEY_DWELL_POI_LOCATION_LON";
-    private static final String KEY_DWELL_POI_LOCATION_RADIUS = "KEY_DWELL_POI_LOCATION_RADIUS";
+    private static final long TRANSIT_LOCATION_MAX_UPDATE_INTERVAL = 4 * 60 * 1000;  // 4 mins.
 
     private void startDetectTransitLocationUpdates() {
-        if ( getSharedPreferences( TAG, MODE_PRIVATE )
-                .getBoolean( ACTION_DETECT_TRANSIT_LOCATION_UPDATE, false ) ) {
+        if ( mState.hasTransitLocationUpdates() ) {
             return;
         }
 
         // Logging.
         LoggingService.logToFile( this, "startDetectTransitLocUpdates()" );
 
+        requestTransitLocationUpdates( sTransitSampling.reset() );
+
+        mState.setTransitLocationUpdates( true );
+    }
+
+    private void requestTransitLocationUpdates(SamplingScheduler.Plan plan) {
         LocationRequest locationRequest = new LocationRequest()
-                .setInterval( TRANSIT_LOCATION_UPDATE_INTERVAL )
-                .setFastestInterval( TRANSIT_LOCATION_FASTEST_UPDATE_INTERVAL )
+                .setInterval( plan.interval )
+                .setFastestInterval( plan.fastestInterval )
+                .setSmallestDisplacement( plan.smallestDisplacement )
                 .setPriority( LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY );
 
         PendingIntent locationUpdatePendingIntent = PendingIntent.getBroadcast( this, 0,
                 new Intent( ACTION_DETECT_TRANSIT_LOCATION_UPDATE ), PendingIntent.FLAG_UPDATE_CURRENT );
 
         LocationServices.FusedLocationApi.requestLocationUpdates(
-                mGoogleApiClient, locationRequest, locationUpdatePendingIntent);
-
-        getSharedPreferences( TAG, MODE_PRIVATE ).edit()
-                .putBoolean( ACTION_DETECT_TRANSIT_LOCATION_UPDATE, true ).apply();
+                sGoogleApiClient, locationRequest, locationUpdatePendingIntent);
     }
 
     private void stopDetectTransitLocationUpdates() {
@@ -799,10 +911,9 @@ public class DetectDwellService extends IntentService implements
                 new Intent( ACTION_DETECT_TRANSIT_LOCATION_UPDATE ), PendingIntent.FLAG_UPDATE_CURRENT );
 
         LocationServices.FusedLocationApi.removeLocationUpdates(
-                mGoogleApiClient, locationUpdatePendingIntent );
+                sGoogleApiClient, locationUpdatePendingIntent );
 
-        getSharedPreferences( TAG, MODE_PRIVATE ).edit()
-                .putBoolean( ACTION_DETECT_TRANSIT_LOCATION_UPDATE, false ).apply();
+        mState.setTransitLocationUpdates( false );
     }
 
     /**
@@ -825,21 +936,72 @@ public class DetectDwellService extends IntentService implements
     private static final float DWELL_VELOCITY = 1.00f;  // Dwell velocity 1.00 m/s
     private static final long DWELL_DURATION_THRESHOLD = 5 * 60 * 1000;  // Use up to past 5 mins data.
     private static final float DWELL_CONFIDENCE_THRESHOLD = 0.66f;
+    private static final float TRANSIT_CONFIDENCE_THRESHOLD = 0.85f;
+
+    /****************************************************************
+     * Adaptive sampling.
+     ****************************************************************/
+
+    private static final SamplingScheduler sDwellSampling = new SamplingScheduler(
+            DWELL_LOCATION_FASTEST_UPDATE_INTERVAL, DWELL_LOCATION_UPDATE_INTERVAL,
+            DWELL_LOCATION_MAX_UPDATE_INTERVAL, DWELL_CONFIDENCE_THRESHOLD );
+    private static final SamplingScheduler sTransitSampling = new SamplingScheduler(
+            TRANSIT_LOCATION_FASTEST_UPDATE_INTERVAL, TRANSIT_LOCATION_UPDATE_INTERVAL,
+            TRANSIT_LOCATION_MAX_UPDATE_INTERVAL, TRANSIT_CONFIDENCE_THRESHOLD );
+
+    /** Dwell location fixes handled, and dwells detected from them, since process start. */
+    private static int sDwellFixes = 0;
+    private static int sDwellsDetected = 0;
+
+    /**
+     * @param confidence  NaN if not enough history yet.
+     */
+    private void adaptDwellSampling(float confidence) {
+        SamplingScheduler.Plan oldPlan = sDwellSampling.getPlan();
+        // Backing off on not dwelling needs activity recognition to see motion too.
+        SamplingScheduler.Plan plan = sDwellSampling.next( confidence,
+                isMovingActivity( mState.getActivityState() ), 0f );
+        if ( !plan.isSame( oldPlan ) ) {
+            LoggingService.logToFile( this, "Dwell sampling: " + plan );
+            requestDwellLocationUpdates( false, plan );
+        }
+    }
+
+    private void adaptTransitSampling(float transitConfidence, float dwellPoiRadius) {
+        SamplingScheduler.Plan oldPlan = sTransitSampling.getPlan();
+        // Still at the dwell poi.  No need for fixes until moved half way out of it.
+        SamplingScheduler.Plan plan = sTransitSampling.next( transitConfidence,
+                !isMovingActivity( mState.getActivityState() ), dwellPoiRadius / 2 );
+        if ( !plan.isSame( oldPlan ) ) {
+            LoggingService.logToFile( this, "Transit sampling: " + plan );
+            requestTransitLocationUpdates( plan );
+        }
+    }
+
+    private static boolean isMovingActivity(int activityState) {
+        return ( activityState == DetectedActivity.IN_VEHICLE
+                || activityState == DetectedActivity.ON_BICYCLE
+                || activityState == DetectedActivity.ON_FOOT
+                || activityState == DetectedActivity.WALKING
+                || activityState == DetectedActivity.RUNNING );
+    }
+
+    /****************************************************************
+     * Location fix handling.
+     ****************************************************************/
 
     private void handleDetectDwellLocationUpdate(Location location, boolean bBoostAccuracy) {
         // Logging.
         LoggingService.logToFile( this, location == null ? "null" : location.toString() );
+        EventLog.logLocationFix( this, location, EventLogFormat.SOURCE_DWELL );
 
-        if ( !getSharedPreferences( TAG, MODE_PRIVATE )
-                .getBoolean( ACTION_DETECT_DWELL_LOCATION_UPDATE, false ) ) {
+        if ( !mState.hasDwellLocationUpdates() ) {
             LoggingService.logToFile( this, "Dropping DetectDwellLocationUpdate..." );
             return;
         }
 
         if ( bBoostAccuracy ) {
-            long boostAccuracyTimeStamp = getSharedPreferences( TAG, MODE_PRIVATE )
-                    .getLong( KEY_BOOST_ACCURACY_TIMESTAMP, 0L );
-            long sinceBoostAccuracy = System.currentTimeMillis() - boostAccuracyTimeStamp;
+            long sinceBoostAccuracy = System.currentTimeMillis() - mState.getBoostAccuracyTime();
             if ( sinceBoostAccuracy > BOOST_GPS_ACCURACY_DURATION ) {
                 LoggingService.logToFile( this, "Revert back to lower accuracy location update." );
                 // Revert back to lower accuracy after high accuracy updates.
@@ -847,52 +1009,66 @@ public class DetectDwellService extends IntentService implements
             }
         }
 
-        // Restore queue.
-        LinkedList<Location> locQueue = restoreLocQueue();
+        // In-memory history.  Only restored from disk once per process.
+        LocHistory locHistory = restoreLocHistory();
 
-        // Add location to queue and ensure duration length.
-        boolean bHasMinDuration = addLocationUpdate( locQueue, location );
-
-        // Persist queue.
-        persistLocQueue( locQueue );
+        // Add location to history and ensure duration length.
+        boolean bHasMinDuration = addLocationUpdate( locHistory, location );
+        synchronized ( DetectDwellService.class ) {
+            sDwellFixes++;
+        }
 
+        float dwellConfidence = Float.NaN;
         if ( bHasMinDuration ) {
-            float dwellConfidence = calcDwellConfidence( locQueue, DWELL_VELOCITY, DWELL_DURATION_THRESHOLD );
+            dwellConfidence = calcDwellConfidence( locHistory, DWELL_VELOCITY, DWELL_DURATION_THRESHOLD );
             if ( dwellConfidence > DWELL_CONFIDENCE_THRESHOLD ) {
+                synchronized ( DetectDwellService.class ) {
+                    sDwellsDetected++;
+                }
                 onDwellDetected();
             }
         }
-    }
 
-    private static final float TRANSIT_CONFIDENCE_THRESHOLD = 0.85f;
+        // Sample faster while undecided, slower once clearly not dwelling.  Not while boosted.
+        if ( mState.hasDwellLocationUpdates() && !mState.isHighAccuracy() ) {
+            adaptDwellSampling( dwellConfidence );
+        }
+    }
 
     private void handleDetectTransitLocationUpdate(Location location) {
         // Logging.
         LoggingService.logToFile( this, location == null ? "null" : location.toString() );
+        EventLog.logLocationFix( this, location, EventLogFormat.SOURCE_TRANSIT );
 
-        if ( !getSharedPreferences( TAG, MODE_PRIVATE )
-                .getBoolean( ACTION_DETECT_TRANSIT_LOCATION_UPDATE, false ) ) {
+        if ( !mState.hasTransitLocationUpdates() ) {
             LoggingService.logToFile( this, "Dropping DetectTransitLocationUpdate..." );
             return;
         }
 
+        // Warm poi cache ahead of the next dwell.
+        PoiPrefetcher.onTransitFix( this, location );
+
         // Restore dwell poi.
-        SharedPreferences prefs = getSharedPreferences( TAG, MODE_PRIVATE );
-        float dwellPoiLat = prefs.getFloat( KEY_DWELL_POI_LOCATION_LAT, 0f );
-        float dwellPoiLon = prefs.getFloat( KEY_DWELL_POI_LOCATION_LON, 0f );
-        float dwellPoiRadius = prefs.getFloat( KEY_DWELL_POI_LOCATION_RADIUS, 0f );
+        float dwellPoiLat = mState.getDwellPoiLat();
+        float dwellPoiLon = mState.getDwellPoiLon();
+        float dwellPoiRadius = mState.getDwellPoiRadius();
 
-        int accuracyLvl = getAccuracyLevel( location.getAccuracy() );
+        int accuracyLvl = DwellConfidence.getAccuracyLevel( location.getAccuracy() );
         float dwellConfidence = MathHelper.getLocationConfidenceAtPoi(
-                dwellPoiLat, dwellPoiLon, dwellPoiRadius, location );
+                dwellPoiLat, dwellPoiLon, dwellPoiRadius,
+                location.getLatitude(), location.getLongitude(), location.getAccuracy() );
         float transitConfidence = (dwellConfidence - 0.5f) * (-1f) + (0.5f);
 
         LoggingService.logToFile( this, "transitConfidence=" + transitConfidence
                 + "(x" + accuracyLvl + ")" );
+        EventLog.logDwellConfidence( this, location.getTime(), EventLogFormat.MODE_TRANSIT,
+                transitConfidence, accuracyLvl < DwellConfidence.BAD_ACCURACY_LVL ? 1 : 0, 1 );
 
         if ( transitConfidence > TRANSIT_CONFIDENCE_THRESHOLD
-            && accuracyLvl < BAD_ACCURACY_LVL ) {
+            && accuracyLvl < DwellConfidence.BAD_ACCURACY_LVL ) {
             inTransitDetected();
+        } else if ( accuracyLvl < DwellConfidence.BAD_ACCURACY_LVL ) {
+            adaptTransitSampling( transitConfidence, dwellPoiRadius );
         }
     }
 
@@ -900,194 +1076,84 @@ public class DetectDwellService extends IntentService implements
      * Location history queue.
      ****************************************************************/
 
-    private static final String LOC_QUEUE_FILE_NAME = "LocQueue.loc";
-
-    static class PersistLoc implements Serializable {
-        long time;
-        long et;
-        double lat;
-        double lng;
-        float accuracy;
-
+    private static final String LOC_QUEUE_FILE_NAME = "LocQueue.loc";  // Legacy serialized history.
+    private static final String LOC_JOURNAL_FILE_NAME = "LocHistory.jnl";
 
-        @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR1)
-        PersistLoc(Location location) {
-            time = location.getTime();
-            et = location.getElapsedRealtimeNanos();
-            lat = location.getLatitude();
-            lng = location.getLongitude();
-            accuracy = location.getAccuracy();
+    /**
+     * Returns the process wide location history, restoring it from its journal on first use.
+     */
+    private LocHistory restoreLocHistory() {
+        LocHistory locHistory = LocHistory.getInstance();
+        if ( locHistory.isRestored() ) {
+            return locHistory;
         }
 
-        @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR1)
-        Location toLocation() {
-            Location loc = new Location("");
-            loc.setTime( time );
-            loc.setElapsedRealtimeNanos( et );
-            loc.setLatitude( lat );
-            loc.setLongitude( lng );
-            loc.setAccuracy( accuracy );
-            return loc;
-        }
-    }
+        // Replaced by journal.
+        deleteFile( LOC_QUEUE_FILE_NAME );
 
-    private LinkedList<Location> restoreLocQueue() {
-        LinkedList<Location> locQueue = new LinkedList<Location>();
-        ObjectInputStream is = null;
+        LocJournal journal = null;
         try {
-            is = new ObjectInputStream( openFileInput( LOC_QUEUE_FILE_NAME) );
-            ArrayList<PersistLoc> array =  (ArrayList<PersistLoc>) is.readObject();
-            for( PersistLoc persistLoc : array ) {
-                locQueue.addLast( persistLoc.toLocation() );
-            }
-        } catch (FileNotFoundException e) {
+            journal = LocJournal.open( new File( getFilesDir(), LOC_JOURNAL_FILE_NAME ) );
+            journal.restore( locHistory );
         } catch (IOException e) {
-        } catch (ClassNotFoundException e) {
-        } finally {
-            if (is != null) {
-                try { is.close(); } catch (IOException e) { }
+            // Keep history in memory only.
+            Log.e( TAG, "Failed to restore location history: " + e );
+            if ( journal != null ) {
+                journal.close();
+                journal = null;
             }
         }
 
-        return locQueue;
-    }
-
-    private void persistLocQueue(LinkedList<Location> locQueue) {
-        if ( locQueue == null ) {
-            locQueue = new LinkedList<Location>();
-        }
-
-        ObjectOutputStream os = null;
-        try {
-            ArrayList<PersistLoc> array =  new ArrayList<PersistLoc>();
-            for ( Location loc : locQueue ) {
-                array.add( new PersistLoc( loc ) );
-            }
-            os = new ObjectOutputStream( openFileOutput( LOC_QUEUE_FILE_NAME, Context.MODE_PRIVATE) );
-            os.writeObject( array );
-        } catch (IOException e) {
-        } finally {
-            if ( os != null ) {
-                try { os.close(); } catch (IOException e) { }
-            }
-        }
+        locHistory.setRestored( journal );
+        return locHistory;
     }
 
-    private static final long MIN_HISTORY_DURATION = 30 * 1000;
-    private static final long MAX_HISTORY_DURATION = 3 * 60 * 1000;
-
     /**
-     * Add to queue, and ensure max duration length.
+     * Add to history, and ensure max duration length.
      * @param location
      */
-    private boolean addLocationUpdate(LinkedList<Location> locQueue, Location location) {
-        // Drop old updates prior to max duration length.
-        while ( !locQueue.isEmpty() ) {
-            long timeDiff = location.getTime() - locQueue.getLast().getTime();
-            if ( timeDiff > MAX_HISTORY_DURATION ) {
-                locQueue.removeLast();  // Drop.
-            } else {
-                break;  // Done.
-            }
-        }
-
-        // Check on min required duration.
-        boolean bHasMinDuration = false;
-        if ( !locQueue.isEmpty() ) {
-            long timeDiff = location.getTime() - locQueue.getLast().getTime();
-            bHasMinDuration = ( timeDiff > MIN_HISTORY_DURATION );
-        }
+    private boolean addLocationUpdate(LocHistory locHistory, Location location) {
+        boolean bHasMinDuration = DwellConfidence.trimHistory( locHistory, location.getTime() );
 
-        // Add to end of queue.
-        locQueue.addFirst(location);
+        // Add as latest.
+        locHistory.add( location );
 
         return bHasMinDuration;
     }
 
     /**
      *
-     * @param locQueue
+     * @param locHistory
      * @param velocityThreshold
      * @param durationSpan
      * @return  Confidence:  1 - 0.66 : Very confident we're dwelling at specified POI.
      *                       0.66 - 0.33 : Unsure
      *                       0.33 - 0 : Very confident we're not dwelling at specified POI.
      */
-    private float calcDwellConfidence(LinkedList<Location> locQueue,
+    private float calcDwellConfidence(LocHistory locHistory,
                                       float velocityThreshold,
                                       long durationSpan) {
-        if ( locQueue.isEmpty() || locQueue.getFirst() == locQueue.getLast() ) {
+        if ( locHistory.size() <= 1 ) {
             // Logging.
             LoggingService.logToFile( this, "Dwell Confidence(v=" + velocityThreshold + "): 0.5 - empty" );
+            EventLog.logDwellConfidence( this, locHistory.isEmpty() ? System.currentTimeMillis() : locHistory.getTime( 0 ),
+                    EventLogFormat.MODE_DWELL, 0.5f, 0, 0 );
             return 0.5f;
         }
 
-        // Loop and calc dwell confidences against latest update.
-        Location dwellRef = locQueue.getFirst();
         StringBuilder sb = new StringBuilder();
-        boolean bEmpty = true;
-        float sum = 0;
-        int count = 0;
-        for ( Location loc : locQueue ) {
-            // Logging.
-            sb.append( !bEmpty ? ", " : "" );
-            bEmpty = false;
-
-            int dwellRefAccuLvl = getAccuracyLevel( dwellRef.getAccuracy() );
-            if ( loc == dwellRef ) {
-                sb.append( "ref" );  // dwellRef
-                sb.append( dwellRefAccuLvl == BAD_ACCURACY_LVL ? "(cellxbad)" : "" );
-                continue;
-            }
-
-            String note = "";
-            long timeDiff = dwellRef.getTime() - loc.getTime();
-            int locAccuLvl = getAccuracyLevel( loc.getAccuracy() );
-            float dwellRadius = velocityThreshold * ( timeDiff / 1000 );
-            float confidence = MathHelper.getLocationConfidenceAtPoi(
-                    dwellRef.getLatitude(), dwellRef.getLongitude(),
-                    dwellRadius, loc );
-            if ( durationSpan > 0 && timeDiff > durationSpan ) {
-                note = "(old)";  // Too old to use.
-            } else if ( dwellRefAccuLvl == BAD_ACCURACY_LVL ) {
-                // Drop cell tower fixes.  Too inaccurate to use.
-                note = "(cellxbad)";
-            } else if ( dwellRefAccuLvl != locAccuLvl ) {
-                // Trying to prevent comparing gps fixes to wifi fixes to cell tower fixes.
-                note = "(10xbad)";
-            } else if ( dwellRadius * 1.5 < loc.getAccuracy()
-                    || dwellRadius * 1.5 < dwellRef.getAccuracy() ) {
-                // Too inaccurate to use.
-                note = "(2xbad)";
-            } else {
-                sum += confidence;
-                count++;
-            }
-
-            // Logging.
-            sb.append( confidence + note );
-        }
-
-        float average = ( count == 0 ? 0.5f : ( sum / count ) );
+        int[] count = new int[1];
+        float average = DwellConfidence.calc( locHistory, velocityThreshold, durationSpan, sb, count );
 
         // Logging.
         LoggingService.logToFile( this,
                 "Dwell Confidence(v=" + velocityThreshold + "): " + average + " : " + sb.toString()) ;
+        EventLog.logDwellConfidence( this, locHistory.getTime( 0 ), EventLogFormat.MODE_DWELL,
+                average, count[0], locHistory.size() - 1 );
 
         return average;
     }
 
-    private static final int BAD_ACCURACY_LVL = 1000;
-
-    private static int getAccuracyLevel(float accuracy ) {
-        return ( accuracy < 0f ? 0 :  // Shouldn't happen.
-                accuracy < 10f ? 1 :  // Typically GPS signals.
-                accuracy < 80f ? 10 :  // Typically wifi signals
-                accuracy < 250f ? 100 : // Typically cell tower.
-                /* accuracy >= 250f */ 1000  // Cell tower signals.
-        );
-    }
-
     /****************************************************************
      *
      ****************************************************************/
@@ -0,0 +1,128 @@
+package com.motussoft.heresense.dwelldetection;
+
+/**
+ * Dwell confidence of the latest fix in the location history.
+ *
+ * Pure java, no android dependencies, so detection can be replayed off device against
+ * recorded or simulated tracks.  Logging is left to the caller.
+ */
+class DwellConfidence {
+
+    static final long MIN_HISTORY_DURATION = 30 * 1000;
+    static final long MAX_HISTORY_DURATION = 3 * 60 * 1000;
+
+    static final int BAD_ACCURACY_LVL = 1000;
+
+    /** Utility class can't be instantiated */
+    private DwellConfidence() { }
+
+    static int getAccuracyLevel(float accuracy) {
+        return ( accuracy < 0f ? 0 :  // Shouldn't happen.
+                accuracy < 10f ? 1 :  // Typically GPS signals.
+                accuracy < 80f ? 10 :  // Typically wifi signals
+                accuracy < 250f ? 100 : // Typically cell tower.
+                /* accuracy >= 250f */ 1000  // Cell tower signals.
+        );
+    }
+
+    /**
+     * Drop fixes older than MAX_HISTORY_DURATION before time.  Call before adding the fix.
+     *
+     * @param time  Time of the fix about to be added.
+     * @return  Whether what's left spans more than MIN_HISTORY_DURATION before time.
+     */
+    static boolean trimHistory(LocHistory locHistory, long time) {
+        // Drop old updates prior to max duration length.
+        while ( !locHistory.isEmpty() ) {
+            long timeDiff = time - locHistory.getTime( locHistory.size() - 1 );
+            if ( timeDiff > MAX_HISTORY_DURATION ) {
+                locHistory.removeOldest();  // Drop.
+            } else {
+                break;  // Done.
+            }
+        }
+
+        // Check on min required duration.
+        boolean bHasMinDuration = false;
+        if ( !locHistory.isEmpty() ) {
+            long timeDiff = time - locHistory.getTime( locHistory.size() - 1 );
+            bHasMinDuration = ( timeDiff > MIN_HISTORY_DURATION );
+        }
+        return bHasMinDuration;
+    }
+
+    /**
+     * Average confidence of the earlier fixes being within the distance velocityThreshold
+     * covers of the latest fix.
+     *
+     * @param durationSpan  Fixes older than this before the latest are skipped.  0 for all.
+     * @param sbLog  Appended with each fix's confidence and why it was skipped.  Can be null.
+     * @param outCount  outCount[0] is set to the number of fixes averaged.  Can be null.
+     * @return  Confidence:  1 - 0.66 : Very confident we're dwelling at specified POI.
+     *                       0.66 - 0.33 : Unsure
+     *                       0.33 - 0 : Very confident we're not dwelling at specified POI.
+     *          0.5 with less than two fixes, or none usable.
+     */
+    static float calc(LocHistory locHistory, float velocityThreshold, long durationSpan,
+                      StringBuilder sbLog, int[] outCount) {
+        if ( outCount != null ) {
+            outCount[0] = 0;
+        }
+        if ( locHistory.size() <= 1 ) {
+            return 0.5f;
+        }
+
+        // Loop and calc dwell confidences against latest update.
+        final double dwellRefLat = locHistory.getLatitude( 0 );
+        final double dwellRefLon = locHistory.getLongitude( 0 );
+        final float dwellRefAccuracy = locHistory.getAccuracy( 0 );
+        final long dwellRefTime = locHistory.getTime( 0 );
+        final int dwellRefAccuLvl = getAccuracyLevel( dwellRefAccuracy );
+        float sum = 0;
+        int count = 0;
+        for ( int i = 0; i < locHistory.size(); i++ ) {
+            if ( i == 0 ) {
+                if ( sbLog != null ) {
+                    sbLog.append( "ref" );  // dwellRef
+                    sbLog.append( dwellRefAccuLvl == BAD_ACCURACY_LVL ? "(cellxbad)" : "" );
+                }
+                continue;
+            }
+
+            String note = "";
+            float locAccuracy = locHistory.getAccuracy( i );
+            long timeDiff = dwellRefTime - locHistory.getTime( i );
+            int locAccuLvl = getAccuracyLevel( locAccuracy );
+            float dwellRadius = velocityThreshold * ( timeDiff / 1000 );
+            float confidence = MathHelper.getLocationConfidenceAtPoi(
+                    dwellRefLat, dwellRefLon, dwellRadius,
+                    locHistory.getLatitude( i ), locHistory.getLongitude( i ), locAccuracy );
+            if ( durationSpan > 0 && timeDiff > durationSpan ) {
+                note = "(old)";  // Too old to use.
+            } else if ( dwellRefAccuLvl == BAD_ACCURACY_LVL ) {
+                // Drop cell tower fixes.  Too inaccurate to use.
+                note = "(cellxbad)";
+            } else if ( dwellRefAccuLvl != locAccuLvl ) {
+                // Trying to prevent comparing gps fixes to wifi fixes to cell tower fixes.
+                note = "(10xbad)";
+            } else if ( dwellRadius * 1.5 < locAccuracy
+                    || dwellRadius * 1.5 < dwellRefAccuracy ) {
+                // Too inaccurate to use.
+                note = "(2xbad)";
+            } else {
+                sum += confidence;
+                count++;
+            }
+
+            // Logging.
+            if ( sbLog != null ) {
+                sbLog.append( ", " ).append( confidence ).append( note );
+            }
+        }
+
+        if ( outCount != null ) {
+            outCount[0] = count;
+        }
+        return ( count == 0 ? 0.5f : ( sum / count ) );
+    }
+}
@@ -0,0 +1,336 @@
+package com.motussoft.heresense.dwelldetection;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Detection state of DetectDwellService, held in memory for the whole process.
+ *
+ * Loaded from preferences once.  Setters only mark changed fields dirty, and flush()
+ * writes all dirty fields in a single preferences edit, once per handled intent, instead
+ * of an edit and file rewrite per field.
+ *
+ * Not thread safe.  Only to be accessed from the DetectDwellService handler thread.
+ */
+class DwellState {
+
+    /** Preferences file and keys as written by DetectDwellService before this class. */
+    private static final String PREFS_NAME = "DetectDwellService";
+    private static final String KEY_DETECTING_DWELL = "KEY_DETECTING_DWELL";
+    private static final String KEY_DETECTING_TRANSIT = "KEY_DETECTING_TRANSIT";
+    private static final String KEY_COARSE_DWELL_GPS_PENDING = "ACTION_COARSE_DWELL_GPS_UPDATE";
+    private static final String KEY_DWELL_GPS_PENDING = "ACTION_DWELL_GPS_UPDATE";
+    private static final String KEY_DWELL_AR_UPDATES = "ACTION_DWELL_ACTIVITY_RECOGNITION";
+    private static final String KEY_TRANSIT_AR_UPDATES = "ACTION_TRANSIT_ACTIVITY_RECOGNITION";
+    private static final String KEY_ACTIVITY_STATE = "KEY_ACTIVITY_STATE";
+    private static final String KEY_ACTIVITY_IN_VEHICLE = "KEY_ACTIVITY_IN_VEHICLE";
+    private static final String KEY_ACTIVITY_ON_FOOT = "KEY_ACTIVITY_ON_FOOT";
+    private static final String KEY_DWELL_LOC_UPDATES = "ACTION_DETECT_DWELL_LOCATION_UPDATE";
+    private static final String KEY_HIGH_ACCURACY = "KEY_DETECT_DWELL_HIGH_ACCURACY";
+    private static final String KEY_BOOST_ACCURACY_TIMESTAMP = "KEY_BOOST_ACCURACY_TIMESTAMP";
+    private static final String KEY_TRANSIT_LOC_UPDATES = "ACTION_DETECT_TRANSIT_LOCATION_UPDATE";
+    private static final String KEY_DWELL_POI_LOCATION_LAT = "KEY_DWELL_POI_LOCATION_LAT";
+    private static final String KEY_DWELL_POI_LOCATION_LON = "KEY_DWELL_POI_LOCATION_LON";
+    private static final String KEY_DWELL_POI_LOCATION_RADIUS = "KEY_DWELL_POI_LOCATION_RADIUS";
+
+    /** Dirty flags. */
+    private static final int F_DETECTING_DWELL = 1;
+    private static final int F_DETECTING_TRANSIT = 1 << 1;
+    private static final int F_COARSE_DWELL_GPS_PENDING = 1 << 2;
+    private static final int F_DWELL_GPS_PENDING = 1 << 3;
+    private static final int F_DWELL_AR_UPDATES = 1 << 4;
+    private static final int F_TRANSIT_AR_UPDATES = 1 << 5;
+    private static final int F_ACTIVITY_STATE = 1 << 6;
+    private static final int F_ACTIVITY_IN_VEHICLE = 1 << 7;
+    private static final int F_ACTIVITY_ON_FOOT = 1 << 8;
+    private static final int F_DWELL_LOC_UPDATES = 1 << 9;
+    private static final int F_HIGH_ACCURACY = 1 << 10;
+    private static final int F_BOOST_ACCURACY_TIMESTAMP = 1 << 11;
+    private static final int F_TRANSIT_LOC_UPDATES = 1 << 12;
+    private static final int F_DWELL_POI_LOCATION = 1 << 13;
+
+    private static DwellState sInstance;
+
+    static synchronized DwellState getInstance(Context context) {
+        if ( sInstance == null ) {
+            sInstance = new DwellState( context.getApplicationContext()
+                    .getSharedPreferences( PREFS_NAME, Context.MODE_PRIVATE ) );
+        }
+        return sInstance;
+    }
+
+    private final SharedPreferences mPrefs;
+    private int mDirty = 0;
+
+    private boolean mDetectingDwell;
+    private boolean mDetectingTransit;
+    private boolean mCoarseDwellGpsPending;
+    private boolean mDwellGpsPending;
+    private boolean mDwellArUpdates;
+    private boolean mTransitArUpdates;
+    private int mActivityState;
+    private long mInVehicleTime;
+    private long mOnFootTime;
+    private boolean mDwellLocUpdates;
+    private boolean mHighAccuracy;
+    private long mBoostAccuracyTime;
+    private boolean mTransitLocUpdates;
+    private float mDwellPoiLat;
+    private float mDwellPoiLon;
+    private float mDwellPoiRadius;
+
+    private DwellState(SharedPreferences prefs) {
+        mPrefs = prefs;
+        mDetectingDwell = prefs.getBoolean( KEY_DETECTING_DWELL, false );
+        mDetectingTransit = prefs.getBoolean( KEY_DETECTING_TRANSIT, false );
+        mCoarseDwellGpsPending = prefs.getBoolean( KEY_COARSE_DWELL_GPS_PENDING, false );
+        mDwellGpsPending = prefs.getBoolean( KEY_DWELL_GPS_PENDING, false );
+        mDwellArUpdates = prefs.getBoolean( KEY_DWELL_AR_UPDATES, false );
+        mTransitArUpdates = prefs.getBoolean( KEY_TRANSIT_AR_UPDATES, false );
+        mActivityState = prefs.getInt( KEY_ACTIVITY_STATE, -1 );  // Default to undefined.
+        mInVehicleTime = prefs.getLong( KEY_ACTIVITY_IN_VEHICLE, 0 );
+        mOnFootTime = prefs.getLong( KEY_ACTIVITY_ON_FOOT, 0 );
+        mDwellLocUpdates = prefs.getBoolean( KEY_DWELL_LOC_UPDATES, false );
+        mHighAccuracy = prefs.getBoolean( KEY_HIGH_ACCURACY, false );
+        mBoostAccuracyTime = prefs.getLong( KEY_BOOST_ACCURACY_TIMESTAMP, 0 );
+        mTransitLocUpdates = prefs.getBoolean( KEY_TRANSIT_LOC_UPDATES, false );
+        mDwellPoiLat = prefs.getFloat( KEY_DWELL_POI_LOCATION_LAT, 0f );
+        mDwellPoiLon = prefs.getFloat( KEY_DWELL_POI_LOCATION_LON, 0f );
+        mDwellPoiRadius = prefs.getFloat( KEY_DWELL_POI_LOCATION_RADIUS, 0f );
+    }
+
+    /**
+     * Write dirty fields in one preferences edit.  No-op if nothing changed.
+     */
+    void flush() {
+        if ( mDirty == 0 ) {
+            return;
+        }
+        SharedPreferences.Editor edit = mPrefs.edit();
+        if ( isDirty( F_DETECTING_DWELL ) ) {
+            edit.putBoolean( KEY_DETECTING_DWELL, mDetectingDwell );
+        }
+        if ( isDirty( F_DETECTING_TRANSIT ) ) {
+            edit.putBoolean( KEY_DETECTING_TRANSIT, mDetectingTransit );
+        }
+        if ( isDirty( F_COARSE_DWELL_GPS_PENDING ) ) {
+            edit.putBoolean( KEY_COARSE_DWELL_GPS_PENDING, mCoarseDwellGpsPending );
+        }
+        if ( isDirty( F_DWELL_GPS_PENDING ) ) {
+            edit.putBoolean( KEY_DWELL_GPS_PENDING, mDwellGpsPending );
+        }
+        if ( isDirty( F_DWELL_AR_UPDATES ) ) {
+            edit.putBoolean( KEY_DWELL_AR_UPDATES, mDwellArUpdates );
+        }
+        if ( isDirty( F_TRANSIT_AR_UPDATES ) ) {
+            edit.putBoolean( KEY_TRANSIT_AR_UPDATES, mTransitArUpdates );
+        }
+        if ( isDirty( F_ACTIVITY_STATE ) ) {
+            edit.putInt( KEY_ACTIVITY_STATE, mActivityState );
+        }
+        if ( isDirty( F_ACTIVITY_IN_VEHICLE ) ) {
+            edit.putLong( KEY_ACTIVITY_IN_VEHICLE, mInVehicleTime );
+        }
+        if ( isDirty( F_ACTIVITY_ON_FOOT ) ) {
+            edit.putLong( KEY_ACTIVITY_ON_FOOT, mOnFootTime );
+        }
+        if ( isDirty( F_DWELL_LOC_UPDATES ) ) {
+            edit.putBoolean( KEY_DWELL_LOC_UPDATES, mDwellLocUpdates );
+        }
+        if ( isDirty( F_HIGH_ACCURACY ) ) {
+            edit.putBoolean( KEY_HIGH_ACCURACY, mHighAccuracy );
+        }
+        if ( isDirty( F_BOOST_ACCURACY_TIMESTAMP ) ) {
+            edit.putLong( KEY_BOOST_ACCURACY_TIMESTAMP, mBoostAccuracyTime );
+        }
+        if ( isDirty( F_TRANSIT_LOC_UPDATES ) ) {
+            edit.putBoolean( KEY_TRANSIT_LOC_UPDATES, mTransitLocUpdates );
+        }
+        if ( isDirty( F_DWELL_POI_LOCATION ) ) {
+            edit.putFloat( KEY_DWELL_POI_LOCATION_LAT, mDwellPoiLat )
+                    .putFloat( KEY_DWELL_POI_LOCATION_LON, mDwellPoiLon )
+                    .putFloat( KEY_DWELL_POI_LOCATION_RADIUS, mDwellPoiRadius );
+        }
+        edit.apply();
+        mDirty = 0;
+    }
+
+    private boolean isDirty(int field) {
+        return ( mDirty & field ) != 0;
+    }
+
+    /****************************************************************
+     * Detection.
+     ****************************************************************/
+
+    boolean isDetectingDwell() {
+        return mDetectingDwell;
+    }
+
+    void setDetectingDwell(boolean bDetecting) {
+        if ( mDetectingDwell != bDetecting ) {
+            mDetectingDwell = bDetecting;
+            mDirty |= F_DETECTING_DWELL;
+        }
+    }
+
+    boolean isDetectingTransit() {
+        return mDetectingTransit;
+    }
+
+    void setDetectingTransit(boolean bDetecting) {
+        if ( mDetectingTransit != bDetecting ) {
+            mDetectingTransit = bDetecting;
+            mDirty |= F_DETECTING_TRANSIT;
+        }
+    }
+
+    /**
+     * Whether a coarse dwell, or dwell, is waiting on a gps fix to be broadcast.
+     */
+    boolean isDwellGpsPending(boolean bCoarseDwell) {
+        return ( bCoarseDwell ? mCoarseDwellGpsPending : mDwellGpsPending );
+    }
+
+    void setDwellGpsPending(boolean bCoarseDwell, boolean bPending) {
+        if ( bCoarseDwell && mCoarseDwellGpsPending != bPending ) {
+            mCoarseDwellGpsPending = bPending;
+            mDirty |= F_COARSE_DWELL_GPS_PENDING;
+        } else if ( !bCoarseDwell && mDwellGpsPending != bPending ) {
+            mDwellGpsPending = bPending;
+            mDirty |= F_DWELL_GPS_PENDING;
+        }
+    }
+
+    /****************************************************************
+     * Activity recognition.
+     ****************************************************************/
+
+    boolean hasDwellActivityUpdates() {
+        return mDwellArUpdates;
+    }
+
+    void setDwellActivityUpdates(boolean bOn) {
+        if ( mDwellArUpdates != bOn ) {
+            mDwellArUpdates = bOn;
+            mDirty |= F_DWELL_AR_UPDATES;
+        }
+    }
+
+    boolean hasTransitActivityUpdates() {
+        return mTransitArUpdates;
+    }
+
+    void setTransitActivityUpdates(boolean bOn) {
+        if ( mTransitArUpdates != bOn ) {
+            mTransitArUpdates = bOn;
+            mDirty |= F_TRANSIT_AR_UPDATES;
+        }
+    }
+
+    /**
+     * @return  DetectedActivity type, or -1 if undefined.
+     */
+    int getActivityState() {
+        return mActivityState;
+    }
+
+    void setActivityState(int activityState) {
+        if ( mActivityState != activityState ) {
+            mActivityState = activityState;
+            mDirty |= F_ACTIVITY_STATE;
+        }
+    }
+
+    long getInVehicleTime() {
+        return mInVehicleTime;
+    }
+
+    void setInVehicleTime(long time) {
+        if ( mInVehicleTime != time ) {
+            mInVehicleTime = time;
+            mDirty |= F_ACTIVITY_IN_VEHICLE;
+        }
+    }
+
+    long getOnFootTime() {
+        return mOnFootTime;
+    }
+
+    void setOnFootTime(long time) {
+        if ( mOnFootTime != time ) {
+            mOnFootTime = time;
+            mDirty |= F_ACTIVITY_ON_FOOT;
+        }
+    }
+
+    /****************************************************************
+     * Location updates.
+     ****************************************************************/
+
+    boolean hasDwellLocationUpdates() {
+        return mDwellLocUpdates;
+    }
+
+    boolean isHighAccuracy() {
+        return mHighAccuracy;
+    }
+
+    long getBoostAccuracyTime() {
+        return mBoostAccuracyTime;
+    }
+
+    /**
+     * @param boostAccuracyTime  When high accuracy updates started, 0 if not high accuracy.
+     */
+    void setDwellLocationUpdates(boolean bOn, boolean bHighAccuracy, long boostAccuracyTime) {
+        if ( mDwellLocUpdates != bOn ) {
+            mDwellLocUpdates = bOn;
+            mDirty |= F_DWELL_LOC_UPDATES;
+        }
+        if ( mHighAccuracy != bHighAccuracy ) {
+            mHighAccuracy = bHighAccuracy;
+            mDirty |= F_HIGH_ACCURACY;
+        }
+        if ( mBoostAccuracyTime != boostAccuracyTime ) {
+            mBoostAccuracyTime = boostAccuracyTime;
+            mDirty |= F_BOOST_ACCURACY_TIMESTAMP;
+        }
+    }
+
+    boolean hasTransitLocationUpdates() {
+        return mTransitLocUpdates;
+    }
+
+    void setTransitLocationUpdates(boolean bOn) {
+        if ( mTransitLocUpdates != bOn ) {
+            mTransitLocUpdates = bOn;
+            mDirty |= F_TRANSIT_LOC_UPDATES;
+        }
+    }
+
+    /****************************************************************
+     * Dwell poi location, for transit detection.
+     ****************************************************************/
+
+    float getDwellPoiLat() {
+        return mDwellPoiLat;
+    }
+
+    float getDwellPoiLon() {
+        return mDwellPoiLon;
+    }
+
+    float getDwellPoiRadius() {
+        return mDwellPoiRadius;
+    }
+
+    void setDwellPoiLocation(float lat, float lon, float radius) {
+        if ( mDwellPoiLat != lat || mDwellPoiLon != lon || mDwellPoiRadius != radius ) {
+            mDwellPoiLat = lat;
+            mDwellPoiLon = lon;
+            mDwellPoiRadius = radius;
+            mDirty |= F_DWELL_POI_LOCATION;
+        }
+    }
+}
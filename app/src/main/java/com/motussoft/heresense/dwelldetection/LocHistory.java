@@ -0,0 +1,201 @@
+package com.motussoft.heresense.dwelldetection;
+
+import android.annotation.TargetApi;
+import android.location.Location;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.IOException;
+
+/**
+ * Fixed capacity ring buffer of recent location fixes.
+ *
+ * Fixes are kept as primitive arrays (time, elapsedRealtimeNanos, lat, lng, accuracy)
+ * and the buffer lives for the whole process, so handling a location update no longer
+ * needs to restore and persist the full history on every fix.  Changes are written
+ * through to an attached {@link LocJournal}, one record per fix.
+ *
+ * Index 0 is always the latest fix, index size()-1 the oldest.
+ *
+ * Not thread safe.  Only to be accessed from the DetectDwellService handler thread.
+ */
+class LocHistory {
+
+    private static final String TAG = "LocHistory";
+
+    /** Max fixes kept.  MAX_HISTORY_DURATION at the fastest update interval needs far fewer. */
+    static final int CAPACITY = 64;
+
+    private static LocHistory sInstance;
+
+    static synchronized LocHistory getInstance() {
+        if ( sInstance == null ) {
+            sInstance = new LocHistory( CAPACITY );
+        }
+        return sInstance;
+    }
+
+    private final long[] mTime;
+    private final long[] mEt;
+    private final double[] mLat;
+    private final double[] mLng;
+    private final float[] mAccuracy;
+
+    private int mOldest = 0;  // Slot of the oldest fix.
+    private int mSize = 0;
+
+    private boolean mRestored = false;
+    private LocJournal mJournal = null;
+
+    LocHistory(int capacity) {
+        mTime = new long[capacity];
+        mEt = new long[capacity];
+        mLat = new double[capacity];
+        mLng = new double[capacity];
+        mAccuracy = new float[capacity];
+    }
+
+    /****************************************************************
+     * Accessors.  Index 0 is the latest fix.
+     ****************************************************************/
+
+    int size() {
+        return mSize;
+    }
+
+    boolean isEmpty() {
+        return ( mSize == 0 );
+    }
+
+    private int slot(int index) {
+        return ( mOldest + mSize - 1 - index + mTime.length ) % mTime.length;
+    }
+
+    long getTime(int index) {
+        return mTime[ slot( index ) ];
+    }
+
+    long getElapsedRealtimeNanos(int index) {
+        return mEt[ slot( index ) ];
+    }
+
+    double getLatitude(int index) {
+        return mLat[ slot( index ) ];
+    }
+
+    double getLongitude(int index) {
+        return mLng[ slot( index ) ];
+    }
+
+    float getAccuracy(int index) {
+        return mAccuracy[ slot( index ) ];
+    }
+
+    /****************************************************************
+     * Mutators.
+     ****************************************************************/
+
+    /**
+     * Add as latest fix.  Drops the oldest fix when full.
+     */
+    void add(long time, long et, double lat, double lng, float accuracy) {
+        if ( mSize == mTime.length ) {
+            removeOldest();
+        }
+        int s = ( mOldest + mSize ) % mTime.length;
+        mTime[s] = time;
+        mEt[s] = et;
+        mLat[s] = lat;
+        mLng[s] = lng;
+        mAccuracy[s] = accuracy;
+        mSize++;
+
+        if ( mJournal != null ) {
+            try {
+                mJournal.append( time, et, lat, lng, accuracy );
+            } catch (IOException e) {
+                detachJournal( "append", e );
+            }
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR1)
+    void add(Location location) {
+        add( location.getTime(), location.getElapsedRealtimeNanos(),
+                location.getLatitude(), location.getLongitude(), location.getAccuracy() );
+    }
+
+    void removeOldest() {
+        if ( mSize == 0 ) {
+            return;
+        }
+        mOldest = ( mOldest + 1 ) % mTime.length;
+        mSize--;
+
+        if ( mJournal != null ) {
+            try {
+                mJournal.dropOldest( 1 );
+            } catch (IOException e) {
+                detachJournal( "drop", e );
+            }
+        }
+    }
+
+    void clear() {
+        mOldest = 0;
+        mSize = 0;
+
+        if ( mJournal != null ) {
+            try {
+                mJournal.clear();
+            } catch (IOException e) {
+                detachJournal( "clear", e );
+            }
+        }
+    }
+
+    /****************************************************************
+     * Persistence bookkeeping.
+     ****************************************************************/
+
+    /** Whether history has been restored from disk in this process. */
+    boolean isRestored() {
+        return mRestored;
+    }
+
+    /**
+     * Mark as restored, and write through all further changes to journal.
+     * @param journal  Can be null to keep history in memory only.
+     */
+    void setRestored(LocJournal journal) {
+        mRestored = true;
+        mJournal = journal;
+    }
+
+    /** Sync journal to storage.  Called at life cycle boundaries only. */
+    void sync() {
+        if ( mJournal != null ) {
+            try {
+                mJournal.sync();
+            } catch (IOException e) {
+                detachJournal( "sync", e );
+            }
+        }
+    }
+
+    /** Whether changes are still written through to a journal. */
+    boolean isJournaled() {
+        return ( mJournal != null );
+    }
+
+    /**
+     * Stop writing through after the first failed write.  The journal no longer matches
+     * history, and later writes would land at the wrong offsets.  History stays in memory
+     * only for the rest of the process.
+     */
+    private void detachJournal(String op, IOException e) {
+        Log.e( TAG, "Journal " + op + " failed, keeping history in memory only: " + e );
+        mJournal.close();
+        mJournal = null;
+    }
+}
@@ -0,0 +1,287 @@
+package com.motussoft.heresense.dwelldetection;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only binary journal backing {@link LocHistory}.
+ *
+ * File layout, all little-endian:
+ *
+ *   Header (20 bytes):
+ *     int    magic       "HSLJ"
+ *     int    version
+ *     long   headOffset  File offset of the oldest live record.
+ *     int    crc         CRC32 of the preceding 16 bytes.
+ *
+ *   Records (40 bytes each), appended one per fix:
+ *     long   time
+ *     long   elapsedRealtimeNanos
+ *     double lat
+ *     double lng
+ *     float  accuracy
+ *     int    crc         CRC32 of the preceding 36 bytes.
+ *
+ * Dropping old fixes only moves headOffset.  The file is compacted once enough dead
+ * records pile up in front of the head.
+ *
+ * Crash safety: a torn record fails its CRC and is truncated on restore.  A torn header
+ * fails its CRC and restore falls back to replaying from the first record, which is
+ * harmless as the caller trims history by time anyway.
+ */
+class LocJournal {
+
+    private static final String TAG = "LocJournal";
+
+    private static final int MAGIC = 0x4a4c5348;  // "HSLJ" little-endian.
+    private static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 20;
+    static final int RECORD_PAYLOAD_SIZE = 36;
+    static final int RECORD_SIZE = RECORD_PAYLOAD_SIZE + 4;
+
+    /** Compact once this many dead records are in front of the head. */
+    private static final int COMPACT_DEAD_RECORDS = 256;
+
+    private final File mFile;
+    private RandomAccessFile mRaf;
+    private FileChannel mChannel;
+
+    private long mHeadOffset = HEADER_SIZE;
+    private long mEndOffset = HEADER_SIZE;
+
+    private final ByteBuffer mHeaderBuf = ByteBuffer.allocate( HEADER_SIZE ).order( ByteOrder.LITTLE_ENDIAN );
+    private final ByteBuffer mRecordBuf = ByteBuffer.allocate( RECORD_SIZE ).order( ByteOrder.LITTLE_ENDIAN );
+    private final CRC32 mCrc = new CRC32();
+
+    private LocJournal(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Open journal file, creating it if needed.
+     */
+    static LocJournal open(File file) throws IOException {
+        LocJournal journal = new LocJournal( file );
+        journal.openChannel();
+        return journal;
+    }
+
+    private void openChannel() throws IOException {
+        mRaf = new RandomAccessFile( mFile, "rw" );
+        mChannel = mRaf.getChannel();
+    }
+
+    /****************************************************************
+     * Restore.
+     ****************************************************************/
+
+    /**
+     * Replay live records into history, oldest first.  Drops any torn tail.
+     */
+    void restore(LocHistory history) throws IOException {
+        long fileSize = mChannel.size();
+
+        // Header.
+        mHeadOffset = HEADER_SIZE;
+        if ( fileSize < HEADER_SIZE || !readHeader() ) {
+            resetFile();
+            return;
+        }
+
+        // Records.
+        long offset = mHeadOffset;
+        int count = 0;
+        while ( offset + RECORD_SIZE <= fileSize ) {
+            if ( !readRecord( offset ) ) {
+                break;  // Torn or corrupt record.  Drop from here on.
+            }
+            mRecordBuf.rewind();
+            history.add( mRecordBuf.getLong(), mRecordBuf.getLong(),
+                    mRecordBuf.getDouble(), mRecordBuf.getDouble(), mRecordBuf.getFloat() );
+            offset += RECORD_SIZE;
+            count++;
+        }
+
+        mEndOffset = offset;
+        if ( mEndOffset < fileSize ) {
+            Log.w( TAG, "Truncating torn journal tail: " + ( fileSize - mEndOffset ) + " bytes" );
+            mChannel.truncate( mEndOffset );
+        }
+
+        // Keep journal head in step with history, in case history overflowed.
+        if ( count > history.size() ) {
+            dropOldest( count - history.size() );
+        }
+    }
+
+    private boolean readHeader() throws IOException {
+        mHeaderBuf.clear();
+        readFully( mHeaderBuf, 0 );
+        mCrc.reset();
+        mCrc.update( mHeaderBuf.array(), 0, HEADER_SIZE - 4 );
+
+        mHeaderBuf.rewind();
+        int magic = mHeaderBuf.getInt();
+        int version = mHeaderBuf.getInt();
+        long headOffset = mHeaderBuf.getLong();
+        int crc = mHeaderBuf.getInt();
+        if ( magic != MAGIC || version != VERSION ) {
+            return false;
+        }
+
+        if ( crc == (int) mCrc.getValue()
+                && headOffset >= HEADER_SIZE
+                && ( headOffset - HEADER_SIZE ) % RECORD_SIZE == 0 ) {
+            mHeadOffset = headOffset;
+        }  // Otherwise torn header.  Replay from first record.
+        return true;
+    }
+
+    private boolean readRecord(long offset) throws IOException {
+        mRecordBuf.clear();
+        readFully( mRecordBuf, offset );
+        mCrc.reset();
+        mCrc.update( mRecordBuf.array(), 0, RECORD_PAYLOAD_SIZE );
+        return ( mRecordBuf.getInt( RECORD_PAYLOAD_SIZE ) == (int) mCrc.getValue() );
+    }
+
+    private void readFully(ByteBuffer buf, long offset) throws IOException {
+        while ( buf.hasRemaining() ) {
+            int read = mChannel.read( buf, offset + buf.position() );
+            if ( read < 0 ) {
+                throw new IOException( "Unexpected end of journal" );
+            }
+        }
+    }
+
+    /****************************************************************
+     * Writes.
+     ****************************************************************/
+
+    /**
+     * Append a fix as the latest record.
+     */
+    void append(long time, long et, double lat, double lng, float accuracy) throws IOException {
+        mRecordBuf.clear();
+        mRecordBuf.putLong( time )
+                .putLong( et )
+                .putDouble( lat )
+                .putDouble( lng )
+                .putFloat( accuracy );
+        mCrc.reset();
+        mCrc.update( mRecordBuf.array(), 0, RECORD_PAYLOAD_SIZE );
+        mRecordBuf.putInt( (int) mCrc.getValue() );
+        mRecordBuf.flip();
+        writeFully( mRecordBuf, mEndOffset );
+        mEndOffset += RECORD_SIZE;
+    }
+
+    /**
+     * Drop the oldest records by moving the head offset.
+     */
+    void dropOldest(int count) throws IOException {
+        mHeadOffset = Math.min( mEndOffset, mHeadOffset + (long) count * RECORD_SIZE );
+
+        if ( ( mHeadOffset - HEADER_SIZE ) / RECORD_SIZE >= COMPACT_DEAD_RECORDS ) {
+            compact();
+        } else {
+            writeHeader();
+        }
+    }
+
+    /**
+     * Drop all records.
+     */
+    void clear() throws IOException {
+        resetFile();
+    }
+
+    /**
+     * Sync to storage.  Called at life cycle boundaries only.
+     */
+    void sync() throws IOException {
+        mChannel.force( false );
+    }
+
+    void close() {
+        try {
+            mRaf.close();
+        } catch (IOException e) { }
+    }
+
+    private void writeHeader() throws IOException {
+        fillHeader( mHeadOffset );
+        writeFully( mHeaderBuf, 0 );
+    }
+
+    private void fillHeader(long headOffset) {
+        mHeaderBuf.clear();
+        mHeaderBuf.putInt( MAGIC )
+                .putInt( VERSION )
+                .putLong( headOffset );
+        mCrc.reset();
+        mCrc.update( mHeaderBuf.array(), 0, HEADER_SIZE - 4 );
+        mHeaderBuf.putInt( (int) mCrc.getValue() );
+        mHeaderBuf.flip();
+    }
+
+    private void writeFully(ByteBuffer buf, long offset) throws IOException {
+        while ( buf.hasRemaining() ) {
+            mChannel.write( buf, offset + buf.position() );
+        }
+    }
+
+    private void resetFile() throws IOException {
+        mChannel.truncate( 0 );
+        mHeadOffset = HEADER_SIZE;
+        mEndOffset = HEADER_SIZE;
+        writeHeader();
+    }
+
+    /**
+     * Copy live records to a new file, then atomically rename over the journal.
+     */
+    private void compact() throws IOException {
+        File tmpFile = new File( mFile.getPath() + ".tmp" );
+        long liveSize = mEndOffset - mHeadOffset;
+
+        RandomAccessFile tmpRaf = new RandomAccessFile( tmpFile, "rw" );
+        try {
+            FileChannel tmpChannel = tmpRaf.getChannel();
+            tmpChannel.truncate( 0 );
+
+            fillHeader( HEADER_SIZE );
+            while ( mHeaderBuf.hasRemaining() ) {
+                tmpChannel.write( mHeaderBuf );
+            }
+
+            long transferred = 0;
+            while ( transferred < liveSize ) {
+                transferred += mChannel.transferTo( mHeadOffset + transferred,
+                        liveSize - transferred, tmpChannel );
+            }
+            tmpChannel.force( false );
+        } finally {
+            tmpRaf.close();
+        }
+
+        close();
+        boolean bRenamed = tmpFile.renameTo( mFile );
+        openChannel();
+        if ( !bRenamed ) {
+            tmpFile.delete();
+            writeHeader();  // Keep using the uncompacted journal.
+            return;
+        }
+        mHeadOffset = HEADER_SIZE;
+        mEndOffset = HEADER_SIZE + liveSize;
+    }
+}
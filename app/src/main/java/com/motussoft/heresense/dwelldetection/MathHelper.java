@@ -21,33 +21,120 @@ public class MathHelper {
      */
     public static float getLocationConfidenceAtPoi(double poiLatitude, double poiLongitude,
                                                    double poiRadius, Location location) {
-        Location poi = new Location("");
-        poi.setLatitude( poiLatitude );
-        poi.setLongitude( poiLongitude );
-        double dist = location.distanceTo( poi );
+        return getLocationConfidenceAtPoi( poiLatitude, poiLongitude, poiRadius,
+                location.getLatitude(), location.getLongitude(), location.getAccuracy() );
+    }
+
+    /**
+     * Allocation free version of getLocationConfidenceAtPoi().  Pure java, no android dependencies.
+     *
+     * @param poiLatitude
+     * @param poiLongitude
+     * @param poiRadius
+     * @param latitude  Location fix latitude.
+     * @param longitude  Location fix longitude.
+     * @param accuracy  Location fix accuracy radius in meters.
+     * @return  Confidence:  1 - 0.66 : Very confident we're dwelling at specified POI.
+     *                       0.66 - 0.33 : Unsure
+     *                       0.33 - 0 : Very confident we're not dwelling at specified POI.
+     */
+    public static float getLocationConfidenceAtPoi(double poiLatitude, double poiLongitude, double poiRadius,
+                                                   double latitude, double longitude, double accuracy) {
+        double dist = distanceBetween( latitude, longitude, poiLatitude, poiLongitude );
+        return getConfidenceAtDistance( poiRadius, accuracy, dist );
+    }
 
-        if ( dist > location.getAccuracy() + poiRadius ) {
+    /**
+     * Confidence of a location fix with given accuracy being within poiRadius, given the
+     * distance between their centers.
+     */
+    public static float getConfidenceAtDistance(double poiRadius, double accuracy, double dist) {
+        if ( dist > accuracy + poiRadius ) {
             return 0f;
         }
 
-        if ( poiRadius >= dist + location.getAccuracy() ) {
+        if ( poiRadius >= dist + accuracy ) {
             return 1f;
         }
 
         double confidence;
-        if ( location.getAccuracy() >= dist + poiRadius ) {
+        if ( accuracy >= dist + poiRadius ) {
             double poiArea = getCircleArea( poiRadius );
-            double locationArea = getCircleArea( location.getAccuracy() );
+            double locationArea = getCircleArea( accuracy );
             confidence = poiArea / locationArea;
         } else {
-            double intersectArea = getCirclesIntersectArea( location.getAccuracy(), poiRadius, dist );
-            double locationArea = getCircleArea( location.getAccuracy() );
+            double intersectArea = getCirclesIntersectArea( accuracy, poiRadius, dist );
+            double locationArea = getCircleArea( accuracy );
             confidence = intersectArea / locationArea;
         }
 
         return (float) confidence;
     }
 
+    private static final double EARTH_MEAN_RADIUS = 6371008.8;  // meters.
+    private static final double DEG2RAD = Math.PI / 180;
+
+    /**
+     * Haversine distance in meters on a spherical earth.
+     *
+     * Stands in for Location.distanceTo(), which uses the WGS84 ellipsoid.  At the distances
+     * used for dwell and poi scoring (under a few km) the two agree to within 0.6%.
+     */
+    public static double distanceBetween(double lat1, double lon1, double lat2, double lon2) {
+        double sinDLat = Math.sin( ( lat2 - lat1 ) * DEG2RAD * 0.5 );
+        double sinDLon = Math.sin( ( lon2 - lon1 ) * DEG2RAD * 0.5 );
+        double a = sinDLat * sinDLat
+                + Math.cos( lat1 * DEG2RAD ) * Math.cos( lat2 * DEG2RAD ) * sinDLon * sinDLon;
+        return ( 2 * EARTH_MEAN_RADIUS * Math.asin( Math.min( 1.0, Math.sqrt( a ) ) ) );
+    }
+
+    /**
+     * Point meters away from lat,lon along bearing, on the same spherical earth as
+     * distanceBetween().  Flat projection, good for the few hundred meters used to look
+     * ahead along a path.
+     *
+     * @param bearing  Degrees east of true north.
+     * @param outLatLon  Filled with { latitude, longitude }.
+     */
+    public static void offset(double lat, double lon, double bearing, double meters, double[] outLatLon) {
+        double b = bearing * DEG2RAD;
+        outLatLon[0] = lat + Math.cos( b ) * meters / EARTH_MEAN_RADIUS / DEG2RAD;
+        outLatLon[1] = lon + Math.sin( b ) * meters / ( EARTH_MEAN_RADIUS * Math.cos( lat * DEG2RAD ) ) / DEG2RAD;
+    }
+
+    /**
+     * Batch version of getLocationConfidenceAtPoi() over struct-of-arrays poi inputs.
+     * Scores count pois against a single location fix in one pass, without allocating.
+     *
+     * @param poiLatitudes
+     * @param poiLongitudes
+     * @param poiRadii
+     * @param count  Number of pois to score.
+     * @param latitude  Location fix latitude.
+     * @param longitude  Location fix longitude.
+     * @param accuracy  Location fix accuracy radius in meters.
+     * @param outConfidences  Filled with confidence per poi.
+     * @param outDistances  Filled with distance in meters per poi.  Can be null.
+     */
+    public static void getLocationConfidencesAtPois(double[] poiLatitudes, double[] poiLongitudes,
+                                                    double[] poiRadii, int count,
+                                                    double latitude, double longitude, double accuracy,
+                                                    float[] outConfidences, float[] outDistances) {
+        final double cosLat = Math.cos( latitude * DEG2RAD );
+        for ( int i = 0; i < count; i++ ) {
+            double sinDLat = Math.sin( ( poiLatitudes[i] - latitude ) * DEG2RAD * 0.5 );
+            double sinDLon = Math.sin( ( poiLongitudes[i] - longitude ) * DEG2RAD * 0.5 );
+            double a = sinDLat * sinDLat
+                    + cosLat * Math.cos( poiLatitudes[i] * DEG2RAD ) * sinDLon * sinDLon;
+            double dist = 2 * EARTH_MEAN_RADIUS * Math.asin( Math.min( 1.0, Math.sqrt( a ) ) );
+
+            outConfidences[i] = getConfidenceAtDistance( poiRadii[i], accuracy, dist );
+            if ( outDistances != null ) {
+                outDistances[i] = (float) dist;
+            }
+        }
+    }
+
     public static double getCirclesIntersectArea(double r1, double r2, double dist) {
         if ( r1 > r2 ) {
             // Swap
@@ -0,0 +1,127 @@
+package com.motussoft.heresense.dwelldetection;
+
+/**
+ * Picks the location update interval from the running detection confidence.
+ *
+ * Near the detection threshold, where the next fixes decide, updates run at the fastest
+ * interval.  Once the signal is clearly on one side, the interval backs off exponentially
+ * with each fix, up to a max.  Anything in between, or no confidence yet, runs at the base
+ * interval.  Backoff past the base interval needs the activity state to agree.
+ *
+ * When the clear signal is staying put, as at the dwell poi in transit detection, fixes
+ * closer than a smallest displacement can be skipped by the location provider.
+ *
+ * Not thread safe.  Only to be accessed from the DetectDwellService handler thread.
+ */
+class SamplingScheduler {
+
+    /** Within this of the threshold is near.  Further than CLEAR_MARGIN is clear. */
+    private static final float NEAR_MARGIN = 0.15f;
+    private static final float CLEAR_MARGIN = 0.3f;
+
+    /**
+     * A side of the threshold narrower than this, e.g. above a 0.85 threshold, gets its
+     * margins scaled down with it, so it still has a clear band of a third of the side.
+     */
+    private static final float MIN_MARGIN_SPAN = CLEAR_MARGIN * 1.5f;
+
+    private static final int BACKOFF_FACTOR = 2;
+
+    /**
+     * Location request parameters.
+     */
+    static class Plan {
+        final long interval;
+        final long fastestInterval;
+        final float smallestDisplacement;  // Meters.
+
+        Plan(long interval, long fastestInterval, float smallestDisplacement) {
+            this.interval = interval;
+            this.fastestInterval = fastestInterval;
+            this.smallestDisplacement = smallestDisplacement;
+        }
+
+        boolean isSame(Plan another) {
+            return another != null
+                    && interval == another.interval
+                    && fastestInterval == another.fastestInterval
+                    && smallestDisplacement == another.smallestDisplacement;
+        }
+
+        @Override
+        public String toString() {
+            return "interval=" + interval + " fastest=" + fastestInterval
+                    + " displacement=" + smallestDisplacement;
+        }
+    }
+
+    private final long mMinInterval;
+    private final long mBaseInterval;
+    private final long mMaxInterval;
+    private final float mThreshold;
+
+    /** Margins below and above the threshold. */
+    private final float mNearBelow;
+    private final float mClearBelow;
+    private final float mNearAbove;
+    private final float mClearAbove;
+
+    private Plan mPlan;
+
+    /**
+     * @param threshold  Confidence at which detection fires.
+     */
+    SamplingScheduler(long minInterval, long baseInterval, long maxInterval, float threshold) {
+        mMinInterval = minInterval;
+        mBaseInterval = baseInterval;
+        mMaxInterval = maxInterval;
+        mThreshold = threshold;
+
+        float below = Math.min( 1f, threshold / MIN_MARGIN_SPAN );
+        float above = Math.min( 1f, ( 1f - threshold ) / MIN_MARGIN_SPAN );
+        mNearBelow = NEAR_MARGIN * below;
+        mClearBelow = CLEAR_MARGIN * below;
+        mNearAbove = NEAR_MARGIN * above;
+        mClearAbove = CLEAR_MARGIN * above;
+        reset();
+    }
+
+    /**
+     * Back to the base interval.  Call when updates are (re)started.
+     */
+    Plan reset() {
+        mPlan = new Plan( mBaseInterval, mMinInterval, 0f );
+        return mPlan;
+    }
+
+    Plan getPlan() {
+        return mPlan;
+    }
+
+    /**
+     * Plan for the next fixes, given the confidence from the latest fix.
+     *
+     * @param confidence  Latest confidence, or NaN if there isn't enough history yet.
+     * @param bActivityAgrees  Whether the activity state backs a clear signal.
+     * @param stillDisplacement  Fixes closer than this may be skipped while the signal is
+     *                           clearly below threshold.  0 if below threshold isn't still.
+     */
+    Plan next(float confidence, boolean bActivityAgrees, float stillDisplacement) {
+        boolean bAbove = ( confidence >= mThreshold );
+        float distance = ( Float.isNaN( confidence ) ? Float.NaN : Math.abs( confidence - mThreshold ) );
+
+        if ( !Float.isNaN( distance ) && distance <= ( bAbove ? mNearAbove : mNearBelow ) ) {
+            // Deciding.  Sample fast.
+            mPlan = new Plan( mMinInterval, mMinInterval, 0f );
+        } else if ( !Float.isNaN( distance ) && distance > ( bAbove ? mClearAbove : mClearBelow ) ) {
+            // Clear signal.  Back off from the last interval.
+            long maxInterval = ( bActivityAgrees ? mMaxInterval : mBaseInterval );
+            long interval = Math.min( maxInterval, Math.max( mBaseInterval, mPlan.interval * BACKOFF_FACTOR ) );
+            float displacement = ( bAbove ? 0f : stillDisplacement );
+            mPlan = new Plan( interval, mMinInterval, displacement );
+        } else {
+            mPlan = new Plan( mBaseInterval, mMinInterval, 0f );
+        }
+        return mPlan;
+    }
+}
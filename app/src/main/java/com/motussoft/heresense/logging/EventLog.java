@@ -0,0 +1,304 @@
+package com.motussoft.heresense.logging;
+
+import android.content.Context;
+import android.location.Location;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Calendar;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Typed binary event log, written alongside the text poi_*.log files.
+ *
+ * Events are encoded straight into a reusable buffer, and written through a FileChannel
+ * to the daily poi_YYYYMMDD.evt file once the buffer fills, FLUSH_INTERVAL_MS after the
+ * first buffered event, or on flush().  See EventLogFormat for the file layout and
+ * EventLogReader for converting to CSV/JSON.
+ */
+public class EventLog {
+
+    private static final String TAG = "EventLog";
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final long FLUSH_INTERVAL_MS = 1000;
+
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+    private static EventLog sInstance;
+
+    private static synchronized EventLog getInstance(Context context) {
+        if ( sInstance == null ) {
+            sInstance = new EventLog( context.getApplicationContext() );
+        }
+        return sInstance;
+    }
+
+    /****************************************************************
+     * Public API
+     ****************************************************************/
+
+    /**
+     * @param source  EventLogFormat.SOURCE_*
+     */
+    public static void logLocationFix(Context context, Location location, int source) {
+        if ( location == null ) {
+            return;
+        }
+        EventLog log = getInstance( context );
+        synchronized ( log ) {
+            ByteBuffer buf = log.beginRecord( EventLogFormat.KIND_LOCATION_FIX, location.getTime(), 21 );
+            buf.putDouble( location.getLatitude() )
+                    .putDouble( location.getLongitude() )
+                    .putFloat( location.getAccuracy() )
+                    .put( (byte) source );
+            log.endRecord();
+        }
+    }
+
+    /**
+     * @param mode  EventLogFormat.MODE_*
+     */
+    public static void logDwellConfidence(Context context, long time, int mode,
+                                          float confidence, int used, int total) {
+        EventLog log = getInstance( context );
+        synchronized ( log ) {
+            ByteBuffer buf = log.beginRecord( EventLogFormat.KIND_DWELL_CONFIDENCE, time, 9 );
+            buf.put( (byte) mode )
+                    .putFloat( confidence )
+                    .putShort( (short) used )
+                    .putShort( (short) total );
+            log.endRecord();
+        }
+    }
+
+    /**
+     * @param types  DetectedActivity types, most probable first.
+     * @param confidences  Matching confidences 0 - 100.
+     */
+    public static void logActivity(Context context, long time, int[] types, int[] confidences) {
+        int count = Math.min( 0xff, types.length );
+        EventLog log = getInstance( context );
+        synchronized ( log ) {
+            ByteBuffer buf = log.beginRecord( EventLogFormat.KIND_ACTIVITY, time, 1 + count * 2 );
+            buf.put( (byte) count );
+            for ( int i = 0; i < count; i++ ) {
+                buf.put( (byte) types[i] )
+                        .put( (byte) confidences[i] );
+            }
+            log.endRecord();
+        }
+    }
+
+    /**
+     * @param count  Number of candidates, best first.
+     */
+    public static void logPoiCandidates(Context context, long time, int count,
+                                        String[] placeIds, float[] confidences, float[] distances) {
+        byte[][] ids = new byte[count][];
+        int length = 2;
+        int written = 0;
+        for ( ; written < count; written++ ) {
+            ids[written] = ( placeIds[written] == null ? new byte[0] : placeIds[written].getBytes( UTF8 ) );
+            int candidateLength = 2 + ids[written].length + 8;
+            if ( length + candidateLength > EventLogFormat.MAX_PAYLOAD_SIZE ) {
+                break;  // Keep best candidates that fit.
+            }
+            length += candidateLength;
+        }
+
+        EventLog log = getInstance( context );
+        synchronized ( log ) {
+            ByteBuffer buf = log.beginRecord( EventLogFormat.KIND_POI_CANDIDATES, time, length );
+            buf.putShort( (short) written );
+            for ( int i = 0; i < written; i++ ) {
+                buf.putShort( (short) ids[i].length )
+                        .put( ids[i] )
+                        .putFloat( confidences[i] )
+                        .putFloat( distances[i] );
+            }
+            log.endRecord();
+        }
+    }
+
+    public static void logMotionState(Context context, long time, String oldState, String newState) {
+        byte[] oldBytes = oldState.getBytes( UTF8 );
+        byte[] newBytes = newState.getBytes( UTF8 );
+        EventLog log = getInstance( context );
+        synchronized ( log ) {
+            ByteBuffer buf = log.beginRecord( EventLogFormat.KIND_MOTION_STATE, time,
+                    2 + oldBytes.length + 2 + newBytes.length );
+            buf.putShort( (short) oldBytes.length )
+                    .put( oldBytes )
+                    .putShort( (short) newBytes.length )
+                    .put( newBytes );
+            log.endRecord();
+        }
+    }
+
+    /**
+     * Write out buffered events now.
+     */
+    public static void flush(Context context) {
+        EventLog log = getInstance( context );
+        synchronized ( log ) {
+            log.flushBuffer();
+        }
+    }
+
+    public static File getEventLogFile(Context context, long time) {
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis( time );
+        return new File( context.getFilesDir(),
+                String.format( "poi_%04d%02d%02d.evt", cal.get( Calendar.YEAR ),
+                        cal.get( Calendar.MONTH ) + 1, cal.get( Calendar.DAY_OF_MONTH ) ) );
+    }
+
+    /****************************************************************
+     * Buffering.  All under lock on instance.
+     ****************************************************************/
+
+    private final Context mContext;
+    private final ByteBuffer mBuffer = ByteBuffer.allocateDirect( BUFFER_SIZE ).order( ByteOrder.LITTLE_ENDIAN );
+    private ByteBuffer mRecord;
+
+    private FileChannel mChannel;
+    private long mDayStart = 0;
+    private long mDayEnd = 0;
+    private final Calendar mCal = Calendar.getInstance();
+
+    private final ScheduledExecutorService mFlusher;
+    private boolean mFlushScheduled = false;
+
+    private final Runnable mScheduledFlush = new Runnable() {
+        @Override
+        public void run() {
+            synchronized ( EventLog.this ) {
+                mFlushScheduled = false;
+                flushBuffer();
+            }
+        }
+    };
+
+    private EventLog(Context context) {
+        mContext = context;
+        mFlusher = Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread( r, TAG );
+                thread.setDaemon( true );
+                return thread;
+            }
+        } );
+        Runtime.getRuntime().addShutdownHook( new Thread() {
+            @Override
+            public void run() {
+                synchronized ( EventLog.this ) {
+                    flushBuffer();
+                }
+            }
+        } );
+    }
+
+    private ByteBuffer beginRecord(int kind, long time, int payloadLength) {
+        if ( time < mDayStart || time >= mDayEnd ) {
+            flushBuffer();
+            openEventLogFile( time );
+        }
+
+        int recordLength = EventLogFormat.RECORD_HEADER_SIZE + payloadLength;
+        if ( mBuffer.remaining() < recordLength ) {
+            flushBuffer();
+        }
+        // Oversized records go through their own buffer.
+        mRecord = ( mBuffer.remaining() < recordLength ?
+                ByteBuffer.allocate( recordLength ).order( ByteOrder.LITTLE_ENDIAN ) : mBuffer );
+        mRecord.put( (byte) kind )
+                .putShort( (short) payloadLength )
+                .putLong( time );
+        return mRecord;
+    }
+
+    private void endRecord() {
+        if ( mRecord != mBuffer ) {
+            mRecord.flip();
+            writeFully( mRecord );
+            mRecord = null;
+            return;
+        }
+        mRecord = null;
+
+        if ( !mFlushScheduled ) {
+            mFlushScheduled = true;
+            mFlusher.schedule( mScheduledFlush, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS );
+        }
+    }
+
+    private void flushBuffer() {
+        if ( mBuffer.position() == 0 ) {
+            return;
+        }
+        mBuffer.flip();
+        writeFully( mBuffer );
+        mBuffer.clear();
+    }
+
+    private void writeFully(ByteBuffer buf) {
+        if ( mChannel == null ) {
+            return;  // Drop.  Failed to open file.
+        }
+        try {
+            while ( buf.hasRemaining() ) {
+                mChannel.write( buf );
+            }
+        } catch (IOException e) {
+            Log.e( TAG, "Failed to write event log: " + e );
+        }
+    }
+
+    /**
+     * Open the daily event log file covering time.
+     */
+    private void openEventLogFile(long time) {
+        if ( mChannel != null ) {
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+            }
+            mChannel = null;
+        }
+
+        mCal.setTimeInMillis( time );
+        mCal.set( Calendar.HOUR_OF_DAY, 0 );
+        mCal.set( Calendar.MINUTE, 0 );
+        mCal.set( Calendar.SECOND, 0 );
+        mCal.set( Calendar.MILLISECOND, 0 );
+        mDayStart = mCal.getTimeInMillis();
+        mCal.add( Calendar.DAY_OF_MONTH, 1 );
+        mDayEnd = mCal.getTimeInMillis();
+
+        File file = getEventLogFile( mContext, time );
+        try {
+            mChannel = new FileOutputStream( file, true ).getChannel();
+            if ( mChannel.size() == 0 ) {
+                ByteBuffer header = ByteBuffer.allocate( EventLogFormat.HEADER_SIZE ).order( ByteOrder.LITTLE_ENDIAN );
+                header.putInt( EventLogFormat.MAGIC )
+                        .putShort( EventLogFormat.VERSION )
+                        .putShort( (short) 0 );
+                header.flip();
+                writeFully( header );
+            }
+        } catch (IOException e) {
+            Log.e( TAG, "Failed to open event log: " + e );
+        }
+    }
+}
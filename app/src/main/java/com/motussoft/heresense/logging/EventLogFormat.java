@@ -0,0 +1,95 @@
+package com.motussoft.heresense.logging;
+
+/**
+ * Binary event log file format.  Shared by EventLog (writer) and EventLogReader.
+ * Pure java, no android dependencies.
+ *
+ * File layout, all little-endian:
+ *
+ *   Header (8 bytes):
+ *     int    magic    "HSEV"
+ *     short  version
+ *     short  reserved
+ *
+ *   Records, appended one per event:
+ *     byte   kind
+ *     short  length   Payload length in bytes.  Lets readers skip unknown kinds.
+ *     long   time     Event time in millis since epoch.
+ *     ...    payload  Per kind, see KIND_*.
+ *
+ * Strings are written as an unsigned short byte length followed by UTF-8 bytes.
+ */
+public final class EventLogFormat {
+
+    /** Utility class can't be instantiated */
+    private EventLogFormat() { }
+
+    public static final int MAGIC = 0x56455348;  // "HSEV" little-endian.
+    public static final short VERSION = 1;
+
+    public static final int HEADER_SIZE = 8;
+    public static final int RECORD_HEADER_SIZE = 1 + 2 + 8;
+    public static final int MAX_PAYLOAD_SIZE = 0xffff;
+
+    /**
+     * Location fix.
+     *   double lat
+     *   double lng
+     *   float  accuracy
+     *   byte   source    SOURCE_*
+     */
+    public static final int KIND_LOCATION_FIX = 1;
+
+    /**
+     * Dwell or transit confidence.
+     *   byte   mode      MODE_*
+     *   float  confidence
+     *   short  used      Fixes that counted towards confidence.
+     *   short  total     Fixes considered.
+     */
+    public static final int KIND_DWELL_CONFIDENCE = 2;
+
+    /**
+     * Activity recognition result, most probable first.
+     *   byte   count
+     *   count * { byte type, byte confidence }
+     */
+    public static final int KIND_ACTIVITY = 3;
+
+    /**
+     * Ranked poi candidates, best first.
+     *   short  count
+     *   count * { string placeId, float confidence, float distance }
+     */
+    public static final int KIND_POI_CANDIDATES = 4;
+
+    /**
+     * Motion state change.
+     *   string oldState
+     *   string newState
+     */
+    public static final int KIND_MOTION_STATE = 5;
+
+    public static final int SOURCE_DWELL = 0;
+    public static final int SOURCE_TRANSIT = 1;
+
+    public static final int MODE_DWELL = 0;
+    public static final int MODE_TRANSIT = 1;
+
+    public static String getKindName(int kind) {
+        switch ( kind ) {
+            case KIND_LOCATION_FIX:
+                return "location_fix";
+            case KIND_DWELL_CONFIDENCE:
+                return "dwell_confidence";
+            case KIND_ACTIVITY:
+                return "activity";
+            case KIND_POI_CANDIDATES:
+                return "poi_candidates";
+            case KIND_MOTION_STATE:
+                return "motion_state";
+            default:
+                return "unknown_" + kind;
+        }
+    }
+}
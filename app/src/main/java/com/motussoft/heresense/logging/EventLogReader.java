@@ -0,0 +1,305 @@
+package com.motussoft.heresense.logging;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads binary event logs written by EventLog, and converts them to CSV or JSON.
+ * Pure java, no android dependencies, for offline analysis on the desktop:
+ *
+ *   javac -d out EventLogFormat.java EventLogReader.java
+ *   java -cp out com.motussoft.heresense.logging.EventLogReader [--json | --csv [kind]] poi_*.evt
+ *
+ * CSV rows are "time,kind,field..." .  Give a kind name, e.g. "location_fix", to only
+ * output that kind with a header row.  List fields are written as ';' separated
+ * entries of ':' separated values.
+ */
+public class EventLogReader {
+
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+    /** Decoded event.  Fields are in schema order. */
+    public static class Event {
+        public final int kind;
+        public final long time;
+        public final Map<String, Object> fields = new LinkedHashMap<String, Object>();
+
+        Event(int kind, long time) {
+            this.kind = kind;
+            this.time = time;
+        }
+
+        public String getKindName() {
+            return EventLogFormat.getKindName( kind );
+        }
+    }
+
+    private final DataInputStream mIn;
+    private final byte[] mRecordHeader = new byte[EventLogFormat.RECORD_HEADER_SIZE];
+    private byte[] mPayload = new byte[256];
+
+    public EventLogReader(InputStream in) throws IOException {
+        mIn = new DataInputStream( new BufferedInputStream( in ) );
+
+        byte[] header = new byte[EventLogFormat.HEADER_SIZE];
+        mIn.readFully( header );
+        ByteBuffer buf = ByteBuffer.wrap( header ).order( ByteOrder.LITTLE_ENDIAN );
+        if ( buf.getInt() != EventLogFormat.MAGIC ) {
+            throw new IOException( "Not an event log" );
+        }
+        int version = buf.getShort();
+        if ( version > EventLogFormat.VERSION ) {
+            throw new IOException( "Unsupported event log version: " + version );
+        }
+    }
+
+    /**
+     * @return  Next event, or null at end of log.  A torn last record also ends the log.
+     */
+    public Event next() throws IOException {
+        try {
+            mIn.readFully( mRecordHeader );
+        } catch (EOFException e) {
+            return null;
+        }
+        ByteBuffer header = ByteBuffer.wrap( mRecordHeader ).order( ByteOrder.LITTLE_ENDIAN );
+        int kind = header.get() & 0xff;
+        int length = header.getShort() & 0xffff;
+        long time = header.getLong();
+
+        if ( mPayload.length < length ) {
+            mPayload = new byte[length];
+        }
+        try {
+            mIn.readFully( mPayload, 0, length );
+        } catch (EOFException e) {
+            return null;  // Torn record.
+        }
+
+        Event event = new Event( kind, time );
+        decode( event, ByteBuffer.wrap( mPayload, 0, length ).order( ByteOrder.LITTLE_ENDIAN ) );
+        return event;
+    }
+
+    public void close() throws IOException {
+        mIn.close();
+    }
+
+    private static void decode(Event event, ByteBuffer buf) {
+        Map<String, Object> f = event.fields;
+        switch ( event.kind ) {
+            case EventLogFormat.KIND_LOCATION_FIX:
+                f.put( "lat", buf.getDouble() );
+                f.put( "lng", buf.getDouble() );
+                f.put( "accuracy", buf.getFloat() );
+                f.put( "source", ( buf.get() == EventLogFormat.SOURCE_TRANSIT ? "transit" : "dwell" ) );
+                break;
+            case EventLogFormat.KIND_DWELL_CONFIDENCE:
+                f.put( "mode", ( buf.get() == EventLogFormat.MODE_TRANSIT ? "transit" : "dwell" ) );
+                f.put( "confidence", buf.getFloat() );
+                f.put( "used", buf.getShort() & 0xffff );
+                f.put( "total", buf.getShort() & 0xffff );
+                break;
+            case EventLogFormat.KIND_ACTIVITY: {
+                int count = buf.get() & 0xff;
+                List<Object[]> activities = new ArrayList<Object[]>( count );
+                for ( int i = 0; i < count; i++ ) {
+                    activities.add( new Object[] { buf.get() & 0xff, buf.get() & 0xff } );
+                }
+                f.put( "activities", new Entries( new String[] { "type", "confidence" }, activities ) );
+                break;
+            }
+            case EventLogFormat.KIND_POI_CANDIDATES: {
+                int count = buf.getShort() & 0xffff;
+                List<Object[]> candidates = new ArrayList<Object[]>( count );
+                for ( int i = 0; i < count; i++ ) {
+                    candidates.add( new Object[] { getString( buf ), buf.getFloat(), buf.getFloat() } );
+                }
+                f.put( "candidates", new Entries(
+                        new String[] { "placeId", "confidence", "distance" }, candidates ) );
+                break;
+            }
+            case EventLogFormat.KIND_MOTION_STATE:
+                f.put( "oldState", getString( buf ) );
+                f.put( "newState", getString( buf ) );
+                break;
+            default:
+                break;  // Unknown kind.  Payload skipped.
+        }
+    }
+
+    private static String getString(ByteBuffer buf) {
+        int length = buf.getShort() & 0xffff;
+        String s = new String( buf.array(), buf.arrayOffset() + buf.position(), length, UTF8 );
+        buf.position( buf.position() + length );
+        return s;
+    }
+
+    /** List field.  Each entry holds one value per name. */
+    public static class Entries {
+        public final String[] names;
+        public final List<Object[]> values;
+
+        Entries(String[] names, List<Object[]> values) {
+            this.names = names;
+            this.values = values;
+        }
+    }
+
+    /****************************************************************
+     * Conversion.
+     ****************************************************************/
+
+    public static void writeCsv(Event event, PrintStream out) {
+        out.print( event.time );
+        out.print( ',' );
+        out.print( event.getKindName() );
+        for ( Object value : event.fields.values() ) {
+            out.print( ',' );
+            if ( value instanceof Entries ) {
+                Entries entries = (Entries) value;
+                StringBuilder sb = new StringBuilder();
+                for ( Object[] entry : entries.values ) {
+                    sb.append( sb.length() == 0 ? "" : ";" );
+                    for ( int i = 0; i < entry.length; i++ ) {
+                        sb.append( i == 0 ? "" : ":" ).append( entry[i] );
+                    }
+                }
+                out.print( csvEscape( sb.toString() ) );
+            } else {
+                out.print( csvEscape( String.valueOf( value ) ) );
+            }
+        }
+        out.println();
+    }
+
+    public static void writeCsvHeader(Event event, PrintStream out) {
+        out.print( "time,kind" );
+        for ( String name : event.fields.keySet() ) {
+            out.print( ',' );
+            out.print( name );
+        }
+        out.println();
+    }
+
+    public static void writeJson(Event event, PrintStream out) {
+        StringBuilder sb = new StringBuilder();
+        sb.append( "{\"time\":" ).append( event.time )
+                .append( ",\"kind\":" ).append( jsonString( event.getKindName() ) );
+        for ( Map.Entry<String, Object> field : event.fields.entrySet() ) {
+            sb.append( ',' ).append( jsonString( field.getKey() ) ).append( ':' );
+            appendJsonValue( sb, field.getValue() );
+        }
+        sb.append( '}' );
+        out.println( sb );
+    }
+
+    private static void appendJsonValue(StringBuilder sb, Object value) {
+        if ( value instanceof Entries ) {
+            Entries entries = (Entries) value;
+            sb.append( '[' );
+            for ( int e = 0; e < entries.values.size(); e++ ) {
+                Object[] entry = entries.values.get( e );
+                sb.append( e == 0 ? "{" : ",{" );
+                for ( int i = 0; i < entry.length; i++ ) {
+                    sb.append( i == 0 ? "" : "," ).append( jsonString( entries.names[i] ) ).append( ':' );
+                    appendJsonValue( sb, entry[i] );
+                }
+                sb.append( '}' );
+            }
+            sb.append( ']' );
+        } else if ( value instanceof String ) {
+            sb.append( jsonString( (String) value ) );
+        } else if ( value instanceof Float && ( ( (Float) value ).isNaN() || ( (Float) value ).isInfinite() ) ) {
+            sb.append( "null" );
+        } else if ( value instanceof Double && ( ( (Double) value ).isNaN() || ( (Double) value ).isInfinite() ) ) {
+            sb.append( "null" );
+        } else {
+            sb.append( value );
+        }
+    }
+
+    private static String jsonString(String s) {
+        StringBuilder sb = new StringBuilder( s.length() + 2 );
+        sb.append( '"' );
+        for ( int i = 0; i < s.length(); i++ ) {
+            char c = s.charAt( i );
+            if ( c == '"' || c == '\\' ) {
+                sb.append( '\\' ).append( c );
+            } else if ( c < 0x20 ) {
+                sb.append( String.format( "\\u%04x", (int) c ) );
+            } else {
+                sb.append( c );
+            }
+        }
+        return sb.append( '"' ).toString();
+    }
+
+    private static String csvEscape(String s) {
+        if ( s.indexOf( ',' ) < 0 && s.indexOf( '"' ) < 0 && s.indexOf( '\n' ) < 0 ) {
+            return s;
+        }
+        return "\"" + s.replace( "\"", "\"\"" ) + "\"";
+    }
+
+    /****************************************************************
+     * Command line.
+     ****************************************************************/
+
+    public static void main(String[] args) throws IOException {
+        boolean bJson = false;
+        String kindFilter = null;
+        int i = 0;
+        if ( i < args.length && args[i].equals( "--json" ) ) {
+            bJson = true;
+            i++;
+        } else if ( i < args.length && args[i].equals( "--csv" ) ) {
+            i++;
+            if ( i < args.length && !args[i].endsWith( ".evt" ) ) {
+                kindFilter = args[i++];
+            }
+        }
+        if ( i >= args.length ) {
+            System.err.println( "Usage: EventLogReader [--json | --csv [kind]] file.evt..." );
+            System.exit( 1 );
+        }
+
+        PrintStream out = System.out;
+        boolean bHeaderWritten = false;
+        for ( ; i < args.length; i++ ) {
+            EventLogReader reader = new EventLogReader( new FileInputStream( args[i] ) );
+            try {
+                Event event;
+                while ( ( event = reader.next() ) != null ) {
+                    if ( kindFilter != null && !kindFilter.equals( event.getKindName() ) ) {
+                        continue;
+                    }
+                    if ( bJson ) {
+                        writeJson( event, out );
+                    } else {
+                        if ( kindFilter != null && !bHeaderWritten ) {
+                            writeCsvHeader( event, out );
+                            bHeaderWritten = true;
+                        }
+                        writeCsv( event, out );
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        out.flush();
+    }
+}
@@ -0,0 +1,138 @@
+package com.motussoft.heresense.logging;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Line index over a growing text log file, for windowed viewing.
+ *
+ * The file is memory-mapped, and update() only scans bytes appended since the last
+ * update for line breaks, so following a multi-MB log costs the same as following a
+ * small one.  Lines are only decoded on getLine(), so a viewer pays for the lines it
+ * shows.  A trailing line without a line break is not indexed until completed.
+ *
+ * update() is expected to run on a single worker thread.  getLine() may be called from
+ * any thread for lines below a count returned by update().
+ */
+public class LogFileIndex {
+
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+    private final File mFile;
+
+    private RandomAccessFile mRaf;
+    private MappedByteBuffer mMap;
+    private long mMappedSize = 0;
+
+    /** Line start offsets.  mLineStarts[mLineCount] is the end of the last indexed line. */
+    private int[] mLineStarts = new int[1024];
+    private int mLineCount = 0;
+
+    public LogFileIndex(File file) {
+        mFile = file;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Index lines appended since the last update.  Starts over if the file shrank or
+     * was replaced.  Scans without holding the lock, so getLine() doesn't wait on it.
+     *
+     * @return  Number of indexed lines.
+     */
+    public int update() {
+        long size = mFile.length();
+        if ( size < mMappedSize || size > Integer.MAX_VALUE || isReplaced( size ) ) {
+            close();  // Truncated, deleted or replaced.
+        }
+        if ( size <= mMappedSize ) {
+            return getLineCount();
+        }
+
+        MappedByteBuffer map;
+        try {
+            if ( mRaf == null ) {
+                mRaf = new RandomAccessFile( mFile, "r" );
+            }
+            // Remap to cover the appended bytes.  Old mapping is dropped by the gc.
+            map = mRaf.getChannel().map( FileChannel.MapMode.READ_ONLY, 0, size );
+        } catch (IOException e) {
+            close();
+            return 0;
+        }
+
+        // Only this thread writes past mLineCount, so readers never see partial entries.
+        int[] lineStarts = mLineStarts;
+        int lineCount = mLineCount;
+        int end = (int) size;
+        for ( int i = lineStarts[lineCount]; i < end; i++ ) {
+            if ( map.get( i ) == '\n' ) {
+                if ( lineCount + 1 >= lineStarts.length ) {
+                    lineStarts = Arrays.copyOf( lineStarts, lineStarts.length * 2 );
+                }
+                lineStarts[++lineCount] = i + 1;
+            }
+        }
+
+        synchronized ( this ) {
+            mMap = map;
+            mMappedSize = size;
+            mLineStarts = lineStarts;
+            mLineCount = lineCount;
+        }
+        return lineCount;
+    }
+
+    /**
+     * Whether the open file is no longer the one at the path, e.g. the active segment was
+     * sealed and a new one grew past the old size.  Appends show through the open file,
+     * so it's at least as long as the path unless replaced.
+     */
+    private boolean isReplaced(long size) {
+        try {
+            return ( mRaf != null && mRaf.length() < size );
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    public synchronized int getLineCount() {
+        return mLineCount;
+    }
+
+    /**
+     * @return  Line text without line break, or null if out of range.
+     */
+    public synchronized String getLine(int index) {
+        if ( index < 0 || index >= mLineCount || mMap == null ) {
+            return null;
+        }
+        int start = mLineStarts[index];
+        int length = mLineStarts[index + 1] - start - 1;
+        byte[] bytes = new byte[length];
+        mMap.position( start );
+        mMap.get( bytes );
+        return new String( bytes, UTF8 );
+    }
+
+    public synchronized void close() {
+        if ( mRaf != null ) {
+            try {
+                mRaf.close();
+            } catch (IOException e) {
+            }
+            mRaf = null;
+        }
+        mMap = null;
+        mMappedSize = 0;
+        mLineCount = 0;
+        mLineStarts[0] = 0;
+    }
+}
@@ -0,0 +1,216 @@
+package com.motussoft.heresense.logging;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Sealed, gzipped log segments and their manifest.
+ *
+ * LogWriter appends to the active poi_YYYYMMDD.log segment, and seals it once it grows
+ * past SEGMENT_MAX_BYTES, at day roll over, or on request.  Sealing gzips the segment
+ * to poi_YYYYMMDD_HHmmss.log.gz, named by its first line, and appends a manifest line:
+ *
+ *   name \t startTime \t endTime \t rawBytes \t gzBytes
+ *
+ * Sealed segments are immutable, so upload, email and deletion all work on them.
+ */
+class LogSegments {
+
+    private static final String TAG = "LogSegments";
+
+    static final long SEGMENT_MAX_BYTES = 1024 * 1024;
+
+    private static final String MANIFEST_FILE_NAME = "logs.manifest";
+    static final String SEALED_SUFFIX = ".log.gz";
+
+    /** Utility class can't be instantiated */
+    private LogSegments() { }
+
+    static class Segment {
+        final File file;
+        final long startTime;
+        final long endTime;
+        final long rawBytes;
+
+        Segment(File file, long startTime, long endTime, long rawBytes) {
+            this.file = file;
+            this.startTime = startTime;
+            this.endTime = endTime;
+            this.rawBytes = rawBytes;
+        }
+    }
+
+    /**
+     * Gzip active segment into a sealed segment, then delete it.
+     * @return  Sealed segment, or null if there was nothing to seal.
+     */
+    static synchronized Segment seal(Context context, File active, long startTime, long endTime) {
+        long rawBytes = active.length();
+        if ( rawBytes == 0 ) {
+            active.delete();
+            return null;
+        }
+
+        String baseName = active.getName().substring( 0, active.getName().length() - ".log".length() )
+                + "_" + new SimpleDateFormat( "HHmmss" ).format( new Date( startTime ) );
+        File sealed = new File( active.getParentFile(), baseName + SEALED_SUFFIX );
+        for ( int n = 1; sealed.exists(); n++ ) {
+            sealed = new File( active.getParentFile(), baseName + "_" + n + SEALED_SUFFIX );
+        }
+
+        File tmp = new File( sealed.getPath() + ".tmp" );
+        try {
+            gzip( active, tmp );
+            if ( !tmp.renameTo( sealed ) ) {
+                throw new IOException( "Rename failed: " + sealed );
+            }
+        } catch (IOException e) {
+            Log.e( TAG, "Failed to seal " + active + ": " + e );
+            tmp.delete();
+            return null;  // Leave active segment in place.
+        }
+        active.delete();
+
+        Segment segment = new Segment( sealed, startTime, endTime, rawBytes );
+        Writer manifest = null;
+        try {
+            manifest = new FileWriter( getManifestFile( context ), true );
+            manifest.write( toManifestLine( segment ) );
+        } catch (IOException e) {
+            Log.e( TAG, "Failed to update manifest: " + e );
+        } finally {
+            close( manifest );
+        }
+        return segment;
+    }
+
+    /**
+     * @return  Sealed segments still on disk, oldest first.
+     */
+    static synchronized List<Segment> list(Context context) {
+        ArrayList<Segment> segments = new ArrayList<Segment>();
+        File dir = context.getFilesDir();
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader( new FileReader( getManifestFile( context ) ) );
+            String line;
+            while ( ( line = reader.readLine() ) != null ) {
+                String[] fields = line.split( "\t" );
+                if ( fields.length < 4 ) {
+                    continue;  // Torn line.
+                }
+                try {
+                    File file = new File( dir, fields[0] );
+                    if ( file.exists() ) {
+                        segments.add( new Segment( file, Long.parseLong( fields[1] ),
+                                Long.parseLong( fields[2] ), Long.parseLong( fields[3] ) ) );
+                    }
+                } catch (NumberFormatException e) { }
+            }
+        } catch (IOException e) {
+            // No manifest yet.
+        } finally {
+            close( reader );
+        }
+        return segments;
+    }
+
+    /**
+     * Delete sealed segments ending before time, and drop them from manifest.
+     */
+    static synchronized void delete(Context context, long beforeTime) {
+        List<Segment> segments = list( context );
+        StringBuilder sb = new StringBuilder();
+        for ( Segment segment : segments ) {
+            if ( segment.endTime < beforeTime ) {
+                segment.file.delete();
+            } else {
+                sb.append( toManifestLine( segment ) );
+            }
+        }
+        rewriteManifest( context, sb.toString() );
+    }
+
+    /**
+     * Drop manifest lines of segments deleted by others, e.g. after upload.
+     */
+    static synchronized void prune(Context context) {
+        StringBuilder sb = new StringBuilder();
+        for ( Segment segment : list( context ) ) {
+            sb.append( toManifestLine( segment ) );
+        }
+        rewriteManifest( context, sb.toString() );
+    }
+
+    private static void rewriteManifest(Context context, String content) {
+        File manifest = getManifestFile( context );
+        File tmp = new File( manifest.getPath() + ".tmp" );
+        Writer writer = null;
+        try {
+            writer = new FileWriter( tmp );
+            writer.write( content );
+            writer.close();
+            writer = null;
+            if ( !tmp.renameTo( manifest ) ) {
+                tmp.delete();
+            }
+        } catch (IOException e) {
+            Log.e( TAG, "Failed to rewrite manifest: " + e );
+        } finally {
+            close( writer );
+        }
+    }
+
+    private static File getManifestFile(Context context) {
+        return new File( context.getFilesDir(), MANIFEST_FILE_NAME );
+    }
+
+    private static String toManifestLine(Segment segment) {
+        return segment.file.getName() + "\t" + segment.startTime + "\t" + segment.endTime
+                + "\t" + segment.rawBytes + "\t" + segment.file.length() + "\n";
+    }
+
+    static void gzip(File src, File dst) throws IOException {
+        InputStream in = new FileInputStream( src );
+        try {
+            OutputStream out = new GZIPOutputStream( new FileOutputStream( dst ) );
+            try {
+                byte[] buf = new byte[8 * 1024];
+                int read;
+                while ( ( read = in.read( buf ) ) > 0 ) {
+                    out.write( buf, 0, read );
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void close(Closeable closeable) {
+        if ( closeable != null ) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+}
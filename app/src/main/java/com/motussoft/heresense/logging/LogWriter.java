@@ -0,0 +1,354 @@
+package com.motussoft.heresense.logging;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * In-process buffered log file writer.
+ *
+ * Callers on any thread enqueue lines on a lock-free queue and return.  A single writer
+ * thread drains the queue into a reusable buffer, stamps each line with a cached
+ * timestamp, and writes to the daily log file.  Buffered lines are flushed once
+ * FLUSH_LINES lines or FLUSH_CHARS chars pile up, FLUSH_INTERVAL_MS after the first
+ * unflushed line, on flush() and on process shutdown.
+ *
+ * The active segment is sealed into a gzipped segment once it grows past
+ * LogSegments.SEGMENT_MAX_BYTES, at day roll over, and on seal requests.  See LogSegments.
+ */
+class LogWriter implements Runnable {
+
+    private static final String TAG = "LoggingService";
+
+    private static final int FLUSH_LINES = 64;
+    private static final int FLUSH_CHARS = 8 * 1024;
+    private static final long FLUSH_INTERVAL_MS = 1000;
+
+    private static final String KEY_VERSION = "VERSION";
+
+    private static LogWriter sInstance;
+
+    static synchronized LogWriter getInstance(Context context) {
+        if ( sInstance == null ) {
+            sInstance = new LogWriter( context.getApplicationContext() );
+            sInstance.start();
+        }
+        return sInstance;
+    }
+
+    /** Queued line, stamped with the time it was logged. */
+    private static final class Entry {
+        final long mTime;
+        final String mMsg;
+
+        Entry(long time, String msg) {
+            mTime = time;
+            mMsg = msg;
+        }
+    }
+
+    private final Context mContext;
+    private final ConcurrentLinkedQueue<Entry> mQueue = new ConcurrentLinkedQueue<Entry>();
+    private final AtomicInteger mPending = new AtomicInteger();
+    private volatile boolean mIdle = false;
+    private volatile int mFlushRequests = 0;
+    private volatile int mFlushesDone = 0;
+    private volatile boolean mSealRequested = false;
+
+    private Thread mThread;
+
+    // Writer thread only.
+    private final StringBuilder mBuffer = new StringBuilder( FLUSH_CHARS * 2 );
+    private int mBufferedLines = 0;
+    private long mFirstBufferedTime = 0;
+    private Writer mLogFile;
+    private File mActiveFile;
+    private long mSegmentStart = 0;
+    private long mLastEntryTime = 0;
+    private long mDayStart = 0;
+    private long mDayEnd = 0;
+    private long mStampSecond = -1;
+    private String mStampPrefix;
+    private final Calendar mCal = Calendar.getInstance();
+    private final SimpleDateFormat mStampFormat = new SimpleDateFormat( "HH:mm:ss." );
+
+    /** Use getInstance().  Tests start their own. */
+    LogWriter(Context context) {
+        mContext = context;
+    }
+
+    void start() {
+        mThread = new Thread( this, TAG );
+        mThread.setDaemon( true );
+        mThread.start();
+
+        Runtime.getRuntime().addShutdownHook( new Thread() {
+            @Override
+            public void run() {
+                flush( FLUSH_INTERVAL_MS );
+            }
+        } );
+    }
+
+    /****************************************************************
+     * Callers, any thread.
+     ****************************************************************/
+
+    void log(String msg) {
+        log( System.currentTimeMillis(), msg );
+    }
+
+    /**
+     * @param time  When msg was logged.  Expected in order.
+     */
+    void log(long time, String msg) {
+        mQueue.offer( new Entry( time, msg ) );
+        int pending = mPending.incrementAndGet();
+        if ( mIdle || pending == FLUSH_LINES ) {
+            LockSupport.unpark( mThread );
+        }
+    }
+
+    /**
+     * Write out all lines logged so far.  Waits up to timeoutMs for the writer thread.
+     */
+    void flush(long timeoutMs) {
+        flush( timeoutMs, false );
+    }
+
+    /**
+     * Write out all lines logged so far, optionally sealing the active segment.
+     * Waits up to timeoutMs for the writer thread.
+     */
+    void flush(long timeoutMs, boolean bSeal) {
+        int request;
+        synchronized ( this ) {
+            if ( bSeal ) {
+                mSealRequested = true;
+            }
+            request = ++mFlushRequests;
+        }
+        LockSupport.unpark( mThread );
+
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        synchronized ( this ) {
+            long wait;
+            while ( mFlushesDone < request
+                    && ( wait = deadline - System.currentTimeMillis() ) > 0 ) {
+                try {
+                    wait( wait );
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /****************************************************************
+     * Writer thread.
+     ****************************************************************/
+
+    @Override
+    public void run() {
+        sealStaleSegments();
+
+        while ( true ) {
+            int flushRequests = mFlushRequests;
+            drain();
+
+            long now = System.currentTimeMillis();
+            boolean bFlushRequested = ( flushRequests != mFlushesDone );
+            if ( mBufferedLines > 0
+                    && ( bFlushRequested
+                        || mBufferedLines >= FLUSH_LINES
+                        || mBuffer.length() >= FLUSH_CHARS
+                        || now - mFirstBufferedTime >= FLUSH_INTERVAL_MS ) ) {
+                flushBuffer();
+                if ( mActiveFile != null && mActiveFile.length() >= LogSegments.SEGMENT_MAX_BYTES ) {
+                    sealActiveSegment();
+                }
+            }
+            if ( bFlushRequested ) {
+                if ( mSealRequested ) {
+                    mSealRequested = false;
+                    flushBuffer();
+                    sealActiveSegment();
+                }
+                synchronized ( this ) {
+                    mFlushesDone = flushRequests;
+                    notifyAll();
+                }
+            }
+
+            if ( mBufferedLines > 0 ) {
+                // Come back for the time threshold.
+                long wait = mFirstBufferedTime + FLUSH_INTERVAL_MS - now;
+                if ( mPending.get() == 0 && wait > 0 ) {
+                    LockSupport.parkNanos( this, TimeUnit.MILLISECONDS.toNanos( wait ) );
+                }
+            } else {
+                mIdle = true;
+                if ( mPending.get() == 0 && mFlushRequests == mFlushesDone ) {
+                    LockSupport.park( this );
+                }
+                mIdle = false;
+            }
+        }
+    }
+
+    private void drain() {
+        Entry entry;
+        while ( ( entry = mQueue.poll() ) != null ) {
+            mPending.decrementAndGet();
+            Log.d( TAG, String.valueOf( entry.mMsg ) );
+
+            if ( entry.mTime < mDayStart || entry.mTime >= mDayEnd ) {
+                flushBuffer();
+                sealActiveSegment();
+                openLogFile( entry.mTime );
+            }
+            mLastEntryTime = entry.mTime;
+            if ( mBufferedLines == 0 ) {
+                mFirstBufferedTime = System.currentTimeMillis();
+            }
+            appendStamp( entry.mTime );
+            mBuffer.append( " : " ).append( entry.mMsg ).append( '\n' );
+            mBufferedLines++;
+        }
+    }
+
+    /**
+     * Append "HH:mm:ss.SSS".  Only formats once per second.
+     */
+    private void appendStamp(long time) {
+        long second = time / 1000;
+        if ( second != mStampSecond ) {
+            mStampSecond = second;
+            mStampPrefix = mStampFormat.format( new Date( second * 1000 ) );
+        }
+        int millis = (int) ( time - second * 1000 );
+        mBuffer.append( mStampPrefix )
+                .append( (char) ( '0' + millis / 100 ) )
+                .append( (char) ( '0' + millis / 10 % 10 ) )
+                .append( (char) ( '0' + millis % 10 ) );
+    }
+
+    private void flushBuffer() {
+        if ( mBufferedLines == 0 ) {
+            return;
+        }
+        if ( mLogFile != null ) {
+            try {
+                mLogFile.append( mBuffer );
+                mLogFile.flush();
+            } catch (IOException e) { /* Do nothing */}
+        }
+        mBuffer.setLength( 0 );
+        mBufferedLines = 0;
+    }
+
+    /**
+     * Seal active segment.  Next line opens a new one.
+     */
+    private void sealActiveSegment() {
+        closeLogFile();
+        if ( mActiveFile != null ) {
+            LogSegments.seal( mContext, mActiveFile, mSegmentStart, mLastEntryTime );
+            mActiveFile = null;
+        }
+        mDayStart = 0;
+        mDayEnd = 0;
+    }
+
+    /**
+     * Seal active segments left over from earlier days, e.g. if the process died.
+     */
+    private void sealStaleSegments() {
+        String today = LoggingService.getLogFile( mContext ).getName();
+        File[] files = mContext.getFilesDir().listFiles();
+        if ( files == null ) {
+            return;
+        }
+        for ( File file : files ) {
+            String name = file.getName();
+            if ( name.startsWith( "poi_" ) && name.endsWith( ".log" ) && !name.equals( today ) ) {
+                LogSegments.seal( mContext, file, file.lastModified(), file.lastModified() );
+            }
+        }
+    }
+
+    /**
+     * Open the active segment of the daily log file covering time.
+     */
+    private void openLogFile(long time) {
+        closeLogFile();
+
+        mCal.setTimeInMillis( time );
+        mCal.set( Calendar.HOUR_OF_DAY, 0 );
+        mCal.set( Calendar.MINUTE, 0 );
+        mCal.set( Calendar.SECOND, 0 );
+        mCal.set( Calendar.MILLISECOND, 0 );
+        mDayStart = mCal.getTimeInMillis();
+        mCal.add( Calendar.DAY_OF_MONTH, 1 );
+        mDayEnd = mCal.getTimeInMillis();
+
+        File file = LoggingService.getLogFile( mContext, time );
+        mActiveFile = file;
+        mSegmentStart = ( file.length() == 0 ? time : mDayStart );
+        try {
+            mLogFile = new OutputStreamWriter( new FileOutputStream( file, true ) );
+            ensureFileVersion( file );
+        } catch (IOException e) {
+            Log.e( TAG, "Failed to open log file: " + e );
+        }
+    }
+
+    private void ensureFileVersion(File file) {
+        int lastVersion = mContext.getSharedPreferences( TAG, Context.MODE_PRIVATE ).getInt( KEY_VERSION, 0 );
+        int currVersion = 0;
+        PackageManager pm = mContext.getPackageManager();
+        try {
+            // None in local unit tests.
+            if ( pm != null ) {
+                PackageInfo pInfo = pm.getPackageInfo( mContext.getPackageName(), 0 );
+                currVersion = pInfo.versionCode;
+            }
+        } catch (PackageManager.NameNotFoundException e) { }
+
+        if  ( currVersion != lastVersion
+                || file != null && file.length() == 0 ) {
+            long now = System.currentTimeMillis();
+            appendStamp( now );
+            mBuffer.append( " : " ).append( TAG + " version: " + currVersion ).append( '\n' );
+            mBufferedLines++;
+            mFirstBufferedTime = now;
+            mContext.getSharedPreferences( TAG, Context.MODE_PRIVATE ).edit()
+                    .putInt( KEY_VERSION, currVersion ).apply();
+        }
+    }
+
+    private void closeLogFile() {
+        if ( mLogFile != null ) {
+            try {
+                mLogFile.close();
+            } catch (IOException e) {
+            }
+            mLogFile = null;
+        }
+    }
+}
@@ -1,44 +1,42 @@
 package com.motussoft.heresense.logging;
 
-import android.app.IntentService;
 import android.content.Context;
-import android.content.Intent;
-import android.content.pm.PackageInfo;
-import android.content.pm.PackageManager;
-import android.util.Log;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.Date;
+import java.util.List;
 
-public class LoggingService extends IntentService {
+public class LoggingService {
 
     private static final String TAG = "LoggingService";
 
+    /** Utility class can't be instantiated */
+    private LoggingService() { }
+
     /****************************************************************
      * Public API
      ****************************************************************/
 
+    /**
+     * Append line to today's log file.  Returns without blocking on file io.  See LogWriter.
+     */
     public static void logToFile(Context context, String msg) {
-        context.startService( new Intent( ACTION_LOG_TO_FILE )
-                .setClass( context, LoggingService.class )
-                .putExtra( INTENT_EXTRA_MESSAGE, msg ) );
+        LogWriter.getInstance( context ).log( msg );
     }
 
     public static void deleteLogs(Context context, long beforeTime) {
-        String dirPath = context.getExternalFilesDir( null ).toString();
+        // Sealed segments by their last line, the rest by modified time.
+        LogSegments.delete( context, beforeTime );
+
+        String dirPath = context.getFilesDir().toString();
         File dir = new File( dirPath );
         if ( dir.isDirectory() ) {
             for( String fileName : dir.list() ) {
                 File file = new File( dirPath, fileName );
                 if ( file != null
                     && fileName.startsWith( "poi_" )
-                    && fileName.endsWith( ".log" )
+                    && ( fileName.endsWith( ".log" ) || fileName.endsWith( ".evt" ) )
                     && file.lastModified() < beforeTime ) {
                     file.delete();
                 }
@@ -46,107 +44,59 @@ public class LoggingService extends IntentService {
         }
     }
 
-    /****************************************************************
-     * Life cycle
-     ****************************************************************/
-
-    public LoggingService() {
-        super( TAG );
+    /**
+     * Seal the active log segment, so all lines logged so far are in sealed segments.
+     * Blocks up to timeoutMs.
+     */
+    public static void sealLogs(Context context, long timeoutMs) {
+        LogWriter.getInstance( context ).flush( timeoutMs, true );
+        EventLog.flush( context );
     }
 
-    @Override
-    public void onCreate() {
-        super.onCreate();
-        openLogFile();
+    /**
+     * Sealed, gzipped log segments with lines in [fromTime, beforeTime), oldest first.
+     */
+    public static List<File> getSealedLogs(Context context, long fromTime, long beforeTime) {
+        ArrayList<File> files = new ArrayList<File>();
+        for ( LogSegments.Segment segment : LogSegments.list( context ) ) {
+            if ( segment.endTime >= fromTime && segment.startTime < beforeTime ) {
+                files.add( segment.file );
+            }
+        }
+        return files;
     }
 
-    public void onDestroy() {
-        super.onDestroy();
-        closeLogFile();
+    /**
+     * Drop deleted segments from the manifest.  Called after removing uploaded segments.
+     */
+    public static void pruneSealedLogs(Context context) {
+        LogSegments.prune( context );
     }
 
-    private static final String KEY_VERSION = "VERSION";
-
-    private OutputStreamWriter mLogFile;
+    /**
+     * Write out buffered log lines now.  Blocks up to timeoutMs.
+     */
+    public static void flushLogs(Context context, long timeoutMs) {
+        LogWriter.getInstance( context ).flush( timeoutMs );
+        EventLog.flush( context );
+    }
 
     public static File getLogFile(Context context) {
+        return getLogFile( context, System.currentTimeMillis() );
+    }
+
+    /**
+     * Active segment of the daily log file covering time.
+     */
+    public static File getLogFile(Context context, long time) {
         Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis( time );
         File file = new File( context.getFilesDir(),
                 String.format( "poi_%04d%02d%02d.log", cal.get( Calendar.YEAR ),
                         cal.get( Calendar.MONTH ) + 1, cal.get( Calendar.DAY_OF_MONTH ) ) );
         return file;
     }
 
-    private boolean openLogFile() {
-        File file = getLogFile( this );
-
-        mLogFile = null;
-        try {
-            mLogFile = new OutputStreamWriter( new FileOutputStream( file, true ) );
-            ensureFileVersion( file );
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-        }
-
-        return ( mLogFile != null );
-    }
-
-    private void ensureFileVersion(File file) {
-        int lastVersion = getSharedPreferences( TAG, MODE_PRIVATE ).getInt( KEY_VERSION, 0 );
-        int currVersion = 0;
-        try {
-            PackageInfo pInfo = getPackageManager().getPackageInfo(getPackageName(), 0);
-            currVersion = pInfo.versionCode;
-        } catch (PackageManager.NameNotFoundException e) { }
-
-        if  ( currVersion != lastVersion
-                || file != null && file.length() == 0 ) {
-            writeToFile( TAG + " version: " + currVersion );
-            getSharedPreferences( TAG, MODE_PRIVATE ).edit()
-                    .putInt( KEY_VERSION, currVersion ).apply();
-        }
-    }
-
-    private void closeLogFile() {
-        if ( mLogFile != null ) {
-            try {
-                mLogFile.close();
-            } catch (IOException e) {
-            }
-            mLogFile = null;
-        }
-    }
-
-    private void writeToFile(String line) {
-        Log.d( TAG, line );
-
-        try {
-            mLogFile.write( new SimpleDateFormat( "HH:mm:ss.SSS" ).format( new Date() ) + " : " );
-            mLogFile.write( line + "\n" );
-            mLogFile.flush();
-        } catch (IOException e) { /* Do nothing */}
-    }
-
-    /****************************************************************
-     * Handle Intent
-     ****************************************************************/
-
-    private static final String ACTION_LOG_TO_FILE = "ACTION_LOG_TO_FILE";
-    private static final String INTENT_EXTRA_MESSAGE = "INTENT_EXTRA_MESSAGE";
-
-    @Override
-    protected void onHandleIntent(Intent intent) {
-        String action = ( intent == null ? null : intent.getAction() );
-        if ( action == null ) {
-            return;
-        }
-
-        if ( action.equals( ACTION_LOG_TO_FILE ) ) {
-            writeToFile( intent.getStringExtra( INTENT_EXTRA_MESSAGE ) );
-            return;
-        }
-    }
-
     /****************************************************************
      *
      ****************************************************************/
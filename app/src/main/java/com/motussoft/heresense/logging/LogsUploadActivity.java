@@ -18,7 +18,6 @@ import com.google.android.gms.auth.GoogleAuthException;
 import com.google.android.gms.auth.UserRecoverableAuthException;
 import com.google.api.client.extensions.android.http.AndroidHttp;
 import com.google.api.client.googleapis.extensions.android.gms.auth.GoogleAccountCredential;
-import com.google.api.client.http.FileContent;
 import com.google.api.client.http.HttpTransport;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.gson.GsonFactory;
@@ -328,10 +327,18 @@ public class LogsUploadActivity extends Activity {
     public static void uploadLogs(Context context, long uploadBefore) {
         LoggingService.logToFile( context, "uploadLogs: before " + ( new Date( uploadBefore ) ).toString() );
 
+        // Sealed text log segments, and binary event logs.
         ArrayList<String> logFiles = new ArrayList<String>();
+        for ( java.io.File logFile : LoggingService.getSealedLogs( context, 0, uploadBefore ) ) {
+            if ( logFile.lastModified() < uploadBefore ) {
+                logFiles.add( logFile.getAbsolutePath() );
+            }
+        }
         java.io.File dir = LoggingService.getLogFile( context ).getParentFile();
         for( java.io.File logFile : dir.listFiles() ) {
-            if ( logFile.lastModified() < uploadBefore ) {
+            if ( logFile.getName().startsWith( "poi_" )
+                    && logFile.getName().endsWith( ".evt" )
+                    && logFile.lastModified() < uploadBefore ) {
                 logFiles.add( logFile.getAbsolutePath() );
             }
         }
@@ -345,30 +352,55 @@ public class LogsUploadActivity extends Activity {
                 java.io.File file = new java.io.File( logPath );
                 file.delete();
             }
+            LoggingService.pruneSealedLogs( context );
         }
     }
 
     private static List<String> uploadLogs(Context context, List<String> logFiles) {
         LoggingService.logToFile( context, "logFiles: " + logFiles.toString() );
 
-        Drive driveService = getGDriveService( context );
+        final Drive driveService = getGDriveService( context );
         if ( driveService == null ) {
             return null;
         }
 
-        String deviceId = Build.SERIAL;
+        final String deviceId = Build.SERIAL;
         LoggingService.logToFile( context, "deviceId: " + deviceId );
 
-        String sharedDeviceFolderId = getSharedDeviceFolderId( driveService, deviceId );
-        LoggingService.logToFile( context, "sharedDeviceFolderId: " + sharedDeviceFolderId );
+        LogsUploader uploader = new LogsUploader( context, driveService, deviceId );
+        List<String> uploaded = null;
+        for ( int attempt = 0; attempt < 2; attempt++ ) {
+            // Cached folder ids, only resolved through Drive when not known yet.
+            String sharedDeviceFolderId = uploader.getSharedDeviceFolderId( new LogsUploader.FolderResolver() {
+                @Override
+                public String resolve() {
+                    return getSharedDeviceFolderId( driveService, deviceId );
+                }
+            } );
+            LoggingService.logToFile( context, "sharedDeviceFolderId: " + sharedDeviceFolderId );
+
+            String userDeviceFolderId = uploader.getUserDeviceFolderId( new LogsUploader.FolderResolver() {
+                @Override
+                public String resolve() {
+                    return getUserFolderId( driveService, deviceId );
+                }
+            } );
+            LoggingService.logToFile( context, "userDeviceFolderId: " + userDeviceFolderId );
 
-        String userDeviceFolderId = getUserFolderId( driveService, deviceId );
-        LoggingService.logToFile( context, "userDeviceFolderId: " + userDeviceFolderId );
+            if ( sharedDeviceFolderId == null || userDeviceFolderId == null ) {
+                return null;
+            }
 
-        cleanupServerLogFiles( context, driveService, sharedDeviceFolderId, userDeviceFolderId );
+            uploaded = uploader.upload( userDeviceFolderId, sharedDeviceFolderId, logFiles );
+            if ( !uploader.isFolderMissing() ) {
+                break;
+            }
 
-        List<String> uploaded = uploadLogFiles( context, driveService,
-                userDeviceFolderId, sharedDeviceFolderId, logFiles );
+            // Cached folder was deleted on server.  Resolve again and retry.
+            LoggingService.logToFile( context, "uploadLogs: cached folder missing, retrying." );
+            uploader.clearFolderIds();
+            uploader = new LogsUploader( context, driveService, deviceId );
+        }
 
         return uploaded;
     }
@@ -448,92 +480,6 @@ public class LogsUploadActivity extends Activity {
         return ( sharedDeviceFolder != null ? sharedDeviceFolder.getId() : null );
     }
 
-    private static void cleanupServerLogFiles(Context context, Drive driveService,
-                                              String sharedDeviceFolderId,
-                                              String userDeviceFolderId) {
-        try {
-            String filter = String.format( "(title contains 'poi_') and (mimeType != '%s')"
-                            + " and (not '%s' in parents)"
-                            + " and ('%s' in parents) and (trashed = false)",
-                    MIMETYPE_FOLDER, sharedDeviceFolderId, userDeviceFolderId );
-            FileList fileList = driveService.files().list().setQ( filter ).execute();
-
-            for( File file : fileList.getItems() ) {
-                LoggingService.logToFile( context, "Cleaning up server log file: " + file.getTitle() );
-                driveService.files().delete( file.getId() ).execute();
-            }
-        } catch (IOException e) {
-            LoggingService.logToFile( context, "cleanupServerLogFiles(): " + e.toString() );
-            e.printStackTrace();
-        }
-    }
-
-    private static List<String> uploadLogFiles(Context context, Drive driveService,
-                                String userDeviceFolderId, String sharedDeviceFolderId,
-                                List<String> logFiles) {
-        ArrayList<String> uploaded = new ArrayList<String>();
-
-        for( String logFile : logFiles ) {
-            File file = insertFile( context, driveService, userDeviceFolderId, sharedDeviceFolderId, logFile );
-            if ( file != null ) {
-                uploaded.add( logFile );
-            }
-        }
-
-        return uploaded;
-    }
-
-    private static final String MIMETYPE_PLAIN = "text/plain";
-
-    private static File insertFile(Context context, Drive driveService,
-                                   String userDeviceFolderId, String sharedDeviceFolderId,
-                                   String filename) {
-        LoggingService.logToFile( context, "insertFile(): " + filename );
-
-        // File's metadata.
-        final java.io.File fileContent = new java.io.File( filename );
-        final ParentReference[] parentRefs = new ParentReference[] {
-                new ParentReference().setId( userDeviceFolderId ),
-                new ParentReference().setId( sharedDeviceFolderId )
-        };
-        File body = new File()
-                .setTitle( fileContent.getName() )
-                .setParents( Arrays.asList( parentRefs ) );
-
-        // Override existing file???
-        LoggingService.logToFile( context, "insertFile(): Searching for existing server files..." );
-        try {
-            String filter = String.format( "(title = '%s') and (mimeType != '%s') and ('%s' in parents) and (trashed = false)",
-                    fileContent.getName(), MIMETYPE_FOLDER, userDeviceFolderId );
-            FileList fileList = driveService.files().list().setQ( filter ).execute();
-            if ( fileList.getItems().size() > 0 ) {
-                driveService.files().delete( fileList.getItems().get( 0 ).getId() ).execute();
-            }
-        } catch (IOException e) {
-            LoggingService.logToFile( context, "insertFile(): " + e.toString() );
-            e.printStackTrace();
-        }
-
-        // File's content.
-        FileContent mediaContent = new FileContent( MIMETYPE_PLAIN, fileContent );
-
-        File file = null;
-        LoggingService.logToFile( context, "insertFile(): uploading log file..." );
-        try {
-            // Upload file.
-            file = driveService.files().insert(body, mediaContent).execute();
-        } catch (IOException e) {
-            LoggingService.logToFile( context, "insertFile(): " + e.toString() );
-            e.printStackTrace();
-        }
-
-        if ( file != null ) {
-            LoggingService.logToFile( context, "insertFile(): Uploaded: " + filename );
-        }
-
-        return file;
-    }
-
     /****************************************************************
      *
      ****************************************************************/
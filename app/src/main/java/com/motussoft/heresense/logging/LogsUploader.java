@@ -0,0 +1,415 @@
+package com.motussoft.heresense.logging;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.EmptyContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestFactory;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.json.JsonHttpContent;
+import com.google.api.client.json.JsonObjectParser;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.FileList;
+import com.google.api.services.drive.model.ParentReference;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static android.content.Context.MODE_PRIVATE;
+
+/**
+ * Uploads log files to the user and shared device folders on Google Drive.
+ *
+ *   - Device folder ids are cached in prefs, and only resolved again when Drive reports
+ *     a cached folder gone.
+ *   - Server files are listed once per run, for both cleanup and replacing re-uploads.
+ *   - Files not yet gzipped are gzipped, then all are uploaded by a bounded worker pool using the Drive resumable
+ *     upload protocol.  The upload session and committed byte count are checkpointed to
+ *     prefs after every chunk, so a dropped connection or killed process resumes from
+ *     the last committed chunk on the next run.
+ *
+ * Should only be used from a background thread.
+ */
+class LogsUploader {
+
+    private static final String TAG = "LogsUploader";
+
+    private static final int UPLOAD_THREADS = 3;
+    private static final int CHUNK_SIZE = 2 * 256 * 1024;  // Multiple of 256K, per Drive api.
+
+    /** Relative to the Drive root url. */
+    private static final String UPLOAD_PATH = "upload/drive/v2/files?uploadType=resumable";
+    private static final String MIMETYPE_FOLDER = "application/vnd.google-apps.folder";
+    private static final String MIMETYPE_GZIP = "application/gzip";
+    private static final String GZIP_SUFFIX = ".gz";
+    private static final String UPLOAD_DIR = "upload";
+
+    private static final int HTTP_RESUME_INCOMPLETE = 308;
+    private static final int HTTP_NOT_FOUND = 404;
+    private static final int HTTP_GONE = 410;
+
+    private static final String KEY_USER_DEVICE_FOLDER_ID = "USER_DEVICE_FOLDER_ID_";
+    private static final String KEY_SHARED_DEVICE_FOLDER_ID = "SHARED_DEVICE_FOLDER_ID_";
+    private static final String KEY_SESSION_URI = "SESSION_URI_";
+    private static final String KEY_COMMITTED = "COMMITTED_";
+
+    private final Context mContext;
+    private final Drive mDriveService;
+    private final String mDeviceId;
+    private final SharedPreferences mPrefs;
+
+    private volatile boolean mFolderMissing = false;
+
+    LogsUploader(Context context, Drive driveService, String deviceId) {
+        mContext = context;
+        mDriveService = driveService;
+        mDeviceId = deviceId;
+        mPrefs = context.getSharedPreferences( TAG, MODE_PRIVATE );
+    }
+
+    /****************************************************************
+     * Folders.
+     ****************************************************************/
+
+    /**
+     * @param resolver  Looks up or creates the folder when not cached.
+     */
+    String getFolderId(String key, FolderResolver resolver) {
+        String folderId = mPrefs.getString( key + mDeviceId, null );
+        if ( folderId == null ) {
+            folderId = resolver.resolve();
+            if ( folderId != null ) {
+                mPrefs.edit().putString( key + mDeviceId, folderId ).apply();
+            }
+        }
+        return folderId;
+    }
+
+    String getUserDeviceFolderId(FolderResolver resolver) {
+        return getFolderId( KEY_USER_DEVICE_FOLDER_ID, resolver );
+    }
+
+    String getSharedDeviceFolderId(FolderResolver resolver) {
+        return getFolderId( KEY_SHARED_DEVICE_FOLDER_ID, resolver );
+    }
+
+    void clearFolderIds() {
+        mPrefs.edit()
+                .remove( KEY_USER_DEVICE_FOLDER_ID + mDeviceId )
+                .remove( KEY_SHARED_DEVICE_FOLDER_ID + mDeviceId )
+                .apply();
+    }
+
+    /** Whether a cached folder id turned out to be gone during the last upload. */
+    boolean isFolderMissing() {
+        return mFolderMissing;
+    }
+
+    interface FolderResolver {
+        String resolve();
+    }
+
+    /****************************************************************
+     * Upload.
+     ****************************************************************/
+
+    /**
+     * Clean up server log files no longer in the shared folder, then upload logFiles.
+     *
+     * @return  Local paths of log files uploaded.
+     */
+    List<String> upload(final String userDeviceFolderId, final String sharedDeviceFolderId,
+                        List<String> logFiles) {
+        // One listing of the user device folder, for both cleanup and replacing.
+        final Map<String, String> serverFiles = new HashMap<String, String>();
+        try {
+            listServerFiles( userDeviceFolderId, sharedDeviceFolderId, serverFiles );
+        } catch (IOException e) {
+            LoggingService.logToFile( mContext, TAG + ": list failed: " + e.toString() );
+            if ( isNotFound( e ) ) {
+                mFolderMissing = true;
+            }
+            // Without the listing, uploads would duplicate earlier ones.  Retry next run.
+            return new ArrayList<String>();
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool( UPLOAD_THREADS );
+        List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>( logFiles.size() );
+        for ( final String logFile : logFiles ) {
+            futures.add( executor.submit( new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return uploadFile( userDeviceFolderId, sharedDeviceFolderId, serverFiles, logFile );
+                }
+            } ) );
+        }
+        executor.shutdown();
+
+        ArrayList<String> uploaded = new ArrayList<String>();
+        for ( int i = 0; i < logFiles.size(); i++ ) {
+            try {
+                if ( futures.get( i ).get() ) {
+                    uploaded.add( logFiles.get( i ) );
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                executor.shutdownNow();
+                break;
+            } catch (ExecutionException e) {
+                LoggingService.logToFile( mContext, TAG + ": " + e.getCause() );
+            }
+        }
+        return uploaded;
+    }
+
+    /**
+     * Delete server log files removed from the shared folder, and collect the rest by title.
+     */
+    private void listServerFiles(String userDeviceFolderId, String sharedDeviceFolderId,
+                                 Map<String, String> outFiles) throws IOException {
+        String filter = String.format( "(title contains 'poi_') and (mimeType != '%s')"
+                        + " and ('%s' in parents) and (trashed = false)",
+                MIMETYPE_FOLDER, userDeviceFolderId );
+        Drive.Files.List request = mDriveService.files().list()
+                .setQ( filter )
+                .setFields( "nextPageToken,items(id,title,parents(id))" );
+        do {
+            FileList fileList = request.execute();
+            for ( File file : fileList.getItems() ) {
+                if ( hasParent( file, sharedDeviceFolderId ) ) {
+                    outFiles.put( file.getTitle(), file.getId() );
+                } else {
+                    LoggingService.logToFile( mContext, "Cleaning up server log file: " + file.getTitle() );
+                    mDriveService.files().delete( file.getId() ).execute();
+                }
+            }
+            request.setPageToken( fileList.getNextPageToken() );
+        } while ( request.getPageToken() != null && request.getPageToken().length() > 0 );
+    }
+
+    private static boolean hasParent(File file, String parentId) {
+        if ( file.getParents() != null ) {
+            for ( ParentReference parent : file.getParents() ) {
+                if ( parentId.equals( parent.getId() ) ) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean uploadFile(String userDeviceFolderId, String sharedDeviceFolderId,
+                               Map<String, String> serverFiles, String filename) {
+        java.io.File logFile = new java.io.File( filename );
+        final boolean bSealed = logFile.getName().endsWith( GZIP_SUFFIX );
+        java.io.File gzFile = ( bSealed ? logFile :
+                new java.io.File( new java.io.File( mContext.getCacheDir(), UPLOAD_DIR ),
+                        logFile.getName() + GZIP_SUFFIX ) );
+        String title = gzFile.getName();
+
+        try {
+            // Sealed log segments are already gzipped and never change.  Otherwise keep the
+            // gzipped copy of an upload in progress, so its bytes match the session.
+            if ( !bSealed && ( getSessionUri( title ) == null || !gzFile.exists() ) ) {
+                clearCheckpoint( title );
+                gzFile.getParentFile().mkdirs();
+                LogSegments.gzip( logFile, gzFile );
+            }
+
+            File body = new File()
+                    .setTitle( title )
+                    .setMimeType( MIMETYPE_GZIP )
+                    .setParents( Arrays.asList(
+                            new ParentReference().setId( userDeviceFolderId ),
+                            new ParentReference().setId( sharedDeviceFolderId ) ) );
+            File file = uploadResumable( body, gzFile );
+
+            // Replace previous upload of same log.
+            String oldFileId = serverFiles.get( title );
+            if ( oldFileId != null && !oldFileId.equals( file.getId() ) ) {
+                mDriveService.files().delete( oldFileId ).execute();
+            }
+
+            LoggingService.logToFile( mContext, TAG + ": Uploaded: " + filename );
+            clearCheckpoint( title );
+            if ( !bSealed ) {
+                gzFile.delete();
+            }
+            return true;
+        } catch (IOException e) {
+            LoggingService.logToFile( mContext, TAG + ": upload failed: " + filename + ": " + e.toString() );
+            return false;
+        }
+    }
+
+    private static boolean isNotFound(IOException e) {
+        return ( e instanceof HttpResponseException
+                && ( (HttpResponseException) e ).getStatusCode() == HTTP_NOT_FOUND );
+    }
+
+    /****************************************************************
+     * Resumable upload protocol.
+     ****************************************************************/
+
+    private File uploadResumable(File body, java.io.File content) throws IOException {
+        final String title = body.getTitle();
+        final long total = content.length();
+        HttpRequestFactory requestFactory = mDriveService.getRequestFactory();
+
+        // Resume session, or start new.
+        String sessionUri = getSessionUri( title );
+        long committed = -1;
+        if ( sessionUri != null ) {
+            HttpResponse response = putChunk( requestFactory, sessionUri, null, 0, 0, total );
+            committed = handleChunkResponse( response, title );
+            if ( committed == Long.MAX_VALUE ) {
+                return parseFile( response );  // Already complete.
+            }
+            if ( committed < 0 ) {
+                sessionUri = null;  // Session expired.
+            } else {
+                LoggingService.logToFile( mContext, TAG + ": Resuming " + title + " at " + committed
+                        + " of " + total + " bytes, checkpoint at " + mPrefs.getLong( KEY_COMMITTED + title, 0 ) );
+            }
+        }
+        if ( sessionUri == null ) {
+            try {
+                sessionUri = startSession( requestFactory, body, total );
+            } catch (IOException e) {
+                if ( isNotFound( e ) ) {
+                    mFolderMissing = true;  // Parent folder gone.
+                }
+                throw e;
+            }
+            committed = 0;
+            saveCheckpoint( title, sessionUri, 0 );
+        }
+
+        RandomAccessFile raf = new RandomAccessFile( content, "r" );
+        try {
+            byte[] chunk = new byte[CHUNK_SIZE];
+            while ( true ) {
+                int length = (int) Math.min( CHUNK_SIZE, total - committed );
+                raf.seek( committed );
+                raf.readFully( chunk, 0, length );
+
+                HttpResponse response = putChunk( requestFactory, sessionUri, chunk, length, committed, total );
+                long newCommitted = handleChunkResponse( response, title );
+                if ( newCommitted == Long.MAX_VALUE ) {
+                    return parseFile( response );
+                }
+                if ( newCommitted < 0 ) {
+                    clearCheckpoint( title );
+                    throw new IOException( "Upload session expired: " + title );
+                }
+                committed = newCommitted;
+                saveCheckpoint( title, sessionUri, committed );
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    private String startSession(HttpRequestFactory requestFactory, File body, long total) throws IOException {
+        HttpRequest request = requestFactory.buildPostRequest(
+                new GenericUrl( mDriveService.getRootUrl() + UPLOAD_PATH ),
+                new JsonHttpContent( mDriveService.getJsonFactory(), body ) );
+        request.getHeaders()
+                .set( "X-Upload-Content-Type", MIMETYPE_GZIP )
+                .set( "X-Upload-Content-Length", total );
+        HttpResponse response = request.execute();
+        try {
+            String location = response.getHeaders().getLocation();
+            if ( location == null ) {
+                throw new IOException( "No upload session for: " + body.getTitle() );
+            }
+            return location;
+        } finally {
+            response.disconnect();
+        }
+    }
+
+    /**
+     * Put bytes [start, start + length) of total.  A null chunk queries session status.
+     */
+    private HttpResponse putChunk(HttpRequestFactory requestFactory, String sessionUri,
+                                  byte[] chunk, int length, long start, long total) throws IOException {
+        HttpRequest request = requestFactory.buildPutRequest( new GenericUrl( sessionUri ),
+                chunk == null ? new EmptyContent() : new ByteArrayContent( MIMETYPE_GZIP, chunk, 0, length ) );
+        request.getHeaders().setContentRange( chunk == null ?
+                "bytes */" + total :
+                "bytes " + start + "-" + ( start + length - 1 ) + "/" + total );
+        request.setFollowRedirects( false );
+        request.setThrowExceptionOnExecuteError( false );
+        request.setParser( new JsonObjectParser( mDriveService.getJsonFactory() ) );
+        return request.execute();
+    }
+
+    /**
+     * @return  Bytes committed by server, Long.MAX_VALUE when upload completed,
+     *          or -1 when session no longer exists.  Throws on other errors.
+     */
+    private static long handleChunkResponse(HttpResponse response, String title) throws IOException {
+        int status = response.getStatusCode();
+        if ( status == HTTP_RESUME_INCOMPLETE ) {
+            try {
+                // "bytes=0-N", absent when nothing committed.
+                String range = response.getHeaders().getRange();
+                return ( range == null ? 0 : Long.parseLong( range.substring( range.indexOf( '-' ) + 1 ) ) + 1 );
+            } finally {
+                response.disconnect();
+            }
+        } else if ( response.isSuccessStatusCode() ) {
+            return Long.MAX_VALUE;
+        } else if ( status == HTTP_NOT_FOUND || status == HTTP_GONE ) {
+            response.disconnect();
+            return -1;
+        }
+        throw new HttpResponseException( response );
+    }
+
+    private static File parseFile(HttpResponse response) throws IOException {
+        try {
+            return response.parseAs( File.class );
+        } finally {
+            response.disconnect();
+        }
+    }
+
+    /****************************************************************
+     * Checkpoints.
+     ****************************************************************/
+
+    private String getSessionUri(String title) {
+        return mPrefs.getString( KEY_SESSION_URI + title, null );
+    }
+
+    private void saveCheckpoint(String title, String sessionUri, long committed) {
+        mPrefs.edit()
+                .putString( KEY_SESSION_URI + title, sessionUri )
+                .putLong( KEY_COMMITTED + title, committed )
+                .apply();
+    }
+
+    private void clearCheckpoint(String title) {
+        mPrefs.edit()
+                .remove( KEY_SESSION_URI + title )
+                .remove( KEY_COMMITTED + title )
+                .apply();
+    }
+}
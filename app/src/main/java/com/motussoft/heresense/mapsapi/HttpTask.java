@@ -1,5 +1,6 @@
 package com.motussoft.heresense.mapsapi;
 
+import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.os.Bundle;
@@ -7,26 +8,68 @@ import android.text.TextUtils;
 import android.util.Log;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonIOException;
 import com.google.gson.JsonSyntaxException;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.net.URLConnection;
 import java.net.URLEncoder;
 import java.nio.charset.Charset;
+import java.util.zip.GZIPInputStream;
 
-import javax.net.ssl.HttpsURLConnection;
-
+/**
+ * Shared http client layer for Maps API calls.
+ *
+ * All calls go through openConnection(), which sets timeouts, keep-alive and gzip, and
+ * fully drain and close their response stream, so HttpURLConnection returns the socket
+ * to its keep-alive pool for the next call to the same host.  Responses are decoded
+ * straight from the stream by the shared GSON, and only buffered into a string when
+ * setDebugDumps( true ) asks for a pretty printed dump to logcat.
+ */
 public class HttpTask {
     private static final String TAG = "HttpTask";
 
+    private static final int CONNECT_TIMEOUT_MS = 10 * 1000;
+    private static final int READ_TIMEOUT_MS = 20 * 1000;
+
+    /** Idle keep-alive connections kept per host.  Places and photos share a host. */
+    private static final int MAX_IDLE_CONNECTIONS = 5;
+
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+    /** Gson is thread-safe, and caches type adapters.  Share one. */
+    public static final Gson GSON = new Gson();
+
+    private static volatile boolean sDebugDumps = false;
+
+    static {
+        System.setProperty( "http.keepAlive", "true" );
+        System.setProperty( "http.maxConnections", String.valueOf( MAX_IDLE_CONNECTIONS ) );
+    }
+
+    /**
+     * Pretty print json responses to logcat.  Off by default, as it buffers and re-parses
+     * every response.
+     */
+    public static void setDebugDumps(boolean bEnabled) {
+        sDebugDumps = bEnabled;
+    }
+
+    public static boolean isDebugDumps() {
+        return sDebugDumps;
+    }
+
     /**
      * Helper function to format http request url.
      * @param baseUrl
@@ -67,77 +110,226 @@ public class HttpTask {
         return url;
     }
 
+    /**
+     * Open connection with shared timeouts, keep-alive and gzip settings.
+     */
+    protected static HttpURLConnection openConnection(URL url) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setConnectTimeout( CONNECT_TIMEOUT_MS );
+        conn.setReadTimeout( READ_TIMEOUT_MS );
+        conn.setRequestProperty( "Connection", "keep-alive" );
+        // Asking explicitly means we inflate ourselves.  See getInputStream().
+        conn.setRequestProperty( "Accept-Encoding", "gzip" );
+        return conn;
+    }
+
+    /**
+     * Response body, inflated if the server gzipped it.
+     */
+    protected static InputStream getInputStream(HttpURLConnection conn) throws IOException {
+        InputStream in = new BufferedInputStream( conn.getInputStream() );
+        if ( "gzip".equalsIgnoreCase( conn.getContentEncoding() ) ) {
+            in = new GZIPInputStream( in );
+        }
+        return in;
+    }
+
+    /**
+     * Read what's left of the response and close it, so the connection can be reused.
+     * Also drains the error stream of failed responses.
+     */
+    protected static void drainAndClose(HttpURLConnection conn, InputStream in) {
+        try {
+            if ( in == null ) {
+                in = conn.getErrorStream();
+            }
+            if ( in != null ) {
+                byte[] buf = new byte[1024];
+                while ( in.read( buf ) > 0 ) { }
+                in.close();
+            }
+        } catch (IOException e) {
+            conn.disconnect();  // Not reusable.
+        }
+    }
+
+    /**
+     * Decodes a json response body.  Lets callers stream a response straight into their
+     * own records, instead of going through Gson model classes.
+     */
+    public interface ResponseDecoder<T> {
+        T decode(Reader reader) throws IOException;
+    }
+
+    /**
+     * Decodes into Gson model classes with the shared GSON.
+     */
+    public static class GsonDecoder<T> implements ResponseDecoder<T> {
+        private final Class<T> mJavaResultClass;
+
+        public GsonDecoder(Class<T> javaResultClass) {
+            mJavaResultClass = javaResultClass;
+        }
+
+        @Override
+        public T decode(Reader reader) throws IOException {
+            return GSON.fromJson( reader, mJavaResultClass );
+        }
+    }
+
     /**
      * Used to make http calls with Json response.
      */
     public static class HttpJsonTask<T> {
 
+        private final Context mContext;
+        private final int mPriority;
+        private boolean mNoWait = false;
+        private boolean mDropped = false;
+        private long mRetryDelayMs = 0;
+
+        /**
+         * Request not accounted by RequestLimiter.
+         */
+        public HttpJsonTask() {
+            this( null, RequestLimiter.PRIORITY_BACKGROUND );
+        }
+
+        /**
+         * @param priority  RequestLimiter.PRIORITY_*
+         */
+        public HttpJsonTask(Context context, int priority) {
+            mContext = context;
+            mPriority = priority;
+        }
+
+        /**
+         * Don't wait on RequestLimiter.  A request it holds back returns null, with
+         * getRetryDelayMs() set.  For callers on shared threads.
+         */
+        public void setNoWait(boolean bNoWait) {
+            mNoWait = bNoWait;
+        }
+
         public T httpConnect(String baseUrl, Bundle params, Class<T> javaResultClass) {
-            if ( baseUrl == null ) {
-                Log.e( TAG, "httpConnect(): url=null. Need to init URL first." );
+            if ( javaResultClass == null ) {
+                Log.e( TAG, "httpConnect(): resultJsonClass=null. Need to init ResultJsonClass first." );
                 return null;
             }
+            return httpConnect( baseUrl, params, new GsonDecoder<T>( javaResultClass ) );
+        }
 
-            if ( javaResultClass == null ) {
-                Log.e( TAG, "httpConnect(): resultJsonClass=null. Need to init ResultJsonClass first." );
+        public T httpConnect(String baseUrl, Bundle params, ResponseDecoder<T> decoder) {
+            mDropped = false;
+            mRetryDelayMs = 0;
+            if ( baseUrl == null ) {
+                Log.e( TAG, "httpConnect(): url=null. Need to init URL first." );
                 return null;
             }
 
             // Construct URL.
             URL url = formatUrl( baseUrl, params );
+            if ( url == null ) {
+                return null;
+            }
 
-            BufferedReader reader = null;
-            StringBuilder sb = new StringBuilder();
-            String line;
+            // Rate limit and quota.
+            if ( mContext != null && mNoWait ) {
+                long retryDelay = RequestLimiter.getInstance( mContext ).tryAcquire( baseUrl, mPriority );
+                if ( retryDelay == RequestLimiter.NO_RETRY ) {
+                    Log.e( TAG, "httpConnect(): dropped by RequestLimiter: " + baseUrl );
+                    mDropped = true;
+                    return null;
+                } else if ( retryDelay > 0 ) {
+                    mRetryDelayMs = retryDelay;
+                    return null;
+                }
+            } else if ( mContext != null
+                    && !RequestLimiter.getInstance( mContext ).acquire( baseUrl, mPriority ) ) {
+                Log.e( TAG, "httpConnect(): dropped by RequestLimiter: " + baseUrl );
+                mDropped = true;
+                return null;
+            }
+
+            HttpURLConnection conn = null;
+            InputStream in = null;
+            T result = null;
             try {
-                // Open http connection, and read output into sb.
-                HttpsURLConnection conn = (HttpsURLConnection) url.openConnection();
+                conn = openConnection( url );
                 int respCode = conn.getResponseCode();
-                if ( respCode != HttpsURLConnection.HTTP_OK ) {
+                if ( respCode != HttpURLConnection.HTTP_OK ) {
                     Log.e(TAG, "Bad response from server: " + respCode);
                     return null;
                 }
 
-                reader = new BufferedReader( new InputStreamReader(
-                        conn.getInputStream(), Charset.forName( "UTF-8" ) ) );
-                while ( ( line = reader.readLine() ) != null ) {
-                    sb.append(line);
+                in = getInputStream( conn );
+                Reader reader = new InputStreamReader( in, UTF8 );
+                if ( sDebugDumps ) {
+                    result = decodeDumped( reader, decoder );
+                } else {
+                    result = decoder.decode( reader );
                 }
 
             } catch (IOException e) {
                 Log.e( TAG, e.toString() );
                 Log.e( TAG, "Message: " + e.getMessage() != null ? e.getMessage() : "null" );
                 return null;
+            } catch ( JsonSyntaxException e ) {
+                Log.e( TAG, e.toString() );
+                Log.e( TAG, "Message: " + e.getMessage() != null ? e.getMessage() : "null" );
+            } catch ( IllegalStateException e ) {
+                // Unexpected token from a streaming decoder.
+                Log.e( TAG, e.toString() );
+                Log.e( TAG, "Message: " + e.getMessage() != null ? e.getMessage() : "null" );
+            } catch ( JsonIOException e ) {
+                Log.e( TAG, e.toString() );
+                Log.e( TAG, "Message: " + e.getMessage() != null ? e.getMessage() : "null" );
             } finally {
-                if ( reader != null ) {
-                    try { reader.close(); } catch (IOException e) { }
+                if ( conn != null ) {
+                    drainAndClose( conn, in );
                 }
-                reader = null;
             }
 
-            // Resulting json string.
-            String jsonStr = sb.toString();
+            return result;
+        }
 
-            // Debugging
-            if ( /*Logger.DEVELOPMENT*/ true ) {
-                try {
-                    Log.d( TAG, "onJsonResult:\n" );
-                    Log.d( TAG, (new JSONObject(jsonStr)).toString(4) );
-                } catch ( JSONException e ) {
-                    Log.d( TAG, e.toString() );
-                    Log.e( TAG, "Message: " + e.getMessage() != null ? e.getMessage() : "null" );
-                }
+        /**
+         * Whether the last httpConnect() was dropped by RequestLimiter, without going to
+         * the network.  Tells a null result apart from a failed request.
+         */
+        public boolean isDropped() {
+            return mDropped;
+        }
+
+        /**
+         * Millis after which to retry the last httpConnect(), if RequestLimiter held it back
+         * under setNoWait( true ).  0 otherwise.
+         */
+        public long getRetryDelayMs() {
+            return mRetryDelayMs;
+        }
+
+        /**
+         * Buffer the response, dump it to logcat, then decode.
+         */
+        private T decodeDumped(Reader reader, ResponseDecoder<T> decoder) throws IOException {
+            StringBuilder sb = new StringBuilder();
+            char[] buf = new char[4 * 1024];
+            int read;
+            while ( ( read = reader.read( buf ) ) > 0 ) {
+                sb.append( buf, 0, read );
             }
+            String jsonStr = sb.toString();
 
-            T result = null;
             try {
-                result = (new Gson()).fromJson( jsonStr, javaResultClass );
-            } catch ( JsonSyntaxException e ) {
-                Log.e( TAG, e.toString() );
+                Log.d( TAG, "onJsonResult:\n" );
+                Log.d( TAG, (new JSONObject(jsonStr)).toString(4) );
+            } catch ( JSONException e ) {
+                Log.d( TAG, e.toString() );
                 Log.e( TAG, "Message: " + e.getMessage() != null ? e.getMessage() : "null" );
             }
 
-            return result;
+            return decoder.decode( new StringReader( jsonStr ) );
         }
 
     }
@@ -154,23 +346,32 @@ public class HttpTask {
 
             // Construct URL.
             URL url = formatUrl( baseUrl, parameters );
+            if ( url == null ) {
+                return null;
+            }
 
             Bitmap bmp = null;
-
+            HttpURLConnection conn = null;
+            InputStream in = null;
             try {
-                URLConnection conn = url.openConnection();
-                /* int respCode = conn.getResponseCode();
-                if (respCode != HttpsURLConnection.HTTP_OK) {
-                    Logger.e(TAG, "Bad response from server: " + respCode);
+                conn = openConnection( url );
+                int respCode = conn.getResponseCode();
+                if ( respCode != HttpURLConnection.HTTP_OK ) {
+                    Log.e(TAG, "Bad response from server: " + respCode);
                     return null;
-                } */
+                }
 
-                bmp = BitmapFactory.decodeStream(conn.getInputStream());
+                in = getInputStream( conn );
+                bmp = BitmapFactory.decodeStream( in );
 
             } catch (IOException e) {
                 Log.e(TAG, e.toString());
                 Log.e(TAG, "Message: " + e.getMessage() != null ? e.getMessage() : "null");
                 return null;
+            } finally {
+                if ( conn != null ) {
+                    drainAndClose( conn, in );
+                }
             }
 
             return bmp;
@@ -52,24 +52,34 @@ public class PlaceDetailsTask implements Runnable {
     public PlaceDetailsTask(Context context, String placeId,
                             OnResultCallback onResultCallback,
                             Handler resultThreadHandler) {
+        mContext = context;
         mParams = MapsApi.createQueryParams( context );
         mParams.putString(PLACEID, placeId);
         mResultCallback = onResultCallback;
         mResultThreadHandler = resultThreadHandler;
     }
 
+    private final Context mContext;
+    private int mPriority = RequestLimiter.PRIORITY_BACKGROUND;
     private Bundle mParams = null;
     private OnResultCallback mResultCallback = null;
     private Handler mResultThreadHandler = null;
     private PlaceDetailsResult mResult = null;
 
+    /**
+     * @param priority  RequestLimiter.PRIORITY_*.  Defaults to PRIORITY_BACKGROUND.
+     */
+    public void setPriority(int priority) {
+        mPriority = priority;
+    }
+
     /******************************************************************
      * Execute.
      ******************************************************************/
 
     @Override
     public void run() {
-        mResult = ( new HttpTask.HttpJsonTask<PlaceDetailsResult>() )
+        mResult = ( new HttpTask.HttpJsonTask<PlaceDetailsResult>( mContext, mPriority ) )
                 .httpConnect( URL, mParams, PlaceDetailsResult.class );
 
         if ( mResultCallback != null ) {
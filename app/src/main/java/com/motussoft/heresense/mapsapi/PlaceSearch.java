@@ -62,9 +62,13 @@ public class PlaceSearch {
     private static class PlaceSearchTask implements Runnable {
 
         private final Context mContext;
+        int mPriority = RequestLimiter.PRIORITY_BACKGROUND;
         String mBaseUrl = null;
         Bundle mParams = null;
         PlaceSearchResult mResult = null;
+        boolean mNoWait = false;
+        boolean mDropped = false;
+        long mRetryDelayMs = 0;
         OnResultCallback mResultCallback = null;
         Handler mResultThreadHandler = null;
 
@@ -85,10 +89,28 @@ public class PlaceSearch {
             mResultThreadHandler = resultThreadHandler;
         }
 
+        /**
+         * @param priority  RequestLimiter.PRIORITY_*.  Defaults to PRIORITY_BACKGROUND.
+         */
+        public void setPriority(int priority) {
+            mPriority = priority;
+        }
+
+        /**
+         * Don't wait on RequestLimiter.  See HttpTask.HttpJsonTask.setNoWait().
+         */
+        public void setNoWait(boolean bNoWait) {
+            mNoWait = bNoWait;
+        }
+
         @Override
         public void run() {
-            mResult = ( new HttpTask.HttpJsonTask<PlaceSearchResult>() )
-                    .httpConnect( mBaseUrl, mParams, PlaceSearchResult.class );
+            HttpTask.HttpJsonTask<PlaceSearchResult> task =
+                    new HttpTask.HttpJsonTask<PlaceSearchResult>( mContext, mPriority );
+            task.setNoWait( mNoWait );
+            mResult = task.httpConnect( mBaseUrl, mParams, PlaceSearchResult.class );
+            mDropped = task.isDropped();
+            mRetryDelayMs = task.getRetryDelayMs();
 
             if ( mResultCallback != null ) {
                 if ( mResultThreadHandler != null ) {
@@ -104,6 +126,36 @@ public class PlaceSearch {
             }
         };
 
+        /**
+         * Run the search synchronously, and decode the response with decoder instead of
+         * into PlaceSearchResult.  Result callback is not called.
+         *
+         * @return  Decoded response.  Null on failure.
+         */
+        public <T> T run(HttpTask.ResponseDecoder<T> decoder) {
+            HttpTask.HttpJsonTask<T> task = new HttpTask.HttpJsonTask<T>( mContext, mPriority );
+            task.setNoWait( mNoWait );
+            T result = task.httpConnect( mBaseUrl, mParams, decoder );
+            mDropped = task.isDropped();
+            mRetryDelayMs = task.getRetryDelayMs();
+            return result;
+        }
+
+        /**
+         * Whether the last run was dropped by RequestLimiter, without going to the network.
+         */
+        public boolean isDropped() {
+            return mDropped;
+        }
+
+        /**
+         * Millis after which to retry, if RequestLimiter held the last run back under
+         * setNoWait( true ).  0 otherwise.
+         */
+        public long getRetryDelayMs() {
+            return mRetryDelayMs;
+        }
+
         /**
          * getResult  To be called after task has run.  Returns http result.
          *
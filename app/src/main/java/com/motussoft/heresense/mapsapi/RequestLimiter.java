@@ -0,0 +1,292 @@
+package com.motussoft.heresense.mapsapi;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.util.Calendar;
+import java.util.PriorityQueue;
+
+/**
+ * Rate limiter and daily quota accountant shared by all Maps API json requests.
+ *
+ * Requests take cost weighted tokens from a token bucket, refilled at REFILL_INTERVAL_MS
+ * per token, and from a daily budget persisted in preferences.  Waiting requests are
+ * served by priority, then in order, so dwell-critical requests go ahead of queued
+ * background and prefetch requests.  Lower priorities may only spend a share of the daily
+ * budget, keeping the rest for dwells.  A request that can't be served within its
+ * priority's max wait, or would overspend its budget share, is dropped.
+ *
+ * The budget day starts at local midnight, same as the daily log file.
+ */
+public class RequestLimiter {
+
+    private static final String TAG = "RequestLimiter";
+
+    /** Request priorities.  Lower goes first. */
+    public static final int PRIORITY_DWELL = 0;
+    public static final int PRIORITY_BACKGROUND = 1;
+    public static final int PRIORITY_PREFETCH = 2;
+
+    /** tryAcquire() result for a request to drop. */
+    public static final long NO_RETRY = -1;
+
+    private static final int BUCKET_CAPACITY = 10;
+    private static final long REFILL_INTERVAL_MS = 500;
+
+    private static final int DAILY_BUDGET = 1000;
+
+    /** Percent of daily budget each priority may spend. */
+    private static final int[] BUDGET_SHARE = { 100, 90, 70 };
+
+    /** Max time each priority waits for tokens. */
+    private static final long[] MAX_WAIT_MS = { 15 * 1000, 30 * 1000, 5 * 1000 };
+
+    /** Quota multipliers.  See PlaceSearch.TextSearch. */
+    private static final int COST_TEXT_SEARCH = 10;
+    private static final int COST_RADAR_SEARCH = 5;
+    private static final int COST_DEFAULT = 1;
+
+    private static final String KEY_BUDGET_DAY_START = "KEY_BUDGET_DAY_START";
+    private static final String KEY_BUDGET_USED = "KEY_BUDGET_USED";
+
+    private static RequestLimiter sInstance;
+
+    public static synchronized RequestLimiter getInstance(Context context) {
+        if ( sInstance == null ) {
+            sInstance = new RequestLimiter( context.getApplicationContext() );
+        }
+        return sInstance;
+    }
+
+    /**
+     * Quota cost of a request to baseUrl.
+     */
+    public static int getCost(String baseUrl) {
+        if ( PlaceSearch.TextSearch.URL.equals( baseUrl ) ) {
+            return COST_TEXT_SEARCH;
+        } else if ( PlaceSearch.RadarSearch.URL.equals( baseUrl ) ) {
+            return COST_RADAR_SEARCH;
+        }
+        return COST_DEFAULT;
+    }
+
+    private static class Waiter implements Comparable<Waiter> {
+        final int priority;
+        final long seq;
+
+        Waiter(int priority, long seq) {
+            this.priority = priority;
+            this.seq = seq;
+        }
+
+        @Override
+        public int compareTo(Waiter another) {
+            return ( priority != another.priority ? ( priority < another.priority ? -1 : 1 ) :
+                    seq < another.seq ? -1 : seq > another.seq ? 1 : 0 );
+        }
+    }
+
+    private final SharedPreferences mPrefs;
+    private final PriorityQueue<Waiter> mWaiters = new PriorityQueue<Waiter>();
+    private long mSeq = 0;
+
+    private double mTokens = BUCKET_CAPACITY;
+    private long mLastRefill = 0;
+
+    private final Calendar mCal;
+    private long mBudgetDayStart;
+    private long mBudgetDayEnd = 0;
+    private int mBudgetUsed;
+
+    /** Counters since process start, per priority. */
+    private final int[] mIssued = new int[3];
+    private final int[] mThrottled = new int[3];
+    private final int[] mDropped = new int[3];
+    private int mRefunded = 0;
+
+    private RequestLimiter(Context context) {
+        this( context.getSharedPreferences( TAG, Context.MODE_PRIVATE ), Calendar.getInstance() );
+    }
+
+    /**
+     * @param cal  In the time zone whose midnight starts the budget day.
+     */
+    RequestLimiter(SharedPreferences prefs, Calendar cal) {
+        mPrefs = prefs;
+        mCal = cal;
+        mBudgetDayStart = mPrefs.getLong( KEY_BUDGET_DAY_START, 0 );
+        mBudgetUsed = mPrefs.getInt( KEY_BUDGET_USED, 0 );
+    }
+
+    /** Overridden by tests. */
+    long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Wait for a request to baseUrl to be allowed.  Blocks up to the priority's max wait.
+     *
+     * @param priority  PRIORITY_*
+     * @return  False if the request should be dropped.
+     */
+    public boolean acquire(String baseUrl, int priority) {
+        priority = Math.max( PRIORITY_DWELL, Math.min( PRIORITY_PREFETCH, priority ) );
+        int cost = Math.min( BUCKET_CAPACITY, getCost( baseUrl ) );
+        int budget = DAILY_BUDGET * BUDGET_SHARE[priority] / 100;
+        long deadline = currentTimeMillis() + MAX_WAIT_MS[priority];
+
+        synchronized ( this ) {
+            Waiter waiter = new Waiter( priority, mSeq++ );
+            mWaiters.add( waiter );
+            boolean bWaited = false;
+            try {
+                while ( true ) {
+                    long now = currentTimeMillis();
+                    rollBudgetDay( now );
+                    if ( mBudgetUsed + cost > budget ) {
+                        mDropped[priority]++;
+                        Log.w( TAG, "Daily budget used up for priority " + priority + ": " + baseUrl );
+                        return false;
+                    }
+
+                    refill( now );
+                    boolean bFirst = ( mWaiters.peek() == waiter );
+                    if ( bFirst && mTokens >= cost ) {
+                        break;
+                    }
+
+                    long remaining = deadline - now;
+                    if ( remaining <= 0 ) {
+                        mDropped[priority]++;
+                        Log.w( TAG, "Timed out waiting for priority " + priority + ": " + baseUrl );
+                        return false;
+                    }
+                    long wait = ( bFirst ? (long) Math.ceil( ( cost - mTokens ) * REFILL_INTERVAL_MS ) : remaining );
+                    bWaited = true;
+                    wait( Math.max( 1, Math.min( wait, remaining ) ) );
+                }
+
+                mTokens -= cost;
+                mBudgetUsed += cost;
+                mPrefs.edit()
+                        .putLong( KEY_BUDGET_DAY_START, mBudgetDayStart )
+                        .putInt( KEY_BUDGET_USED, mBudgetUsed )
+                        .apply();
+                mIssued[priority]++;
+                if ( bWaited ) {
+                    mThrottled[priority]++;
+                }
+                return true;
+
+            } catch (InterruptedException e) {
+                mDropped[priority]++;
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                mWaiters.remove( waiter );
+                notifyAll();  // Next in line.
+            }
+        }
+    }
+
+    /**
+     * Take what a request to baseUrl costs if that's allowed right now, without waiting.
+     * For callers on shared threads, which reschedule instead of blocking.  Waiting
+     * requests of the same or higher priority go first.
+     *
+     * @param priority  PRIORITY_*
+     * @return  0 if taken, millis after which to try again, or NO_RETRY if the request
+     *          should be dropped.
+     */
+    public long tryAcquire(String baseUrl, int priority) {
+        priority = Math.max( PRIORITY_DWELL, Math.min( PRIORITY_PREFETCH, priority ) );
+        int cost = Math.min( BUCKET_CAPACITY, getCost( baseUrl ) );
+        int budget = DAILY_BUDGET * BUDGET_SHARE[priority] / 100;
+
+        synchronized ( this ) {
+            long now = currentTimeMillis();
+            rollBudgetDay( now );
+            if ( mBudgetUsed + cost > budget ) {
+                mDropped[priority]++;
+                Log.w( TAG, "Daily budget used up for priority " + priority + ": " + baseUrl );
+                return NO_RETRY;
+            }
+
+            refill( now );
+            Waiter first = mWaiters.peek();
+            if ( first != null && first.priority <= priority ) {
+                return REFILL_INTERVAL_MS;
+            }
+            if ( mTokens < cost ) {
+                return Math.max( 1, (long) Math.ceil( ( cost - mTokens ) * REFILL_INTERVAL_MS ) );
+            }
+
+            mTokens -= cost;
+            mBudgetUsed += cost;
+            mPrefs.edit()
+                    .putLong( KEY_BUDGET_DAY_START, mBudgetDayStart )
+                    .putInt( KEY_BUDGET_USED, mBudgetUsed )
+                    .apply();
+            mIssued[priority]++;
+            return 0;
+        }
+    }
+
+    /**
+     * Give back the daily budget charged for a request to baseUrl that the api doesn't
+     * bill, e.g. a nearby search page polled before its token was ready.  Tokens taken
+     * stay taken, since the request did go out.
+     */
+    public synchronized void refund(String baseUrl) {
+        rollBudgetDay( currentTimeMillis() );
+        mBudgetUsed = Math.max( 0, mBudgetUsed - Math.min( BUCKET_CAPACITY, getCost( baseUrl ) ) );
+        mRefunded++;
+        mPrefs.edit()
+                .putLong( KEY_BUDGET_DAY_START, mBudgetDayStart )
+                .putInt( KEY_BUDGET_USED, mBudgetUsed )
+                .apply();
+    }
+
+    private void refill(long now) {
+        if ( now > mLastRefill ) {
+            mTokens = Math.min( BUCKET_CAPACITY, mTokens + (double) ( now - mLastRefill ) / REFILL_INTERVAL_MS );
+        }
+        mLastRefill = now;
+    }
+
+    private void rollBudgetDay(long now) {
+        if ( now >= mBudgetDayStart && now < mBudgetDayEnd ) {
+            return;
+        }
+        mCal.setTimeInMillis( now );
+        mCal.set( Calendar.HOUR_OF_DAY, 0 );
+        mCal.set( Calendar.MINUTE, 0 );
+        mCal.set( Calendar.SECOND, 0 );
+        mCal.set( Calendar.MILLISECOND, 0 );
+        long dayStart = mCal.getTimeInMillis();
+        mCal.add( Calendar.DAY_OF_MONTH, 1 );
+        mBudgetDayEnd = mCal.getTimeInMillis();
+        if ( dayStart != mBudgetDayStart ) {
+            mBudgetDayStart = dayStart;
+            mBudgetUsed = 0;
+        }
+    }
+
+    /**
+     * Counters of requests issued, throttled (issued after waiting) and dropped, for logging.
+     */
+    public synchronized String getStats() {
+        rollBudgetDay( currentTimeMillis() );
+        StringBuilder sb = new StringBuilder( TAG + ": budget=" + mBudgetUsed + "/" + DAILY_BUDGET
+                + " refunded=" + mRefunded );
+        String[] names = { "dwell", "background", "prefetch" };
+        for ( int i = 0; i < names.length; i++ ) {
+            sb.append( " " ).append( names[i] )
+                    .append( "[issued=" ).append( mIssued[i] )
+                    .append( " throttled=" ).append( mThrottled[i] )
+                    .append( " dropped=" ).append( mDropped[i] ).append( "]" );
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,154 @@
+package com.motussoft.heresense.poi;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.motussoft.heresense.mapsapi.HttpTask;
+import com.motussoft.heresense.mapsapi.MapsApi;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+/**
+ * Streams a places search response straight into Poi records.
+ *
+ * Single pass over the response with a JsonReader.  Only the fields PoiHelper.fromPlaceResult
+ * used are read, everything else is skipped, and types are joined into the ':' separated
+ * poi types string as they are read.  Unknown types are dropped, as Gson did when mapping
+ * them onto MapsApi.Type.
+ *
+ * Radius and prominence are left to the caller.  See PoiHelper.assignRanking().
+ */
+class NearbyPoisDecoder implements HttpTask.ResponseDecoder<NearbyPoisDecoder.Page> {
+
+    private static final HashSet<String> KNOWN_TYPES = new HashSet<String>();
+    static {
+        for ( MapsApi.Type type : MapsApi.Type.values() ) {
+            KNOWN_TYPES.add( type.name() );
+        }
+    }
+
+    /**
+     * One page of a places search response.
+     */
+    static class Page {
+        String status;
+        String errorMessage;
+        String nextPageToken;
+        final ArrayList<Poi> pois = new ArrayList<Poi>();
+    }
+
+    private final StringBuilder mTypes = new StringBuilder();
+
+    @Override
+    public Page decode(Reader in) throws IOException {
+        Page page = new Page();
+        JsonReader reader = new JsonReader( in );
+        reader.beginObject();
+        while ( reader.hasNext() ) {
+            String name = reader.nextName();
+            if ( "status".equals( name ) ) {
+                page.status = nextString( reader );
+            } else if ( "error_message".equals( name ) ) {
+                page.errorMessage = nextString( reader );
+            } else if ( "next_page_token".equals( name ) ) {
+                page.nextPageToken = nextString( reader );
+            } else if ( "results".equals( name ) && reader.peek() == JsonToken.BEGIN_ARRAY ) {
+                reader.beginArray();
+                while ( reader.hasNext() ) {
+                    page.pois.add( readPlace( reader ) );
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return page;
+    }
+
+    private Poi readPlace(JsonReader reader) throws IOException {
+        Poi poi = new Poi();
+        reader.beginObject();
+        while ( reader.hasNext() ) {
+            String name = reader.nextName();
+            if ( "place_id".equals( name ) ) {
+                poi.setPlaceId( nextString( reader ) );
+            } else if ( "name".equals( name ) ) {
+                poi.setName( nextString( reader ) );
+            } else if ( "formatted_address".equals( name ) ) {
+                poi.setAddress( nextString( reader ) );
+            } else if ( "website".equals( name ) ) {
+                poi.setWebsite( nextString( reader ) );
+            } else if ( "url".equals( name ) ) {
+                poi.setAppUri( nextString( reader ) );
+            } else if ( "types".equals( name ) ) {
+                poi.setTypes( readTypes( reader ) );
+            } else if ( "geometry".equals( name ) && reader.peek() == JsonToken.BEGIN_OBJECT ) {
+                reader.beginObject();
+                while ( reader.hasNext() ) {
+                    if ( "location".equals( reader.nextName() ) && reader.peek() == JsonToken.BEGIN_OBJECT ) {
+                        readLocation( reader, poi );
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if ( poi.getTypes() == null ) {
+            poi.setTypes( "" );
+        }
+        return poi;
+    }
+
+    private static void readLocation(JsonReader reader, Poi poi) throws IOException {
+        reader.beginObject();
+        while ( reader.hasNext() ) {
+            String name = reader.nextName();
+            // Read as float, as MapsApi.Location did, so cached coordinates don't change.
+            if ( "lat".equals( name ) ) {
+                poi.setLatitude( (float) reader.nextDouble() );
+            } else if ( "lng".equals( name ) ) {
+                poi.setLongitude( (float) reader.nextDouble() );
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private String readTypes(JsonReader reader) throws IOException {
+        if ( reader.peek() != JsonToken.BEGIN_ARRAY ) {
+            reader.skipValue();
+            return "";
+        }
+        mTypes.setLength( 0 );
+        reader.beginArray();
+        while ( reader.hasNext() ) {
+            String type = nextString( reader );
+            if ( type != null && KNOWN_TYPES.contains( type ) ) {
+                mTypes.append( mTypes.length() == 0 ? "" : ":" );
+                mTypes.append( type );
+            }
+        }
+        reader.endArray();
+        return mTypes.toString();
+    }
+
+    private static String nextString(JsonReader reader) throws IOException {
+        if ( reader.peek() == JsonToken.NULL ) {
+            reader.nextNull();
+            return null;
+        }
+        if ( reader.peek() != JsonToken.STRING ) {
+            reader.skipValue();
+            return null;
+        }
+        return reader.nextString();
+    }
+}
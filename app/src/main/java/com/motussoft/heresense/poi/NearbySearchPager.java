@@ -0,0 +1,189 @@
+package com.motussoft.heresense.poi;
+
+import android.content.Context;
+import android.content.Intent;
+import android.location.Location;
+
+import com.motussoft.heresense.HereSenseService;
+import com.motussoft.heresense.logging.LoggingService;
+import com.motussoft.heresense.mapsapi.MapsApi;
+import com.motussoft.heresense.mapsapi.PlaceSearch;
+import com.motussoft.heresense.mapsapi.RequestLimiter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pulls the later pages of a nearby search in the background.
+ *
+ * A next_page_token only becomes valid a short while after the page that returned it,
+ * and until then the places api answers INVALID_REQUEST.  Instead of sleeping on the
+ * caller's thread, each page is polled with backoff on a shared scheduler thread, first
+ * after about the 2s a token usually takes.  Not-ready polls aren't billed, so their
+ * daily budget charge is refunded to RequestLimiter.  Every page pulled is merged into
+ * the cache under the first page's poi scan, and a HereSenseService.POI_EVENT_REFINED
+ * broadcast carries the re-ranked nearby pois.  Once the dwell is exited, nothing more is
+ * pulled or broadcast.
+ *
+ * The scheduler thread is shared by all pagers, so it never waits on RequestLimiter.  A
+ * page the limiter holds back is rescheduled for when it says to try again.
+ */
+class NearbySearchPager implements Runnable {
+
+    private static final String TAG = "NearbySearchPager";
+
+    /** Max 3 pulls (60 pois) from web, first page included. */
+    private static final int MAX_PAGES = 3;
+
+    private static final long FIRST_POLL_DELAY_MS = 2000;
+    private static final long MAX_POLL_DELAY_MS = 8000;
+    private static final int MAX_POLLS_PER_PAGE = 5;
+
+    /** Max time a page is held back by RequestLimiter, as it waits for background requests. */
+    private static final long MAX_LIMITER_WAIT_MS = 30 * 1000;
+
+    private static ScheduledExecutorService sScheduler;
+
+    private static synchronized ScheduledExecutorService getScheduler() {
+        if ( sScheduler == null ) {
+            sScheduler = Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread( r, TAG );
+                    thread.setDaemon( true );
+                    return thread;
+                }
+            } );
+        }
+        return sScheduler;
+    }
+
+    /**
+     * Start pulling pages after the first, in the background.
+     */
+    static void start(Context context, Location location, String name, String type, Integer minSize,
+                      long poiScanId, String nextPageToken) {
+        NearbySearchPager pager = new NearbySearchPager( context.getApplicationContext(),
+                location, name, type, minSize, poiScanId, nextPageToken );
+        pager.schedule();
+    }
+
+    private final Context mContext;
+    private final Location mLocation;
+    private final String mName;
+    private final String mType;
+    private final Integer mMinSize;
+    private final long mPoiScanId;
+    private final int mExitCount;
+    private final NearbyPoisDecoder mDecoder = new NearbyPoisDecoder();
+
+    private String mPageToken;
+    private int mPageNum = 2;
+    private int mPolls = 0;
+    private long mPollDelay = FIRST_POLL_DELAY_MS;
+    private long mLimiterWait = 0;
+
+    private NearbySearchPager(Context context, Location location, String name, String type, Integer minSize,
+                              long poiScanId, String pageToken) {
+        mContext = context;
+        mLocation = new Location( location );
+        mName = name;
+        mType = type;
+        mMinSize = minSize;
+        mPoiScanId = poiScanId;
+        mPageToken = pageToken;
+        mExitCount = HereSenseService.getExitCount();
+    }
+
+    private void schedule() {
+        schedule( mPollDelay );
+    }
+
+    private void schedule(long delay) {
+        getScheduler().schedule( this, delay, TimeUnit.MILLISECONDS );
+    }
+
+    /**
+     * Whether the dwell paged for was exited since the pager started.
+     */
+    private boolean isStaleDwell() {
+        if ( mExitCount == HereSenseService.getExitCount() ) {
+            return false;
+        }
+        LoggingService.logToFile( mContext, TAG + ": dwell exited.  Dropping pages from " + mPageNum + "." );
+        return true;
+    }
+
+    @Override
+    public void run() {
+        if ( isStaleDwell() ) {
+            return;
+        }
+
+        PlaceSearch.NearbySearchTask task = new PlaceSearch.NearbySearchTask( mContext, mPageToken );
+        task.setNoWait( true );
+        NearbyPoisDecoder.Page page = task.run( mDecoder );
+
+        long retryDelay = task.getRetryDelayMs();
+        if ( retryDelay > 0 ) {
+            // Held back by RequestLimiter.  Not a poll, the request didn't go out.
+            mLimiterWait += retryDelay;
+            if ( mLimiterWait <= MAX_LIMITER_WAIT_MS ) {
+                schedule( retryDelay );
+            } else {
+                LoggingService.logToFile( mContext, TAG + ": page " + mPageNum + " held back by "
+                        + "RequestLimiter for " + mLimiterWait + "ms.  Giving up." );
+            }
+            return;
+        }
+        mPolls++;
+        mLimiterWait = 0;
+
+        if ( page != null && MapsApi.STATUS_INVALID_REQUEST.equals( page.status ) ) {
+            // Page token not ready yet.  Back off and poll again.
+            RequestLimiter.getInstance( mContext ).refund( PlaceSearch.NearbySearchTask.URL );
+            if ( mPolls < MAX_POLLS_PER_PAGE ) {
+                mPollDelay = Math.min( mPollDelay * 2, MAX_POLL_DELAY_MS );
+                schedule();
+            } else {
+                LoggingService.logToFile( mContext, TAG + ": page " + mPageNum + " not ready after "
+                        + mPolls + " polls.  Giving up." );
+            }
+            return;
+        }
+        if ( page == null || !MapsApi.STATUS_OK.equals( page.status ) ) {
+            LoggingService.logToFile( mContext, TAG + ": page " + mPageNum + " failed: "
+                    + ( page == null ? "no response" : page.status ) );
+            return;
+        }
+
+        // Merge into the cache, and tell listeners the nearby pois got refined.
+        for ( Poi poi : page.pois ) {
+            PoiSearch.PoiHelper.assignRanking( poi );
+        }
+        PoiSearch.cachePagePois( mContext, mPoiScanId, page.pois );
+        PoiSearch.logPulledPois( mContext, mLocation, page.pois, mPageNum );
+        if ( isStaleDwell() ) {
+            // Cached for the next dwell here, but no longer nearby.
+            return;
+        }
+
+        List<Poi> nearbyPois = PoiSearch.getPois( mContext, mLocation, mName, mType, mMinSize );
+        mContext.sendBroadcast( new Intent( HereSenseService.ACTION_POI_EVENT )
+                .putParcelableArrayListExtra( HereSenseService.EXTRA_NEARBY_POIS, new ArrayList<Poi>( nearbyPois ) )
+                .putExtra( HereSenseService.EXTRA_POI_EVENT_TYPE, HereSenseService.POI_EVENT_REFINED ) );
+
+        // Next page.
+        if ( mPageNum < MAX_PAGES && PoiSearch.hasMorePages( page, mLocation ) ) {
+            mPageToken = page.nextPageToken;
+            mPageNum++;
+            mPolls = 0;
+            mPollDelay = FIRST_POLL_DELAY_MS;
+            schedule();
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package com.motussoft.heresense.poi;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.location.Location;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.support.v4.net.ConnectivityManagerCompat;
+
+import com.motussoft.heresense.dwelldetection.MathHelper;
+import com.motussoft.heresense.logging.LoggingService;
+import com.motussoft.heresense.mapsapi.MapsApi;
+import com.motussoft.heresense.mapsapi.RequestLimiter;
+import com.motussoft.heresense.provider.GeoCell;
+
+import java.util.Calendar;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Warms the poi cache along the transit path, so the poi search on the next dwell is a
+ * local cache hit instead of a web pull on the dwell notification's critical path.
+ *
+ * Each transit fix is extrapolated along its heading and speed to a few points ahead,
+ * and the first page of nearby pois is pulled for points not cached yet.  Pulls only
+ * happen on an unmetered network, at most once per PREFETCH_MIN_INTERVAL_MS, and within
+ * a daily request budget persisted in preferences.
+ */
+public class PoiPrefetcher {
+
+    private static final String TAG = "PoiPrefetcher";
+
+    /** Max places requests per day spent on prefetching. */
+    private static final int PREFETCH_DAILY_BUDGET = 40;
+    private static final long PREFETCH_MIN_INTERVAL_MS = 30 * 1000;
+
+    /** Predicted points, spaced about one poi scan range apart. */
+    private static final float LOOKAHEAD_STEP = 150f;  // 150 meters.
+    private static final float LOOKAHEAD_MAX_DISTANCE = 600f;
+    private static final long LOOKAHEAD_TIME_MS = 2 * 60 * 1000;
+    private static final int MAX_PULLS_PER_FIX = 2;
+
+    /** Below this, the user may be about to dwell right here. */
+    private static final float MIN_SPEED = 0.5f;  // m/s.
+    private static final long MAX_FIX_AGE_MS = 2 * 60 * 1000;
+
+    /** Recently pulled cells, so the same cell isn't checked against the db each fix. */
+    private static final int RECENT_CELLS = 64;
+
+    private static final String KEY_BUDGET_DAY_START = "KEY_BUDGET_DAY_START";
+    private static final String KEY_BUDGET_USED = "KEY_BUDGET_USED";
+
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor( new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread( r, TAG );
+            thread.setDaemon( true );
+            return thread;
+        }
+    } );
+
+    private static final AtomicBoolean sBusy = new AtomicBoolean( false );
+
+    private static Location sLastFix;
+    private static long sLastPrefetchTime = 0;
+    private static final LinkedHashSet<Long> sRecentCells = new LinkedHashSet<Long>();
+
+    /** Utility class can't be instantiated */
+    private PoiPrefetcher() { }
+
+    /**
+     * Feed a transit fix.  Returns right away.  Pulls run on a background thread.
+     */
+    public static void onTransitFix(Context context, Location location) {
+        if ( location == null ) {
+            return;
+        }
+
+        final Location lastFix;
+        synchronized ( PoiPrefetcher.class ) {
+            lastFix = sLastFix;
+            sLastFix = new Location( location );
+            long now = System.currentTimeMillis();
+            if ( now - sLastPrefetchTime < PREFETCH_MIN_INTERVAL_MS ) {
+                return;
+            }
+            sLastPrefetchTime = now;
+        }
+
+        if ( !sBusy.compareAndSet( false, true ) ) {
+            return;  // Previous round still pulling.
+        }
+        final Context appContext = context.getApplicationContext();
+        final Location fix = new Location( location );
+        sExecutor.execute( new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    prefetch( appContext, fix, lastFix );
+                } finally {
+                    sBusy.set( false );
+                }
+            }
+        } );
+    }
+
+    private static void prefetch(Context context, Location fix, Location lastFix) {
+        if ( !isUnmetered( context ) ) {
+            return;
+        }
+
+        int pulls = 0;
+        for ( Location target : predictPath( fix, lastFix ) ) {
+            if ( pulls >= MAX_PULLS_PER_FIX ) {
+                break;
+            }
+
+            long cellId = GeoCell.getCellId( target.getLatitude(), target.getLongitude() );
+            synchronized ( PoiPrefetcher.class ) {
+                if ( sRecentCells.contains( cellId ) ) {
+                    continue;
+                }
+            }
+            if ( PoiSearch.isCached( context, target.getLatitude(), target.getLongitude() ) ) {
+                rememberCell( cellId );
+                continue;
+            }
+            if ( !takeBudget( context ) ) {
+                LoggingService.logToFile( context, TAG + ": daily budget used up." );
+                return;
+            }
+
+            boolean bPulled = PoiSearch.pullNearbyPoisShared( context, target,
+                    null, MapsApi.Type.establishment.toString(), null,
+                    RequestLimiter.PRIORITY_PREFETCH, false, false );
+            pulls++;
+            rememberCell( cellId );
+            LoggingService.logToFile( context, TAG + ": " + ( bPulled ? "prefetched" : "failed" )
+                    + " pois at " + (float) target.getLatitude() + "," + (float) target.getLongitude() );
+        }
+    }
+
+    /**
+     * Current fix, then points ahead along heading.  Heading and speed from the fix if
+     * it has them, otherwise from the last fix.
+     */
+    private static Location[] predictPath(Location fix, Location lastFix) {
+        float bearing = -1;
+        float speed = -1;
+        if ( fix.hasBearing() && fix.hasSpeed() ) {
+            bearing = fix.getBearing();
+            speed = fix.getSpeed();
+        } else if ( lastFix != null ) {
+            long dt = fix.getTime() - lastFix.getTime();
+            float distance = lastFix.distanceTo( fix );
+            if ( dt > 0 && dt < MAX_FIX_AGE_MS && distance > fix.getAccuracy() ) {
+                bearing = lastFix.bearingTo( fix );
+                speed = distance * 1000f / dt;
+            }
+        }
+
+        if ( bearing < 0 || speed < MIN_SPEED ) {
+            return new Location[] { fix };
+        }
+
+        float lookahead = Math.min( LOOKAHEAD_MAX_DISTANCE, speed * LOOKAHEAD_TIME_MS / 1000f );
+        int steps = (int) ( lookahead / LOOKAHEAD_STEP );
+        Location[] path = new Location[1 + steps];
+        path[0] = fix;
+        for ( int i = 1; i <= steps; i++ ) {
+            path[i] = offset( fix, bearing, i * LOOKAHEAD_STEP );
+        }
+        return path;
+    }
+
+    private static Location offset(Location from, float bearing, float meters) {
+        double[] latLon = new double[2];
+        MathHelper.offset( from.getLatitude(), from.getLongitude(), bearing, meters, latLon );
+        Location to = new Location( from );
+        to.setLatitude( latLon[0] );
+        to.setLongitude( latLon[1] );
+        return to;
+    }
+
+    private static synchronized void rememberCell(long cellId) {
+        sRecentCells.remove( cellId );
+        sRecentCells.add( cellId );
+        if ( sRecentCells.size() > RECENT_CELLS ) {
+            sRecentCells.remove( sRecentCells.iterator().next() );
+        }
+    }
+
+    private static boolean isUnmetered(Context context) {
+        ConnectivityManager cm = (ConnectivityManager) context.getSystemService( Context.CONNECTIVITY_SERVICE );
+        NetworkInfo info = cm.getActiveNetworkInfo();
+        return info != null && info.isConnected()
+                && !ConnectivityManagerCompat.isActiveNetworkMetered( cm );
+    }
+
+    /**
+     * Take one request from today's budget.  Days start at local midnight, as
+     * RequestLimiter's.
+     * @return  False if budget used up.
+     */
+    private static synchronized boolean takeBudget(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences( TAG, Context.MODE_PRIVATE );
+        Calendar cal = Calendar.getInstance();
+        cal.set( Calendar.HOUR_OF_DAY, 0 );
+        cal.set( Calendar.MINUTE, 0 );
+        cal.set( Calendar.SECOND, 0 );
+        cal.set( Calendar.MILLISECOND, 0 );
+        long dayStart = cal.getTimeInMillis();
+        int used = ( prefs.getLong( KEY_BUDGET_DAY_START, 0 ) == dayStart ? prefs.getInt( KEY_BUDGET_USED, 0 ) : 0 );
+        if ( used >= PREFETCH_DAILY_BUDGET ) {
+            return false;
+        }
+        prefs.edit()
+                .putLong( KEY_BUDGET_DAY_START, dayStart )
+                .putInt( KEY_BUDGET_USED, used + 1 )
+                .apply();
+        return true;
+    }
+}
@@ -0,0 +1,158 @@
+package com.motussoft.heresense.poi;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.util.LruCache;
+
+import com.motussoft.heresense.provider.HereSenseContract;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In memory LRU cache of poi db lookups, keyed by GeoCell.
+ *
+ * Entries hold the rows of a whole cell plus the lookup range around it, so a lookup
+ * anywhere in the cell is served from memory and only filtered to its exact range.
+ * Size is accounted in approximate bytes.  Cached pois are shared, and must not be modified.
+ *
+ * Our own writes invalidate() right after they complete, so the next lookup already sees
+ * them.  Provider change notifications on pois or poi_scans only arrive later, on a binder
+ * thread, and are there to drop entries on writes from anywhere else.
+ */
+public class PoiQueryCache {
+
+    private static final String TAG = "PoiQueryCache";
+
+    private static final int MAX_SIZE_BYTES = 256 * 1024;
+
+    private static final int ENTRY_OVERHEAD_BYTES = 64;
+    private static final int POI_OVERHEAD_BYTES = 96;
+    private static final int SCAN_BYTES = 8 + 8 + 8 + 8;
+
+    /** Poi scan rows of a cell.  Expires is 0 for scans that don't expire early. */
+    static class ScanRows {
+        final int count;
+        final double[] lats;
+        final double[] lons;
+        final long[] times;
+        final long[] expires;
+
+        ScanRows(int count, double[] lats, double[] lons, long[] times, long[] expires) {
+            this.count = count;
+            this.lats = lats;
+            this.lons = lons;
+            this.times = times;
+            this.expires = expires;
+        }
+    }
+
+    private static final LruCache<String, Object> sCache = new LruCache<String, Object>( MAX_SIZE_BYTES ) {
+        @Override
+        protected int sizeOf(String key, Object value) {
+            int size = ENTRY_OVERHEAD_BYTES + 2 * key.length();
+            if ( value instanceof ScanRows ) {
+                size += ( (ScanRows) value ).count * SCAN_BYTES;
+            } else {
+                for ( Object poi : (List<?>) value ) {
+                    size += sizeOf( (Poi) poi );
+                }
+            }
+            return size;
+        }
+    };
+
+    /** Bumped on every invalidation.  Lookups that raced with one aren't cached. */
+    private static final AtomicInteger sGeneration = new AtomicInteger();
+    private static final AtomicInteger sInvalidations = new AtomicInteger();
+
+    private static ContentObserver sObserver;
+
+    /** Utility class can't be instantiated */
+    private PoiQueryCache() { }
+
+    /**
+     * Start listening for provider changes.  Cheap after the first call.
+     */
+    static synchronized void ensureObserving(Context context) {
+        if ( sObserver != null ) {
+            return;
+        }
+        sObserver = new ContentObserver( null ) {
+            @Override
+            public void onChange(boolean selfChange) {
+                invalidate();
+            }
+        };
+        context.getApplicationContext().getContentResolver().registerContentObserver(
+                HereSenseContract.Pois.CONTENT_URI, true, sObserver );
+        context.getApplicationContext().getContentResolver().registerContentObserver(
+                HereSenseContract.PoiScans.CONTENT_URI, true, sObserver );
+    }
+
+    static String poisKey(long cellId, String name, String type, Integer minSize) {
+        return "pois:" + cellId + ":" + name + ":" + type + ":" + minSize;
+    }
+
+    static String scansKey(long cellId) {
+        return "scans:" + cellId;
+    }
+
+    /**
+     * Generation to pass to put().  Take it before querying the db.
+     */
+    static int getGeneration() {
+        return sGeneration.get();
+    }
+
+    static Object get(String key) {
+        return sCache.get( key );
+    }
+
+    /**
+     * Cache value, unless invalidated since generation was taken.
+     */
+    static void put(String key, Object value, int generation) {
+        synchronized ( sCache ) {
+            if ( generation == sGeneration.get() ) {
+                sCache.put( key, value );
+            }
+        }
+    }
+
+    /**
+     * Drop all entries.  Call right after writing pois or poi_scans.
+     */
+    static void invalidate() {
+        synchronized ( sCache ) {
+            sGeneration.incrementAndGet();
+            sInvalidations.incrementAndGet();
+            sCache.evictAll();
+        }
+    }
+
+    /**
+     * Hit/miss metrics, for logging.
+     */
+    public static String getStats() {
+        int hits = sCache.hitCount();
+        int misses = sCache.missCount();
+        int lookups = hits + misses;
+        return TAG + ": hits=" + hits + " misses=" + misses
+                + " hitRate=" + ( lookups == 0 ? 0 : hits * 100 / lookups ) + "%"
+                + " evictions=" + sCache.evictionCount()
+                + " invalidations=" + sInvalidations.get()
+                + " entries=" + sCache.snapshot().size()
+                + " size=" + sCache.size() + "/" + sCache.maxSize();
+    }
+
+    private static int sizeOf(Poi poi) {
+        return POI_OVERHEAD_BYTES + 2 * ( length( poi.getPlaceId() ) + length( poi.getName() )
+                + length( poi.getAddress() ) + length( poi.getPhoneNumber() ) + length( poi.getTypes() )
+                + length( poi.getWebsite() ) + length( poi.getUrl() ) + length( poi.getAppUri() ) );
+    }
+
+    private static int length(String s) {
+        return ( s == null ? 0 : s.length() );
+    }
+}
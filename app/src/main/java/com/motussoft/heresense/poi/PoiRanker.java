@@ -0,0 +1,139 @@
+package com.motussoft.heresense.poi;
+
+import com.motussoft.heresense.dwelldetection.MathHelper;
+
+import java.util.List;
+
+/**
+ * Scores and ranks pois against a location fix.
+ *
+ * Poi fields used for scoring are copied once into struct-of-arrays form and scored in
+ * a single batch pass.  Ranking then sorts a primitive index array, so no per poi sort
+ * objects are allocated, even for dense scans with hundreds of cached pois.
+ *
+ * Ranking order:  confidence 1st (when apart by at least CONFIDENCE_TIE),
+ * prominence 2nd, distance 3rd.
+ */
+class PoiRanker {
+
+    private static final float CONFIDENCE_TIE = 0.1f;
+
+    private final List<Poi> mPois;
+    private final int mCount;
+
+    private final double[] mLatitudes;
+    private final double[] mLongitudes;
+    private final double[] mRadii;
+    private final long[] mProminences;
+
+    private final float[] mConfidences;
+    private final float[] mDistances;
+
+    private final int[] mOrder;
+    private int mRankedCount = 0;
+
+    PoiRanker(List<Poi> pois) {
+        mPois = pois;
+        mCount = pois.size();
+
+        mLatitudes = new double[mCount];
+        mLongitudes = new double[mCount];
+        mRadii = new double[mCount];
+        mProminences = new long[mCount];
+        mConfidences = new float[mCount];
+        mDistances = new float[mCount];
+        mOrder = new int[mCount];
+
+        for ( int i = 0; i < mCount; i++ ) {
+            Poi poi = pois.get( i );
+            mLatitudes[i] = poi.getLatitude();
+            mLongitudes[i] = poi.getLongitude();
+            mRadii[i] = poi.getRadius();
+            mProminences[i] = poi.getProminence();
+        }
+    }
+
+    /**
+     * Score all pois against location fix, and rank those at or above minConfidence.
+     *
+     * @return  Number of ranked pois.
+     */
+    int rank(double latitude, double longitude, double accuracy, float minConfidence) {
+        MathHelper.getLocationConfidencesAtPois( mLatitudes, mLongitudes, mRadii, mCount,
+                latitude, longitude, accuracy, mConfidences, mDistances );
+
+        mRankedCount = 0;
+        for ( int i = 0; i < mCount; i++ ) {
+            if ( mConfidences[i] >= minConfidence ) {
+                mOrder[ mRankedCount++ ] = i;
+            }
+        }
+
+        if ( mRankedCount > 1 ) {
+            mergeSort( mOrder, new int[mRankedCount], 0, mRankedCount );
+        }
+        return mRankedCount;
+    }
+
+    int getRankedCount() {
+        return mRankedCount;
+    }
+
+    /** @param rank  0 is best. */
+    Poi getPoi(int rank) {
+        return mPois.get( mOrder[rank] );
+    }
+
+    float getConfidence(int rank) {
+        return mConfidences[ mOrder[rank] ];
+    }
+
+    float getDistance(int rank) {
+        return mDistances[ mOrder[rank] ];
+    }
+
+    /****************************************************************
+     * Index sort.
+     ****************************************************************/
+
+    private int compare(int lhs, int rhs) {
+        if ( Math.abs( mConfidences[lhs] - mConfidences[rhs] ) >= CONFIDENCE_TIE ) {
+            // Compare confidence level 1st.
+            return ( mConfidences[lhs] > mConfidences[rhs] ? -1 : 1 );
+        } else if ( mProminences[lhs] != mProminences[rhs] ) {
+            // Compare prominence level 2nd.
+            return ( mProminences[lhs] > mProminences[rhs] ? -1 : 1 );
+        } else {
+            // Compare distance 3rd.
+            return ( mDistances[lhs] == mDistances[rhs] ? 0 :
+                    mDistances[lhs] < mDistances[rhs] ? -1 : 1 );
+        }
+    }
+
+    /**
+     * Stable merge sort of order[from, to).  Unlike Collections.sort(), does not throw on
+     * the non transitive confidence tie rule.
+     */
+    private void mergeSort(int[] order, int[] tmp, int from, int to) {
+        if ( to - from < 2 ) {
+            return;
+        }
+        int mid = ( from + to ) >>> 1;
+        mergeSort( order, tmp, from, mid );
+        mergeSort( order, tmp, mid, to );
+        if ( compare( order[mid - 1], order[mid] ) <= 0 ) {
+            return;  // Already in order.
+        }
+
+        System.arraycopy( order, from, tmp, from, to - from );
+        int l = from;
+        int r = mid;
+        for ( int i = from; i < to; i++ ) {
+            if ( r >= to || ( l < mid && compare( tmp[l], tmp[r] ) <= 0 ) ) {
+                order[i] = tmp[l++];
+            } else {
+                order[i] = tmp[r++];
+            }
+        }
+    }
+}
@@ -9,20 +9,26 @@ import android.content.Context;
 import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.location.Location;
+import android.net.Uri;
 import android.os.RemoteException;
 import android.text.TextUtils;
 
 import com.motussoft.heresense.dwelldetection.MathHelper;
+import com.motussoft.heresense.logging.EventLog;
 import com.motussoft.heresense.logging.LoggingService;
 import com.motussoft.heresense.mapsapi.MapsApi;
 import com.motussoft.heresense.mapsapi.PlaceDetailsTask;
 import com.motussoft.heresense.mapsapi.PlaceSearch;
+import com.motussoft.heresense.mapsapi.RequestLimiter;
+import com.motussoft.heresense.provider.GeoCell;
 import com.motussoft.heresense.provider.HereSenseContract;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 public class PoiSearch {
 
@@ -40,66 +46,300 @@ public class PoiSearch {
     public static List<Poi> findNearbyPois(Context context, Location location,
                                            String name, String type, Integer minSize) {
         // Check to see if we have made any poi scans at this location before.
-        String poiScanIds = getPoiScanIds( context, location.getLatitude(), location.getLongitude() );
+        if ( !hasPoiScans( context, location.getLatitude(), location.getLongitude() ) ) {
+            // No data cached locally.  Initiate new data pull from web, or join one
+            // already pulling this cell.  Filters are applied on the cached result below.
+            pullNearbyPoisShared( context, location, name, type, minSize,
+                    RequestLimiter.PRIORITY_DWELL, true, true );
+        }
 
-        if ( poiScanIds == null ) {
-            ArrayList<Poi> nearbyPois = new ArrayList<Poi>();
+        // Query from locally cached pois.
+        List<Poi> rtnPois = getPois( context, location, name, type, minSize );
 
-            // No data cached locally.  Initiate new data pull from web.
-            PlaceSearch.NearbySearchTask task = new PlaceSearch.NearbySearchTask( context,
-                    location.getLatitude(), location.getLongitude(), null, null );
-            task.run();
+        return rtnPois;
+    }
 
-            // Iterate max 3 pulls (60 pois) from web.
-            while ( task != null && task.getResult() != null
-                && MapsApi.STATUS_OK.equals( task.getResult().status ) ) {
+    /**
+     * Whether pois near lat, lon are cached from an earlier poi scan.
+     */
+    public static boolean isCached(Context context, double lat, double lon) {
+        return hasPoiScans( context, lat, lon );
+    }
 
-                // Convert from places data to pois.
-                ArrayList<Poi> pois = PoiHelper.fromPlaceResults( task.getResult().results );
-                nearbyPois.addAll( pois );
+    /****************************************************************
+     * Single flight pulls.
+     ****************************************************************/
 
-                // Only pull more pois if avail, and if within 150m.
-                if ( TextUtils.isEmpty( task.getResult().next_page_token )
-                    || pois.size() == 0
-                    || PoiHelper.distanceTo( pois.get( pois.size() - 1 ), location ) > NEARBY_POI_MAX_DISTANCE ) {
-                    // No more pois.
-                    break;
-                }
+    /** In-flight pull of a cell.  Other callers for the cell wait on it instead of pulling. */
+    private static class PullFlight {
+        final CountDownLatch mDone = new CountDownLatch( 1 );
+        /** RequestLimiter.PRIORITY_* of the leader's pull. */
+        final int mPriority;
+        volatile boolean mPulled = false;
 
-                // Google places API requires a short pause before next page is avail.
-                try { Thread.sleep( 1500 ); } catch (InterruptedException e) { }
+        PullFlight(int priority) {
+            mPriority = priority;
+        }
+    }
+
+    private static final HashMap<Long, PullFlight> sPullFlights = new HashMap<Long, PullFlight>();
+
+    /** Max wait on another caller's pull.  Covers a rate limited dwell request. */
+    private static final long PULL_FLIGHT_MAX_WAIT_MS = 60 * 1000;
 
-                // Pull next page from web.
-                task = new PlaceSearch.NearbySearchTask( context, task.getResult().next_page_token );
-                task.run();
+    /**
+     * pullNearbyPois(), sharing one in-flight pull per GeoCell between concurrent callers.
+     * A dwell caller pulls on its own if the shared pull doesn't finish in time, or was a
+     * prefetch that failed, e.g. dropped for its smaller budget share.
+     *
+     * @param bRetry  Pull again if the shared pull didn't cover location.
+     * @return  Whether the (shared) first page was pulled and cached.
+     */
+    static boolean pullNearbyPoisShared(Context context, Location location,
+                                        String name, String type, Integer minSize,
+                                        int priority, boolean bMorePages, boolean bRetry) {
+        long cellId = GeoCell.getCellId( location.getLatitude(), location.getLongitude() );
+        PullFlight flight;
+        boolean bLeader = false;
+        synchronized ( sPullFlights ) {
+            flight = sPullFlights.get( cellId );
+            if ( flight == null ) {
+                flight = new PullFlight( priority );
+                sPullFlights.put( cellId, flight );
+                bLeader = true;
             }
+        }
 
-            // Cache the pois to local db.
-            cacheSearchResults( context,
-                    location.getLatitude(), location.getLongitude(),
-                    location.getTime(), nearbyPois );
-
-            // Logging.
-            LoggingService.logToFile( context,
-                    nearbyPois.size() + " pois pulled from web for location: "
-                    + Float.toString( (float) location.getLatitude() ) + ","
-                    + Float.toString( (float) location.getLongitude() ) );
-            if ( nearbyPois.size() > 0 ) {
-                StringBuilder sb = new StringBuilder();
-                int count = 0;
-                for ( Poi poi : nearbyPois ) {
-                    sb.append( count++ == 0 ? "" : ", " );
-                    sb.append( poi.getName() + "-" + poi.getRadius() );
+        if ( !bLeader ) {
+            LoggingService.logToFile( context, "Joining in-flight poi pull for cell " + cellId );
+            boolean bDone = false;
+            try {
+                bDone = flight.mDone.await( PULL_FLIGHT_MAX_WAIT_MS, TimeUnit.MILLISECONDS );
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            boolean bDwell = ( priority == RequestLimiter.PRIORITY_DWELL );
+            if ( !bDone ) {
+                if ( !bDwell ) {
+                    return false;
                 }
-                LoggingService.logToFile( context, sb.toString() );
+                // Leader still stuck.  Its flight stays registered, so pull outside it.
+                LoggingService.logToFile( context, "In-flight poi pull for cell " + cellId
+                        + " timed out.  Pulling for dwell." );
+                return pullNearbyPois( context, location, name, type, minSize, priority, bMorePages );
+            }
+            if ( !flight.mPulled && bDwell && flight.mPriority == RequestLimiter.PRIORITY_PREFETCH ) {
+                // Prefetch failed, maybe only for its priority.  Pull at dwell priority.
+                LoggingService.logToFile( context, "Prefetch poi pull for cell " + cellId
+                        + " failed.  Pulling for dwell." );
+                return pullNearbyPoisShared( context, location, name, type, minSize,
+                        priority, bMorePages, false );
+            }
+            // Shared pull may have been centered too far away within the cell.
+            if ( bRetry && !hasPoiScans( context, location.getLatitude(), location.getLongitude() ) ) {
+                return pullNearbyPoisShared( context, location, name, type, minSize,
+                        priority, bMorePages, false );
             }
+            return flight.mPulled;
+        }
 
+        try {
+            flight.mPulled = pullNearbyPois( context, location, name, type, minSize,
+                    priority, bMorePages );
+        } finally {
+            synchronized ( sPullFlights ) {
+                sPullFlights.remove( cellId );
+            }
+            flight.mDone.countDown();
         }
+        return flight.mPulled;
+    }
 
-        // Query from locally cached pois.
-        List<Poi> rtnPois = getPois( context, location, name, type, minSize );
+    /**
+     * Pull nearby pois from web into the cache.  Should not be called on UI thread.
+     * Use pullNearbyPoisShared() instead, unless already single flight.
+     *
+     * @param priority  RequestLimiter.PRIORITY_* of the first page.
+     * @param bMorePages  Also pull later pages in the background.
+     * @return  Whether the first page was pulled and cached.
+     */
+    private static boolean pullNearbyPois(Context context, Location location,
+                                  String name, String type, Integer minSize,
+                                  int priority, boolean bMorePages) {
+        // Responses are streamed straight into pois.
+        PlaceSearch.NearbySearchTask task = new PlaceSearch.NearbySearchTask( context,
+                location.getLatitude(), location.getLongitude(), null, null );
+        task.setPriority( priority );
+        NearbyPoisDecoder.Page page = task.run( new NearbyPoisDecoder() );
+        if ( page == null || !MapsApi.STATUS_OK.equals( page.status ) || page.pois.size() == 0 ) {
+            if ( task.isDropped() ) {
+                // Never went out.  Nothing learned about this location.
+                LoggingService.logToFile( context, "Poi pull dropped by RequestLimiter for location: "
+                        + Float.toString( (float) location.getLatitude() ) + ","
+                        + Float.toString( (float) location.getLongitude() ) );
+            } else if ( priority != RequestLimiter.PRIORITY_PREFETCH ) {
+                // Remember, so the next dwell here doesn't pull again right away.
+                // Prefetch guesses don't, so they never hold off a dwell's own pull.
+                cacheNegativeResult( context, location.getLatitude(), location.getLongitude(),
+                        getScanStatus( page ) );
+            }
+            return false;
+        }
 
-        return rtnPois;
+        ArrayList<Poi> nearbyPois = page.pois;
+        for ( Poi poi : nearbyPois ) {
+            PoiHelper.assignRanking( poi );
+        }
+
+        // Cache the first page to local db, so it can be returned right away.
+        long poiScanId = cacheSearchResults( context,
+                location.getLatitude(), location.getLongitude(),
+                location.getTime(), nearbyPois );
+
+        logPulledPois( context, location, nearbyPois, 1 );
+
+        // Later pages are pulled in the background, and merged into the cache.
+        if ( bMorePages && poiScanId >= 0 && hasMorePages( page, location ) ) {
+            NearbySearchPager.start( context, location, name, type, minSize,
+                    poiScanId, page.nextPageToken );
+        }
+        return poiScanId >= 0;
+    }
+
+    /****************************************************************
+     * Negative and failed poi scans.
+     ****************************************************************/
+
+    /** Places with no pois around, e.g. home or rural, rarely gain one. */
+    private static final long ZERO_RESULTS_TTL = 24 * 60 * 60 * 1000;
+
+    /** Quota errors back off from 15 min, doubling up to 12 hours. */
+    private static final long OVER_QUERY_LIMIT_MIN_TTL = 15 * 60 * 1000;
+    private static final long OVER_QUERY_LIMIT_MAX_TTL = 12 * 60 * 60 * 1000;
+
+    /** Network and other errors back off from 2 min, doubling up to 1 hour. */
+    private static final long FAILED_MIN_TTL = 2 * 60 * 1000;
+    private static final long FAILED_MAX_TTL = 60 * 60 * 1000;
+
+    private static int getScanStatus(NearbyPoisDecoder.Page page) {
+        if ( page == null ) {
+            return HereSenseContract.PoiScans.STATUS_FAILED;
+        } else if ( MapsApi.STATUS_OK.equals( page.status )
+                || MapsApi.STATUS_ZERO_RESULTS.equals( page.status ) ) {
+            return HereSenseContract.PoiScans.STATUS_ZERO_RESULTS;
+        } else if ( MapsApi.STATUS_OVER_QUERY_LIMIT.equals( page.status ) ) {
+            return HereSenseContract.PoiScans.STATUS_OVER_QUERY_LIMIT;
+        }
+        return HereSenseContract.PoiScans.STATUS_FAILED;
+    }
+
+    private static final String POI_SCAN_STATUS_SELECTION =
+            HereSenseContract.PoiScans.POI_SCAN_STATUS + "=?"
+            + " AND " + HereSenseContract.PoiScans.POI_SCAN_TIME + ">?";
+
+    /**
+     * Record a scan without pois, that holds until its TTL runs out.
+     */
+    private static void cacheNegativeResult(Context context, double lat, double lon, int status) {
+        long now = System.currentTimeMillis();
+        long ttl;
+        if ( status == HereSenseContract.PoiScans.STATUS_ZERO_RESULTS ) {
+            ttl = ZERO_RESULTS_TTL;
+        } else if ( status == HereSenseContract.PoiScans.STATUS_OVER_QUERY_LIMIT ) {
+            ttl = getBackoffTtl( context, lat, lon, status, now,
+                    OVER_QUERY_LIMIT_MIN_TTL, OVER_QUERY_LIMIT_MAX_TTL );
+        } else {
+            ttl = getBackoffTtl( context, lat, lon, status, now,
+                    FAILED_MIN_TTL, FAILED_MAX_TTL );
+        }
+
+        ContentValues cv = new ContentValues();
+        cv.put( HereSenseContract.PoiScans.POI_SCAN_LAT, (float) lat );
+        cv.put( HereSenseContract.PoiScans.POI_SCAN_LON, (float) lon );
+        cv.put( HereSenseContract.PoiScans.POI_SCAN_TIME, now );
+        cv.put( HereSenseContract.PoiScans.POI_SCAN_STATUS, status );
+        cv.put( HereSenseContract.PoiScans.POI_SCAN_EXPIRES, now + ttl );
+        context.getContentResolver().insert( HereSenseContract.PoiScans.CONTENT_URI, cv );
+        PoiQueryCache.invalidate();
+
+        LoggingService.logToFile( context, "No pois pulled (status " + status + ") for location: "
+                + Float.toString( (float) lat ) + "," + Float.toString( (float) lon )
+                + ".  Retry in " + ( ttl / 1000 ) + "s" );
+    }
+
+    /**
+     * Double the TTL of the latest scan failing the same way nearby, if it failed again
+     * within its TTL since expiring.  Otherwise start over at minTtl.
+     */
+    private static long getBackoffTtl(Context context, double lat, double lon, int status, long now,
+                                      long minTtl, long maxTtl) {
+        final double latRange = convertMeterToRadianLat( POI_SCANS_RANGE );
+        final double lonRange = convertMeterToRadianLon( POI_SCANS_RANGE, lat );
+        StringBuilder sbWhere = GeoCell.appendCellRangeSelection( new StringBuilder(),
+                HereSenseContract.PoiScans.POI_SCAN_CELL,
+                lat - latRange, lat + latRange, lon - lonRange, lon + lonRange );
+        sbWhere.append( " AND " ).append( POI_SCAN_SELECTION )
+                .append( " AND " ).append( POI_SCAN_STATUS_SELECTION );
+
+        long ttl = minTtl;
+        Cursor c = null;
+        try {
+            c = context.getContentResolver().query(
+                    HereSenseContract.PoiScans.CONTENT_URI,
+                    new String[] {
+                            HereSenseContract.PoiScans.POI_SCAN_TIME,
+                            HereSenseContract.PoiScans.POI_SCAN_EXPIRES
+                    },
+                    sbWhere.toString(),
+                    new String[] {
+                            Double.toString( lat + latRange ),
+                            Double.toString( lat - latRange ),
+                            Double.toString( lon + lonRange ),
+                            Double.toString( lon - lonRange ),
+                            Long.toString( now - POI_SCAN_TIME_RANGE ),
+                            Integer.toString( status ),
+                            Long.toString( now - 2 * maxTtl )
+                    },
+                    HereSenseContract.PoiScans.POI_SCAN_TIME + " DESC" );
+            if ( c != null && c.moveToFirst() && !c.isNull( 1 ) ) {
+                long lastTtl = c.getLong( 1 ) - c.getLong( 0 );
+                if ( now - c.getLong( 1 ) < lastTtl ) {
+                    ttl = Math.min( maxTtl, Math.max( minTtl, lastTtl * 2 ) );
+                }
+            }
+        } finally {
+            if ( c != null ) {
+                c.close();
+                c = null;
+            }
+        }
+        return ttl;
+    }
+
+    /**
+     * Only pull more pois if avail, and if the last poi is within 150m.
+     */
+    static boolean hasMorePages(NearbyPoisDecoder.Page page, Location location) {
+        return !TextUtils.isEmpty( page.nextPageToken )
+                && page.pois.size() > 0
+                && PoiHelper.distanceTo( page.pois.get( page.pois.size() - 1 ), location ) <= NEARBY_POI_MAX_DISTANCE;
+    }
+
+    static void logPulledPois(Context context, Location location, List<Poi> pois, int pageNum) {
+        LoggingService.logToFile( context,
+                pois.size() + " pois pulled from web (page " + pageNum + ") for location: "
+                + Float.toString( (float) location.getLatitude() ) + ","
+                + Float.toString( (float) location.getLongitude() ) );
+        if ( pois.size() > 0 ) {
+            StringBuilder sb = new StringBuilder();
+            int count = 0;
+            for ( Poi poi : pois ) {
+                sb.append( count++ == 0 ? "" : ", " );
+                sb.append( poi.getName() + "-" + poi.getRadius() );
+            }
+            LoggingService.logToFile( context, sb.toString() );
+        }
     }
 
     /****************************************************************
@@ -117,31 +357,90 @@ public class PoiSearch {
             + " AND " + HereSenseContract.PoiScans.POI_SCAN_LON + ">?"
             + " AND " + HereSenseContract.PoiScans.POI_SCAN_TIME + ">?";
 
-    private static String getPoiScanIds(Context context, double lat, double lon) {
-        StringBuilder sb = new StringBuilder();
-        long now = System.currentTimeMillis();
-        Cursor c = null;
+    private static final String[] POI_SCAN_PROJECTION = new String[] {
+            HereSenseContract.PoiScans.POI_SCAN_LAT,
+            HereSenseContract.PoiScans.POI_SCAN_LON,
+            HereSenseContract.PoiScans.POI_SCAN_TIME,
+            HereSenseContract.PoiScans.POI_SCAN_EXPIRES
+    };
 
+    private static boolean hasPoiScans(Context context, double lat, double lon) {
+        long now = System.currentTimeMillis();
         final double latRange = convertMeterToRadianLat( POI_SCANS_RANGE );
         final double lonRange = convertMeterToRadianLon( POI_SCANS_RANGE, lat );
 
+        // Exact bounding box over the poi scans of the cell.
+        PoiQueryCache.ScanRows scans = getCellPoiScans( context, GeoCell.getCellId( lat, lon ) );
+        for ( int i = 0; i < scans.count; i++ ) {
+            if ( scans.lats[i] < lat + latRange && scans.lats[i] > lat - latRange
+                    && scans.lons[i] < lon + lonRange && scans.lons[i] > lon - lonRange
+                    && scans.times[i] > now - POI_SCAN_TIME_RANGE
+                    && ( scans.expires[i] == 0 || scans.expires[i] > now ) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Poi scans in range of any point in cell.  Served from PoiQueryCache if possible.
+     */
+    private static PoiQueryCache.ScanRows getCellPoiScans(Context context, long cellId) {
+        PoiQueryCache.ensureObserving( context );
+        String key = PoiQueryCache.scansKey( cellId );
+        PoiQueryCache.ScanRows scans = (PoiQueryCache.ScanRows) PoiQueryCache.get( key );
+        if ( scans != null ) {
+            return scans;
+        }
+        int generation = PoiQueryCache.getGeneration();
+
+        long now = System.currentTimeMillis();
+        double minLat = GeoCell.getCellMinLat( cellId );
+        double minLon = GeoCell.getCellMinLon( cellId );
+        final double latRange = convertMeterToRadianLat( POI_SCANS_RANGE );
+        final double lonRange = convertMeterToRadianLon( POI_SCANS_RANGE,
+                Math.max( Math.abs( minLat ), Math.abs( minLat + GeoCell.CELL_SIZE ) ) );
+        double maxLat = minLat + GeoCell.CELL_SIZE + latRange;
+        double maxLon = minLon + GeoCell.CELL_SIZE + lonRange;
+        minLat -= latRange;
+        minLon -= lonRange;
+
+        // Indexed cell range scan first, then bounding box.
+        StringBuilder sbWhere = GeoCell.appendCellRangeSelection( new StringBuilder(),
+                HereSenseContract.PoiScans.POI_SCAN_CELL,
+                minLat, maxLat, minLon, maxLon );
+        sbWhere.append( " AND " ).append( POI_SCAN_SELECTION );
+
+        int count = 0;
+        double[] lats = new double[4];
+        double[] lons = new double[4];
+        long[] times = new long[4];
+        long[] expires = new long[4];
+        Cursor c = null;
         try {
             c = context.getContentResolver().query(
-                    HereSenseContract.PoiScans.CONTENT_URI, null,
-                    POI_SCAN_SELECTION,
+                    HereSenseContract.PoiScans.CONTENT_URI, POI_SCAN_PROJECTION,
+                    sbWhere.toString(),
                     new String[] {
-                            Double.toString( lat + latRange ),
-                            Double.toString( lat - latRange ),
-                            Double.toString( lon + lonRange ),
-                            Double.toString( lon - lonRange ),
+                            Double.toString( maxLat ),
+                            Double.toString( minLat ),
+                            Double.toString( maxLon ),
+                            Double.toString( minLon ),
                             Long.toString( now - POI_SCAN_TIME_RANGE )
                     },
                     null );
-            int count = 0;
             while ( c != null && c.moveToNext() ) {
-                long poiScanId = c.getLong( c.getColumnIndexOrThrow( HereSenseContract.PoiScans._ID ) );
-                sb.append( count++ == 0 ? "" : "," );
-                sb.append( poiScanId );
+                if ( count == lats.length ) {
+                    lats = Arrays.copyOf( lats, count * 2 );
+                    lons = Arrays.copyOf( lons, count * 2 );
+                    times = Arrays.copyOf( times, count * 2 );
+                    expires = Arrays.copyOf( expires, count * 2 );
+                }
+                lats[count] = c.getDouble( 0 );
+                lons[count] = c.getDouble( 1 );
+                times[count] = c.getLong( 2 );
+                expires[count] = ( c.isNull( 3 ) ? 0 : c.getLong( 3 ) );
+                count++;
             }
         } finally {
             if ( c != null ) {
@@ -150,8 +449,9 @@ public class PoiSearch {
             }
         }
 
-        String ids = sb.toString();
-        return ( ids.isEmpty() ? null : ids );
+        scans = new PoiQueryCache.ScanRows( count, lats, lons, times, expires );
+        PoiQueryCache.put( key, scans, generation );
+        return scans;
     }
 
     private static final double S_CONST_EARTH_RADIUS = 6373000.0;
@@ -170,14 +470,17 @@ public class PoiSearch {
      *
      ****************************************************************/
 
-    private static void cacheSearchResults(Context context,
+    /**
+     * @return  Id of the new poi_scans row, or -1 if nothing was cached.
+     */
+    private static long cacheSearchResults(Context context,
                                            double lat, double lon, long now,
                                            List<Poi> pois) {
         if ( pois == null || pois.size() == 0 ){
-            return;  // No pois to cache.
+            return -1;  // No pois to cache.
         }
 
-        // Batched transactions to insert into local Poi database.
+        // Single batched transaction to insert into local Poi database.
 
         // 1) Insert into poi_scans table.
         ContentResolver resolver = context.getContentResolver();
@@ -192,51 +495,62 @@ public class PoiSearch {
                 .build() );
         int poi_scan_op_idx = 0;
 
-        // 2) Use update operations to avoid duplicating pois.
+        // 2) Upsert pois by place id, to avoid duplicating pois.
+        Uri upsertUri = HereSenseContract.Pois.CONTENT_URI.buildUpon()
+                .appendQueryParameter( HereSenseContract.Pois.PARAM_UPSERT, "true" )
+                .build();
         int opCount = 0;
         for ( Poi poi : pois ) {
             operations.add( ContentProviderOperation
-                    .newUpdate( HereSenseContract.Pois.CONTENT_URI )
-                    .withSelection( HereSenseContract.Pois.PLACE_ID + "=?", new String[] { poi.getPlaceId() } )
+                    .newInsert( upsertUri )
                     .withValues( PoiHelper.toContentValues( poi ) )
                     .withValueBackReference( HereSenseContract.Pois.POI_SCAN_IDX, poi_scan_op_idx )
                     .withYieldAllowed( ++opCount % 50 == 0 )
                     .build() );
         }
 
-        ContentProviderResult[] updateResults = null;
         try {
-            updateResults = resolver.applyBatch( HereSenseContract.AUTHORITY, operations );
+            ContentProviderResult[] results = resolver.applyBatch( HereSenseContract.AUTHORITY, operations );
+            return ContentUris.parseId( results[poi_scan_op_idx].uri );
         } catch (RemoteException e) {
         } catch (OperationApplicationException e) {
+        } catch (RuntimeException e) {
+            // Bad result uri.
+        } finally {
+            // Don't wait on the provider notification.  Lookups right after must see these.
+            PoiQueryCache.invalidate();
         }
+        return -1;
+    }
 
-        // 3) Otherwise, use insert operations.
-        if ( updateResults != null && updateResults.length > 0 ) {
-            long poiScanId = ContentUris.parseId( updateResults[0].uri );
-            operations.clear();
-            opCount = 0;
-            for ( int i = 0; i < pois.size(); i++ ) {
-                ContentProviderResult updateResult = updateResults[i + 1];
-                boolean bUpdated = ( updateResult.uri != null
-                        || updateResult.count != null && updateResult.count > 0 );
-                if ( bUpdated ) {
-                    continue;
-                }
-                operations.add( ContentProviderOperation
-                        .newInsert( HereSenseContract.Pois.CONTENT_URI )
-                        .withValues( PoiHelper.toContentValues( pois.get( i ) ) )
-                        .withValue( HereSenseContract.Pois.POI_SCAN_IDX, poiScanId )
-                        .withYieldAllowed( ++opCount % 50 == 0 )
-                        .build() );
-            }
+    /**
+     * Merge a later page of an earlier poi scan into the cache.
+     */
+    static void cachePagePois(Context context, long poiScanId, List<Poi> pois) {
+        if ( pois == null || pois.size() == 0 ){
+            return;  // No pois to cache.
+        }
 
-            try {
-                ContentProviderResult[] insertResults =
-                        resolver.applyBatch( HereSenseContract.AUTHORITY, operations );
-            } catch (RemoteException e) {
-            } catch (OperationApplicationException e) {
-            }
+        Uri upsertUri = HereSenseContract.Pois.CONTENT_URI.buildUpon()
+                .appendQueryParameter( HereSenseContract.Pois.PARAM_UPSERT, "true" )
+                .build();
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        int opCount = 0;
+        for ( Poi poi : pois ) {
+            operations.add( ContentProviderOperation
+                    .newInsert( upsertUri )
+                    .withValues( PoiHelper.toContentValues( poi ) )
+                    .withValue( HereSenseContract.Pois.POI_SCAN_IDX, poiScanId )
+                    .withYieldAllowed( ++opCount % 50 == 0 )
+                    .build() );
+        }
+
+        try {
+            context.getContentResolver().applyBatch( HereSenseContract.AUTHORITY, operations );
+        } catch (RemoteException e) {
+        } catch (OperationApplicationException e) {
+        } finally {
+            PoiQueryCache.invalidate();
         }
     }
 
@@ -245,15 +559,63 @@ public class PoiSearch {
      ****************************************************************/
 
     private static final float POIS_RANGE = 250f;
-    private static final String POI_SELECTION =
-            HereSenseContract.Pois.LATITUDE + "<?"
-            + " AND " + HereSenseContract.Pois.LATITUDE + ">?"
-            + " AND " + HereSenseContract.Pois.LONGITUDE + "<?"
-            + " AND " + HereSenseContract.Pois.LONGITUDE + ">?";
 
-    private static List<Poi> getPois(Context context, Location location,
+    /** Spatial index used by provider for poi lookups.  See HereSenseContract.Pois.PARAM_SPATIAL_INDEX. */
+    private static final String POIS_SPATIAL_INDEX = HereSenseContract.Pois.SPATIAL_INDEX_CELL;
+
+    static List<Poi> getPois(Context context, Location location,
                                      String name, String type, Integer minSize) {
-        StringBuilder sbWhere = new StringBuilder( POI_SELECTION );
+        final double lat = location.getLatitude();
+        final double lon = location.getLongitude();
+        final double latRange = convertMeterToRadianLat( POIS_RANGE );
+        final double lonRange = convertMeterToRadianLon( POIS_RANGE, lat );
+
+        // Exact bounding box over the pois of the cell.
+        List<Poi> cellPois = getCellPois( context, GeoCell.getCellId( lat, lon ), name, type, minSize );
+        ArrayList<Poi> pois = new ArrayList<Poi>();
+        for ( Poi poi : cellPois ) {
+            if ( poi.getLatitude() < lat + latRange && poi.getLatitude() > lat - latRange
+                    && poi.getLongitude() < lon + lonRange && poi.getLongitude() > lon - lonRange ) {
+                pois.add( poi );
+            }
+        }
+
+        List<Poi> rtnPois = sortPois( context, location, pois );
+
+        return rtnPois;
+    }
+
+    /**
+     * Pois in range of any point in cell.  Served from PoiQueryCache if possible.
+     */
+    @SuppressWarnings("unchecked")
+    private static List<Poi> getCellPois(Context context, long cellId,
+                                         String name, String type, Integer minSize) {
+        PoiQueryCache.ensureObserving( context );
+        String key = PoiQueryCache.poisKey( cellId, name, type, minSize );
+        List<Poi> cellPois = (List<Poi>) PoiQueryCache.get( key );
+        if ( cellPois != null ) {
+            return cellPois;
+        }
+        int generation = PoiQueryCache.getGeneration();
+
+        double minLat = GeoCell.getCellMinLat( cellId );
+        double minLon = GeoCell.getCellMinLon( cellId );
+        final double latRange = convertMeterToRadianLat( POIS_RANGE );
+        final double lonRange = convertMeterToRadianLon( POIS_RANGE,
+                Math.max( Math.abs( minLat ), Math.abs( minLat + GeoCell.CELL_SIZE ) ) );
+
+        // Bounding box lookup through provider spatial index.
+        Uri uri = HereSenseContract.Pois.CONTENT_URI.buildUpon()
+                .appendQueryParameter( HereSenseContract.Pois.PARAM_BBOX,
+                        ( minLat - latRange ) + ","
+                        + ( minLon - lonRange ) + ","
+                        + ( minLat + GeoCell.CELL_SIZE + latRange ) + ","
+                        + ( minLon + GeoCell.CELL_SIZE + lonRange ) )
+                .appendQueryParameter( HereSenseContract.Pois.PARAM_SPATIAL_INDEX, POIS_SPATIAL_INDEX )
+                .build();
+
+        StringBuilder sbWhere = new StringBuilder();
         if ( !TextUtils.isEmpty( name ) ) {
             sbWhere.append( sbWhere.length() == 0 ? "" : " AND " )
                     .append( HereSenseContract.Pois.NAME )
@@ -272,19 +634,11 @@ public class PoiSearch {
         ArrayList<Poi> pois = new ArrayList<Poi>();
         Cursor c = null;
 
-        final double latRange = convertMeterToRadianLat( POIS_RANGE );
-        final double lonRange = convertMeterToRadianLon( POIS_RANGE, location.getLatitude() );
-
         try {
             c = context.getContentResolver().query(
-                    HereSenseContract.Pois.CONTENT_URI, null,
-                    sbWhere.toString(),
-                    new String[] {
-                            Double.toString( location.getLatitude() + latRange ),
-                            Double.toString( location.getLatitude() - latRange ),
-                            Double.toString( location.getLongitude() + lonRange ),
-                            Double.toString( location.getLongitude() - lonRange )
-                    }, null );
+                    uri, null,
+                    sbWhere.length() == 0 ? null : sbWhere.toString(),
+                    null, null );
             while ( c != null && c.moveToNext() ) {
                 Poi poi = PoiHelper.fromCursor( c );
                 pois.add( poi );
@@ -296,39 +650,10 @@ public class PoiSearch {
             }
         }
 
-        List<Poi> rtnPois = sortPois( context, location, pois );
-
-        return rtnPois;
-    }
-
-    private static class PoiSortData {
-        Poi mPoi;
-        float mConfidence;
-        float mDist;
-        PoiSortData(Poi poi, float confidence, float dist) {
-            mPoi = poi;
-            mConfidence = confidence;
-            mDist = dist;
-        }
+        PoiQueryCache.put( key, pois, generation );
+        return pois;
     }
 
-    private static final Comparator<PoiSortData> POI_COMPARATOR = new Comparator<PoiSortData>() {
-        @Override
-        public int compare(PoiSortData lhs, PoiSortData rhs) {
-            if ( Math.abs( lhs.mConfidence - rhs.mConfidence ) >= 0.1 ) {
-                // Compare confidence level 1st.
-                return ( lhs.mConfidence > rhs.mConfidence ? -1 : 1 );
-            } else if ( lhs.mPoi.getProminence() != rhs.mPoi.getProminence() ) {
-                // Compare prominence level 2nd.
-                return ( lhs.mPoi.getProminence() > rhs.mPoi.getProminence() ? -1 : 1 );
-            } else {
-                // Compare distance 3rd.
-                return ( lhs.mDist == rhs.mDist ? 0 :
-                        lhs.mDist < rhs.mDist ? -1 : 1 );
-            }
-        }
-    };
-
     private static final float POI_DWELL_CONFIDENCE_THRESHOLD = 0.0f;
 
     private static List<Poi> sortPois(Context context, Location location, List<Poi> pois) {
@@ -336,37 +661,33 @@ public class PoiSearch {
             return null;
         }
 
-        ArrayList<PoiSortData> poiSortData = new ArrayList<PoiSortData>();
-        Location poiLocation = new Location( "" );
-        for( Poi poi : pois ) {
-            float confidence = MathHelper.getLocationConfidenceAtPoi(
-                    poi.getLatitude(), poi.getLongitude(), poi.getRadius(),
-                    location );
-            poiLocation.setLatitude( poi.getLatitude() );
-            poiLocation.setLongitude( poi.getLongitude() );
-            float dist = location.distanceTo( poiLocation );
-            if ( confidence >= POI_DWELL_CONFIDENCE_THRESHOLD ) {
-                poiSortData.add( new PoiSortData( poi, confidence, dist ) );
-            }
-        }
-
-        // Sort by poiConfidence.
-        Collections.sort( poiSortData, POI_COMPARATOR );
+        // Batch score and rank by poiConfidence.
+        PoiRanker ranker = new PoiRanker( pois );
+        int rankedCount = ranker.rank( location.getLatitude(), location.getLongitude(),
+                location.getAccuracy(), POI_DWELL_CONFIDENCE_THRESHOLD );
 
         // Convert list and return.
-        pois.clear();
+        ArrayList<Poi> sortedPois = new ArrayList<Poi>( rankedCount );
         StringBuilder sb = new StringBuilder( "Pois: " );
-        int count = 0;
-        for ( PoiSortData poiData : poiSortData ) {
-            pois.add( poiData.mPoi );
-            sb.append( count++ == 0 ? "" : ", " );
-            sb.append( poiData.mPoi.getName() + "=" + poiData.mConfidence );
+        String[] placeIds = new String[rankedCount];
+        float[] confidences = new float[rankedCount];
+        float[] distances = new float[rankedCount];
+        for ( int i = 0; i < rankedCount; i++ ) {
+            Poi poi = ranker.getPoi( i );
+            sortedPois.add( poi );
+            sb.append( i == 0 ? "" : ", " );
+            sb.append( poi.getName() + "=" + ranker.getConfidence( i ) );
+            placeIds[i] = poi.getPlaceId();
+            confidences[i] = ranker.getConfidence( i );
+            distances[i] = ranker.getDistance( i );
         }
 
         // Logging.
         LoggingService.logToFile( context, sb.toString() );
+        EventLog.logPoiCandidates( context, location.getTime(), rankedCount,
+                placeIds, confidences, distances );
 
-        return pois;
+        return sortedPois;
     }
 
     /****************************************************************
@@ -432,13 +753,20 @@ public class PoiSearch {
             // poi.setRating( 0f );
             // poi.setConfidence( 0 );
 
+            assignRanking( poi );
+
+            return poi;
+        }
+
+        /**
+         * Assign radius and prominence from poi types.
+         */
+        public static void assignRanking(Poi poi) {
             // Assign poi radius.
             poi.setRadius( getPoiRadius( poi.getTypes() ) );
 
             // Use our own prominence ranking system.
             poi.setProminence( getPoiProminence( poi.getTypes() ) );
-
-            return poi;
         }
 
         public static ArrayList<Poi> fromPlaceResults(MapsApi.Place[] places) {
@@ -482,10 +810,9 @@ public class PoiSearch {
         }
 
         public static float distanceTo(Poi poi, Location location) {
-            Location poiLocation = new Location("");
-            poiLocation.setLatitude( poi.getLatitude() );
-            poiLocation.setLongitude( poi.getLongitude() );
-            return location.distanceTo( poiLocation );
+            return (float) MathHelper.distanceBetween(
+                    location.getLatitude(), location.getLongitude(),
+                    poi.getLatitude(), poi.getLongitude() );
         }
     }
 
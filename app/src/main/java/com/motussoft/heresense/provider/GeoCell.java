@@ -0,0 +1,94 @@
+package com.motussoft.heresense.provider;
+
+/**
+ * Fixed grid spatial cell ids for indexed bounding box lookups.
+ *
+ * The world is split into 1/CELLS_PER_DEGREE degree cells (~217m north-south), numbered
+ * row-major:  cellId = latIndex * LON_CELLS + lonIndex.  Cells along a latitude row are
+ * consecutive ids, so a bounding box maps to one indexed id range per row it spans.
+ */
+public class GeoCell {
+
+    /** Utility class can't be instantiated */
+    private GeoCell() { }
+
+    public static final int CELLS_PER_DEGREE = 512;
+    public static final long LON_CELLS = 360L * CELLS_PER_DEGREE;
+    public static final long LAT_CELLS = 180L * CELLS_PER_DEGREE;
+
+    public static long getCellId(double lat, double lon) {
+        return ( latIndex( lat ) * LON_CELLS + lonIndex( lon ) );
+    }
+
+    /** Cell edge length in degrees. */
+    public static final double CELL_SIZE = 1.0 / CELLS_PER_DEGREE;
+
+    /** South edge of cell. */
+    public static double getCellMinLat(long cellId) {
+        return (double) ( cellId / LON_CELLS ) / CELLS_PER_DEGREE - 90.0;
+    }
+
+    /** West edge of cell. */
+    public static double getCellMinLon(long cellId) {
+        return (double) ( cellId % LON_CELLS ) / CELLS_PER_DEGREE - 180.0;
+    }
+
+    /**
+     * SQL expression computing the cell id from lat/lon columns.  Matches getCellId() for
+     * lat in [-90, 90] and lon in [-180, 180], lat 90 falling in the last row and lon 180
+     * wrapping to the -180 column.
+     */
+    static String getCellIdSql(String latColumn, String lonColumn) {
+        return "(MIN(CAST((" + latColumn + "+90)*" + CELLS_PER_DEGREE + " AS INTEGER)," + ( LAT_CELLS - 1 ) + ")*" + LON_CELLS
+                + "+CAST((" + lonColumn + "+180)*" + CELLS_PER_DEGREE + " AS INTEGER)%" + LON_CELLS + ")";
+    }
+
+    /**
+     * Append selection restricting cellColumn to the cells covering the bounding box.
+     * Appends one BETWEEN range per latitude row.
+     */
+    public static StringBuilder appendCellRangeSelection(StringBuilder sb, String cellColumn,
+                                                         double minLat, double maxLat,
+                                                         double minLon, double maxLon) {
+        long minLatIdx = latIndex( minLat );
+        long maxLatIdx = latIndex( maxLat );
+        long minLonIdx = lonIndex( minLon );
+        long maxLonIdx = lonIndex( maxLon );
+
+        sb.append( '(' );
+        boolean bFirst = true;
+        for ( long latIdx = minLatIdx; latIdx <= maxLatIdx; latIdx++ ) {
+            long rowBase = latIdx * LON_CELLS;
+            if ( minLonIdx <= maxLonIdx ) {
+                bFirst = appendRange( sb, cellColumn, rowBase + minLonIdx, rowBase + maxLonIdx, bFirst );
+            } else {
+                // Bounding box wraps around the antimeridian.
+                bFirst = appendRange( sb, cellColumn, rowBase + minLonIdx, rowBase + LON_CELLS - 1, bFirst );
+                bFirst = appendRange( sb, cellColumn, rowBase, rowBase + maxLonIdx, bFirst );
+            }
+        }
+        sb.append( ')' );
+        return sb;
+    }
+
+    private static boolean appendRange(StringBuilder sb, String cellColumn,
+                                       long from, long to, boolean bFirst) {
+        sb.append( bFirst ? "" : " OR " )
+                .append( cellColumn )
+                .append( " BETWEEN " ).append( from )
+                .append( " AND " ).append( to );
+        return false;
+    }
+
+    private static long latIndex(double lat) {
+        lat = Math.max( -90.0, Math.min( 90.0, lat ) );
+        // Lat 90 is the north edge of the last row, not a row of its own.
+        return Math.min( LAT_CELLS - 1, (long) ( ( lat + 90.0 ) * CELLS_PER_DEGREE ) );
+    }
+
+    private static long lonIndex(double lon) {
+        // Normalize to [-180, 180).
+        lon = ( ( lon + 180.0 ) % 360.0 + 360.0 ) % 360.0 - 180.0;
+        return (long) ( ( lon + 180.0 ) * CELLS_PER_DEGREE );
+    }
+}
@@ -1,8 +1,14 @@
 package com.motussoft.heresense.provider;
 
+import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.provider.BaseColumns;
+import android.text.TextUtils;
+import android.util.Log;
 
 public class HereSenseContract {
 
@@ -19,6 +25,12 @@ public class HereSenseContract {
         public static final String POI_SCAN_LAT = "poi_scan_lat";
         public static final String POI_SCAN_LON = "poi_scan_lon";
         public static final String POI_SCAN_TIME = "poi_scan_time";
+        /** {@link GeoCell} id of POI_SCAN_LAT/POI_SCAN_LON.  Maintained by provider. */
+        public static final String POI_SCAN_CELL = "poi_scan_cell";
+        /** One of PoiScans.STATUS_*.  Defaults to STATUS_OK. */
+        public static final String POI_SCAN_STATUS = "poi_scan_status";
+        /** Time after which a negative or failed scan no longer holds.  Null for STATUS_OK. */
+        public static final String POI_SCAN_EXPIRES = "poi_scan_expires";
     }
 
     /**
@@ -36,6 +48,12 @@ public class HereSenseContract {
 
         /** MIME type of a {@link #CONTENT_URI} subdirectory of a single poi scan. */
         public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/poi_scan";
+
+        /** POI_SCAN_STATUS values.  Scans other than STATUS_OK have no pois. */
+        public static final int STATUS_OK = 0;
+        public static final int STATUS_ZERO_RESULTS = 1;
+        public static final int STATUS_OVER_QUERY_LIMIT = 2;
+        public static final int STATUS_FAILED = 3;
     }
 
     /**
@@ -54,14 +72,38 @@ public class HereSenseContract {
                 + _ID + " INTEGER PRIMARY KEY AUTOINCREMENT,"
                 + POI_SCAN_LAT + " REAL NOT NULL,"
                 + POI_SCAN_LON + " REAL NOT NULL,"
-                + POI_SCAN_TIME + " INTEGER NOT NULL"
+                + POI_SCAN_TIME + " INTEGER NOT NULL,"
+                + POI_SCAN_CELL + " INTEGER,"
+                + POI_SCAN_STATUS + " INTEGER NOT NULL DEFAULT " + STATUS_OK + ","
+                + POI_SCAN_EXPIRES + " INTEGER"
                 + ");";
 
+        /** SQL to create spatial cell index. */
+        static final String CREATE_CELL_INDEX = "CREATE INDEX IF NOT EXISTS "
+                + TABLE_NAME + "_" + POI_SCAN_CELL + "_idx ON "
+                + TABLE_NAME + " (" + POI_SCAN_CELL + ");";
+
         static final String DROP_TABLE = "DROP TABLE IF EXISTS " + TABLE_NAME;
 
         /** Helper func to create poi_scans table. */
         static final void create(SQLiteDatabase db) {
             db.execSQL(CREATE_TABLE);
+            db.execSQL(CREATE_CELL_INDEX);
+        }
+
+        /** Helper func to add and backfill the cell column on a version 4 table. */
+        static final void addCellColumn(SQLiteDatabase db) {
+            db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + POI_SCAN_CELL + " INTEGER");
+            db.execSQL("UPDATE " + TABLE_NAME + " SET " + POI_SCAN_CELL + "="
+                    + GeoCell.getCellIdSql( POI_SCAN_LAT, POI_SCAN_LON ));
+            db.execSQL(CREATE_CELL_INDEX);
+        }
+
+        /** Helper func to add the status columns on a version 7 table.  Existing scans are ok. */
+        static final void addStatusColumns(SQLiteDatabase db) {
+            db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + POI_SCAN_STATUS
+                    + " INTEGER NOT NULL DEFAULT " + STATUS_OK);
+            db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + POI_SCAN_EXPIRES + " INTEGER");
         }
 
         /** Helper func to drop the poi_scans table. */
@@ -89,6 +131,8 @@ public class HereSenseContract {
         public static final String APP_URL = "app_url";
         public static final String RATING = "rating";
         public static final String PLACE_DETAILS = "place_details";
+        /** {@link GeoCell} id of LATITUDE/LONGITUDE.  Maintained by provider. */
+        public static final String CELL = "cell_id";
     }
 
     /**
@@ -106,6 +150,27 @@ public class HereSenseContract {
 
         /** MIME type of a {@link #CONTENT_URI} subdirectory of a single poi scan. */
         public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/poi";
+
+        /**
+         * Insert query parameter "true".  Updates the poi with the same PLACE_ID in place,
+         * otherwise inserts.
+         */
+        public static final String PARAM_UPSERT = "upsert";
+
+        /** Query parameter "minLat,minLon,maxLat,maxLon".  Selects pois centered within. */
+        public static final String PARAM_BBOX = "bbox";
+
+        /** Query parameter "lat,lon".  Selects pois whose POI_RADIUS box covers the point. */
+        public static final String PARAM_COVERS = "covers";
+
+        /** Query parameter selecting the spatial index used for {@link #PARAM_BBOX} / {@link #PARAM_COVERS}. */
+        public static final String PARAM_SPATIAL_INDEX = "spatial_index";
+
+        /** Indexed {@link GeoCell} ranges.  Default.  PARAM_COVERS falls back to a table scan. */
+        public static final String SPATIAL_INDEX_CELL = "cell";
+
+        /** R*Tree probe.  Falls back to SPATIAL_INDEX_CELL where SQLite lacks rtree support. */
+        public static final String SPATIAL_INDEX_RTREE = "rtree";
     }
 
     /**
@@ -136,14 +201,43 @@ public class HereSenseContract {
                 + URL + " TEXT,"
                 + APP_URL + " TEXT,"
                 + RATING + " REAL,"
-                + PLACE_DETAILS + " INTEGER"
+                + PLACE_DETAILS + " INTEGER,"
+                + CELL + " INTEGER"
                 + ");";
 
+        /** SQL to create spatial cell index. */
+        static final String CREATE_CELL_INDEX = "CREATE INDEX IF NOT EXISTS "
+                + TABLE_NAME + "_" + CELL + "_idx ON "
+                + TABLE_NAME + " (" + CELL + ");";
+
+        /** SQL to create unique place id index. */
+        static final String CREATE_PLACE_ID_INDEX = "CREATE UNIQUE INDEX IF NOT EXISTS "
+                + TABLE_NAME + "_" + PLACE_ID + "_idx ON "
+                + TABLE_NAME + " (" + PLACE_ID + ");";
+
         static final String DROP_TABLE = "DROP TABLE IF EXISTS " + TABLE_NAME;
 
         /** Helper func to create poi_scans table. */
         static final void create(SQLiteDatabase db) {
             db.execSQL(CREATE_TABLE);
+            db.execSQL(CREATE_CELL_INDEX);
+            db.execSQL(CREATE_PLACE_ID_INDEX);
+        }
+
+        /** Helper func to drop duplicate place ids, keeping the latest, and add the unique index. */
+        static final void addPlaceIdIndex(SQLiteDatabase db) {
+            db.execSQL("DELETE FROM " + TABLE_NAME + " WHERE " + PLACE_ID + " IS NOT NULL"
+                    + " AND " + _ID + " NOT IN (SELECT MAX(" + _ID + ") FROM " + TABLE_NAME
+                    + " WHERE " + PLACE_ID + " IS NOT NULL GROUP BY " + PLACE_ID + ")");
+            db.execSQL(CREATE_PLACE_ID_INDEX);
+        }
+
+        /** Helper func to add and backfill the cell column on a version 4 table. */
+        static final void addCellColumn(SQLiteDatabase db) {
+            db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + CELL + " INTEGER");
+            db.execSQL("UPDATE " + TABLE_NAME + " SET " + CELL + "="
+                    + GeoCell.getCellIdSql( LATITUDE, LONGITUDE ));
+            db.execSQL(CREATE_CELL_INDEX);
         }
 
         /** Helper func to drop the poi_scans table. */
@@ -152,6 +246,134 @@ public class HereSenseContract {
         }
     }
 
+    /**
+     * Pois R*Tree virtual table.  Mirrors pois row ids with bounding boxes sized by POI_RADIUS.
+     * Kept in sync by the provider.
+     */
+    static final class PoisRTreeTable {
+        /** Utility class can't be instantiated */
+        private PoisRTreeTable() { }
+
+        /** Table name */
+        public static final String TABLE_NAME = "pois_rtree";
+
+        public static final String ID = "id";
+        public static final String MIN_LAT = "min_lat";
+        public static final String MAX_LAT = "max_lat";
+        public static final String MIN_LON = "min_lon";
+        public static final String MAX_LON = "max_lon";
+
+        /** SQL to create table. */
+        static final String CREATE_TABLE = "CREATE VIRTUAL TABLE "
+                + TABLE_NAME + " USING rtree("
+                + ID + ","
+                + MIN_LAT + "," + MAX_LAT + ","
+                + MIN_LON + "," + MAX_LON
+                + ");";
+
+        static final String DROP_TABLE = "DROP TABLE IF EXISTS " + TABLE_NAME;
+
+        /** SQL to insert or refresh a poi bounding box. */
+        static final String REPLACE = "INSERT OR REPLACE INTO " + TABLE_NAME + " ("
+                + ID + "," + MIN_LAT + "," + MAX_LAT + "," + MIN_LON + "," + MAX_LON
+                + ") VALUES (?,?,?,?,?)";
+
+        private static final double EARTH_RADIUS = 6373000.0;
+        private static final double M2D = 180 / ( Math.PI * EARTH_RADIUS );
+        private static final double DEG2RAD = Math.PI / 180;
+
+        /** Radius in meters to latitude degrees. */
+        static double latDegrees(double meters) {
+            return ( M2D * meters );
+        }
+
+        /** Radius in meters to longitude degrees at latitude. */
+        static double lonDegrees(double meters, double latitude) {
+            return ( M2D * meters / Math.cos( DEG2RAD * latitude ) );
+        }
+
+        /**
+         * Helper func to create pois_rtree table.
+         * @return false if SQLite was built without rtree support.
+         */
+        static final boolean create(SQLiteDatabase db) {
+            try {
+                db.execSQL(CREATE_TABLE);
+                return true;
+            } catch (SQLiteException e) {
+                Log.w("PoisRTreeTable", "rtree not supported: " + e);
+                return false;
+            }
+        }
+
+        /** Helper func to drop the pois_rtree table. */
+        static final void drop(SQLiteDatabase db) {
+            db.execSQL(DROP_TABLE);
+        }
+
+        /** Whether table exists. */
+        static final boolean exists(SQLiteDatabase db) {
+            return DatabaseUtils.longForQuery( db,
+                    "SELECT COUNT(*) FROM sqlite_master WHERE type='table' AND name=?",
+                    new String[] { TABLE_NAME } ) > 0;
+        }
+
+        /**
+         * Insert or refresh bounding boxes of pois matching selection.
+         */
+        static final void sync(SQLiteDatabase db, String selection, String[] selectionArgs) {
+            Cursor c = null;
+            SQLiteStatement stmt = null;
+            try {
+                c = db.query( PoisTable.TABLE_NAME,
+                        new String[] { PoisTable._ID, PoisTable.LATITUDE, PoisTable.LONGITUDE, PoisTable.POI_RADIUS },
+                        selection, selectionArgs, null, null, null );
+                stmt = db.compileStatement( REPLACE );
+                while ( c.moveToNext() ) {
+                    double lat = c.getDouble( 1 );
+                    double lon = c.getDouble( 2 );
+                    double radius = c.getDouble( 3 );
+                    double latRange = latDegrees( radius );
+                    double lonRange = lonDegrees( radius, lat );
+                    stmt.bindLong( 1, c.getLong( 0 ) );
+                    stmt.bindDouble( 2, lat - latRange );
+                    stmt.bindDouble( 3, lat + latRange );
+                    stmt.bindDouble( 4, lon - lonRange );
+                    stmt.bindDouble( 5, lon + lonRange );
+                    stmt.executeInsert();
+                }
+            } finally {
+                if ( stmt != null ) {
+                    stmt.close();
+                }
+                if ( c != null ) {
+                    c.close();
+                }
+            }
+        }
+
+        /**
+         * Remove bounding boxes of pois no longer in pois table.
+         */
+        static final void prune(SQLiteDatabase db) {
+            db.execSQL( "DELETE FROM " + TABLE_NAME + " WHERE " + ID + " NOT IN (SELECT "
+                    + PoisTable._ID + " FROM " + PoisTable.TABLE_NAME + ")" );
+        }
+
+        /**
+         * Remove bounding boxes of pois matching selection.  Called before deleting the pois.
+         */
+        static final void remove(SQLiteDatabase db, String selection, String[] selectionArgs) {
+            if ( TextUtils.isEmpty( selection ) ) {
+                db.execSQL( "DELETE FROM " + TABLE_NAME );
+                return;
+            }
+            db.execSQL( "DELETE FROM " + TABLE_NAME + " WHERE " + ID + " IN (SELECT "
+                    + PoisTable._ID + " FROM " + PoisTable.TABLE_NAME + " WHERE " + selection + ")",
+                    selectionArgs == null ? new Object[0] : selectionArgs );
+        }
+    }
+
     /**
      * Dwells Columns.
      */
@@ -14,10 +14,10 @@ class HereSenseDbOpenHelper extends SQLiteOpenHelper {
 
     private static final String TAG = "HereSenseDbOpenHelper";
 
-    private static final int DB_VERSION = 4;
+    private static final int DB_VERSION = 8;
 
     // Database name
-    private static final String DB_NAME = "heresense.db";
+    static final String DB_NAME = "heresense.db";
 
     private final Context mContext;
 
@@ -49,6 +49,7 @@ class HereSenseDbOpenHelper extends SQLiteOpenHelper {
         Log.d(TAG, "onCreate");
         HereSenseContract.PoiScansTable.create(db);
         HereSenseContract.PoisTable.create(db);
+        HereSenseContract.PoisRTreeTable.create(db);
         HereSenseContract.DwellsTable.create(db);
         HereSenseContract.TransitsTable.create(db);
     }
@@ -64,6 +65,18 @@ class HereSenseDbOpenHelper extends SQLiteOpenHelper {
             case 2:
             case 3:
                 wipeDatabaseTables( db );
+                break;  // Tables created at latest version.
+            case 4:
+                upgradeToVersion5( db );
+                // Fall through
+            case 5:
+                upgradeToVersion6( db );
+                // Fall through
+            case 6:
+                upgradeToVersion7( db );
+                // Fall through
+            case 7:
+                upgradeToVersion8( db );
                 // Fall through
             default:
                 break;
@@ -74,6 +87,32 @@ class HereSenseDbOpenHelper extends SQLiteOpenHelper {
         }
     }
 
+    /** Version 5:  Spatial cell index on poi_scans and pois. */
+    private void upgradeToVersion5(SQLiteDatabase db) {
+        HereSenseContract.PoiScansTable.addCellColumn( db );
+        HereSenseContract.PoisTable.addCellColumn( db );
+    }
+
+    /** Version 6:  R*Tree mirror of pois. */
+    private void upgradeToVersion6(SQLiteDatabase db) {
+        if ( HereSenseContract.PoisRTreeTable.create( db ) ) {
+            HereSenseContract.PoisRTreeTable.sync( db, null, null );
+        }
+    }
+
+    /** Version 7:  Unique place id on pois, for upserts. */
+    private void upgradeToVersion7(SQLiteDatabase db) {
+        HereSenseContract.PoisTable.addPlaceIdIndex( db );
+        if ( HereSenseContract.PoisRTreeTable.exists( db ) ) {
+            HereSenseContract.PoisRTreeTable.prune( db );
+        }
+    }
+
+    /** Version 8:  Negative and failed poi scans. */
+    private void upgradeToVersion8(SQLiteDatabase db) {
+        HereSenseContract.PoiScansTable.addStatusColumns( db );
+    }
+
     private void wipeDatabaseTables(SQLiteDatabase db) {
         Log.d(TAG, "wipeDatabaseTables()" );
 
@@ -83,6 +122,9 @@ class HereSenseDbOpenHelper extends SQLiteOpenHelper {
         HereSenseContract.PoisTable.drop( db );
         HereSenseContract.PoisTable.create( db );
 
+        HereSenseContract.PoisRTreeTable.drop( db );
+        HereSenseContract.PoisRTreeTable.create( db );
+
         HereSenseContract.DwellsTable.drop( db );
         HereSenseContract.DwellsTable.create( db );
 
@@ -1,17 +1,27 @@
 package com.motussoft.heresense.provider;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.provider.BaseColumns;
 import android.text.TextUtils;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
 /**
  * Poi content provider.
  */
@@ -78,10 +88,26 @@ public class HereSenseProvider extends ContentProvider {
         final int uriType = sUriMatcher.match(uri);
         switch (uriType) {
             case POI_SCAN:
+                values = withPoiScanCell( values );
                 rowId = sqlDb.insert( HereSenseContract.PoiScansTable.TABLE_NAME, null, values);
                 break;
             case POI:
-                rowId = sqlDb.insert( HereSenseContract.PoisTable.TABLE_NAME, null, values);
+                values = withPoiCell( values );
+                boolean bUpsert = uri.getBooleanQueryParameter( HereSenseContract.Pois.PARAM_UPSERT, false );
+                if ( bUpsert ) {
+                    uri = HereSenseContract.Pois.CONTENT_URI;
+                }
+                sqlDb.beginTransaction();
+                try {
+                    rowId = ( bUpsert ? upsertPoi( sqlDb, values ) :
+                            sqlDb.insert( HereSenseContract.PoisTable.TABLE_NAME, null, values) );
+                    if ( rowId > 0 && hasPoisRTree( sqlDb ) ) {
+                        HereSenseContract.PoisRTreeTable.sync( sqlDb, BaseColumns._ID + "=" + rowId, null );
+                    }
+                    sqlDb.setTransactionSuccessful();
+                } finally {
+                    sqlDb.endTransaction();
+                }
                 break;
             case DWELL:
                 rowId = sqlDb.insert( HereSenseContract.DwellsTable.TABLE_NAME, null, values);
@@ -118,6 +144,7 @@ public class HereSenseProvider extends ContentProvider {
             }
             case POI: {
                 queryBuilder.setTables( HereSenseContract.PoisTable.TABLE_NAME );
+                appendPoiSpatialWhere( uri, queryBuilder );
                 break;
             }
             case POI_ID: {
@@ -167,21 +194,23 @@ public class HereSenseProvider extends ContentProvider {
         final int uriType = sUriMatcher.match(uri);
         switch (uriType) {
             case POI_SCAN: {
+                values = withPoiScanCell( values );
                 rowsUpdated = sqlDb.update( HereSenseContract.PoiScansTable.TABLE_NAME, values, selection, selectionArgs );
                 break;
             }
             case POI_SCAN_ID: {
+                values = withPoiScanCell( values );
                 final String where = whereWith(uri.getLastPathSegment(), selection);
                 rowsUpdated = sqlDb.update( HereSenseContract.PoiScansTable.TABLE_NAME, values, where, selectionArgs );
                 break;
             }
             case POI: {
-                rowsUpdated = sqlDb.update( HereSenseContract.PoisTable.TABLE_NAME, values, selection, selectionArgs );
+                rowsUpdated = updatePois( sqlDb, values, selection, selectionArgs );
                 break;
             }
             case POI_ID: {
                 final String where = whereWith(uri.getLastPathSegment(), selection);
-                rowsUpdated = sqlDb.update( HereSenseContract.PoisTable.TABLE_NAME, values, where, selectionArgs );
+                rowsUpdated = updatePois( sqlDb, values, where, selectionArgs );
                 break;
             }
             case DWELL: {
@@ -227,12 +256,12 @@ public class HereSenseProvider extends ContentProvider {
                 break;
             }
             case POI: {
-                rowsDeleted = sqlDb.delete( HereSenseContract.PoisTable.TABLE_NAME, selection, selectionArgs);
+                rowsDeleted = deletePois( sqlDb, selection, selectionArgs );
                 break;
             }
             case POI_ID: {
                 final String where = whereWith(uri.getLastPathSegment(), selection);
-                rowsDeleted = sqlDb.delete( HereSenseContract.PoisTable.TABLE_NAME, where, selectionArgs);
+                rowsDeleted = deletePois( sqlDb, where, selectionArgs );
                 break;
             }
             case DWELL: {
@@ -262,7 +291,376 @@ public class HereSenseProvider extends ContentProvider {
         return rowsDeleted;
     }
 
+    /****************************************************************
+     * Pois upsert.
+     ****************************************************************/
+
+    /**
+     * Precompiled update-or-insert of pois keyed by PLACE_ID, for one set of columns.
+     *
+     * Updates in place rather than INSERT OR REPLACE, which would delete the row and
+     * hand out a new _id.  ON CONFLICT DO UPDATE needs SQLite 3.24, newer than the
+     * platform SQLite on supported devices.
+     */
+    private static class PoiUpsert {
+        final String mColumnsKey;
+        final String[] mColumns;
+        final SQLiteStatement mUpdate;
+        final SQLiteStatement mInsert;
+        final SQLiteStatement mSelectId;
+
+        PoiUpsert(SQLiteDatabase db, String columnsKey, String[] columns) {
+            mColumnsKey = columnsKey;
+            mColumns = columns;
+
+            final String table = HereSenseContract.PoisTable.TABLE_NAME;
+            StringBuilder sbUpdate = new StringBuilder( "UPDATE " + table + " SET " );
+            StringBuilder sbInsert = new StringBuilder( "INSERT INTO " + table + " (" );
+            StringBuilder sbValues = new StringBuilder( ") VALUES (" );
+            for ( int i = 0; i < columns.length; i++ ) {
+                sbUpdate.append( i == 0 ? "" : "," ).append( columns[i] ).append( "=?" );
+                sbInsert.append( i == 0 ? "" : "," ).append( columns[i] );
+                sbValues.append( i == 0 ? "?" : ",?" );
+            }
+            sbUpdate.append( " WHERE " + HereSenseContract.Pois.PLACE_ID + "=?" );
+            sbValues.append( ")" );
+
+            mUpdate = db.compileStatement( sbUpdate.toString() );
+            mInsert = db.compileStatement( sbInsert.toString() + sbValues.toString() );
+            mSelectId = db.compileStatement( "SELECT " + BaseColumns._ID + " FROM " + table
+                    + " WHERE " + HereSenseContract.Pois.PLACE_ID + "=?" );
+        }
+
+        long upsert(ContentValues values, String placeId) {
+            mUpdate.clearBindings();
+            for ( int i = 0; i < mColumns.length; i++ ) {
+                DatabaseUtils.bindObjectToProgram( mUpdate, i + 1, values.get( mColumns[i] ) );
+            }
+            mUpdate.bindString( mColumns.length + 1, placeId );
+            if ( mUpdate.executeUpdateDelete() > 0 ) {
+                mSelectId.bindString( 1, placeId );
+                return mSelectId.simpleQueryForLong();
+            }
+
+            mInsert.clearBindings();
+            for ( int i = 0; i < mColumns.length; i++ ) {
+                DatabaseUtils.bindObjectToProgram( mInsert, i + 1, values.get( mColumns[i] ) );
+            }
+            return mInsert.executeInsert();
+        }
+
+        void close() {
+            mUpdate.close();
+            mInsert.close();
+            mSelectId.close();
+        }
+    }
+
+    /**
+     * Update poi with same PLACE_ID, otherwise insert.  Must be called within a transaction.
+     * @return  Row id.
+     */
+    private long upsertPoi(SQLiteDatabase sqlDb, ContentValues values) {
+        String placeId = values.getAsString( HereSenseContract.Pois.PLACE_ID );
+        if ( placeId == null ) {
+            return sqlDb.insert( HereSenseContract.PoisTable.TABLE_NAME, null, values );
+        }
+
+        String[] columns = values.keySet().toArray( new String[0] );
+        Arrays.sort( columns );
+        String columnsKey = TextUtils.join( ",", columns );
+
+        // Reuse compiled statements across a batch.
+        BatchState batch = mBatch.get();
+        PoiUpsert upsert = ( batch == null ? null : batch.mPoiUpsert );
+        if ( upsert == null || !upsert.mColumnsKey.equals( columnsKey ) ) {
+            if ( upsert != null ) {
+                upsert.close();
+            }
+            upsert = new PoiUpsert( sqlDb, columnsKey, columns );
+            if ( batch != null ) {
+                batch.mPoiUpsert = upsert;
+            }
+        }
+
+        try {
+            return upsert.upsert( values, placeId );
+        } finally {
+            if ( batch == null ) {
+                upsert.close();
+            }
+        }
+    }
+
+    /****************************************************************
+     * Pois spatial index.
+     ****************************************************************/
+
+    private Boolean mHasPoisRTree = null;
+
+    private boolean hasPoisRTree(SQLiteDatabase db) {
+        if ( mHasPoisRTree == null ) {
+            mHasPoisRTree = HereSenseContract.PoisRTreeTable.exists( db );
+        }
+        return mHasPoisRTree;
+    }
+
+    private int updatePois(SQLiteDatabase sqlDb, ContentValues values, String where, String[] whereArgs) {
+        values = withPoiCell( values );
+        boolean bMoved = ( values.containsKey( HereSenseContract.Pois.LATITUDE )
+                || values.containsKey( HereSenseContract.Pois.LONGITUDE )
+                || values.containsKey( HereSenseContract.Pois.POI_RADIUS ) );
+        if ( !bMoved || !hasPoisRTree( sqlDb ) ) {
+            return sqlDb.update( HereSenseContract.PoisTable.TABLE_NAME, values, where, whereArgs );
+        }
+
+        sqlDb.beginTransaction();
+        try {
+            int rowsUpdated = sqlDb.update( HereSenseContract.PoisTable.TABLE_NAME, values, where, whereArgs );
+            if ( rowsUpdated > 0 ) {
+                // Assumes the update does not change columns used by where.
+                HereSenseContract.PoisRTreeTable.sync( sqlDb, where, whereArgs );
+            }
+            sqlDb.setTransactionSuccessful();
+            return rowsUpdated;
+        } finally {
+            sqlDb.endTransaction();
+        }
+    }
+
+    private int deletePois(SQLiteDatabase sqlDb, String where, String[] whereArgs) {
+        if ( !hasPoisRTree( sqlDb ) ) {
+            return sqlDb.delete( HereSenseContract.PoisTable.TABLE_NAME, where, whereArgs );
+        }
+
+        sqlDb.beginTransaction();
+        try {
+            HereSenseContract.PoisRTreeTable.remove( sqlDb, where, whereArgs );
+            int rowsDeleted = sqlDb.delete( HereSenseContract.PoisTable.TABLE_NAME, where, whereArgs );
+            sqlDb.setTransactionSuccessful();
+            return rowsDeleted;
+        } finally {
+            sqlDb.endTransaction();
+        }
+    }
+
+    /**
+     * Apply Pois.PARAM_BBOX / Pois.PARAM_COVERS using the index picked by Pois.PARAM_SPATIAL_INDEX.
+     */
+    private void appendPoiSpatialWhere(Uri uri, SQLiteQueryBuilder queryBuilder) {
+        double[] bbox = parseDoubles( uri.getQueryParameter( HereSenseContract.Pois.PARAM_BBOX ), 4 );
+        double[] covers = parseDoubles( uri.getQueryParameter( HereSenseContract.Pois.PARAM_COVERS ), 2 );
+        if ( bbox == null && covers == null ) {
+            return;
+        }
+
+        boolean bRTree = HereSenseContract.Pois.SPATIAL_INDEX_RTREE.equals(
+                uri.getQueryParameter( HereSenseContract.Pois.PARAM_SPATIAL_INDEX ) )
+                && hasPoisRTree( mDbHelper.getReadableDatabase() );
+
+        final String rtree = HereSenseContract.PoisRTreeTable.TABLE_NAME;
+        final String pois = HereSenseContract.PoisTable.TABLE_NAME;
+        StringBuilder sb = new StringBuilder();
+
+        if ( bRTree ) {
+            queryBuilder.setTables( pois + " INNER JOIN " + rtree
+                    + " ON " + pois + "." + BaseColumns._ID + "=" + rtree + "." + HereSenseContract.PoisRTreeTable.ID );
+        }
+
+        if ( bbox != null ) {
+            double minLat = bbox[0], minLon = bbox[1], maxLat = bbox[2], maxLon = bbox[3];
+            if ( bRTree ) {
+                // R*Tree overlap probe.
+                sb.append( rtree + "." + HereSenseContract.PoisRTreeTable.MAX_LAT + ">=" + minLat
+                        + " AND " + rtree + "." + HereSenseContract.PoisRTreeTable.MIN_LAT + "<=" + maxLat
+                        + " AND " + rtree + "." + HereSenseContract.PoisRTreeTable.MAX_LON + ">=" + minLon
+                        + " AND " + rtree + "." + HereSenseContract.PoisRTreeTable.MIN_LON + "<=" + maxLon );
+            } else {
+                // Indexed cell ranges.
+                GeoCell.appendCellRangeSelection( sb, HereSenseContract.Pois.CELL,
+                        minLat, maxLat, minLon, maxLon );
+            }
+            // Exact poi centers, same result for either index.
+            sb.append( " AND " + HereSenseContract.Pois.LATITUDE + "<" + maxLat
+                    + " AND " + HereSenseContract.Pois.LATITUDE + ">" + minLat
+                    + " AND " + HereSenseContract.Pois.LONGITUDE + "<" + maxLon
+                    + " AND " + HereSenseContract.Pois.LONGITUDE + ">" + minLon );
+        }
+
+        if ( covers != null ) {
+            double lat = covers[0], lon = covers[1];
+            sb.append( sb.length() == 0 ? "" : " AND " );
+            if ( bRTree ) {
+                // R*Tree point probe.
+                sb.append( rtree + "." + HereSenseContract.PoisRTreeTable.MIN_LAT + "<=" + lat
+                        + " AND " + rtree + "." + HereSenseContract.PoisRTreeTable.MAX_LAT + ">=" + lat
+                        + " AND " + rtree + "." + HereSenseContract.PoisRTreeTable.MIN_LON + "<=" + lon
+                        + " AND " + rtree + "." + HereSenseContract.PoisRTreeTable.MAX_LON + ">=" + lon );
+            } else {
+                // Cells can't bound poi radii.  Table scan.
+                double latDeg = HereSenseContract.PoisRTreeTable.latDegrees( 1 );
+                double lonDeg = HereSenseContract.PoisRTreeTable.lonDegrees( 1, lat );
+                sb.append( "ABS(" + HereSenseContract.Pois.LATITUDE + "-(" + lat + "))<="
+                        + HereSenseContract.Pois.POI_RADIUS + "*" + latDeg
+                        + " AND ABS(" + HereSenseContract.Pois.LONGITUDE + "-(" + lon + "))<="
+                        + HereSenseContract.Pois.POI_RADIUS + "*" + lonDeg );
+            }
+        }
+
+        queryBuilder.appendWhere( sb.toString() );
+    }
+
+    /** Parse comma separated doubles.  Returns null if missing or malformed. */
+    private static double[] parseDoubles(String param, int count) {
+        if ( TextUtils.isEmpty( param ) ) {
+            return null;
+        }
+        String[] parts = param.split( "," );
+        if ( parts.length != count ) {
+            return null;
+        }
+        double[] values = new double[count];
+        try {
+            for ( int i = 0; i < count; i++ ) {
+                values[i] = Double.parseDouble( parts[i].trim() );
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return values;
+    }
+
+    /**
+     * Keep the spatial cell column in sync with lat/lon values.
+     */
+    private static ContentValues withPoiScanCell(ContentValues values) {
+        return withCell( values, HereSenseContract.PoiScans.POI_SCAN_LAT,
+                HereSenseContract.PoiScans.POI_SCAN_LON, HereSenseContract.PoiScans.POI_SCAN_CELL );
+    }
+
+    private static ContentValues withPoiCell(ContentValues values) {
+        return withCell( values, HereSenseContract.Pois.LATITUDE,
+                HereSenseContract.Pois.LONGITUDE, HereSenseContract.Pois.CELL );
+    }
+
+    private static ContentValues withCell(ContentValues values,
+                                          String latColumn, String lonColumn, String cellColumn) {
+        if ( values == null || !values.containsKey( latColumn ) || !values.containsKey( lonColumn ) ) {
+            return values;
+        }
+        Double lat = values.getAsDouble( latColumn );
+        Double lon = values.getAsDouble( lonColumn );
+        if ( lat == null || lon == null ) {
+            return values;
+        }
+        ContentValues cellValues = new ContentValues( values );
+        cellValues.put( cellColumn, GeoCell.getCellId( lat, lon ) );
+        return cellValues;
+    }
+
+    /****************************************************************
+     * Batch operations.
+     ****************************************************************/
+
+    /** State of a batch running on a thread. */
+    private static class BatchState {
+        /** Uris changed by the batch. */
+        final Set<Uri> mChangedUris = new LinkedHashSet<Uri>();
+        /** Uris changed before the batch last yielded, which committed them. */
+        final Set<Uri> mCommittedUris = new LinkedHashSet<Uri>();
+        /** Compiled poi upsert statements reused across the batch.  Can be null. */
+        PoiUpsert mPoiUpsert;
+    }
+
+    /** Batch running on this thread.  Null when not in a batch. */
+    private final ThreadLocal<BatchState> mBatch = new ThreadLocal<BatchState>();
+
+    /**
+     * Apply all operations in a single transaction, yielding where operations allow it.
+     * Change notifications are sent once per uri after the batch commits.  A yield commits
+     * the operations before it, so if a later one fails, the uris changed before the last
+     * yield are still notified.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase sqlDb = mDbHelper.getWritableDatabase();
+        BatchState batch = beginBatch();
+        boolean bSuccess = false;
+        sqlDb.beginTransaction();
+        try {
+            final int numOperations = operations.size();
+            final ContentProviderResult[] results = new ContentProviderResult[numOperations];
+            for ( int i = 0; i < numOperations; i++ ) {
+                final ContentProviderOperation operation = operations.get( i );
+                if ( i > 0 && operation.isYieldAllowed() && sqlDb.yieldIfContendedSafely()
+                        && batch != null ) {
+                    batch.mCommittedUris.addAll( batch.mChangedUris );
+                }
+                results[i] = operation.apply( this, results, i );
+            }
+            sqlDb.setTransactionSuccessful();
+            bSuccess = true;
+            return results;
+        } finally {
+            sqlDb.endTransaction();
+            endBatch( batch, bSuccess );
+        }
+    }
+
+    /**
+     * Insert all rows in a single transaction, with a single change notification.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        SQLiteDatabase sqlDb = mDbHelper.getWritableDatabase();
+        BatchState batch = beginBatch();
+        boolean bSuccess = false;
+        int count = 0;
+        sqlDb.beginTransaction();
+        try {
+            for ( ContentValues cv : values ) {
+                if ( insert( uri, cv ) != null ) {
+                    count++;
+                }
+            }
+            sqlDb.setTransactionSuccessful();
+            bSuccess = true;
+        } finally {
+            sqlDb.endTransaction();
+            endBatch( batch, bSuccess );
+        }
+        return count;
+    }
+
+    private BatchState beginBatch() {
+        if ( mBatch.get() != null ) {
+            return null;  // Nested.  Outer batch notifies.
+        }
+        BatchState batch = new BatchState();
+        mBatch.set( batch );
+        return batch;
+    }
+
+    private void endBatch(BatchState batch, boolean bSuccess) {
+        if ( batch == null ) {
+            return;  // Nested.
+        }
+        mBatch.set( null );
+        if ( batch.mPoiUpsert != null ) {
+            batch.mPoiUpsert.close();
+        }
+        for ( Uri uri : ( bSuccess ? batch.mChangedUris : batch.mCommittedUris ) ) {
+            notifyChanged( uri );
+        }
+    }
+
     private void notifyChanged(Uri uri) {
+        BatchState batch = mBatch.get();
+        if ( batch != null ) {
+            batch.mChangedUris.add( uri );  // Coalesce until batch ends.
+            return;
+        }
         getContext().getContentResolver().notifyChange(uri, null);
     }
 
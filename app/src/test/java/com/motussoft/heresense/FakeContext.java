@@ -0,0 +1,56 @@
+package com.motussoft.heresense;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.SharedPreferences;
+
+import java.io.File;
+import java.util.HashMap;
+
+/**
+ * Context for local unit tests, with in memory preferences and files and cache dirs
+ * under a temp dir.  Anything else falls through to the stub android.jar.
+ */
+public class FakeContext extends ContextWrapper {
+
+    private final File mDir;
+    private final HashMap<String, FakeSharedPreferences> mPrefs = new HashMap<String, FakeSharedPreferences>();
+
+    /**
+     * @param dir  Holds the files and cache dirs.
+     */
+    public FakeContext(File dir) {
+        super( null );
+        mDir = dir;
+    }
+
+    @Override
+    public Context getApplicationContext() {
+        return this;
+    }
+
+    @Override
+    public synchronized SharedPreferences getSharedPreferences(String name, int mode) {
+        FakeSharedPreferences prefs = mPrefs.get( name );
+        if ( prefs == null ) {
+            prefs = new FakeSharedPreferences();
+            mPrefs.put( name, prefs );
+        }
+        return prefs;
+    }
+
+    @Override
+    public File getFilesDir() {
+        return mkdirs( new File( mDir, "files" ) );
+    }
+
+    @Override
+    public File getCacheDir() {
+        return mkdirs( new File( mDir, "cache" ) );
+    }
+
+    private static File mkdirs(File dir) {
+        dir.mkdirs();
+        return dir;
+    }
+}
@@ -0,0 +1,144 @@
+package com.motussoft.heresense;
+
+import android.content.SharedPreferences;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In memory SharedPreferences for local unit tests.  Edits are applied on commit() or
+ * apply(), and listeners are not supported.
+ */
+public class FakeSharedPreferences implements SharedPreferences {
+
+    private final HashMap<String, Object> mValues = new HashMap<String, Object>();
+
+    @Override
+    public synchronized Map<String, ?> getAll() {
+        return new HashMap<String, Object>( mValues );
+    }
+
+    @Override
+    public synchronized String getString(String key, String defValue) {
+        return ( mValues.containsKey( key ) ? (String) mValues.get( key ) : defValue );
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public synchronized Set<String> getStringSet(String key, Set<String> defValues) {
+        return ( mValues.containsKey( key ) ? (Set<String>) mValues.get( key ) : defValues );
+    }
+
+    @Override
+    public synchronized int getInt(String key, int defValue) {
+        return ( mValues.containsKey( key ) ? (Integer) mValues.get( key ) : defValue );
+    }
+
+    @Override
+    public synchronized long getLong(String key, long defValue) {
+        return ( mValues.containsKey( key ) ? (Long) mValues.get( key ) : defValue );
+    }
+
+    @Override
+    public synchronized float getFloat(String key, float defValue) {
+        return ( mValues.containsKey( key ) ? (Float) mValues.get( key ) : defValue );
+    }
+
+    @Override
+    public synchronized boolean getBoolean(String key, boolean defValue) {
+        return ( mValues.containsKey( key ) ? (Boolean) mValues.get( key ) : defValue );
+    }
+
+    @Override
+    public synchronized boolean contains(String key) {
+        return mValues.containsKey( key );
+    }
+
+    @Override
+    public Editor edit() {
+        return new FakeEditor();
+    }
+
+    @Override
+    public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        throw new UnsupportedOperationException();
+    }
+
+    private class FakeEditor implements Editor {
+        private final HashMap<String, Object> mPuts = new HashMap<String, Object>();
+        private final HashMap<String, Boolean> mRemoves = new HashMap<String, Boolean>();
+        private boolean mClear = false;
+
+        private Editor put(String key, Object value) {
+            mPuts.put( key, value );
+            return this;
+        }
+
+        @Override
+        public Editor putString(String key, String value) {
+            return put( key, value );
+        }
+
+        @Override
+        public Editor putStringSet(String key, Set<String> values) {
+            return put( key, values );
+        }
+
+        @Override
+        public Editor putInt(String key, int value) {
+            return put( key, value );
+        }
+
+        @Override
+        public Editor putLong(String key, long value) {
+            return put( key, value );
+        }
+
+        @Override
+        public Editor putFloat(String key, float value) {
+            return put( key, value );
+        }
+
+        @Override
+        public Editor putBoolean(String key, boolean value) {
+            return put( key, value );
+        }
+
+        @Override
+        public Editor remove(String key) {
+            mRemoves.put( key, true );
+            return this;
+        }
+
+        @Override
+        public Editor clear() {
+            mClear = true;
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            synchronized ( FakeSharedPreferences.this ) {
+                if ( mClear ) {
+                    mValues.clear();
+                }
+                for ( String key : mRemoves.keySet() ) {
+                    mValues.remove( key );
+                }
+                mValues.putAll( mPuts );
+            }
+            return true;
+        }
+
+        @Override
+        public void apply() {
+            commit();
+        }
+    }
+}
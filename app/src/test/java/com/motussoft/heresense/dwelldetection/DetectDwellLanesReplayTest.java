@@ -0,0 +1,186 @@
+package com.motussoft.heresense.dwelldetection;
+
+import com.motussoft.heresense.ServiceLanes;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+/**
+ * Replays the intents DetectDwellService gets over the DwellReplayTest walk / dwell track
+ * through a ServiceLanes lane, once connecting and disconnecting the client per intent, as
+ * the IntentService did, and once keeping it connected while detection is on, as
+ * DetectDwellService does.  Reports connects and the lane's per action stats for both.
+ *
+ * The client is a stand in whose connect takes CONNECT_MS, an assumed Play services bind
+ * and connect.  Intents arrive one interval apart, so they don't queue, except for the
+ * stop / start pair of a dwell / transit switch.
+ */
+public class DetectDwellLanesReplayTest {
+
+    private static final long CONNECT_MS = 20;
+
+    /** Same as DetectDwellService. */
+    private static final long DWELL_LOCATION_UPDATE_INTERVAL = 30 * 1000;
+    private static final long DWELL_ACTIVITY_RECOGNITION_INTERVAL = 30 * 1000;
+    private static final long TRANSIT_LOCATION_UPDATE_INTERVAL = 60 * 1000;
+    private static final long TRANSIT_ACTIVITY_RECOGNITION_INTERVAL = 2 * 60 * 1000;
+
+    /** Same as DwellReplayTest.  Walk, dwell, walk, ... in minutes. */
+    private static final int[] SEGMENT_MINUTES = { 8, 10, 12, 20, 6, 7, 15, 12, 5 };
+
+    private static final String ACTION_START_DETECT_DWELL = "ACTION_START_DETECT_DWELL";
+    private static final String ACTION_STOP_DETECT_DWELL = "ACTION_STOP_DETECT_DWELL";
+    private static final String ACTION_START_DETECT_TRANSIT = "ACTION_START_DETECT_TRANSIT";
+    private static final String ACTION_STOP_DETECT_TRANSIT = "ACTION_STOP_DETECT_TRANSIT";
+    private static final String ACTION_DWELL_ACTIVITY_RECOGNITION = "ACTION_DWELL_ACTIVITY_RECOGNITION";
+    private static final String ACTION_TRANSIT_ACTIVITY_RECOGNITION = "ACTION_TRANSIT_ACTIVITY_RECOGNITION";
+    private static final String ACTION_DETECT_DWELL_LOCATION_UPDATE = "ACTION_DETECT_DWELL_LOCATION_UPDATE";
+    private static final String ACTION_DETECT_TRANSIT_LOCATION_UPDATE = "ACTION_DETECT_TRANSIT_LOCATION_UPDATE";
+
+    /**
+     * Intents over the track, in order.  Each entry is the intents arriving together.
+     */
+    private static List<String[]> getIntents() {
+        List<String[]> intents = new ArrayList<String[]>();
+        intents.add( new String[] { ACTION_START_DETECT_DWELL } );
+        for ( int i = 0; i < SEGMENT_MINUTES.length; i++ ) {
+            boolean bDwelling = ( i % 2 == 1 );
+            long duration = SEGMENT_MINUTES[i] * 60 * 1000L;
+            long locationInterval = ( bDwelling ? TRANSIT_LOCATION_UPDATE_INTERVAL : DWELL_LOCATION_UPDATE_INTERVAL );
+            long activityInterval = ( bDwelling ? TRANSIT_ACTIVITY_RECOGNITION_INTERVAL : DWELL_ACTIVITY_RECOGNITION_INTERVAL );
+            // All intervals are multiples of 30s.
+            for ( long time = 30 * 1000; time < duration; time += 30 * 1000 ) {
+                if ( time % locationInterval == 0 ) {
+                    intents.add( new String[] {
+                            bDwelling ? ACTION_DETECT_TRANSIT_LOCATION_UPDATE : ACTION_DETECT_DWELL_LOCATION_UPDATE } );
+                }
+                if ( time % activityInterval == 0 ) {
+                    intents.add( new String[] {
+                            bDwelling ? ACTION_TRANSIT_ACTIVITY_RECOGNITION : ACTION_DWELL_ACTIVITY_RECOGNITION } );
+                }
+            }
+            if ( i == SEGMENT_MINUTES.length - 1 ) {
+                intents.add( new String[] { ACTION_STOP_DETECT_DWELL } );
+            } else if ( bDwelling ) {
+                intents.add( new String[] { ACTION_STOP_DETECT_TRANSIT, ACTION_START_DETECT_DWELL } );
+            } else {
+                intents.add( new String[] { ACTION_STOP_DETECT_DWELL, ACTION_START_DETECT_TRANSIT } );
+            }
+        }
+        return intents;
+    }
+
+    /** Stand in for the GoogleApiClient and the detection state. */
+    private static class Detector {
+        final boolean mPerIntent;
+        boolean mConnected = false;
+        boolean mDetecting = false;
+        int mConnects = 0;
+        int mPending = 0;
+
+        Detector(boolean bPerIntent) {
+            mPerIntent = bPerIntent;
+        }
+
+        void connect() {
+            try {
+                Thread.sleep( CONNECT_MS );
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mConnects++;
+            mConnected = true;
+        }
+
+        /** As DetectDwellService.handleIntent(). */
+        void handle(String action) {
+            if ( !mConnected ) {
+                connect();
+            }
+            if ( action.startsWith( "ACTION_START_" ) ) {
+                mDetecting = true;
+            } else if ( action.startsWith( "ACTION_STOP_" ) ) {
+                mDetecting = false;
+            }
+
+            boolean bIdle;
+            synchronized ( this ) {
+                bIdle = ( mPending <= 1 );
+            }
+            if ( mPerIntent || bIdle && !mDetecting ) {
+                mConnected = false;
+            }
+        }
+    }
+
+    private static class Report {
+        int intents;
+        int connects;
+        String laneStats;
+
+        @Override
+        public String toString() {
+            return "intents=" + intents + " connects=" + connects + " " + laneStats;
+        }
+    }
+
+    private static Report replay(boolean bPerIntent) throws Exception {
+        ServiceLanes lanes = new ServiceLanes( "DetectDwellService", "detect" );
+        final Detector detector = new Detector( bPerIntent );
+        Report report = new Report();
+        for ( String[] arriving : getIntents() ) {
+            final CountDownLatch done = new CountDownLatch( arriving.length );
+            synchronized ( detector ) {
+                detector.mPending += arriving.length;
+            }
+            for ( final String action : arriving ) {
+                lanes.execute( 0, action, new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            detector.handle( action );
+                        } finally {
+                            synchronized ( detector ) {
+                                detector.mPending--;
+                            }
+                            done.countDown();
+                        }
+                    }
+                } );
+                report.intents++;
+            }
+            done.await();
+        }
+
+        // The lane counts a run after it returns.  Wait on one more, for the last count.
+        final CountDownLatch drained = new CountDownLatch( 1 );
+        lanes.execute( 0, "drain", new Runnable() {
+            @Override
+            public void run() {
+                drained.countDown();
+            }
+        } );
+        drained.await();
+        report.connects = detector.mConnects;
+        report.laneStats = lanes.getStats();
+        return report;
+    }
+
+    @Test
+    public void connectsPerIntentAgainstKeptConnected() throws Exception {
+        Report perIntent = replay( true );
+        Report kept = replay( false );
+        System.out.println( "DetectDwellLanesReplay connectMs=" + CONNECT_MS );
+        System.out.println( "DetectDwellLanesReplay per intent: " + perIntent );
+        System.out.println( "DetectDwellLanesReplay kept:       " + kept );
+
+        assertEquals( perIntent.intents, perIntent.connects );
+        // Connected from the first start to the last stop, dwell / transit switches included.
+        assertEquals( 1, kept.connects );
+    }
+}
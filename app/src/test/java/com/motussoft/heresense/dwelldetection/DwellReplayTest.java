@@ -0,0 +1,177 @@
+package com.motussoft.heresense.dwelldetection;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Replays a simulated walk / dwell track through dwell detection, once at the fixed 30s
+ * interval and once with SamplingScheduler picking the interval, and reports fixes per
+ * detected dwell and detection delay for both.
+ *
+ * Fixes arrive at the planned interval.  On a detected dwell, detection hands over to
+ * transit detection, which is assumed to see the exit, so the replay skips to the end of
+ * that dwell.
+ */
+public class DwellReplayTest {
+
+    /** Same as DetectDwellService. */
+    private static final float DWELL_VELOCITY = 1.00f;
+    private static final long DWELL_DURATION_THRESHOLD = 5 * 60 * 1000;
+    private static final float DWELL_CONFIDENCE_THRESHOLD = 0.66f;
+    private static final long DWELL_LOCATION_FASTEST_UPDATE_INTERVAL = 15 * 1000;
+    private static final long DWELL_LOCATION_UPDATE_INTERVAL = 30 * 1000;
+    private static final long DWELL_LOCATION_MAX_UPDATE_INTERVAL = 2 * 60 * 1000;
+    private static final long DWELL_ACTIVITY_RECOGNITION_INTERVAL = 30 * 1000;
+
+    private static final double METERS_PER_DEGREE = 111195;
+    private static final double START_LAT = 37.4220;
+    private static final double START_LON = -122.0840;
+
+    private static final float GPS_ACCURACY = 8f;
+    private static final double GPS_NOISE_SIGMA = 3.0;  // Meters.
+    private static final double WALK_SPEED = 1.4;  // m/s.
+
+    /** Walk, dwell, walk, ... in minutes.  Odd segments are dwells. */
+    private static final int[] SEGMENT_MINUTES = { 8, 10, 12, 20, 6, 7, 15, 12, 5 };
+
+    /** Simulated track.  Walks east, and stands still while dwelling. */
+    private static class Track {
+        final long[] segmentEnd = new long[SEGMENT_MINUTES.length];
+        final Random random = new Random( 42 );
+
+        Track() {
+            long end = 0;
+            for ( int i = 0; i < SEGMENT_MINUTES.length; i++ ) {
+                end += SEGMENT_MINUTES[i] * 60 * 1000L;
+                segmentEnd[i] = end;
+            }
+        }
+
+        long getEnd() {
+            return segmentEnd[segmentEnd.length - 1];
+        }
+
+        int getSegment(long time) {
+            for ( int i = 0; i < segmentEnd.length; i++ ) {
+                if ( time < segmentEnd[i] ) {
+                    return i;
+                }
+            }
+            return segmentEnd.length - 1;
+        }
+
+        boolean isDwelling(long time) {
+            return getSegment( time ) % 2 == 1;
+        }
+
+        long getSegmentStart(int segment) {
+            return ( segment == 0 ? 0 : segmentEnd[segment - 1] );
+        }
+
+        /** Meters walked east by time. */
+        double getPosition(long time) {
+            double walked = 0;
+            for ( int i = 0; i < segmentEnd.length; i++ ) {
+                long start = getSegmentStart( i );
+                if ( time <= start ) {
+                    break;
+                }
+                if ( i % 2 == 0 ) {
+                    walked += WALK_SPEED * ( Math.min( time, segmentEnd[i] ) - start ) / 1000.0;
+                }
+            }
+            return walked;
+        }
+
+        void addFix(LocHistory history, long time) {
+            double east = getPosition( time ) + random.nextGaussian() * GPS_NOISE_SIGMA;
+            double north = random.nextGaussian() * GPS_NOISE_SIGMA;
+            history.add( time, time * 1000000L,
+                    START_LAT + north / METERS_PER_DEGREE,
+                    START_LON + east / ( METERS_PER_DEGREE * Math.cos( Math.toRadians( START_LAT ) ) ),
+                    GPS_ACCURACY );
+        }
+    }
+
+    /** Replay results. */
+    private static class Report {
+        int fixes;
+        int dwells;
+        int dwellsDetected;
+        int falseDwells;
+        long totalDelayMs;
+
+        float getFixesPerDwell() {
+            return ( dwellsDetected == 0 ? Float.NaN : (float) fixes / dwellsDetected );
+        }
+
+        @Override
+        public String toString() {
+            return "fixes=" + fixes + " dwells=" + dwellsDetected + "/" + dwells
+                    + " falseDwells=" + falseDwells
+                    + " fixesPerDwell=" + getFixesPerDwell()
+                    + " avgDelayS=" + ( dwellsDetected == 0 ? 0 : totalDelayMs / dwellsDetected / 1000 );
+        }
+    }
+
+    private static Report replay(boolean bAdaptive) {
+        Track track = new Track();
+        LocHistory history = new LocHistory( LocHistory.CAPACITY );
+        SamplingScheduler scheduler = new SamplingScheduler(
+                DWELL_LOCATION_FASTEST_UPDATE_INTERVAL, DWELL_LOCATION_UPDATE_INTERVAL,
+                DWELL_LOCATION_MAX_UPDATE_INTERVAL, DWELL_CONFIDENCE_THRESHOLD );
+        Report report = new Report();
+        report.dwells = SEGMENT_MINUTES.length / 2;
+
+        long time = 0;
+        long interval = DWELL_LOCATION_UPDATE_INTERVAL;
+        while ( ( time += interval ) < track.getEnd() ) {
+            report.fixes++;
+            boolean bHasMinDuration = DwellConfidence.trimHistory( history, time );
+            track.addFix( history, time );
+
+            float confidence = Float.NaN;
+            if ( bHasMinDuration ) {
+                confidence = DwellConfidence.calc( history, DWELL_VELOCITY, DWELL_DURATION_THRESHOLD,
+                        null, null );
+                if ( confidence > DWELL_CONFIDENCE_THRESHOLD ) {
+                    int segment = track.getSegment( time );
+                    if ( track.isDwelling( time ) ) {
+                        report.dwellsDetected++;
+                        report.totalDelayMs += time - track.getSegmentStart( segment );
+                    } else {
+                        report.falseDwells++;
+                    }
+                    // Transit detection until the dwell ends, then dwell detection again.
+                    time = track.segmentEnd[segment];
+                    interval = scheduler.reset().interval;
+                    continue;
+                }
+            }
+
+            if ( bAdaptive ) {
+                // Activity recognition as of its last update.
+                long activityTime = time - time % DWELL_ACTIVITY_RECOGNITION_INTERVAL;
+                boolean bMoving = !track.isDwelling( activityTime );
+                interval = scheduler.next( confidence, bMoving, 0f ).interval;
+            }
+        }
+        return report;
+    }
+
+    @Test
+    public void fixesPerDetectedDwell() throws Exception {
+        Report fixed = replay( false );
+        Report adaptive = replay( true );
+        System.out.println( "DwellReplay fixed:    " + fixed );
+        System.out.println( "DwellReplay adaptive: " + adaptive );
+
+        assertEquals( fixed.dwells, fixed.dwellsDetected );
+        assertEquals( adaptive.dwells, adaptive.dwellsDetected );
+        assertEquals( 0, adaptive.falseDwells );
+        assertTrue( adaptive.getFixesPerDwell() < fixed.getFixesPerDwell() );
+    }
+}
@@ -0,0 +1,164 @@
+package com.motussoft.heresense.dwelldetection;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+/**
+ * JVM timings of LocJournal against the ObjectOutputStream format it replaced, at 10, 100
+ * and 1000 fixes of history.  Prints per operation times.  Host numbers only, but the
+ * relative cost carries over.
+ *
+ * Persist is what a new fix costs: one journal append, against rewriting the whole
+ * serialized history, as the IntentService did on every onDestroy().  Restore is the
+ * first use in a new process.
+ */
+public class LocJournalBenchmark {
+
+    private static final int[] HISTORY_SIZES = { 10, 100, 1000 };
+
+    private static final int WARMUP_ROUNDS = 2;
+    private static final int ROUNDS = 5;
+
+    /** Record of the replaced format.  Same fields as the old PersistLoc. */
+    private static class SerializedLoc implements Serializable {
+        long time;
+        long et;
+        double lat;
+        double lng;
+        float accuracy;
+    }
+
+    private File mJournalFile;
+    private File mSerializedFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mJournalFile = File.createTempFile( "LocJournalBenchmark", ".loc" );
+        mSerializedFile = File.createTempFile( "LocJournalBenchmark", ".ser" );
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mJournalFile.delete();
+        mSerializedFile.delete();
+        new File( mJournalFile.getPath() + ".tmp" ).delete();
+    }
+
+    @Test
+    public void persistAndRestore() throws Exception {
+        for ( int size : HISTORY_SIZES ) {
+            for ( int i = 0; i < WARMUP_ROUNDS; i++ ) {
+                runJournal( size );
+                runSerialized( size );
+            }
+
+            long[] journal = new long[2];
+            long[] serialized = new long[2];
+            for ( int i = 0; i < ROUNDS; i++ ) {
+                long[] run = runJournal( size );
+                journal[0] += run[0];
+                journal[1] += run[1];
+                run = runSerialized( size );
+                serialized[0] += run[0];
+                serialized[1] += run[1];
+            }
+
+            System.out.println( "LocJournalBenchmark: fixes=" + size
+                    + " journal[persistUs/fix=" + journal[0] / 1000 / ROUNDS / size
+                    + " restoreUs=" + journal[1] / 1000 / ROUNDS
+                    + " bytes=" + mJournalFile.length() + "]"
+                    + " serialized[persistUs/fix=" + serialized[0] / 1000 / ROUNDS / size
+                    + " restoreUs=" + serialized[1] / 1000 / ROUNDS
+                    + " bytes=" + mSerializedFile.length() + "]" );
+        }
+    }
+
+    /**
+     * Fill a full history of size fixes, then one more that drops the oldest, then restore.
+     *
+     * @return  Nanos for { all persists, restore }.
+     */
+    private long[] runJournal(int size) throws IOException {
+        mJournalFile.delete();
+        LocHistory history = new LocHistory( size );
+        LocJournal journal = LocJournal.open( mJournalFile );
+        journal.restore( history );
+        history.setRestored( journal );
+
+        long start = System.nanoTime();
+        for ( int i = 0; i <= size; i++ ) {
+            history.add( 1000L * i, 1000000L * i, 37.0 + i * 1e-5, -122.0, 10f );
+        }
+        long persistNs = System.nanoTime() - start;
+        journal.close();
+
+        LocHistory restored = new LocHistory( size );
+        start = System.nanoTime();
+        journal = LocJournal.open( mJournalFile );
+        journal.restore( restored );
+        journal.close();
+        long restoreNs = System.nanoTime() - start;
+
+        assertEquals( size, restored.size() );
+        return new long[] { persistNs, restoreNs };
+    }
+
+    /**
+     * Same, rewriting the whole history per fix as the replaced format did.
+     */
+    @SuppressWarnings("unchecked")
+    private long[] runSerialized(int size) throws IOException, ClassNotFoundException {
+        LocHistory history = new LocHistory( size );
+
+        long start = System.nanoTime();
+        for ( int i = 0; i <= size; i++ ) {
+            history.add( 1000L * i, 1000000L * i, 37.0 + i * 1e-5, -122.0, 10f );
+            ArrayList<SerializedLoc> array = new ArrayList<SerializedLoc>( history.size() );
+            for ( int index = 0; index < history.size(); index++ ) {
+                SerializedLoc loc = new SerializedLoc();
+                loc.time = history.getTime( index );
+                loc.et = history.getElapsedRealtimeNanos( index );
+                loc.lat = history.getLatitude( index );
+                loc.lng = history.getLongitude( index );
+                loc.accuracy = history.getAccuracy( index );
+                array.add( loc );
+            }
+            ObjectOutputStream os = new ObjectOutputStream( new FileOutputStream( mSerializedFile ) );
+            try {
+                os.writeObject( array );
+            } finally {
+                os.close();
+            }
+        }
+        long persistNs = System.nanoTime() - start;
+
+        LocHistory restored = new LocHistory( size );
+        start = System.nanoTime();
+        ObjectInputStream is = new ObjectInputStream( new FileInputStream( mSerializedFile ) );
+        try {
+            ArrayList<SerializedLoc> array = (ArrayList<SerializedLoc>) is.readObject();
+            for ( int i = array.size() - 1; i >= 0; i-- ) {
+                SerializedLoc loc = array.get( i );
+                restored.add( loc.time, loc.et, loc.lat, loc.lng, loc.accuracy );
+            }
+        } finally {
+            is.close();
+        }
+        long restoreNs = System.nanoTime() - start;
+
+        assertEquals( size, restored.size() );
+        return new long[] { persistNs, restoreNs };
+    }
+}
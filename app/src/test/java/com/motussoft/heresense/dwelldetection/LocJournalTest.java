@@ -0,0 +1,299 @@
+package com.motussoft.heresense.dwelldetection;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+/**
+ * LocJournal restore, crash recovery and compaction, and LocHistory write through.
+ */
+public class LocJournalTest {
+
+    private File mFile;
+    private LocJournal mJournal;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile( "LocJournalTest", ".loc" );
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if ( mJournal != null ) {
+            mJournal.close();
+        }
+        mFile.delete();
+        new File( mFile.getPath() + ".tmp" ).delete();
+    }
+
+    /****************************************************************
+     * Helpers.
+     ****************************************************************/
+
+    /** Fix i of a test track. */
+    private static void addFix(LocHistory history, int i) {
+        history.add( 1000L * i, 1000000L * i, 37.0 + i * 1e-5, -122.0 - i * 1e-5, 5f + i );
+    }
+
+    private static void assertFix(LocHistory history, int index, int i) {
+        assertEquals( 1000L * i, history.getTime( index ) );
+        assertEquals( 1000000L * i, history.getElapsedRealtimeNanos( index ) );
+        assertEquals( 37.0 + i * 1e-5, history.getLatitude( index ), 0.0 );
+        assertEquals( -122.0 - i * 1e-5, history.getLongitude( index ), 0.0 );
+        assertEquals( 5f + i, history.getAccuracy( index ), 0f );
+    }
+
+    /** History written through to the journal file.  Left open in mJournal. */
+    private LocHistory openHistory(int capacity) throws IOException {
+        LocHistory history = new LocHistory( capacity );
+        mJournal = LocJournal.open( mFile );
+        mJournal.restore( history );
+        history.setRestored( mJournal );
+        return history;
+    }
+
+    /** Journal count fixes, 0 to count - 1, into a fresh file. */
+    private LocHistory write(int capacity, int count) throws IOException {
+        LocHistory history = openHistory( capacity );
+        for ( int i = 0; i < count; i++ ) {
+            addFix( history, i );
+        }
+        return history;
+    }
+
+    private LocHistory restore(int capacity) throws IOException {
+        LocHistory history = new LocHistory( capacity );
+        LocJournal journal = LocJournal.open( mFile );
+        try {
+            journal.restore( history );
+        } finally {
+            journal.close();
+        }
+        return history;
+    }
+
+    private void closeJournal() {
+        mJournal.close();
+        mJournal = null;
+    }
+
+    private static long recordsEnd(int records) {
+        return LocJournal.HEADER_SIZE + (long) records * LocJournal.RECORD_SIZE;
+    }
+
+    private void writeBytes(long offset, byte[] bytes) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile( mFile, "rw" );
+        try {
+            raf.seek( offset );
+            raf.write( bytes );
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void flipByte(long offset) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile( mFile, "rw" );
+        try {
+            raf.seek( offset );
+            int b = raf.read();
+            raf.seek( offset );
+            raf.write( b ^ 0xff );
+        } finally {
+            raf.close();
+        }
+    }
+
+    /****************************************************************
+     * Tests.
+     ****************************************************************/
+
+    @Test
+    public void restore_newFileIsEmpty() throws Exception {
+        mFile.delete();
+        LocHistory history = restore( 16 );
+        assertEquals( 0, history.size() );
+        assertEquals( LocJournal.HEADER_SIZE, mFile.length() );
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        write( 16, 10 );
+        closeJournal();
+        assertEquals( recordsEnd( 10 ), mFile.length() );
+
+        LocHistory history = restore( 16 );
+        assertEquals( 10, history.size() );
+        for ( int index = 0; index < 10; index++ ) {
+            assertFix( history, index, 9 - index );  // Latest first.
+        }
+    }
+
+    @Test
+    public void roundTrip_droppedOldest() throws Exception {
+        LocHistory written = write( 16, 10 );
+        written.removeOldest();
+        written.removeOldest();
+        closeJournal();
+
+        LocHistory history = restore( 16 );
+        assertEquals( 8, history.size() );
+        assertFix( history, 0, 9 );
+        assertFix( history, 7, 2 );
+    }
+
+    @Test
+    public void roundTrip_historyOverflow() throws Exception {
+        // Ring buffer full.  Each add drops the oldest in the journal too.
+        write( 4, 10 );
+        closeJournal();
+
+        LocHistory history = restore( 4 );
+        assertEquals( 4, history.size() );
+        assertFix( history, 0, 9 );
+        assertFix( history, 3, 6 );
+    }
+
+    @Test
+    public void restore_smallerHistoryKeepsJournalInStep() throws Exception {
+        write( 16, 10 );
+        closeJournal();
+
+        // Restoring into a smaller history moves the journal head up to match.
+        assertEquals( 4, restore( 4 ).size() );
+        LocHistory history = restore( 16 );
+        assertEquals( 4, history.size() );
+        assertFix( history, 0, 9 );
+        assertFix( history, 3, 6 );
+    }
+
+    @Test
+    public void restore_truncatesTornTail() throws Exception {
+        write( 16, 3 );
+        closeJournal();
+        // Half a record, as left by a crash mid append.
+        writeBytes( recordsEnd( 3 ), new byte[LocJournal.RECORD_SIZE / 2] );
+
+        LocHistory history = restore( 16 );
+        assertEquals( 3, history.size() );
+        assertFix( history, 0, 2 );
+        assertEquals( recordsEnd( 3 ), mFile.length() );
+    }
+
+    @Test
+    public void restore_truncatesCorruptRecord() throws Exception {
+        write( 16, 5 );
+        closeJournal();
+        // Bad CRC in the 4th record.  It and everything after it are dropped.
+        flipByte( recordsEnd( 3 ) + 8 );
+
+        LocHistory history = restore( 16 );
+        assertEquals( 3, history.size() );
+        assertFix( history, 0, 2 );
+        assertEquals( recordsEnd( 3 ), mFile.length() );
+    }
+
+    @Test
+    public void restore_appendsAfterTruncatedTail() throws Exception {
+        write( 16, 3 );
+        closeJournal();
+        writeBytes( recordsEnd( 3 ), new byte[7] );
+
+        LocHistory history = openHistory( 16 );
+        addFix( history, 3 );
+        closeJournal();
+
+        history = restore( 16 );
+        assertEquals( 4, history.size() );
+        assertFix( history, 0, 3 );
+    }
+
+    @Test
+    public void restore_badHeaderCrcReplaysFromFirstRecord() throws Exception {
+        LocHistory written = write( 16, 5 );
+        written.removeOldest();
+        written.removeOldest();
+        closeJournal();
+        assertEquals( 3, restore( 16 ).size() );
+
+        // Torn header.  Head offset can't be trusted, so all records are replayed.
+        flipByte( LocJournal.HEADER_SIZE - 1 );
+        LocHistory history = restore( 16 );
+        assertEquals( 5, history.size() );
+        assertFix( history, 0, 4 );
+        assertFix( history, 4, 0 );
+    }
+
+    @Test
+    public void restore_badMagicResetsFile() throws Exception {
+        write( 16, 5 );
+        closeJournal();
+        flipByte( 0 );
+
+        assertEquals( 0, restore( 16 ).size() );
+        assertEquals( LocJournal.HEADER_SIZE, mFile.length() );
+    }
+
+    @Test
+    public void compaction() throws Exception {
+        LocHistory history = openHistory( 512 );
+        for ( int i = 0; i < 300; i++ ) {
+            addFix( history, i );
+        }
+        assertEquals( recordsEnd( 300 ), mFile.length() );
+
+        // Dead records in front of the head only grow the file, until the 256th.
+        for ( int i = 0; i < 255; i++ ) {
+            history.removeOldest();
+        }
+        assertEquals( recordsEnd( 300 ), mFile.length() );
+        history.removeOldest();
+        assertEquals( recordsEnd( 44 ), mFile.length() );
+        assertFalse( new File( mFile.getPath() + ".tmp" ).exists() );
+
+        // Keeps appending to the compacted file.
+        addFix( history, 300 );
+        closeJournal();
+
+        LocHistory restored = restore( 512 );
+        assertEquals( 45, restored.size() );
+        assertFix( restored, 0, 300 );
+        assertFix( restored, 44, 256 );
+    }
+
+    @Test
+    public void clear() throws Exception {
+        LocHistory written = write( 16, 5 );
+        written.clear();
+        addFix( written, 7 );
+        closeJournal();
+
+        LocHistory history = restore( 16 );
+        assertEquals( 1, history.size() );
+        assertFix( history, 0, 7 );
+    }
+
+    @Test
+    public void history_detachesJournalOnWriteFailure() throws Exception {
+        LocHistory history = openHistory( 16 );
+        addFix( history, 0 );
+        assertTrue( history.isJournaled() );
+
+        // Appends now fail.
+        closeJournal();
+        addFix( history, 1 );
+        assertFalse( history.isJournaled() );
+
+        // History carries on in memory.
+        addFix( history, 2 );
+        history.removeOldest();
+        assertEquals( 2, history.size() );
+        assertFix( history, 0, 2 );
+        assertEquals( recordsEnd( 1 ), mFile.length() );
+    }
+}
@@ -0,0 +1,169 @@
+package com.motussoft.heresense.dwelldetection;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Haversine distance against WGS84 ellipsoid distances, and the edge cases of
+ * getConfidenceAtDistance().
+ */
+public class MathHelperTest {
+
+    /** distanceBetween() documents agreeing with WGS84 to within 0.6%. */
+    private static final double WGS84_TOLERANCE = 0.006;
+
+    private static final float EPSILON = 1e-4f;
+
+    private static void assertNearWgs84(double expected, double actual) {
+        assertEquals( expected, actual, expected * WGS84_TOLERANCE );
+    }
+
+    /****************************************************************
+     * distanceBetween()
+     ****************************************************************/
+
+    @Test
+    public void distanceBetween_samePointIsZero() throws Exception {
+        assertEquals( 0.0, MathHelper.distanceBetween( 37.422, -122.084, 37.422, -122.084 ), 0.0 );
+    }
+
+    @Test
+    public void distanceBetween_isSymmetric() throws Exception {
+        assertEquals( MathHelper.distanceBetween( 51.5007, -0.1246, 51.5014, -0.1419 ),
+                MathHelper.distanceBetween( 51.5014, -0.1419, 51.5007, -0.1246 ), 1e-9 );
+    }
+
+    @Test
+    public void distanceBetween_meridianArcs() throws Exception {
+        // WGS84 length of 0.001 degree of latitude.
+        assertNearWgs84( 110.574, MathHelper.distanceBetween( -0.0005, 0, 0.0005, 0 ) );
+        assertNearWgs84( 111.132, MathHelper.distanceBetween( 44.9995, 7, 45.0005, 7 ) );
+        assertNearWgs84( 111.412, MathHelper.distanceBetween( 59.9995, 7, 60.0005, 7 ) );
+    }
+
+    @Test
+    public void distanceBetween_parallelArcs() throws Exception {
+        // WGS84 length of 0.001 degree of longitude.
+        assertNearWgs84( 111.319, MathHelper.distanceBetween( 0, -0.0005, 0, 0.0005 ) );
+        assertNearWgs84( 78.847, MathHelper.distanceBetween( 45, -0.0005, 45, 0.0005 ) );
+        assertNearWgs84( 55.800, MathHelper.distanceBetween( 60, -0.0005, 60, 0.0005 ) );
+    }
+
+    @Test
+    public void distanceBetween_flindersPeakToBuninyong() throws Exception {
+        // Vincenty's geodesic on WGS84: 54972.271m.
+        double flindersLat = -( 37 + 57 / 60.0 + 3.72030 / 3600 );
+        double flindersLon = 144 + 25 / 60.0 + 29.52440 / 3600;
+        double buninyongLat = -( 37 + 39 / 60.0 + 10.15610 / 3600 );
+        double buninyongLon = 143 + 55 / 60.0 + 35.38390 / 3600;
+        assertNearWgs84( 54972.271,
+                MathHelper.distanceBetween( flindersLat, flindersLon, buninyongLat, buninyongLon ) );
+    }
+
+    @Test
+    public void distanceBetween_acrossAntimeridian() throws Exception {
+        assertNearWgs84( 111.319, MathHelper.distanceBetween( 0, 179.9995, 0, -179.9995 ) );
+    }
+
+    @Test
+    public void getLocationConfidencesAtPois_matchesSingleVersion() throws Exception {
+        double[] lats = { 37.4220, 37.4225, 37.4300 };
+        double[] lons = { -122.0840, -122.0846, -122.0840 };
+        double[] radii = { 30, 50, 25 };
+        float[] confidences = new float[lats.length];
+        float[] distances = new float[lats.length];
+        MathHelper.getLocationConfidencesAtPois( lats, lons, radii, lats.length,
+                37.4221, -122.0841, 20, confidences, distances );
+        for ( int i = 0; i < lats.length; i++ ) {
+            assertEquals( MathHelper.getLocationConfidenceAtPoi( lats[i], lons[i], radii[i],
+                    37.4221, -122.0841, 20 ), confidences[i], EPSILON );
+            assertEquals( MathHelper.distanceBetween( 37.4221, -122.0841, lats[i], lons[i] ),
+                    distances[i], 0.01 );
+        }
+    }
+
+    /****************************************************************
+     * offset()
+     ****************************************************************/
+
+    @Test
+    public void offset_distanceAndBearing() throws Exception {
+        double[] latLon = new double[2];
+        for ( int bearing = 0; bearing < 360; bearing += 45 ) {
+            MathHelper.offset( 37.422, -122.084, bearing, 600, latLon );
+            assertEquals( 600, MathHelper.distanceBetween( 37.422, -122.084, latLon[0], latLon[1] ), 0.5 );
+        }
+
+        // Due north keeps the longitude, due east about the latitude.
+        MathHelper.offset( 37.422, -122.084, 0, 150, latLon );
+        assertEquals( -122.084, latLon[1], 1e-12 );
+        assertTrue( latLon[0] > 37.422 );
+        MathHelper.offset( 37.422, -122.084, 90, 150, latLon );
+        assertEquals( 37.422, latLon[0], 1e-9 );
+        assertTrue( latLon[1] > -122.084 );
+    }
+
+    /****************************************************************
+     * getConfidenceAtDistance()
+     ****************************************************************/
+
+    @Test
+    public void confidence_zeroDistance() throws Exception {
+        // Poi contains the fix.
+        assertEquals( 1f, MathHelper.getConfidenceAtDistance( 50, 20, 0 ), 0f );
+        // Same circle.
+        assertEquals( 1f, MathHelper.getConfidenceAtDistance( 30, 30, 0 ), 0f );
+        // Fix contains the poi.  Area ratio.
+        assertEquals( 0.16f, MathHelper.getConfidenceAtDistance( 20, 50, 0 ), EPSILON );
+    }
+
+    @Test
+    public void confidence_disjointCircles() throws Exception {
+        assertEquals( 0f, MathHelper.getConfidenceAtDistance( 30, 20, 51 ), 0f );
+        assertEquals( 0f, MathHelper.getConfidenceAtDistance( 30, 20, 10000 ), 0f );
+        // Touching from outside.
+        assertEquals( 0f, MathHelper.getConfidenceAtDistance( 30, 20, 50 ), EPSILON );
+    }
+
+    @Test
+    public void confidence_poiContainsFix() throws Exception {
+        assertEquals( 1f, MathHelper.getConfidenceAtDistance( 100, 20, 50 ), 0f );
+        // Touching from inside.
+        assertEquals( 1f, MathHelper.getConfidenceAtDistance( 100, 20, 80 ), 0f );
+    }
+
+    @Test
+    public void confidence_fixContainsPoi() throws Exception {
+        assertEquals( 0.04f, MathHelper.getConfidenceAtDistance( 20, 100, 50 ), EPSILON );
+        // Touching from inside.
+        assertEquals( 0.04f, MathHelper.getConfidenceAtDistance( 20, 100, 80 ), EPSILON );
+    }
+
+    @Test
+    public void confidence_continuousAtContainment() throws Exception {
+        // Partial overlap converges on the containment cases at their boundaries.
+        assertEquals( 0.04f, MathHelper.getConfidenceAtDistance( 20, 100, 80.001 ), EPSILON );
+        assertEquals( 1f, MathHelper.getConfidenceAtDistance( 100, 20, 80.001 ), EPSILON );
+        assertEquals( 0f, MathHelper.getConfidenceAtDistance( 30, 20, 49.999 ), EPSILON );
+    }
+
+    @Test
+    public void confidence_partialOverlap() throws Exception {
+        // Equal circles a radius apart overlap by 2/3 pi - sqrt(3)/2, over pi.
+        double expected = ( 2 * Math.PI / 3 - Math.sqrt( 3 ) / 2 ) / Math.PI;
+        assertEquals( (float) expected, MathHelper.getConfidenceAtDistance( 10, 10, 10 ), EPSILON );
+    }
+
+    @Test
+    public void confidence_fallsWithDistance() throws Exception {
+        float last = 1f;
+        for ( int dist = 0; dist <= 60; dist++ ) {
+            float confidence = MathHelper.getConfidenceAtDistance( 30, 25, dist );
+            assertTrue( "dist=" + dist, confidence <= last + EPSILON );
+            assertTrue( "dist=" + dist, confidence >= 0f && confidence <= 1f );
+            last = confidence;
+        }
+        assertEquals( 0f, last, 0f );
+    }
+}
@@ -0,0 +1,79 @@
+package com.motussoft.heresense.dwelldetection;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * SamplingScheduler bands, backoff and margins on both sides of the threshold.
+ */
+public class SamplingSchedulerTest {
+
+    private static final long MIN = 15 * 1000;
+    private static final long BASE = 30 * 1000;
+    private static final long MAX = 2 * 60 * 1000;
+
+    @Test
+    public void noConfidenceRunsAtBase() throws Exception {
+        SamplingScheduler scheduler = new SamplingScheduler( MIN, BASE, MAX, 0.66f );
+        assertEquals( BASE, scheduler.getPlan().interval );
+        assertEquals( BASE, scheduler.next( Float.NaN, true, 0f ).interval );
+    }
+
+    @Test
+    public void nearThresholdRunsFastest() throws Exception {
+        SamplingScheduler scheduler = new SamplingScheduler( MIN, BASE, MAX, 0.66f );
+        assertEquals( MIN, scheduler.next( 0.6f, true, 0f ).interval );
+        assertEquals( MIN, scheduler.next( 0.7f, true, 0f ).interval );
+    }
+
+    @Test
+    public void clearBelowBacksOffToMax() throws Exception {
+        SamplingScheduler scheduler = new SamplingScheduler( MIN, BASE, MAX, 0.66f );
+        assertEquals( 2 * BASE, scheduler.next( 0.1f, true, 0f ).interval );
+        assertEquals( MAX, scheduler.next( 0.1f, true, 0f ).interval );
+        assertEquals( MAX, scheduler.next( 0.1f, true, 0f ).interval );
+
+        // Back to fastest as soon as it gets close.
+        assertEquals( MIN, scheduler.next( 0.6f, true, 0f ).interval );
+    }
+
+    @Test
+    public void backoffNeedsActivityToAgree() throws Exception {
+        SamplingScheduler scheduler = new SamplingScheduler( MIN, BASE, MAX, 0.66f );
+        for ( int i = 0; i < 5; i++ ) {
+            assertEquals( BASE, scheduler.next( 0.1f, false, 0f ).interval );
+        }
+    }
+
+    @Test
+    public void stillDisplacementOnlyBelowThreshold() throws Exception {
+        SamplingScheduler scheduler = new SamplingScheduler( MIN, BASE * 2, MAX * 2, 0.85f );
+        assertEquals( 25f, scheduler.next( 0.1f, true, 25f ).smallestDisplacement, 0f );
+        assertEquals( 0f, scheduler.next( 0.99f, true, 25f ).smallestDisplacement, 0f );
+    }
+
+    @Test
+    public void clearAboveReachableWithHighThreshold() throws Exception {
+        // Above 0.85 there's only 0.15 of room, less than the full margins.
+        SamplingScheduler scheduler = new SamplingScheduler( MIN, BASE, MAX, 0.85f );
+        assertEquals( MIN, scheduler.next( 0.87f, true, 0f ).interval );
+        assertEquals( BASE, scheduler.next( 0.92f, true, 0f ).interval );
+        assertEquals( 2 * BASE, scheduler.next( 0.98f, true, 0f ).interval );
+        assertEquals( MAX, scheduler.next( 0.98f, true, 0f ).interval );
+
+        // Full margins below.
+        assertEquals( MIN, scheduler.next( 0.72f, true, 0f ).interval );
+        assertEquals( BASE, scheduler.next( 0.6f, true, 0f ).interval );
+        assertEquals( 2 * BASE, scheduler.next( 0.5f, true, 0f ).interval );
+    }
+
+    @Test
+    public void resetBackToBase() throws Exception {
+        SamplingScheduler scheduler = new SamplingScheduler( MIN, BASE, MAX, 0.66f );
+        scheduler.next( 0.1f, true, 0f );
+        scheduler.next( 0.1f, true, 0f );
+        assertEquals( BASE, scheduler.reset().interval );
+        assertTrue( scheduler.reset().isSame( scheduler.getPlan() ) );
+    }
+}
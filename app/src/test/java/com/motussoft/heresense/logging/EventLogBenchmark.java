@@ -0,0 +1,313 @@
+package com.motussoft.heresense.logging;
+
+import android.location.Location;
+
+import com.motussoft.heresense.FakeContext;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.Calendar;
+
+import static org.junit.Assert.*;
+
+/**
+ * JVM sizes and timings of the same detection event sequence written as text log lines,
+ * as DetectDwellService, PoiSearch and HereSenseService log them, and as .evt records.
+ * Prints bytes and nanos per event for each.  Timings include building the text lines and
+ * encoding the records, and end once both writers have written everything out.  Host
+ * numbers only, but the relative cost carries over.
+ *
+ * Each location fix brings a dwell confidence, every third an activity result, every
+ * twentieth 5 poi candidates, and every hundredth a motion state change.
+ */
+public class EventLogBenchmark {
+
+    private static final int FIXES = 20000;
+    private static final long FIX_INTERVAL_MS = 100;
+
+    private static final String[] PLACE_IDS = {
+            "ChIJj61dQgK6j4AR4GeTYWZsKWw", "ChIJ2eUgeAK6j4ARbn5u_wAGqWA", "ChIJLfySpTOuEmsRsc_JfJtljdc",
+            "ChIJN1t_tDeuEmsRUsoyG83frY4", "ChIJP3Sa8ziYEmsRUKgyFmh9AQM" };
+    private static final String[] NAMES = {
+            "Blue Bottle Coffee", "Googleplex", "Shoreline Amphitheatre", "Computer History Museum", "Red Rock Coffee" };
+
+    private File mDir;
+    private FakeContext mContext;
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = File.createTempFile( "EventLogBenchmark", "" );
+        mDir.delete();
+        mDir.mkdirs();
+        mContext = new FakeContext( mDir );
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        delete( mDir );
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if ( children != null ) {
+            for ( File child : children ) {
+                delete( child );
+            }
+        }
+        file.delete();
+    }
+
+    /** Fix with the values the stub android.jar can't hold. */
+    private static class Fix extends Location {
+        final double mLat;
+        final double mLon;
+        final float mAccuracy;
+        final long mTime;
+
+        Fix(double lat, double lon, float accuracy, long time) {
+            super( "fused" );
+            mLat = lat;
+            mLon = lon;
+            mAccuracy = accuracy;
+            mTime = time;
+        }
+
+        @Override
+        public double getLatitude() {
+            return mLat;
+        }
+
+        @Override
+        public double getLongitude() {
+            return mLon;
+        }
+
+        @Override
+        public float getAccuracy() {
+            return mAccuracy;
+        }
+
+        @Override
+        public long getTime() {
+            return mTime;
+        }
+
+        /** As Location.toString(), fused fix without altitude or bearing. */
+        @Override
+        public String toString() {
+            return String.format( "Location[fused %.6f,%.6f acc=%.0f et=+%dms {Bundle[mParcelledData.dataSize=52]}]",
+                    mLat, mLon, mAccuracy, mTime % 100000000L );
+        }
+    }
+
+    private static Fix getFix(int i, long start) {
+        return new Fix( 37.422 + ( i % 997 ) * 1e-6, -122.084 - ( i % 991 ) * 1e-6,
+                8 + i % 30, start + i * FIX_INTERVAL_MS );
+    }
+
+    /****************************************************************
+     * Writers.
+     ****************************************************************/
+
+    /** One event sequence, written one way. */
+    private interface Sink {
+        void fix(Fix fix);
+        void dwellConfidence(long time, float confidence, int used, int total);
+        void activity(long time, int[] types, int[] confidences);
+        void poiCandidates(long time, int count, float[] confidences, float[] distances);
+        void motionState(long time, String oldState, String newState);
+        void flush();
+    }
+
+    /** Text lines through LogWriter, as LoggingService.logToFile() does. */
+    private static class TextSink implements Sink {
+        private final LogWriter mWriter;
+
+        TextSink(FakeContext context) {
+            mWriter = new LogWriter( context );
+            mWriter.start();
+        }
+
+        @Override
+        public void fix(Fix fix) {
+            mWriter.log( fix.getTime(), fix.toString() );
+        }
+
+        @Override
+        public void dwellConfidence(long time, float confidence, int used, int total) {
+            StringBuilder sb = new StringBuilder();
+            for ( int i = 0; i < total; i++ ) {
+                sb.append( i < used ? "1.0" : "0.0" ).append( i == total - 1 ? "" : "," );
+            }
+            mWriter.log( time, "Dwell Confidence(v=1.0): " + confidence + " : " + sb.toString() );
+        }
+
+        @Override
+        public void activity(long time, int[] types, int[] confidences) {
+            StringBuilder sb = new StringBuilder( "Activities: " );
+            for ( int i = 0; i < types.length; i++ ) {
+                sb.append( i == 0 ? "" : ", " ).append( types[i] == 3 ? "STILL" : "ON_FOOT" )
+                        .append( "=" ).append( confidences[i] );
+            }
+            mWriter.log( time, sb.toString() );
+        }
+
+        @Override
+        public void poiCandidates(long time, int count, float[] confidences, float[] distances) {
+            StringBuilder sb = new StringBuilder( "Pois: " );
+            for ( int i = 0; i < count; i++ ) {
+                sb.append( i == 0 ? "" : ", " ).append( NAMES[i] + "=" + confidences[i] );
+            }
+            mWriter.log( time, sb.toString() );
+        }
+
+        @Override
+        public void motionState(long time, String oldState, String newState) {
+            mWriter.log( time, "setMotionState: " + newState );
+        }
+
+        @Override
+        public void flush() {
+            mWriter.flush( 10000 );
+        }
+    }
+
+    /** Records through EventLog. */
+    private static class EventSink implements Sink {
+        private final FakeContext mContext;
+
+        EventSink(FakeContext context) {
+            mContext = context;
+        }
+
+        @Override
+        public void fix(Fix fix) {
+            EventLog.logLocationFix( mContext, fix, EventLogFormat.SOURCE_DWELL );
+        }
+
+        @Override
+        public void dwellConfidence(long time, float confidence, int used, int total) {
+            EventLog.logDwellConfidence( mContext, time, EventLogFormat.MODE_DWELL, confidence, used, total );
+        }
+
+        @Override
+        public void activity(long time, int[] types, int[] confidences) {
+            EventLog.logActivity( mContext, time, types, confidences );
+        }
+
+        @Override
+        public void poiCandidates(long time, int count, float[] confidences, float[] distances) {
+            EventLog.logPoiCandidates( mContext, time, count, PLACE_IDS, confidences, distances );
+        }
+
+        @Override
+        public void motionState(long time, String oldState, String newState) {
+            EventLog.logMotionState( mContext, time, oldState, newState );
+        }
+
+        @Override
+        public void flush() {
+            EventLog.flush( mContext );
+        }
+    }
+
+    /**
+     * Write the event sequence.
+     * @return  Events written.
+     */
+    private static int write(Sink sink, long start) {
+        int[] types = { 3, 2, 8 };
+        int[] activityConfidences = { 77, 15, 8 };
+        float[] confidences = { 0.81f, 0.42f, 0.3f, 0.12f, 0.05f };
+        float[] distances = { 12.5f, 40.2f, 55.0f, 90.1f, 140.7f };
+        int events = 0;
+        for ( int i = 0; i < FIXES; i++ ) {
+            Fix fix = getFix( i, start );
+            long time = fix.getTime();
+            sink.fix( fix );
+            sink.dwellConfidence( time, ( i % 100 ) / 100f, 7 + i % 5, 12 );
+            events += 2;
+            if ( i % 3 == 0 ) {
+                sink.activity( time, types, activityConfidences );
+                events++;
+            }
+            if ( i % 20 == 0 ) {
+                sink.poiCandidates( time, 5, confidences, distances );
+                events++;
+            }
+            if ( i % 100 == 0 ) {
+                sink.motionState( time, "eMoving", "eDwell" );
+                events++;
+            }
+        }
+        sink.flush();
+        return events;
+    }
+
+    /** Text log bytes, counting sealed segments at their raw size. */
+    private long getTextBytes() {
+        long bytes = 0;
+        for ( File file : mContext.getFilesDir().listFiles() ) {
+            if ( file.getName().endsWith( ".log" ) ) {
+                bytes += file.length();
+            }
+        }
+        for ( LogSegments.Segment segment : LogSegments.list( mContext ) ) {
+            bytes += segment.rawBytes;
+        }
+        return bytes;
+    }
+
+    private static int countRecords(File file) throws Exception {
+        int count = 0;
+        EventLogReader reader = new EventLogReader( new FileInputStream( file ) );
+        try {
+            while ( reader.next() != null ) {
+                count++;
+            }
+        } finally {
+            reader.close();
+        }
+        return count;
+    }
+
+    @Test
+    public void textAgainstEventLog() throws Exception {
+        // 10:00 today, so the sequence stays within one day.
+        Calendar cal = Calendar.getInstance();
+        cal.set( Calendar.HOUR_OF_DAY, 10 );
+        cal.set( Calendar.MINUTE, 0 );
+        long start = cal.getTimeInMillis();
+
+        // Warm both paths up first.  Text on a throwaway dir.  EventLog is a process
+        // singleton bound to the first context it sees, so on another day's file.
+        write( new TextSink( new FakeContext( new File( mDir, "warmup" ) ) ), start );
+        write( new EventSink( mContext ), start - 2 * 24 * 60 * 60 * 1000L );
+
+        long textStart = System.nanoTime();
+        int events = write( new TextSink( mContext ), start );
+        long textNs = System.nanoTime() - textStart;
+
+        long eventStart = System.nanoTime();
+        assertEquals( events, write( new EventSink( mContext ), start ) );
+        long eventNs = System.nanoTime() - eventStart;
+
+        long textBytes = getTextBytes();
+        File eventFile = EventLog.getEventLogFile( mContext, start );
+        long eventBytes = eventFile.length();
+        assertEquals( events, countRecords( eventFile ) );
+
+        System.out.println( "EventLogBenchmark: events=" + events );
+        System.out.println( "EventLogBenchmark text: bytes=" + textBytes
+                + " bytesPerEvent=" + textBytes / (double) events
+                + " nsPerEvent=" + textNs / events );
+        System.out.println( "EventLogBenchmark .evt: bytes=" + eventBytes
+                + " bytesPerEvent=" + eventBytes / (double) events
+                + " nsPerEvent=" + eventNs / events );
+        assertTrue( eventBytes < textBytes );
+    }
+}
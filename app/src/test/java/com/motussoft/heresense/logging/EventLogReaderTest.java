@@ -0,0 +1,232 @@
+package com.motussoft.heresense.logging;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * EventLogReader over a hand built log with every record kind, an unknown kind and a
+ * torn tail, and its CSV and JSON output.
+ */
+public class EventLogReaderTest {
+
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+    private static final long TIME = 1773162000000L;
+
+    /** Builds a log the way EventLog lays it out. */
+    private static class LogBuilder {
+        private final ByteBuffer mBuf = ByteBuffer.allocate( 64 * 1024 ).order( ByteOrder.LITTLE_ENDIAN );
+        private int mRecordStart = -1;
+
+        LogBuilder() {
+            this( EventLogFormat.MAGIC, EventLogFormat.VERSION );
+        }
+
+        LogBuilder(int magic, short version) {
+            mBuf.putInt( magic ).putShort( version ).putShort( (short) 0 );
+        }
+
+        ByteBuffer begin(int kind, long time) {
+            mRecordStart = mBuf.position();
+            mBuf.put( (byte) kind ).putShort( (short) 0 ).putLong( time );
+            return mBuf;
+        }
+
+        LogBuilder end() {
+            int length = mBuf.position() - mRecordStart - EventLogFormat.RECORD_HEADER_SIZE;
+            mBuf.putShort( mRecordStart + 1, (short) length );
+            return this;
+        }
+
+        ByteBuffer putString(String s) {
+            byte[] bytes = s.getBytes( UTF8 );
+            return mBuf.putShort( (short) bytes.length ).put( bytes );
+        }
+
+        byte[] toBytes() {
+            return Arrays.copyOf( mBuf.array(), mBuf.position() );
+        }
+
+        /** All but the last tornBytes bytes. */
+        byte[] toBytes(int tornBytes) {
+            return Arrays.copyOf( mBuf.array(), mBuf.position() - tornBytes );
+        }
+    }
+
+    /** One record of every kind, plus an unknown kind between them. */
+    private static LogBuilder buildAllKinds() {
+        LogBuilder log = new LogBuilder();
+
+        log.begin( EventLogFormat.KIND_LOCATION_FIX, TIME )
+                .putDouble( 37.422 ).putDouble( -122.084 ).putFloat( 8.5f )
+                .put( (byte) EventLogFormat.SOURCE_TRANSIT );
+        log.end();
+
+        log.begin( EventLogFormat.KIND_DWELL_CONFIDENCE, TIME + 1 )
+                .put( (byte) EventLogFormat.MODE_DWELL ).putFloat( 0.75f )
+                .putShort( (short) 12 ).putShort( (short) 40000 );
+        log.end();
+
+        log.begin( EventLogFormat.KIND_ACTIVITY, TIME + 2 )
+                .put( (byte) 2 ).put( (byte) 3 ).put( (byte) 80 ).put( (byte) 7 ).put( (byte) 200 );
+        log.end();
+
+        // Future kind.  Skipped by its length.
+        log.begin( 99, TIME + 3 ).putLong( 0x1122334455667788L ).putInt( 42 );
+        log.end();
+
+        log.begin( EventLogFormat.KIND_POI_CANDIDATES, TIME + 4 ).putShort( (short) 2 );
+        log.putString( "ChIJ_café" ).putFloat( 0.5f ).putFloat( 12.25f );
+        log.putString( "ChIJ,\"quoted\"" ).putFloat( Float.NaN ).putFloat( 80f );
+        log.end();
+
+        log.begin( EventLogFormat.KIND_MOTION_STATE, TIME + 5 );
+        log.putString( "STILL" );
+        log.putString( "IN_VEHICLE" );
+        log.end();
+
+        return log;
+    }
+
+    private static EventLogReader open(byte[] bytes) throws IOException {
+        return new EventLogReader( new ByteArrayInputStream( bytes ) );
+    }
+
+    private static int countEvents(byte[] bytes) throws IOException {
+        EventLogReader reader = open( bytes );
+        int count = 0;
+        while ( reader.next() != null ) {
+            count++;
+        }
+        reader.close();
+        return count;
+    }
+
+    private static String toCsv(EventLogReader.Event event) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        EventLogReader.writeCsv( event, new PrintStream( out, true, "UTF-8" ) );
+        return out.toString( "UTF-8" ).trim();
+    }
+
+    private static String toJson(EventLogReader.Event event) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        EventLogReader.writeJson( event, new PrintStream( out, true, "UTF-8" ) );
+        return out.toString( "UTF-8" ).trim();
+    }
+
+    /****************************************************************
+     * Tests.
+     ****************************************************************/
+
+    @Test
+    public void readsEveryKind() throws Exception {
+        EventLogReader reader = open( buildAllKinds().toBytes() );
+
+        EventLogReader.Event event = reader.next();
+        assertEquals( "location_fix", event.getKindName() );
+        assertEquals( TIME, event.time );
+        assertEquals( 37.422, (Double) event.fields.get( "lat" ), 0.0 );
+        assertEquals( -122.084, (Double) event.fields.get( "lng" ), 0.0 );
+        assertEquals( 8.5f, (Float) event.fields.get( "accuracy" ), 0f );
+        assertEquals( "transit", event.fields.get( "source" ) );
+        assertEquals( TIME + ",location_fix,37.422,-122.084,8.5,transit", toCsv( event ) );
+
+        event = reader.next();
+        assertEquals( "dwell_confidence", event.getKindName() );
+        assertEquals( "dwell", event.fields.get( "mode" ) );
+        assertEquals( 0.75f, (Float) event.fields.get( "confidence" ), 0f );
+        assertEquals( 12, event.fields.get( "used" ) );
+        assertEquals( 40000, event.fields.get( "total" ) );  // Unsigned.
+
+        event = reader.next();
+        assertEquals( "activity", event.getKindName() );
+        EventLogReader.Entries activities = (EventLogReader.Entries) event.fields.get( "activities" );
+        assertEquals( 2, activities.values.size() );
+        assertArrayEquals( new Object[] { 3, 80 }, activities.values.get( 0 ) );
+        assertArrayEquals( new Object[] { 7, 200 }, activities.values.get( 1 ) );
+        assertEquals( ( TIME + 2 ) + ",activity,3:80;7:200", toCsv( event ) );
+        assertEquals( "{\"time\":" + ( TIME + 2 ) + ",\"kind\":\"activity\",\"activities\":"
+                + "[{\"type\":3,\"confidence\":80},{\"type\":7,\"confidence\":200}]}", toJson( event ) );
+
+        event = reader.next();
+        assertEquals( "unknown_99", event.getKindName() );
+        assertEquals( TIME + 3, event.time );
+        assertTrue( event.fields.isEmpty() );
+
+        event = reader.next();
+        assertEquals( "poi_candidates", event.getKindName() );
+        EventLogReader.Entries candidates = (EventLogReader.Entries) event.fields.get( "candidates" );
+        assertEquals( 2, candidates.values.size() );
+        assertArrayEquals( new Object[] { "ChIJ_café", 0.5f, 12.25f }, candidates.values.get( 0 ) );
+        assertEquals( "ChIJ,\"quoted\"", candidates.values.get( 1 )[0] );
+        assertEquals( ( TIME + 4 ) + ",poi_candidates,\"ChIJ_café:0.5:12.25;ChIJ,\"\"quoted\"\":NaN:80.0\"",
+                toCsv( event ) );
+        assertEquals( "{\"time\":" + ( TIME + 4 ) + ",\"kind\":\"poi_candidates\",\"candidates\":"
+                + "[{\"placeId\":\"ChIJ_café\",\"confidence\":0.5,\"distance\":12.25},"
+                + "{\"placeId\":\"ChIJ,\\\"quoted\\\"\",\"confidence\":null,\"distance\":80.0}]}", toJson( event ) );
+
+        event = reader.next();
+        assertEquals( "motion_state", event.getKindName() );
+        assertEquals( "STILL", event.fields.get( "oldState" ) );
+        assertEquals( "IN_VEHICLE", event.fields.get( "newState" ) );
+        assertEquals( "{\"time\":" + ( TIME + 5 ) + ",\"kind\":\"motion_state\","
+                + "\"oldState\":\"STILL\",\"newState\":\"IN_VEHICLE\"}", toJson( event ) );
+
+        assertNull( reader.next() );
+        assertNull( reader.next() );
+        reader.close();
+    }
+
+    @Test
+    public void csvHeaderNamesFields() throws Exception {
+        EventLogReader reader = open( buildAllKinds().toBytes() );
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        EventLogReader.writeCsvHeader( reader.next(), new PrintStream( out, true, "UTF-8" ) );
+        assertEquals( "time,kind,lat,lng,accuracy,source", out.toString( "UTF-8" ).trim() );
+        reader.close();
+    }
+
+    @Test
+    public void tornPayloadEndsLog() throws Exception {
+        // Last record, motion_state, cut short in its payload.
+        assertEquals( 5, countEvents( buildAllKinds().toBytes( 3 ) ) );
+    }
+
+    @Test
+    public void tornRecordHeaderEndsLog() throws Exception {
+        LogBuilder log = buildAllKinds();
+        log.begin( EventLogFormat.KIND_LOCATION_FIX, TIME + 6 );
+        // Only kind and length of the next record made it out.
+        assertEquals( 6, countEvents( log.toBytes( 8 ) ) );
+    }
+
+    @Test
+    public void emptyLog() throws Exception {
+        assertEquals( 0, countEvents( new LogBuilder().toBytes() ) );
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsBadMagic() throws Exception {
+        open( new LogBuilder( 0x12345678, EventLogFormat.VERSION ).toBytes() );
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsNewerVersion() throws Exception {
+        open( new LogBuilder( EventLogFormat.MAGIC, (short) ( EventLogFormat.VERSION + 1 ) ).toBytes() );
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTornHeader() throws Exception {
+        open( new byte[] { 0x48, 0x53 } );
+    }
+}
@@ -0,0 +1,198 @@
+package com.motussoft.heresense.logging;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * LogFileIndex over appends, partial last lines, multi-byte UTF-8 and replaced files.
+ */
+public class LogFileIndexTest {
+
+    private File mFile;
+    private LogFileIndex mIndex;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile( "LogFileIndexTest", ".log" );
+        mIndex = new LogFileIndex( mFile );
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mIndex.close();
+        mFile.delete();
+        new File( mFile.getPath() + ".new" ).delete();
+    }
+
+    /****************************************************************
+     * Helpers.
+     ****************************************************************/
+
+    private void append(String text) throws IOException {
+        append( text.getBytes( "UTF-8" ) );
+    }
+
+    private void append(byte[] bytes) throws IOException {
+        FileOutputStream out = new FileOutputStream( mFile, true );
+        try {
+            out.write( bytes );
+        } finally {
+            out.close();
+        }
+    }
+
+    /** Replace the file at the path with a new one, as sealing a segment does. */
+    private void replace(String text) throws IOException {
+        File newFile = new File( mFile.getPath() + ".new" );
+        FileOutputStream out = new FileOutputStream( newFile );
+        try {
+            out.write( text.getBytes( "UTF-8" ) );
+        } finally {
+            out.close();
+        }
+        assertTrue( newFile.renameTo( mFile ) );
+    }
+
+    private void assertLines(String... lines) {
+        assertEquals( lines.length, mIndex.getLineCount() );
+        for ( int i = 0; i < lines.length; i++ ) {
+            assertEquals( lines[i], mIndex.getLine( i ) );
+        }
+        assertNull( mIndex.getLine( lines.length ) );
+    }
+
+    /****************************************************************
+     * Tests.
+     ****************************************************************/
+
+    @Test
+    public void emptyAndMissingFile() throws Exception {
+        assertEquals( 0, mIndex.update() );
+        assertNull( mIndex.getLine( 0 ) );
+
+        mFile.delete();
+        assertEquals( 0, mIndex.update() );
+        assertNull( mIndex.getLine( -1 ) );
+    }
+
+    @Test
+    public void appends() throws Exception {
+        append( "one\ntwo\n" );
+        assertEquals( 2, mIndex.update() );
+        assertLines( "one", "two" );
+
+        // Nothing new.
+        assertEquals( 2, mIndex.update() );
+
+        append( "three\n\nfive\n" );
+        assertEquals( 5, mIndex.update() );
+        assertLines( "one", "two", "three", "", "five" );
+    }
+
+    @Test
+    public void partialLastLineIndexedWhenCompleted() throws Exception {
+        append( "one\ntw" );
+        assertEquals( 1, mIndex.update() );
+        assertLines( "one" );
+
+        append( "o" );
+        assertEquals( 1, mIndex.update() );
+
+        append( "\nthr" );
+        assertEquals( 2, mIndex.update() );
+        assertLines( "one", "two" );
+    }
+
+    @Test
+    public void multiByteUtf8() throws Exception {
+        append( "café — 日本\n📍 pin\n" );
+        assertEquals( 2, mIndex.update() );
+        assertLines( "café — 日本", "📍 pin" );
+    }
+
+    @Test
+    public void multiByteUtf8SplitAcrossUpdates() throws Exception {
+        // Half of a 3 byte char lands before the update.
+        byte[] bytes = "日本\n".getBytes( "UTF-8" );
+        assertEquals( 7, bytes.length );
+        append( new byte[] { bytes[0], bytes[1] } );
+        assertEquals( 0, mIndex.update() );
+
+        append( Arrays.copyOfRange( bytes, 2, bytes.length ) );
+        assertEquals( 1, mIndex.update() );
+        assertLines( "日本" );
+    }
+
+    @Test
+    public void manyLines() throws Exception {
+        // Past the initial line starts capacity.
+        StringBuilder sb = new StringBuilder();
+        for ( int i = 0; i < 5000; i++ ) {
+            sb.append( "line " ).append( i ).append( '\n' );
+        }
+        append( sb.toString() );
+        assertEquals( 5000, mIndex.update() );
+        assertEquals( "line 0", mIndex.getLine( 0 ) );
+        assertEquals( "line 1024", mIndex.getLine( 1024 ) );
+        assertEquals( "line 4999", mIndex.getLine( 4999 ) );
+    }
+
+    @Test
+    public void truncatedStartsOver() throws Exception {
+        append( "one\ntwo\n" );
+        assertEquals( 2, mIndex.update() );
+
+        new FileOutputStream( mFile ).close();
+        assertEquals( 0, mIndex.update() );
+        assertLines();
+
+        append( "three\n" );
+        assertEquals( 1, mIndex.update() );
+        assertLines( "three" );
+    }
+
+    @Test
+    public void replacedBySmallerFile() throws Exception {
+        append( "one\ntwo\n" );
+        assertEquals( 2, mIndex.update() );
+
+        replace( "new\n" );
+        assertEquals( 1, mIndex.update() );
+        assertLines( "new" );
+
+        // Follows the new file.
+        append( "more\n" );
+        assertEquals( 2, mIndex.update() );
+        assertLines( "new", "more" );
+    }
+
+    @Test
+    public void replacedByLargerFile() throws Exception {
+        append( "one\ntwo\n" );
+        assertEquals( 2, mIndex.update() );
+
+        // Grown past the old size before the next update.
+        replace( "new one\nnew two\nnew three\n" );
+        assertEquals( 3, mIndex.update() );
+        assertLines( "new one", "new two", "new three" );
+    }
+
+    @Test
+    public void closeThenUpdateReindexes() throws Exception {
+        append( "one\ntwo\n" );
+        assertEquals( 2, mIndex.update() );
+
+        mIndex.close();
+        assertLines();
+        assertEquals( 2, mIndex.update() );
+        assertLines( "one", "two" );
+    }
+}
@@ -0,0 +1,186 @@
+package com.motussoft.heresense.logging;
+
+import com.motussoft.heresense.FakeContext;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Seals a chatty detection log through LogWriter, and checks the segments' manifest
+ * lines against the gzipped segments on disk:  rawBytes is the unzipped size, gzBytes the
+ * file size, and the raw sizes cover every line written.  Prints the sizes.
+ */
+public class LogSegmentsTest {
+
+    /** A bit over two segments' worth. */
+    private static final long LOG_BYTES = 2 * LogSegments.SEGMENT_MAX_BYTES + 300 * 1024;
+    private static final long LINE_INTERVAL_MS = 500;
+
+    private static final String[] NAMES = {
+            "Blue Bottle Coffee", "Googleplex", "Shoreline Amphitheatre", "Computer History Museum", "Red Rock Coffee" };
+
+    private File mDir;
+    private FakeContext mContext;
+    private LogWriter mWriter;
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = File.createTempFile( "LogSegmentsTest", "" );
+        mDir.delete();
+        mDir.mkdirs();
+        mContext = new FakeContext( mDir );
+        mWriter = new LogWriter( mContext );
+        mWriter.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mWriter.flush( 10000 );
+        delete( mDir );
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if ( children != null ) {
+            for ( File child : children ) {
+                delete( child );
+            }
+        }
+        file.delete();
+    }
+
+    /****************************************************************
+     * Helpers.
+     ****************************************************************/
+
+    /** One line as DetectDwellService, PoiSearch and HereSenseService log them. */
+    private static String getLine(int i, Random random) {
+        switch ( i % 6 ) {
+            case 0:
+            case 3:
+                return String.format( "Location[fused %.6f,%.6f acc=%d et=+%dms {Bundle[mParcelledData.dataSize=52]}]",
+                        37.422 + random.nextInt( 1000 ) * 1e-6, -122.084 - random.nextInt( 1000 ) * 1e-6,
+                        5 + random.nextInt( 30 ), 1000000 + i * LINE_INTERVAL_MS );
+            case 1:
+            case 4:
+                return "Dwell Confidence(v=1.0): " + random.nextInt( 100 ) / 100f + " : 1.0,1.0,1.0,0.0,1.0,0.0,0.0";
+            case 2:
+                return "Activities: STILL=" + random.nextInt( 100 ) + ", ON_FOOT=" + random.nextInt( 20 )
+                        + ", IN_VEHICLE=" + random.nextInt( 10 );
+            default:
+                StringBuilder sb = new StringBuilder( "Pois: " );
+                for ( int j = 0; j < NAMES.length; j++ ) {
+                    sb.append( j == 0 ? "" : ", " ).append( NAMES[j] ).append( "=" ).append( random.nextInt( 100 ) / 100f );
+                }
+                return sb.toString();
+        }
+    }
+
+    /** Manifest lines, split into fields. */
+    private List<String[]> readManifest() throws Exception {
+        ArrayList<String[]> lines = new ArrayList<String[]>();
+        BufferedReader reader = new BufferedReader( new FileReader( new File( mContext.getFilesDir(), "logs.manifest" ) ) );
+        try {
+            String line;
+            while ( ( line = reader.readLine() ) != null ) {
+                lines.add( line.split( "\t" ) );
+            }
+        } finally {
+            reader.close();
+        }
+        return lines;
+    }
+
+    private static long getUnzippedBytes(File file) throws Exception {
+        InputStream in = new GZIPInputStream( new FileInputStream( file ) );
+        try {
+            byte[] buf = new byte[8 * 1024];
+            long bytes = 0;
+            int read;
+            while ( ( read = in.read( buf ) ) > 0 ) {
+                bytes += read;
+            }
+            return bytes;
+        } finally {
+            in.close();
+        }
+    }
+
+    /****************************************************************
+     * Tests.
+     ****************************************************************/
+
+    @Test
+    public void sealedSizesMatchManifest() throws Exception {
+        // 10:00 today, so all lines fall in one day's segments.
+        Calendar cal = Calendar.getInstance();
+        cal.set( Calendar.HOUR_OF_DAY, 10 );
+        cal.set( Calendar.MINUTE, 0 );
+        long start = cal.getTimeInMillis();
+
+        Random random = new Random( 7 );
+        long chars = 0;
+        int lines = 0;
+        while ( chars < LOG_BYTES ) {
+            String line = getLine( lines, random );
+            mWriter.log( start + lines * LINE_INTERVAL_MS, line );
+            chars += line.length();
+            lines++;
+        }
+        mWriter.flush( 10000, true );
+
+        List<String[]> manifest = readManifest();
+        List<LogSegments.Segment> segments = LogSegments.list( mContext );
+        assertEquals( 3, manifest.size() );
+        assertEquals( manifest.size(), segments.size() );
+
+        long totalRaw = 0;
+        long totalGz = 0;
+        long lastEnd = 0;
+        for ( int i = 0; i < manifest.size(); i++ ) {
+            String[] fields = manifest.get( i );
+            LogSegments.Segment segment = segments.get( i );
+            long rawBytes = Long.parseLong( fields[3] );
+            long gzBytes = Long.parseLong( fields[4] );
+
+            assertEquals( segment.file.getName(), fields[0] );
+            assertEquals( getUnzippedBytes( segment.file ), rawBytes );
+            assertEquals( segment.rawBytes, rawBytes );
+            assertEquals( segment.file.length(), gzBytes );
+            assertTrue( segment.startTime <= segment.endTime );
+            assertTrue( segment.startTime >= lastEnd );
+            lastEnd = segment.endTime;
+            if ( i < manifest.size() - 1 ) {
+                // Sealed for size.
+                assertTrue( rawBytes >= LogSegments.SEGMENT_MAX_BYTES );
+            }
+            totalRaw += rawBytes;
+            totalGz += gzBytes;
+        }
+
+        // Every line, with its stamp and newline.  Nothing left active.
+        assertTrue( totalRaw > chars + lines );
+        assertFalse( LoggingService.getLogFile( mContext, start ).exists() );
+        assertEquals( start + ( lines - 1 ) * LINE_INTERVAL_MS, lastEnd );
+
+        System.out.println( "LogSegmentsTest: lines=" + lines + " segments=" + segments.size()
+                + " rawBytes=" + totalRaw + " gzBytes=" + totalGz
+                + " ratio=" + (float) totalRaw / totalGz );
+        // Chatty logs compress well.
+        assertTrue( totalGz * 4 < totalRaw );
+    }
+}
@@ -0,0 +1,156 @@
+package com.motussoft.heresense.logging;
+
+import com.motussoft.heresense.FakeContext;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+/**
+ * JVM timings of LogWriter against the per line write it replaced:  a new SimpleDateFormat,
+ * a write and a flush per line, as LoggingService.writeToFile() did.  Prints log() call
+ * latency percentiles and lines/sec.  Host numbers only, but the relative cost carries
+ * over.
+ *
+ * The replaced path also cost a startService() per line to get there, which a JVM can't
+ * time, so its numbers here are a lower bound.
+ */
+public class LogWriterBenchmark {
+
+    private static final int WARMUP_LINES = 20000;
+    private static final int LINES = 100000;
+
+    private File mDir;
+    private FakeContext mContext;
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = File.createTempFile( "LogWriterBenchmark", "" );
+        mDir.delete();
+        mDir.mkdirs();
+        mContext = new FakeContext( mDir );
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        delete( mDir );
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if ( children != null ) {
+            for ( File child : children ) {
+                delete( child );
+            }
+        }
+        file.delete();
+    }
+
+    /** Typical line, from DetectDwellService. */
+    private static String getMsg(int i) {
+        return "Dwell confidence: " + ( i % 100 ) / 100f + " at 37.42" + i % 1000
+                + ",-122.08" + i % 997 + " acc=12.0 history=" + i % 50;
+    }
+
+    /** Per call nanos, and lines/sec over the whole run. */
+    private static class Report {
+        final long[] mCallNs = new long[LINES];
+        long mTotalNs;
+
+        @Override
+        public String toString() {
+            long[] sorted = mCallNs.clone();
+            Arrays.sort( sorted );
+            return "p50Ns=" + sorted[LINES / 2]
+                    + " p99Ns=" + sorted[LINES * 99 / 100]
+                    + " maxNs=" + sorted[LINES - 1]
+                    + " linesPerSec=" + (long) ( LINES * 1e9 / mTotalNs );
+        }
+    }
+
+    /****************************************************************
+     * Paths.
+     ****************************************************************/
+
+    /** As LoggingService.writeToFile(), minus Log.d(). */
+    private static void writeReplaced(Writer logFile, String line) {
+        try {
+            logFile.write( new SimpleDateFormat( "HH:mm:ss.SSS" ).format( new Date() ) + " : " );
+            logFile.write( line + "\n" );
+            logFile.flush();
+        } catch (IOException e) { /* Do nothing */}
+    }
+
+    private Report runReplaced() throws IOException {
+        Writer logFile = new OutputStreamWriter( new FileOutputStream( new File( mDir, "replaced.log" ), true ) );
+        try {
+            for ( int i = 0; i < WARMUP_LINES; i++ ) {
+                writeReplaced( logFile, getMsg( i ) );
+            }
+
+            Report report = new Report();
+            long start = System.nanoTime();
+            for ( int i = 0; i < LINES; i++ ) {
+                String msg = getMsg( i );
+                long callStart = System.nanoTime();
+                writeReplaced( logFile, msg );
+                report.mCallNs[i] = System.nanoTime() - callStart;
+            }
+            report.mTotalNs = System.nanoTime() - start;
+            return report;
+        } finally {
+            logFile.close();
+        }
+    }
+
+    /** Lines/sec runs until the writer thread has written everything out. */
+    private Report runLogWriter() {
+        LogWriter writer = new LogWriter( mContext );
+        writer.start();
+        for ( int i = 0; i < WARMUP_LINES; i++ ) {
+            writer.log( getMsg( i ) );
+        }
+        writer.flush( 10000 );
+
+        Report report = new Report();
+        long start = System.nanoTime();
+        for ( int i = 0; i < LINES; i++ ) {
+            String msg = getMsg( i );
+            long callStart = System.nanoTime();
+            writer.log( msg );
+            report.mCallNs[i] = System.nanoTime() - callStart;
+        }
+        writer.flush( 10000 );
+        report.mTotalNs = System.nanoTime() - start;
+        return report;
+    }
+
+    @Test
+    public void logAgainstReplaced() throws Exception {
+        Report replaced = runReplaced();
+        Report logWriter = runLogWriter();
+        System.out.println( "LogWriterBenchmark: lines=" + LINES );
+        System.out.println( "LogWriterBenchmark replaced:  " + replaced );
+        System.out.println( "LogWriterBenchmark LogWriter: " + logWriter );
+
+        // Every line made it out, to the active segment or sealed ones.  Same lines and
+        // stamps, plus LogWriter's version line.
+        long replacedBytes = new File( mDir, "replaced.log" ).length();
+        long bytes = LoggingService.getLogFile( mContext ).length();
+        for ( LogSegments.Segment segment : LogSegments.list( mContext ) ) {
+            bytes += segment.rawBytes;
+        }
+        assertTrue( bytes > replacedBytes );
+    }
+}
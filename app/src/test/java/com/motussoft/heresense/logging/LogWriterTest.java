@@ -0,0 +1,197 @@
+package com.motussoft.heresense.logging;
+
+import com.motussoft.heresense.FakeContext;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * LogWriter flush thresholds and cached timestamps, through the daily log file.  Each
+ * test runs its own writer thread on a fresh files dir.
+ */
+public class LogWriterTest {
+
+    /** Same as LogWriter. */
+    private static final int FLUSH_LINES = 64;
+    private static final int FLUSH_CHARS = 8 * 1024;
+    private static final long FLUSH_INTERVAL_MS = 1000;
+
+    /** Well under FLUSH_INTERVAL_MS. */
+    private static final long SHORT_WAIT_MS = 300;
+
+    private File mDir;
+    private FakeContext mContext;
+    private LogWriter mWriter;
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = File.createTempFile( "LogWriterTest", "" );
+        mDir.delete();
+        mDir.mkdirs();
+        mContext = new FakeContext( mDir );
+        mWriter = new LogWriter( mContext );
+        mWriter.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mWriter.flush( FLUSH_INTERVAL_MS );
+        delete( mDir );
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if ( children != null ) {
+            for ( File child : children ) {
+                delete( child );
+            }
+        }
+        file.delete();
+    }
+
+    /****************************************************************
+     * Helpers.
+     ****************************************************************/
+
+    /** Lines of the daily log file covering time, version line included. */
+    private List<String> readLines(long time) throws IOException {
+        ArrayList<String> lines = new ArrayList<String>();
+        File file = LoggingService.getLogFile( mContext, time );
+        if ( !file.exists() ) {
+            return lines;
+        }
+        BufferedReader reader = new BufferedReader( new FileReader( file ) );
+        try {
+            String line;
+            while ( ( line = reader.readLine() ) != null ) {
+                lines.add( line );
+            }
+        } finally {
+            reader.close();
+        }
+        return lines;
+    }
+
+    private List<String> readLines() throws IOException {
+        return readLines( System.currentTimeMillis() );
+    }
+
+    /** Log a first line and wait for it, so the file is open and the writer idle. */
+    private void logStarted() throws IOException {
+        mWriter.log( "start" );
+        mWriter.flush( FLUSH_INTERVAL_MS );
+        assertEquals( 2, readLines().size() );  // Version and start.
+    }
+
+    private static String getMsg(String line) {
+        return line.substring( line.indexOf( " : " ) + 3 );
+    }
+
+    /****************************************************************
+     * Tests.
+     ****************************************************************/
+
+    @Test
+    public void versionLineStartsNewFile() throws Exception {
+        logStarted();
+        List<String> lines = readLines();
+        assertEquals( "LoggingService version: 0", getMsg( lines.get( 0 ) ) );
+        assertEquals( "start", getMsg( lines.get( 1 ) ) );
+    }
+
+    @Test
+    public void stampsMatchFormatAcrossSeconds() throws Exception {
+        Calendar cal = Calendar.getInstance();
+        cal.clear();
+        cal.set( 2026, Calendar.MARCH, 10, 10, 0, 0 );
+        long base = cal.getTimeInMillis();
+        // Same second, next second, next minute and hour, and single digit millis.
+        long[] times = { base, base + 7, base + 999, base + 1000, base + 1001, base + 1010,
+                base + 59999, base + 60000, base + 3600123 };
+        for ( int i = 0; i < times.length; i++ ) {
+            mWriter.log( times[i], "m" + i );
+        }
+        mWriter.flush( FLUSH_INTERVAL_MS );
+
+        SimpleDateFormat format = new SimpleDateFormat( "HH:mm:ss.SSS" );
+        List<String> lines = readLines( base );
+        assertEquals( times.length + 1, lines.size() );
+        for ( int i = 0; i < times.length; i++ ) {
+            assertEquals( format.format( new Date( times[i] ) ) + " : m" + i, lines.get( i + 1 ) );
+        }
+    }
+
+    @Test
+    public void flushesAfterInterval() throws Exception {
+        logStarted();
+
+        mWriter.log( "one" );
+        Thread.sleep( SHORT_WAIT_MS );
+        assertEquals( 2, readLines().size() );
+
+        Thread.sleep( FLUSH_INTERVAL_MS );
+        List<String> lines = readLines();
+        assertEquals( 3, lines.size() );
+        assertEquals( "one", getMsg( lines.get( 2 ) ) );
+    }
+
+    @Test
+    public void flushesAtLineThreshold() throws Exception {
+        logStarted();
+
+        int count = 4 * FLUSH_LINES;
+        for ( int i = 0; i < count; i++ ) {
+            mWriter.log( "line " + i );
+        }
+        // All but a last partial batch, without waiting for the interval.
+        Thread.sleep( SHORT_WAIT_MS );
+        assertTrue( readLines().size() >= 2 + count - ( FLUSH_LINES - 1 ) );
+
+        Thread.sleep( FLUSH_INTERVAL_MS );
+        List<String> lines = readLines();
+        assertEquals( 2 + count, lines.size() );
+        for ( int i = 0; i < count; i++ ) {
+            assertEquals( "line " + i, getMsg( lines.get( 2 + i ) ) );
+        }
+    }
+
+    @Test
+    public void flushesAtCharThreshold() throws Exception {
+        logStarted();
+
+        char[] chars = new char[FLUSH_CHARS];
+        Arrays.fill( chars, 'x' );
+        String longLine = new String( chars );
+        mWriter.log( longLine );
+        Thread.sleep( SHORT_WAIT_MS );
+
+        List<String> lines = readLines();
+        assertEquals( 3, lines.size() );
+        assertEquals( longLine, getMsg( lines.get( 2 ) ) );
+    }
+
+    @Test
+    public void flushWritesBufferedLines() throws Exception {
+        logStarted();
+
+        for ( int i = 0; i < 10; i++ ) {
+            mWriter.log( "line " + i );
+        }
+        mWriter.flush( FLUSH_INTERVAL_MS );
+        assertEquals( 12, readLines().size() );
+    }
+}
@@ -0,0 +1,472 @@
+package com.motussoft.heresense.logging;
+
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.services.drive.Drive;
+import com.motussoft.heresense.FakeContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * LogsUploader against a local stand-in for the Drive files list and resumable upload
+ * endpoints.
+ */
+public class LogsUploaderTest {
+
+    private static final String USER_FOLDER = "user-folder";
+    private static final String SHARED_FOLDER = "shared-folder";
+    private static final String TITLE = "poi_20260101_0.log.gz";
+
+    private static final int CHUNK = 2 * 256 * 1024;
+    private static final int TOTAL = 2 * CHUNK + 1000;
+
+    private File mDir;
+    private FakeContext mContext;
+    private DriveStandIn mServer;
+    private LogsUploader mUploader;
+    private File mLogFile;
+    private byte[] mContent;
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = File.createTempFile( "LogsUploaderTest", "" );
+        mDir.delete();
+        mDir.mkdirs();
+        mContext = new FakeContext( mDir );
+
+        mServer = new DriveStandIn();
+        Drive drive = new Drive.Builder( new NetHttpTransport(), GsonFactory.getDefaultInstance(), null )
+                .setRootUrl( mServer.getRootUrl() )
+                .setApplicationName( "LogsUploaderTest" )
+                .build();
+        mUploader = new LogsUploader( mContext, drive, "device" );
+
+        // Sealed segments are uploaded as is.
+        mContent = new byte[TOTAL];
+        new Random( 7 ).nextBytes( mContent );
+        mLogFile = new File( mContext.getFilesDir(), TITLE );
+        FileOutputStream out = new FileOutputStream( mLogFile );
+        try {
+            out.write( mContent );
+        } finally {
+            out.close();
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.stop();
+        delete( mDir );
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if ( children != null ) {
+            for ( File child : children ) {
+                delete( child );
+            }
+        }
+        file.delete();
+    }
+
+    /****************************************************************
+     * Helpers.
+     ****************************************************************/
+
+    private List<String> upload() {
+        return mUploader.upload( USER_FOLDER, SHARED_FOLDER,
+                Collections.singletonList( mLogFile.getPath() ) );
+    }
+
+    private void assertUploaded(List<String> uploaded) {
+        assertEquals( Collections.singletonList( mLogFile.getPath() ), uploaded );
+        assertArrayEquals( mContent, mServer.getFileContent( TITLE ) );
+        assertNull( getPrefs().get( "SESSION_URI_" + TITLE ) );
+        assertNull( getPrefs().get( "COMMITTED_" + TITLE ) );
+    }
+
+    private java.util.Map<String, ?> getPrefs() {
+        return mContext.getSharedPreferences( "LogsUploader", 0 ).getAll();
+    }
+
+    private void saveCheckpoint(String sessionUri, long committed) {
+        mContext.getSharedPreferences( "LogsUploader", 0 ).edit()
+                .putString( "SESSION_URI_" + TITLE, sessionUri )
+                .putLong( "COMMITTED_" + TITLE, committed )
+                .apply();
+    }
+
+    private static String range(long start, long end) {
+        return "PUT bytes " + start + "-" + end + "/" + TOTAL;
+    }
+
+    private static final String STATUS_QUERY = "PUT bytes */" + TOTAL;
+    private static final String START_SESSION = "POST session";
+
+    /****************************************************************
+     * Tests.
+     ****************************************************************/
+
+    @Test
+    public void uploadsInChunks() throws Exception {
+        assertUploaded( upload() );
+        assertEquals( Arrays.asList( START_SESSION,
+                range( 0, CHUNK - 1 ),
+                range( CHUNK, 2 * CHUNK - 1 ),
+                range( 2 * CHUNK, TOTAL - 1 ) ), mServer.getUploadRequests() );
+    }
+
+    @Test
+    public void resumeIncompleteWithoutRangeResendsFromStart() throws Exception {
+        // Nothing of the first chunk committed.  308 without a Range header.
+        mServer.mCommitLimits.add( 0L );
+
+        assertUploaded( upload() );
+        assertEquals( Arrays.asList( START_SESSION,
+                range( 0, CHUNK - 1 ),
+                range( 0, CHUNK - 1 ),
+                range( CHUNK, 2 * CHUNK - 1 ),
+                range( 2 * CHUNK, TOTAL - 1 ) ), mServer.getUploadRequests() );
+    }
+
+    @Test
+    public void resumeIncompleteWithRangeResendsRest() throws Exception {
+        // Only the first 256K of the first chunk committed.
+        mServer.mCommitLimits.add( 256 * 1024L );
+
+        assertUploaded( upload() );
+        assertEquals( Arrays.asList( START_SESSION,
+                range( 0, CHUNK - 1 ),
+                range( 256 * 1024, 256 * 1024 + CHUNK - 1 ),
+                range( 256 * 1024 + CHUNK, TOTAL - 1 ) ), mServer.getUploadRequests() );
+    }
+
+    @Test
+    public void checkpointSavedAfterEveryChunk() throws Exception {
+        // Connection drops after the second chunk is committed.
+        mServer.mFailAfterPuts = 2;
+
+        assertEquals( 0, upload().size() );
+        assertEquals( (long) 2 * CHUNK, getPrefs().get( "COMMITTED_" + TITLE ) );
+        assertNotNull( getPrefs().get( "SESSION_URI_" + TITLE ) );
+    }
+
+    @Test
+    public void resumesFromCheckpoint() throws Exception {
+        // Left from an earlier run, killed after the first chunk.
+        String sessionUri = mServer.createSession( TITLE, Arrays.copyOf( mContent, CHUNK ) );
+        saveCheckpoint( sessionUri, CHUNK );
+
+        assertUploaded( upload() );
+        assertEquals( Arrays.asList( STATUS_QUERY,
+                range( CHUNK, 2 * CHUNK - 1 ),
+                range( 2 * CHUNK, TOTAL - 1 ) ), mServer.getUploadRequests() );
+    }
+
+    @Test
+    public void resumesAfterInterruptedRun() throws Exception {
+        mServer.mFailAfterPuts = 1;
+        assertEquals( 0, upload().size() );
+
+        mServer.mFailAfterPuts = -1;
+        mServer.clearUploadRequests();
+        assertUploaded( upload() );
+        assertEquals( Arrays.asList( STATUS_QUERY,
+                range( CHUNK, 2 * CHUNK - 1 ),
+                range( 2 * CHUNK, TOTAL - 1 ) ), mServer.getUploadRequests() );
+    }
+
+    @Test
+    public void completedSessionIsNotUploadedAgain() throws Exception {
+        saveCheckpoint( mServer.createSession( TITLE, mContent ), TOTAL );
+
+        assertUploaded( upload() );
+        assertEquals( Collections.singletonList( STATUS_QUERY ), mServer.getUploadRequests() );
+    }
+
+    @Test
+    public void expiredSession404StartsOver() throws Exception {
+        assertSessionExpiryStartsOver( 404 );
+    }
+
+    @Test
+    public void expiredSession410StartsOver() throws Exception {
+        assertSessionExpiryStartsOver( 410 );
+    }
+
+    private void assertSessionExpiryStartsOver(int status) throws Exception {
+        String sessionUri = mServer.createSession( TITLE, Arrays.copyOf( mContent, CHUNK ) );
+        mServer.expireSession( sessionUri, status );
+        saveCheckpoint( sessionUri, CHUNK );
+
+        assertUploaded( upload() );
+        assertEquals( Arrays.asList( STATUS_QUERY, START_SESSION,
+                range( 0, CHUNK - 1 ),
+                range( CHUNK, 2 * CHUNK - 1 ),
+                range( 2 * CHUNK, TOTAL - 1 ) ), mServer.getUploadRequests() );
+    }
+
+    @Test
+    public void sessionExpiringMidUploadClearsCheckpoint() throws Exception {
+        mServer.mExpireAfterPuts = 1;
+
+        assertEquals( 0, upload().size() );
+        assertNull( getPrefs().get( "SESSION_URI_" + TITLE ) );
+
+        // Next run starts over.
+        mServer.mExpireAfterPuts = -1;
+        mServer.clearUploadRequests();
+        assertUploaded( upload() );
+        assertEquals( START_SESSION, mServer.getUploadRequests().get( 0 ) );
+    }
+
+    @Test
+    public void replacesEarlierUpload() throws Exception {
+        mServer.addListedFile( "old-id", TITLE, SHARED_FOLDER );
+
+        assertUploaded( upload() );
+        assertEquals( Collections.singletonList( "old-id" ), mServer.mDeleted );
+    }
+
+    @Test
+    public void cleansUpFilesRemovedFromSharedFolder() throws Exception {
+        mServer.addListedFile( "gone-id", "poi_20251231_0.log.gz", "other-folder" );
+
+        assertUploaded( upload() );
+        assertEquals( Collections.singletonList( "gone-id" ), mServer.mDeleted );
+    }
+
+    @Test
+    public void listFailureAbortsRun() throws Exception {
+        mServer.mListStatus = 500;
+
+        assertEquals( 0, upload().size() );
+        assertFalse( mUploader.isFolderMissing() );
+        assertEquals( 0, mServer.getUploadRequests().size() );
+    }
+
+    @Test
+    public void listNotFoundMarksFolderMissing() throws Exception {
+        mServer.mListStatus = 404;
+
+        assertEquals( 0, upload().size() );
+        assertTrue( mUploader.isFolderMissing() );
+        assertEquals( 0, mServer.getUploadRequests().size() );
+    }
+
+    /****************************************************************
+     * Stand-in server.
+     ****************************************************************/
+
+    /**
+     * Files list, delete, and resumable upload sessions.  Sessions commit whole chunks,
+     * unless told otherwise.
+     */
+    private static class DriveStandIn implements HttpHandler {
+
+        private static class Session {
+            String title;
+            ByteArrayOutputStream committed = new ByteArrayOutputStream();
+            int expiredStatus = 0;
+        }
+
+        private final HttpServer mHttpServer;
+        private final String mRootUrl;
+        private final HashMap<String, Session> mSessions = new HashMap<String, Session>();
+        private final HashMap<String, byte[]> mFiles = new HashMap<String, byte[]>();
+        private final ArrayList<String> mUploadRequests = new ArrayList<String>();
+        private final ArrayList<String> mListedFiles = new ArrayList<String>();
+
+        /** Status of files list requests. */
+        volatile int mListStatus = 200;
+        /** Bytes committed of the next chunks, instead of all. */
+        final List<Long> mCommitLimits = Collections.synchronizedList( new ArrayList<Long>() );
+        /** Drop the connection after this many chunk puts.  -1 for never. */
+        volatile int mFailAfterPuts = -1;
+        /** Expire the session after this many chunk puts.  -1 for never. */
+        volatile int mExpireAfterPuts = -1;
+        final List<String> mDeleted = Collections.synchronizedList( new ArrayList<String>() );
+
+        private int mPuts = 0;
+
+        DriveStandIn() throws IOException {
+            mHttpServer = HttpServer.create( new InetSocketAddress( "127.0.0.1", 0 ), 0 );
+            mHttpServer.createContext( "/", this );
+            mHttpServer.start();
+            mRootUrl = "http://127.0.0.1:" + mHttpServer.getAddress().getPort() + "/";
+        }
+
+        String getRootUrl() {
+            return mRootUrl;
+        }
+
+        void stop() {
+            mHttpServer.stop( 0 );
+        }
+
+        synchronized String createSession(String title, byte[] committed) {
+            Session session = new Session();
+            session.title = title;
+            session.committed.write( committed, 0, committed.length );
+            String uri = mRootUrl + "session/" + mSessions.size();
+            mSessions.put( uri, session );
+            return uri;
+        }
+
+        synchronized void expireSession(String uri, int status) {
+            mSessions.get( uri ).expiredStatus = status;
+        }
+
+        synchronized void addListedFile(String id, String title, String parentId) {
+            mListedFiles.add( "{\"id\":\"" + id + "\",\"title\":\"" + title + "\","
+                    + "\"parents\":[{\"id\":\"" + USER_FOLDER + "\"},{\"id\":\"" + parentId + "\"}]}" );
+        }
+
+        synchronized byte[] getFileContent(String title) {
+            return mFiles.get( title );
+        }
+
+        synchronized List<String> getUploadRequests() {
+            return new ArrayList<String>( mUploadRequests );
+        }
+
+        synchronized void clearUploadRequests() {
+            mUploadRequests.clear();
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                byte[] body = readAll( exchange.getRequestBody() );
+                String method = exchange.getRequestMethod();
+                String path = exchange.getRequestURI().getPath();
+                synchronized ( this ) {
+                    if ( method.equals( "GET" ) && path.equals( "/drive/v2/files" ) ) {
+                        handleList( exchange );
+                    } else if ( method.equals( "DELETE" ) && path.startsWith( "/drive/v2/files/" ) ) {
+                        mDeleted.add( path.substring( "/drive/v2/files/".length() ) );
+                        respond( exchange, 204, null );
+                    } else if ( method.equals( "POST" ) && path.equals( "/upload/drive/v2/files" ) ) {
+                        handleStartSession( exchange, body );
+                    } else if ( method.equals( "PUT" ) && path.startsWith( "/session/" ) ) {
+                        handlePut( exchange, body );
+                    } else {
+                        respond( exchange, 400, null );
+                    }
+                }
+            } finally {
+                exchange.close();
+            }
+        }
+
+        private void handleList(HttpExchange exchange) throws IOException {
+            if ( mListStatus != 200 ) {
+                respond( exchange, mListStatus, "{\"error\":{\"code\":" + mListStatus + "}}" );
+                return;
+            }
+            StringBuilder sb = new StringBuilder( "{\"items\":[" );
+            for ( int i = 0; i < mListedFiles.size(); i++ ) {
+                sb.append( i == 0 ? "" : "," ).append( mListedFiles.get( i ) );
+            }
+            respond( exchange, 200, sb.append( "]}" ).toString() );
+        }
+
+        private void handleStartSession(HttpExchange exchange, byte[] body) throws IOException {
+            mUploadRequests.add( START_SESSION );
+            String json = new String( body, "UTF-8" );
+            String title = json.replaceAll( ".*\"title\"\\s*:\\s*\"([^\"]*)\".*", "$1" );
+            exchange.getResponseHeaders().set( "Location", createSession( title, new byte[0] ) );
+            respond( exchange, 200, null );
+        }
+
+        private void handlePut(HttpExchange exchange, byte[] body) throws IOException {
+            String contentRange = exchange.getRequestHeaders().getFirst( "Content-Range" );
+            mUploadRequests.add( "PUT " + contentRange );
+            Session session = mSessions.get( mRootUrl + exchange.getRequestURI().getPath().substring( 1 ) );
+            if ( session == null ) {
+                respond( exchange, 404, null );
+                return;
+            }
+            if ( session.expiredStatus != 0 ) {
+                respond( exchange, session.expiredStatus, null );
+                return;
+            }
+
+            // "bytes */total" or "bytes start-end/total".
+            String spec = contentRange.substring( "bytes ".length() );
+            long total = Long.parseLong( spec.substring( spec.indexOf( '/' ) + 1 ) );
+            if ( !spec.startsWith( "*" ) ) {
+                long start = Long.parseLong( spec.substring( 0, spec.indexOf( '-' ) ) );
+                if ( start != session.committed.size() ) {
+                    respond( exchange, 400, null );
+                    return;
+                }
+                mPuts++;
+                if ( mFailAfterPuts >= 0 && mPuts > mFailAfterPuts ) {
+                    respond( exchange, 503, null );
+                    return;
+                }
+                long limit = ( mCommitLimits.isEmpty() ? body.length : mCommitLimits.remove( 0 ) );
+                session.committed.write( body, 0, (int) Math.min( limit, body.length ) );
+                if ( mExpireAfterPuts >= 0 && mPuts >= mExpireAfterPuts ) {
+                    session.expiredStatus = 404;
+                }
+            }
+
+            long committed = session.committed.size();
+            if ( committed == total ) {
+                mFiles.put( session.title, session.committed.toByteArray() );
+                respond( exchange, 200, "{\"id\":\"file-" + session.title + "\",\"title\":\"" + session.title + "\"}" );
+            } else {
+                if ( committed > 0 ) {
+                    exchange.getResponseHeaders().set( "Range", "bytes=0-" + ( committed - 1 ) );
+                }
+                respond( exchange, 308, null );
+            }
+        }
+
+        private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+            byte[] bytes = ( json == null ? new byte[0] : json.getBytes( "UTF-8" ) );
+            if ( json != null ) {
+                exchange.getResponseHeaders().set( "Content-Type", "application/json" );
+            }
+            exchange.sendResponseHeaders( status, bytes.length == 0 ? -1 : bytes.length );
+            if ( bytes.length > 0 ) {
+                OutputStream out = exchange.getResponseBody();
+                out.write( bytes );
+                out.close();
+            }
+        }
+
+        private static byte[] readAll(InputStream in) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[8 * 1024];
+            int read;
+            while ( ( read = in.read( buf ) ) > 0 ) {
+                out.write( buf, 0, read );
+            }
+            return out.toByteArray();
+        }
+    }
+}
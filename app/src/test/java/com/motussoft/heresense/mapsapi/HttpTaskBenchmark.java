@@ -0,0 +1,268 @@
+package com.motussoft.heresense.mapsapi;
+
+import com.google.gson.Gson;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * HttpTask's shared connection layer against the per call connections it replaced, on a
+ * local stand-in for the places api serving nearby search responses.  Prints bytes on the
+ * wire, connections opened and per request times.  Host numbers only: loopback hides the
+ * handshake and transfer time that fewer connections and bytes save on a phone.
+ *
+ * Every 10th response is a 500 with a body, which the replaced path never read, so its
+ * connection couldn't be reused.
+ */
+public class HttpTaskBenchmark {
+
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+    private static final int WARMUP_REQUESTS = 50;
+    private static final int REQUESTS = 200;
+    private static final int ERROR_EVERY = 10;
+
+    /** Subset of the nearby search response, enough to decode something. */
+    private static class SearchResult {
+        String status;
+        Place[] results;
+        String next_page_token;
+    }
+
+    private static class Place {
+        String place_id;
+        String name;
+        String vicinity;
+        String[] types;
+    }
+
+    private HttpServer mServer;
+    private String mUrl;
+    private byte[] mJson;
+    private byte[] mGzippedJson;
+
+    // Server side counters.
+    private final Set<Integer> mClientPorts = new HashSet<Integer>();
+    private long mBodyBytes = 0;
+    private int mRequests = 0;
+
+    @Before
+    public void setUp() throws Exception {
+        mJson = buildResponse().getBytes( UTF8 );
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream( out );
+        gzip.write( mJson );
+        gzip.close();
+        mGzippedJson = out.toByteArray();
+
+        // Otherwise Nagle and delayed acks add ~40ms to every loopback response.
+        System.setProperty( "sun.net.httpserver.nodelay", "true" );
+        mServer = HttpServer.create( new InetSocketAddress( "127.0.0.1", 0 ), 0 );
+        mServer.createContext( "/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve( exchange );
+            }
+        } );
+        mServer.start();
+        mUrl = "http://127.0.0.1:" + mServer.getAddress().getPort() + "/maps/api/place/nearbysearch/json";
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.stop( 0 );
+    }
+
+    /** 20 results, shaped like a nearby search page. */
+    private static String buildResponse() {
+        Random random = new Random( 1 );
+        String[] types = { "cafe", "restaurant", "food", "point_of_interest", "establishment" };
+        StringBuilder sb = new StringBuilder( "{\"html_attributions\":[],\"next_page_token\":\"" );
+        sb.append( randomToken( random, 400 ) ).append( "\",\"results\":[" );
+        for ( int i = 0; i < 20; i++ ) {
+            double lat = 37.42 + random.nextDouble() / 100;
+            double lng = -122.08 + random.nextDouble() / 100;
+            sb.append( i == 0 ? "" : "," )
+                    .append( "{\"geometry\":{\"location\":{\"lat\":" ).append( lat )
+                    .append( ",\"lng\":" ).append( lng ).append( "},\"viewport\":{\"northeast\":{\"lat\":" )
+                    .append( lat + 0.0013 ).append( ",\"lng\":" ).append( lng + 0.0013 )
+                    .append( "},\"southwest\":{\"lat\":" ).append( lat - 0.0013 ).append( ",\"lng\":" )
+                    .append( lng - 0.0013 ).append( "}}}," )
+                    .append( "\"icon\":\"https://maps.gstatic.com/mapfiles/place_api/icons/cafe-71.png\"," )
+                    .append( "\"id\":\"" ).append( randomToken( random, 40 ) ).append( "\"," )
+                    .append( "\"name\":\"Place " ).append( i ).append( "\"," )
+                    .append( "\"opening_hours\":{\"open_now\":true,\"weekday_text\":[]}," )
+                    .append( "\"photos\":[{\"height\":1365,\"html_attributions\":[\"<a href=\\\"https://maps.google.com/maps/contrib/" )
+                    .append( random.nextInt( 1000000000 ) ).append( "/photos\\\">A Contributor</a>\"]," )
+                    .append( "\"photo_reference\":\"" ).append( randomToken( random, 160 ) ).append( "\",\"width\":2048}]," )
+                    .append( "\"place_id\":\"ChIJ" ).append( randomToken( random, 23 ) ).append( "\"," )
+                    .append( "\"rating\":" ).append( 3 + random.nextInt( 20 ) / 10.0 ).append( "," )
+                    .append( "\"reference\":\"" ).append( randomToken( random, 180 ) ).append( "\"," )
+                    .append( "\"scope\":\"GOOGLE\",\"types\":[\"" ).append( types[i % types.length] )
+                    .append( "\",\"point_of_interest\",\"establishment\"]," )
+                    .append( "\"vicinity\":\"" ).append( 100 + i ).append( " Castro Street, Mountain View\"}" );
+        }
+        return sb.append( "],\"status\":\"OK\"}" ).toString();
+    }
+
+    private static String randomToken(Random random, int length) {
+        String chars = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+        StringBuilder sb = new StringBuilder( length );
+        for ( int i = 0; i < length; i++ ) {
+            sb.append( chars.charAt( random.nextInt( chars.length() ) ) );
+        }
+        return sb.toString();
+    }
+
+    private synchronized void serve(HttpExchange exchange) throws IOException {
+        try {
+            mClientPorts.add( exchange.getRemoteAddress().getPort() );
+            if ( ++mRequests % ERROR_EVERY == 0 ) {
+                byte[] error = "{\"error_message\":\"Backend error\",\"status\":\"UNKNOWN_ERROR\"}".getBytes( UTF8 );
+                exchange.sendResponseHeaders( 500, error.length );
+                exchange.getResponseBody().write( error );
+                mBodyBytes += error.length;
+                return;
+            }
+            String acceptEncoding = exchange.getRequestHeaders().getFirst( "Accept-Encoding" );
+            boolean bGzip = ( acceptEncoding != null && acceptEncoding.contains( "gzip" ) );
+            byte[] body = ( bGzip ? mGzippedJson : mJson );
+            exchange.getResponseHeaders().set( "Content-Type", "application/json; charset=UTF-8" );
+            if ( bGzip ) {
+                exchange.getResponseHeaders().set( "Content-Encoding", "gzip" );
+            }
+            exchange.sendResponseHeaders( 200, body.length );
+            OutputStream out = exchange.getResponseBody();
+            out.write( body );
+            mBodyBytes += body.length;
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private synchronized void resetCounters() {
+        mClientPorts.clear();
+        mBodyBytes = 0;
+        mRequests = 0;
+    }
+
+    /****************************************************************
+     * Client paths.
+     ****************************************************************/
+
+    /** As HttpJsonTask did before the shared layer. */
+    private SearchResult fetchReplaced() throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL( mUrl ).openConnection();
+        if ( conn.getResponseCode() != HttpURLConnection.HTTP_OK ) {
+            return null;
+        }
+        BufferedReader reader = new BufferedReader( new InputStreamReader( conn.getInputStream(), UTF8 ) );
+        StringBuilder sb = new StringBuilder();
+        try {
+            String line;
+            while ( ( line = reader.readLine() ) != null ) {
+                sb.append( line );
+            }
+        } finally {
+            reader.close();
+        }
+        return new Gson().fromJson( sb.toString(), SearchResult.class );
+    }
+
+    /** As HttpJsonTask does now, minus RequestLimiter. */
+    private SearchResult fetchShared() throws IOException {
+        HttpURLConnection conn = HttpTask.openConnection( new URL( mUrl ) );
+        InputStream in = null;
+        try {
+            if ( conn.getResponseCode() != HttpURLConnection.HTTP_OK ) {
+                return null;
+            }
+            in = HttpTask.getInputStream( conn );
+            Reader reader = new InputStreamReader( in, UTF8 );
+            return HttpTask.GSON.fromJson( reader, SearchResult.class );
+        } finally {
+            HttpTask.drainAndClose( conn, in );
+        }
+    }
+
+    /** Counters of a run. */
+    private static class Report {
+        int ok;
+        int connections;
+        long bodyBytes;
+        long totalNs;
+
+        @Override
+        public String toString() {
+            return "ok=" + ok + " connections=" + connections
+                    + " bodyBytes/request=" + bodyBytes / REQUESTS
+                    + " us/request=" + totalNs / 1000 / REQUESTS;
+        }
+    }
+
+    private Report run(boolean bShared) throws IOException {
+        for ( int i = 0; i < WARMUP_REQUESTS; i++ ) {
+            if ( bShared ) {
+                fetchShared();
+            } else {
+                fetchReplaced();
+            }
+        }
+        resetCounters();
+
+        Report report = new Report();
+        long start = System.nanoTime();
+        for ( int i = 0; i < REQUESTS; i++ ) {
+            SearchResult result = ( bShared ? fetchShared() : fetchReplaced() );
+            if ( result != null ) {
+                assertEquals( "OK", result.status );
+                assertEquals( 20, result.results.length );
+                report.ok++;
+            }
+        }
+        report.totalNs = System.nanoTime() - start;
+        synchronized ( this ) {
+            report.connections = mClientPorts.size();
+            report.bodyBytes = mBodyBytes;
+        }
+        return report;
+    }
+
+    @Test
+    public void sharedLayerAgainstReplaced() throws Exception {
+        Report replaced = run( false );
+        Report shared = run( true );
+        System.out.println( "HttpTaskBenchmark: json=" + mJson.length + " gzipped=" + mGzippedJson.length );
+        System.out.println( "HttpTaskBenchmark replaced: " + replaced );
+        System.out.println( "HttpTaskBenchmark shared:   " + shared );
+
+        assertEquals( REQUESTS - REQUESTS / ERROR_EVERY, replaced.ok );
+        assertEquals( replaced.ok, shared.ok );
+        // Every undrained error response cost the replaced path its connection.
+        assertEquals( 1, shared.connections );
+        assertTrue( replaced.connections > REQUESTS / ERROR_EVERY / 2 );
+        assertTrue( shared.bodyBytes * 2 < replaced.bodyBytes );
+    }
+}
@@ -0,0 +1,337 @@
+package com.motussoft.heresense.mapsapi;
+
+import com.motussoft.heresense.FakeSharedPreferences;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * RequestLimiter refill, budget shares and refunds, local budget day, waiter order and
+ * timeouts, on a test clock.  Waiting requests run on their own threads.
+ */
+public class RequestLimiterTest {
+
+    private static final String DEFAULT_URL = "https://maps.googleapis.com/maps/api/place/details/json";
+    private static final String TEXT_URL = PlaceSearch.TextSearch.URL;
+
+    private static final TimeZone TIME_ZONE = TimeZone.getTimeZone( "America/Los_Angeles" );
+
+    private static final long MINUTE = 60 * 1000;
+
+    /** Limiter on a clock moved by the test. */
+    private static class TestLimiter extends RequestLimiter {
+        private long mNow;
+
+        TestLimiter(FakeSharedPreferences prefs, long now) {
+            super( prefs, Calendar.getInstance( TIME_ZONE ) );
+            mNow = now;
+        }
+
+        @Override
+        synchronized long currentTimeMillis() {
+            return mNow;
+        }
+
+        /** Move the clock, and wake waiters to see it. */
+        synchronized void advance(long ms) {
+            mNow += ms;
+            notifyAll();
+        }
+    }
+
+    private FakeSharedPreferences mPrefs;
+    private TestLimiter mLimiter;
+    private final List<String> mIssued = Collections.synchronizedList( new ArrayList<String>() );
+    private final List<Thread> mThreads = new ArrayList<Thread>();
+
+    @Before
+    public void setUp() throws Exception {
+        mPrefs = new FakeSharedPreferences();
+        mLimiter = new TestLimiter( mPrefs, localTime( 2026, Calendar.MARCH, 10, 12, 0 ) );
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for ( Thread thread : mThreads ) {
+            thread.interrupt();
+            thread.join( 1000 );
+        }
+    }
+
+    /****************************************************************
+     * Helpers.
+     ****************************************************************/
+
+    private static long localTime(int year, int month, int day, int hour, int minute) {
+        Calendar cal = Calendar.getInstance( TIME_ZONE );
+        cal.clear();
+        cal.set( year, month, day, hour, minute );
+        return cal.getTimeInMillis();
+    }
+
+    /** Seed the persisted budget used on the day of time. */
+    private void seedBudget(long time, int used) {
+        Calendar cal = Calendar.getInstance( TIME_ZONE );
+        cal.setTimeInMillis( time );
+        cal.set( Calendar.HOUR_OF_DAY, 0 );
+        cal.set( Calendar.MINUTE, 0 );
+        cal.set( Calendar.SECOND, 0 );
+        cal.set( Calendar.MILLISECOND, 0 );
+        mPrefs.edit()
+                .putLong( "KEY_BUDGET_DAY_START", cal.getTimeInMillis() )
+                .putInt( "KEY_BUDGET_USED", used )
+                .apply();
+        mLimiter = new TestLimiter( mPrefs, time );
+    }
+
+    private int getBudgetUsed() {
+        return mPrefs.getInt( "KEY_BUDGET_USED", -1 );
+    }
+
+    /** Take all tokens. */
+    private void emptyBucket() {
+        assertTrue( mLimiter.acquire( TEXT_URL, RequestLimiter.PRIORITY_DWELL ) );
+    }
+
+    /**
+     * Acquire on a new thread, and wait for it to block on the limiter.  Adds name to
+     * mIssued once issued.
+     */
+    private FutureTask<Boolean> acquireWaiting(final String name, final String baseUrl, final int priority)
+            throws InterruptedException {
+        FutureTask<Boolean> task = new FutureTask<Boolean>( new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                boolean bIssued = mLimiter.acquire( baseUrl, priority );
+                if ( bIssued ) {
+                    mIssued.add( name );
+                }
+                return bIssued;
+            }
+        } );
+        Thread thread = new Thread( task, name );
+        mThreads.add( thread );
+        thread.start();
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while ( thread.getState() != Thread.State.TIMED_WAITING ) {
+            assertFalse( "Not waiting: " + name, task.isDone() );
+            assertTrue( "Not waiting: " + name, System.currentTimeMillis() < deadline );
+            Thread.sleep( 1 );
+        }
+        return task;
+    }
+
+    private static boolean get(FutureTask<Boolean> task) throws Exception {
+        return task.get( 5, TimeUnit.SECONDS );
+    }
+
+    /** Give woken waiters time to run.  Only for asserting they didn't get through. */
+    private static void settle() throws InterruptedException {
+        Thread.sleep( 50 );
+    }
+
+    /****************************************************************
+     * Tests.
+     ****************************************************************/
+
+    @Test
+    public void costs() throws Exception {
+        assertEquals( 10, RequestLimiter.getCost( PlaceSearch.TextSearch.URL ) );
+        assertEquals( 5, RequestLimiter.getCost( PlaceSearch.RadarSearch.URL ) );
+        assertEquals( 1, RequestLimiter.getCost( DEFAULT_URL ) );
+    }
+
+    @Test
+    public void fullBucketIssuesWithoutWaiting() throws Exception {
+        for ( int i = 0; i < 10; i++ ) {
+            assertTrue( mLimiter.acquire( DEFAULT_URL, RequestLimiter.PRIORITY_PREFETCH ) );
+        }
+        assertEquals( 10, getBudgetUsed() );
+        assertTrue( mLimiter.getStats().contains( "prefetch[issued=10 throttled=0 dropped=0]" ) );
+    }
+
+    @Test
+    public void refillsOneTokenPerInterval() throws Exception {
+        emptyBucket();
+
+        FutureTask<Boolean> task = acquireWaiting( "a", TEXT_URL, RequestLimiter.PRIORITY_BACKGROUND );
+        mLimiter.advance( 4999 );
+        settle();
+        assertFalse( task.isDone() );
+
+        mLimiter.advance( 1 );
+        assertTrue( get( task ) );
+        assertEquals( 20, getBudgetUsed() );
+        assertTrue( mLimiter.getStats().contains( "background[issued=1 throttled=1 dropped=0]" ) );
+    }
+
+    @Test
+    public void refillCappedAtCapacity() throws Exception {
+        emptyBucket();
+        mLimiter.advance( 60 * MINUTE );
+
+        emptyBucket();
+        FutureTask<Boolean> task = acquireWaiting( "a", DEFAULT_URL, RequestLimiter.PRIORITY_DWELL );
+        mLimiter.advance( 500 );
+        assertTrue( get( task ) );
+    }
+
+    @Test
+    public void budgetShares() throws Exception {
+        // Prefetch may spend 70%, background 90%, dwell all.
+        seedBudget( localTime( 2026, Calendar.MARCH, 10, 12, 0 ), 690 );
+        assertTrue( mLimiter.acquire( TEXT_URL, RequestLimiter.PRIORITY_PREFETCH ) );
+        mLimiter.advance( 5000 );
+        assertFalse( mLimiter.acquire( DEFAULT_URL, RequestLimiter.PRIORITY_PREFETCH ) );
+        assertTrue( mLimiter.acquire( DEFAULT_URL, RequestLimiter.PRIORITY_BACKGROUND ) );
+        assertEquals( 701, getBudgetUsed() );
+
+        seedBudget( localTime( 2026, Calendar.MARCH, 10, 12, 0 ), 899 );
+        assertTrue( mLimiter.acquire( DEFAULT_URL, RequestLimiter.PRIORITY_BACKGROUND ) );
+        assertFalse( mLimiter.acquire( DEFAULT_URL, RequestLimiter.PRIORITY_BACKGROUND ) );
+        assertTrue( mLimiter.acquire( DEFAULT_URL, RequestLimiter.PRIORITY_DWELL ) );
+        assertEquals( 901, getBudgetUsed() );
+
+        seedBudget( localTime( 2026, Calendar.MARCH, 10, 12, 0 ), 1000 );
+        assertFalse( mLimiter.acquire( DEFAULT_URL, RequestLimiter.PRIORITY_DWELL ) );
+        assertTrue( mLimiter.getStats().contains( "dwell[issued=0 throttled=0 dropped=1]" ) );
+    }
+
+    @Test
+    public void budgetDayStartsAtLocalMidnight() throws Exception {
+        seedBudget( localTime( 2026, Calendar.MARCH, 10, 16, 30 ), 1000 );
+        assertFalse( mLimiter.acquire( DEFAULT_URL, RequestLimiter.PRIORITY_DWELL ) );
+
+        // Past UTC midnight, still the same local day.
+        mLimiter.advance( 60 * MINUTE );
+        assertFalse( mLimiter.acquire( DEFAULT_URL, RequestLimiter.PRIORITY_DWELL ) );
+
+        // Past local midnight.
+        mLimiter.advance( 7 * 60 * MINUTE + 31 * MINUTE );
+        assertTrue( mLimiter.acquire( DEFAULT_URL, RequestLimiter.PRIORITY_DWELL ) );
+        assertEquals( 1, getBudgetUsed() );
+        assertEquals( localTime( 2026, Calendar.MARCH, 11, 0, 0 ), mPrefs.getLong( "KEY_BUDGET_DAY_START", 0 ) );
+    }
+
+    @Test
+    public void budgetDayPersisted() throws Exception {
+        assertTrue( mLimiter.acquire( TEXT_URL, RequestLimiter.PRIORITY_DWELL ) );
+
+        // Same day in a new process.
+        mLimiter = new TestLimiter( mPrefs, localTime( 2026, Calendar.MARCH, 10, 23, 59 ) );
+        assertTrue( mLimiter.acquire( DEFAULT_URL, RequestLimiter.PRIORITY_DWELL ) );
+        assertEquals( 11, getBudgetUsed() );
+    }
+
+    @Test
+    public void refundGivesBackBudgetNotTokens() throws Exception {
+        emptyBucket();
+        mLimiter.refund( TEXT_URL );
+        assertEquals( 0, getBudgetUsed() );
+        assertTrue( mLimiter.getStats().contains( "budget=0/1000 refunded=1" ) );
+
+        // Tokens still spent.
+        FutureTask<Boolean> task = acquireWaiting( "a", DEFAULT_URL, RequestLimiter.PRIORITY_DWELL );
+        mLimiter.advance( 500 );
+        assertTrue( get( task ) );
+
+        // Never below zero.
+        mLimiter.refund( TEXT_URL );
+        assertEquals( 0, getBudgetUsed() );
+    }
+
+    @Test
+    public void waitersServedByPriorityThenOrder() throws Exception {
+        emptyBucket();
+        FutureTask<Boolean> prefetch = acquireWaiting( "prefetch", DEFAULT_URL, RequestLimiter.PRIORITY_PREFETCH );
+        FutureTask<Boolean> background = acquireWaiting( "background", DEFAULT_URL, RequestLimiter.PRIORITY_BACKGROUND );
+        FutureTask<Boolean> dwell1 = acquireWaiting( "dwell1", DEFAULT_URL, RequestLimiter.PRIORITY_DWELL );
+        FutureTask<Boolean> dwell2 = acquireWaiting( "dwell2", DEFAULT_URL, RequestLimiter.PRIORITY_DWELL );
+
+        // One token at a time.
+        mLimiter.advance( 500 );
+        assertTrue( get( dwell1 ) );
+        settle();
+        assertEquals( Collections.singletonList( "dwell1" ), mIssued );
+
+        mLimiter.advance( 500 );
+        assertTrue( get( dwell2 ) );
+        mLimiter.advance( 500 );
+        assertTrue( get( background ) );
+        mLimiter.advance( 500 );
+        assertTrue( get( prefetch ) );
+        assertEquals( Arrays.asList( "dwell1", "dwell2", "background", "prefetch" ), mIssued );
+    }
+
+    @Test
+    public void timesOutBehindHigherPriority() throws Exception {
+        emptyBucket();
+        FutureTask<Boolean> dwell = acquireWaiting( "dwell", TEXT_URL, RequestLimiter.PRIORITY_DWELL );
+        FutureTask<Boolean> prefetch = acquireWaiting( "prefetch", DEFAULT_URL, RequestLimiter.PRIORITY_PREFETCH );
+
+        // Prefetch waits up to 5s, all of it behind the dwell request.
+        mLimiter.advance( 5000 );
+        assertTrue( get( dwell ) );
+        assertFalse( get( prefetch ) );
+        assertTrue( mLimiter.getStats().contains( "prefetch[issued=0 throttled=0 dropped=1]" ) );
+        assertEquals( 20, getBudgetUsed() );
+    }
+
+    @Test
+    public void tryAcquireReturnsRetryDelayWithoutWaiting() throws Exception {
+        assertEquals( 0, mLimiter.tryAcquire( DEFAULT_URL, RequestLimiter.PRIORITY_BACKGROUND ) );
+        assertEquals( 1, getBudgetUsed() );
+
+        // 9 tokens left.  A text search needs 10, one refill away.
+        assertEquals( 500, mLimiter.tryAcquire( TEXT_URL, RequestLimiter.PRIORITY_BACKGROUND ) );
+        assertEquals( 1, getBudgetUsed() );
+        mLimiter.advance( 500 );
+        assertEquals( 0, mLimiter.tryAcquire( TEXT_URL, RequestLimiter.PRIORITY_BACKGROUND ) );
+        assertEquals( 11, getBudgetUsed() );
+        assertTrue( mLimiter.getStats().contains( "background[issued=2 throttled=0 dropped=0]" ) );
+    }
+
+    @Test
+    public void tryAcquireYieldsToWaiters() throws Exception {
+        emptyBucket();
+        FutureTask<Boolean> dwell = acquireWaiting( "dwell", TEXT_URL, RequestLimiter.PRIORITY_DWELL );
+        mLimiter.advance( 500 );
+        settle();
+
+        // A token is back, but the waiting dwell request goes first.
+        assertTrue( mLimiter.tryAcquire( DEFAULT_URL, RequestLimiter.PRIORITY_BACKGROUND ) > 0 );
+        mLimiter.advance( 4500 );
+        assertTrue( get( dwell ) );
+
+        // Ahead of a lower priority waiter.
+        mLimiter.advance( 500 );
+        FutureTask<Boolean> prefetch = acquireWaiting( "prefetch", TEXT_URL, RequestLimiter.PRIORITY_PREFETCH );
+        assertEquals( 0, mLimiter.tryAcquire( DEFAULT_URL, RequestLimiter.PRIORITY_BACKGROUND ) );
+        settle();
+        assertFalse( prefetch.isDone() );
+        mLimiter.advance( 5000 );
+        assertTrue( get( prefetch ) );
+    }
+
+    @Test
+    public void tryAcquireDropsOverBudget() throws Exception {
+        seedBudget( localTime( 2026, Calendar.MARCH, 10, 12, 0 ), 700 );
+        assertEquals( RequestLimiter.NO_RETRY, mLimiter.tryAcquire( DEFAULT_URL, RequestLimiter.PRIORITY_PREFETCH ) );
+        assertEquals( 0, mLimiter.tryAcquire( DEFAULT_URL, RequestLimiter.PRIORITY_BACKGROUND ) );
+        assertTrue( mLimiter.getStats().contains( "prefetch[issued=0 throttled=0 dropped=1]" ) );
+    }
+}
@@ -0,0 +1,105 @@
+package com.motussoft.heresense.poi;
+
+import com.motussoft.heresense.mapsapi.HttpTask;
+import com.motussoft.heresense.mapsapi.PlaceSearch;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.Charset;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * JVM timings of NearbyPoisDecoder against the Gson model path it replaced,
+ * GSON.fromJson() into a PlaceSearchResult then PoiHelper.fromPlaceResults(), on full 20
+ * result nearby search pages.  Both read the response bytes through a Reader, as
+ * HttpJsonTask does.  Prints per page times, and allocated bytes where the JVM reports
+ * them.  Host numbers only, but the relative cost carries over.
+ */
+public class NearbyPoisDecoderBenchmark {
+
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+    private static final long WARMUP_NS = 1000L * 1000 * 1000;
+    private static final long RUN_NS = 1000L * 1000 * 1000;
+
+    /** Keeps results live. */
+    private int mSink = 0;
+
+    private static Reader newReader(byte[] json) {
+        return new InputStreamReader( new ByteArrayInputStream( json ), UTF8 );
+    }
+
+    private void decode(byte[] json) throws IOException {
+        NearbyPoisDecoder.Page page = new NearbyPoisDecoder().decode( newReader( json ) );
+        for ( Poi poi : page.pois ) {
+            PoiSearch.PoiHelper.assignRanking( poi );
+        }
+        mSink += page.pois.size();
+    }
+
+    private void decodeGson(byte[] json) {
+        PlaceSearch.PlaceSearchResult result = HttpTask.GSON.fromJson( newReader( json ),
+                PlaceSearch.PlaceSearchResult.class );
+        List<Poi> pois = PoiSearch.PoiHelper.fromPlaceResults( result.results );
+        mSink += pois.size();
+    }
+
+    private void run(byte[] json, boolean bDecoder) throws IOException {
+        if ( bDecoder ) {
+            decode( json );
+        } else {
+            decodeGson( json );
+        }
+    }
+
+    /** @return  Bytes allocated by this thread so far, or -1 if not reported. */
+    private static long getAllocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if ( bean instanceof com.sun.management.ThreadMXBean ) {
+            return ( (com.sun.management.ThreadMXBean) bean )
+                    .getThreadAllocatedBytes( Thread.currentThread().getId() );
+        }
+        return -1;
+    }
+
+    /** @return  { nanos per page, allocated bytes per page or negative }. */
+    private long[] time(byte[] json, boolean bDecoder) throws IOException {
+        long end = System.nanoTime() + WARMUP_NS;
+        while ( System.nanoTime() < end ) {
+            run( json, bDecoder );
+        }
+
+        int runs = 0;
+        long allocated = getAllocatedBytes();
+        long start = System.nanoTime();
+        end = start + RUN_NS;
+        long now;
+        do {
+            run( json, bDecoder );
+            runs++;
+        } while ( ( now = System.nanoTime() ) < end );
+        long allocatedPerRun = ( allocated < 0 ? -1 : ( getAllocatedBytes() - allocated ) / runs );
+        return new long[] { ( now - start ) / runs, allocatedPerRun };
+    }
+
+    @Test
+    public void decodeAgainstGsonPath() throws Exception {
+        for ( String name : NearbyPoisDecoderTest.FULL_PAGES ) {
+            byte[] json = NearbyPoisDecoderTest.readResource( name ).getBytes( UTF8 );
+            long[] gson = time( json, false );
+            long[] decoder = time( json, true );
+            System.out.println( "NearbyPoisDecoderBenchmark: " + name + " bytes=" + json.length
+                    + " gson[us=" + gson[0] / 1000.0 + " allocated=" + gson[1] + "]"
+                    + " decoder[us=" + decoder[0] / 1000.0 + " allocated=" + decoder[1] + "]" );
+        }
+        assertTrue( mSink > 0 );
+    }
+}
@@ -0,0 +1,139 @@
+package com.motussoft.heresense.poi;
+
+import com.motussoft.heresense.mapsapi.HttpTask;
+import com.motussoft.heresense.mapsapi.PlaceSearch;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * NearbyPoisDecoder against the Gson model path it replaced, PoiHelper.fromPlaceResults()
+ * over a PlaceSearchResult, on nearby search responses in the places api format.
+ */
+public class NearbyPoisDecoderTest {
+
+    /** Full 20 result pages.  Also used by NearbyPoisDecoderBenchmark. */
+    static final String[] FULL_PAGES = {
+            "nearbysearch_20_downtown.json",
+            "nearbysearch_20_suburb.json",
+            "nearbysearch_20_transit.json",
+    };
+
+    static String readResource(String name) throws Exception {
+        InputStream in = NearbyPoisDecoderTest.class.getResourceAsStream( name );
+        assertNotNull( "Missing resource: " + name, in );
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[4 * 1024];
+            int read;
+            while ( ( read = in.read( buf ) ) > 0 ) {
+                out.write( buf, 0, read );
+            }
+            return out.toString( "UTF-8" );
+        } finally {
+            in.close();
+        }
+    }
+
+    private static NearbyPoisDecoder.Page decode(String json) throws Exception {
+        NearbyPoisDecoder.Page page = new NearbyPoisDecoder().decode( new StringReader( json ) );
+        for ( Poi poi : page.pois ) {
+            PoiSearch.PoiHelper.assignRanking( poi );
+        }
+        return page;
+    }
+
+    private static PlaceSearch.PlaceSearchResult decodeGson(String json) {
+        return HttpTask.GSON.fromJson( json, PlaceSearch.PlaceSearchResult.class );
+    }
+
+    private static void assertSamePoi(Poi expected, Poi actual) {
+        String id = expected.getPlaceId();
+        assertEquals( id, expected.getPlaceId(), actual.getPlaceId() );
+        assertEquals( id, expected.getName(), actual.getName() );
+        assertEquals( id, expected.getLatitude(), actual.getLatitude(), 0.0 );
+        assertEquals( id, expected.getLongitude(), actual.getLongitude(), 0.0 );
+        assertEquals( id, expected.getAddress(), actual.getAddress() );
+        assertEquals( id, expected.getTypes(), actual.getTypes() );
+        assertEquals( id, expected.getWebsite(), actual.getWebsite() );
+        assertEquals( id, expected.getAppUri(), actual.getAppUri() );
+        assertEquals( id, expected.getRadius(), actual.getRadius() );
+        assertEquals( id, expected.getProminence(), actual.getProminence() );
+        assertEquals( id, expected.getPhoneNumber(), actual.getPhoneNumber() );
+        assertEquals( id, expected.getUrl(), actual.getUrl() );
+        assertEquals( id, expected.getRating(), actual.getRating(), 0f );
+    }
+
+    private static void assertMatchesGsonPath(String name, int count) throws Exception {
+        String json = readResource( name );
+        NearbyPoisDecoder.Page page = decode( json );
+        PlaceSearch.PlaceSearchResult result = decodeGson( json );
+
+        assertEquals( result.status, page.status );
+        assertEquals( result.next_page_token, page.nextPageToken );
+        assertNull( page.errorMessage );
+
+        List<Poi> expected = PoiSearch.PoiHelper.fromPlaceResults( result.results );
+        assertEquals( name, count, expected.size() );
+        assertEquals( name, expected.size(), page.pois.size() );
+        for ( int i = 0; i < expected.size(); i++ ) {
+            assertSamePoi( expected.get( i ), page.pois.get( i ) );
+        }
+    }
+
+    @Test
+    public void matchesGsonPath() throws Exception {
+        assertMatchesGsonPath( "nearbysearch.json", 6 );
+    }
+
+    @Test
+    public void matchesGsonPathOnFullPages() throws Exception {
+        for ( String name : FULL_PAGES ) {
+            assertMatchesGsonPath( name, 20 );
+        }
+    }
+
+    @Test
+    public void spotChecks() throws Exception {
+        NearbyPoisDecoder.Page page = decode( readResource( "nearbysearch.json" ) );
+
+        Poi cafe = page.pois.get( 0 );
+        assertEquals( "ChIJ0b4gxTO3j4AR1EsNsPFdhNM", cafe.getPlaceId() );
+        assertEquals( (float) 37.3934574, (float) cafe.getLatitude(), 0f );
+        // Unknown types dropped.
+        assertEquals( "cafe:food:store:establishment", cafe.getTypes() );
+
+        assertEquals( "Café Baklava \"Mediterranean\"", page.pois.get( 1 ).getName() );
+        // Only unknown types.
+        assertEquals( "", page.pois.get( 2 ).getTypes() );
+        assertEquals( "585 Franklin St, Mountain View, CA 94041, United States", page.pois.get( 3 ).getAddress() );
+        assertEquals( "日本料理 Sushi Tomi", page.pois.get( 4 ).getName() );
+    }
+
+    @Test
+    public void errorResponse() throws Exception {
+        String json = "{\"error_message\":\"The provided API key is invalid.\",\"html_attributions\":[],"
+                + "\"results\":[],\"status\":\"REQUEST_DENIED\"}";
+        NearbyPoisDecoder.Page page = decode( json );
+        PlaceSearch.PlaceSearchResult result = decodeGson( json );
+
+        assertEquals( result.status, page.status );
+        assertEquals( result.error_message, page.errorMessage );
+        assertNull( page.nextPageToken );
+        assertEquals( 0, page.pois.size() );
+        assertEquals( 0, result.results.length );
+    }
+
+    @Test
+    public void notReadyPageHasNoResults() throws Exception {
+        NearbyPoisDecoder.Page page = decode( "{\"html_attributions\":[],\"results\":[],\"status\":\"INVALID_REQUEST\"}" );
+        assertEquals( "INVALID_REQUEST", page.status );
+        assertEquals( 0, page.pois.size() );
+    }
+}
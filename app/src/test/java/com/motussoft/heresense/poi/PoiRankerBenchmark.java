@@ -0,0 +1,109 @@
+package com.motussoft.heresense.poi;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * JVM timings of PoiRanker against the PoiSortData comparator sort it replaced, at 50, 500
+ * and 5000 cached pois around a fix.  Prints per rank times.  Host numbers only, but the
+ * relative cost carries over.
+ *
+ * Pois are spread over 2km, so most score 0 and rank by prominence and distance, as a
+ * dense scan does.
+ */
+public class PoiRankerBenchmark {
+
+    private static final int[] POI_COUNTS = { 50, 500, 5000 };
+
+    private static final double LAT = 37.422;
+    private static final double LON = -122.084;
+    private static final float ACCURACY = 30f;
+
+    /** Degrees of latitude for 1km. */
+    private static final double SPREAD = 1000 / 111195.08;
+
+    private static final long WARMUP_NS = 1000L * 1000 * 1000;
+    private static final long RUN_NS = 1000L * 1000 * 1000;
+
+    private static List<Poi> newPois(int count) {
+        Random random = new Random( count );
+        ArrayList<Poi> pois = new ArrayList<Poi>( count );
+        for ( int i = 0; i < count; i++ ) {
+            Poi poi = new Poi();
+            poi.setPlaceId( "p" + i );
+            poi.setLatitude( LAT + ( random.nextDouble() * 2 - 1 ) * SPREAD );
+            poi.setLongitude( LON + ( random.nextDouble() * 2 - 1 ) * SPREAD );
+            poi.setRadius( 10 + random.nextInt( 60 ) );
+            poi.setProminence( random.nextInt( 5 ) );
+            pois.add( poi );
+        }
+        return pois;
+    }
+
+    /** Keeps results live. */
+    private int mSink = 0;
+
+    private void runRanker(List<Poi> pois) {
+        PoiRanker ranker = new PoiRanker( pois );
+        int count = ranker.rank( LAT, LON, ACCURACY, 0f );
+        mSink += ranker.getPoi( count - 1 ).getProminence();
+    }
+
+    private void runReplaced(List<Poi> pois) {
+        List<Poi> sorted = ReplacedPoiSort.sort( pois, LAT, LON, ACCURACY, 0f );
+        mSink += sorted.get( sorted.size() - 1 ).getProminence();
+    }
+
+    /** @return  Nanos per rank. */
+    private long time(List<Poi> pois, boolean bRanker) {
+        long end = System.nanoTime() + WARMUP_NS;
+        while ( System.nanoTime() < end ) {
+            if ( bRanker ) {
+                runRanker( pois );
+            } else {
+                runReplaced( pois );
+            }
+        }
+
+        int runs = 0;
+        long start = System.nanoTime();
+        end = start + RUN_NS;
+        long now;
+        do {
+            if ( bRanker ) {
+                runRanker( pois );
+            } else {
+                runReplaced( pois );
+            }
+            runs++;
+        } while ( ( now = System.nanoTime() ) < end );
+        return ( now - start ) / runs;
+    }
+
+    @Test
+    public void rankAgainstReplaced() throws Exception {
+        for ( int count : POI_COUNTS ) {
+            List<Poi> pois = newPois( count );
+            // Same order, or the timings compare different work.
+            assertSame( ReplacedPoiSort.sort( pois, LAT, LON, ACCURACY, 0f ).get( 0 ), rankFirst( pois ) );
+
+            long replacedNs = time( pois, false );
+            long rankerNs = time( pois, true );
+            System.out.println( "PoiRankerBenchmark: pois=" + count
+                    + " replacedUs=" + replacedNs / 1000.0
+                    + " rankerUs=" + rankerNs / 1000.0 );
+        }
+        assertTrue( mSink >= 0 );
+    }
+
+    private static Poi rankFirst(List<Poi> pois) {
+        PoiRanker ranker = new PoiRanker( pois );
+        ranker.rank( LAT, LON, ACCURACY, 0f );
+        return ranker.getPoi( 0 );
+    }
+}
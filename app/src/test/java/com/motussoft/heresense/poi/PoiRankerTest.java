@@ -0,0 +1,151 @@
+package com.motussoft.heresense.poi;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * PoiRanker's index merge sort against the PoiSortData comparator sort it replaced, on pois
+ * with tied confidence, prominence and distance.
+ */
+public class PoiRankerTest {
+
+    private static final double LAT = 37.422;
+    private static final double LON = -122.084;
+    private static final float ACCURACY = 100f;
+
+    /** Length of a degree of latitude at EARTH_MEAN_RADIUS. */
+    private static final double METERS_PER_DEGREE = 111195.08;
+
+    /**
+     * Radii scoring ( r / ACCURACY )^2 near the fix:  0.16, 0.36 and 0.64, plus 1 for a poi
+     * covering the whole fix.  Apart by at least 0.1, so the confidence tie rule is
+     * transitive and both sorts must agree.
+     */
+    private static final long[] NEAR_RADII = { 40, 60, 80, 150 };
+    private static final double[] NEAR_OFFSETS = { 0, 5, 10, 15 };
+
+    /** Confidence 0. */
+    private static final long FAR_RADIUS = 20;
+    private static final double[] FAR_OFFSETS = { 300, 400 };
+
+    private static Poi newPoi(String placeId, double metersNorth, long radius, int prominence) {
+        Poi poi = new Poi();
+        poi.setPlaceId( placeId );
+        poi.setLatitude( LAT + metersNorth / METERS_PER_DEGREE );
+        poi.setLongitude( LON );
+        poi.setRadius( radius );
+        poi.setProminence( prominence );
+        return poi;
+    }
+
+    /** Pois from few confidence, prominence and distance values, so most have ties. */
+    private static List<Poi> newTiedPois(Random random, int count) {
+        ArrayList<Poi> pois = new ArrayList<Poi>( count );
+        for ( int i = 0; i < count; i++ ) {
+            int prominence = random.nextInt( 3 );
+            if ( random.nextInt( 5 ) == 0 ) {
+                pois.add( newPoi( "p" + i, FAR_OFFSETS[ random.nextInt( FAR_OFFSETS.length ) ],
+                        FAR_RADIUS, prominence ) );
+            } else {
+                pois.add( newPoi( "p" + i, NEAR_OFFSETS[ random.nextInt( NEAR_OFFSETS.length ) ],
+                        NEAR_RADII[ random.nextInt( NEAR_RADII.length ) ], prominence ) );
+            }
+        }
+        return pois;
+    }
+
+    private static List<Poi> rank(List<Poi> pois, float minConfidence) {
+        PoiRanker ranker = new PoiRanker( pois );
+        int count = ranker.rank( LAT, LON, ACCURACY, minConfidence );
+        assertEquals( count, ranker.getRankedCount() );
+        ArrayList<Poi> ranked = new ArrayList<Poi>( count );
+        for ( int i = 0; i < count; i++ ) {
+            ranked.add( ranker.getPoi( i ) );
+        }
+        return ranked;
+    }
+
+    private static List<String> placeIds(List<Poi> pois) {
+        ArrayList<String> ids = new ArrayList<String>( pois.size() );
+        for ( Poi poi : pois ) {
+            ids.add( poi.getPlaceId() );
+        }
+        return ids;
+    }
+
+    private static void assertSameOrder(List<Poi> pois, float minConfidence) {
+        List<String> expected = placeIds( ReplacedPoiSort.sort( pois, LAT, LON, ACCURACY, minConfidence ) );
+        assertEquals( expected, placeIds( rank( pois, minConfidence ) ) );
+    }
+
+    /****************************************************************
+     * Tests.
+     ****************************************************************/
+
+    @Test
+    public void sameOrderAsReplacedSort() throws Exception {
+        // Under and over TimSort's 32 element insertion sort run.
+        for ( int count : new int[] { 1, 2, 10, 31, 50, 500, 5000 } ) {
+            for ( int seed = 0; seed < 5; seed++ ) {
+                assertSameOrder( newTiedPois( new Random( seed ), count ), 0f );
+            }
+        }
+    }
+
+    @Test
+    public void sameFilterAsReplacedSort() throws Exception {
+        List<Poi> pois = newTiedPois( new Random( 1 ), 200 );
+        assertSameOrder( pois, 0.3f );
+        assertSameOrder( pois, 1f );
+        assertEquals( 0, rank( pois, 1.1f ).size() );
+    }
+
+    @Test
+    public void fullTiesKeepListOrder() throws Exception {
+        Poi a = newPoi( "a", 5, 60, 1 );
+        Poi b = newPoi( "b", 5, 60, 1 );
+        Poi c = newPoi( "c", 5, 60, 1 );
+        Poi best = newPoi( "best", 5, 150, 0 );
+
+        assertEquals( Arrays.asList( "best", "a", "b", "c" ), placeIds( rank( Arrays.asList( a, b, best, c ), 0f ) ) );
+        assertEquals( Arrays.asList( "best", "c", "b", "a" ), placeIds( rank( Arrays.asList( c, best, b, a ), 0f ) ) );
+        assertSameOrder( Arrays.asList( a, b, best, c ), 0f );
+        assertSameOrder( Arrays.asList( c, best, b, a ), 0f );
+    }
+
+    @Test
+    public void confidenceTieFallsToProminenceThenDistance() throws Exception {
+        // 0.36 and 0.3025 are within the 0.1 tie.
+        Poi near = newPoi( "near", 0, 55, 1 );
+        Poi prominent = newPoi( "prominent", 10, 60, 2 );
+        Poi far = newPoi( "far", 15, 60, 1 );
+        Poi sure = newPoi( "sure", 15, 80, 0 );
+
+        List<Poi> pois = Arrays.asList( far, near, sure, prominent );
+        assertEquals( Arrays.asList( "sure", "prominent", "near", "far" ), placeIds( rank( pois, 0f ) ) );
+        assertSameOrder( pois, 0f );
+    }
+
+    @Test
+    public void nonTransitiveTiesDoNotThrow() throws Exception {
+        // Confidence chains where each neighbour ties but the ends don't, with prominence
+        // against confidence.  Can break TimSort's contract; the merge sort has to cope.
+        Random random = new Random( 7 );
+        ArrayList<Poi> pois = new ArrayList<Poi>();
+        for ( int i = 0; i < 2000; i++ ) {
+            long radius = 10 + random.nextInt( 90 );
+            pois.add( newPoi( "p" + i, random.nextInt( 100 ), radius, (int) ( 100 - radius ) ) );
+        }
+
+        List<Poi> ranked = rank( pois, 0f );
+        assertEquals( pois.size(), ranked.size() );
+        assertEquals( new HashSet<Poi>( pois ), new HashSet<Poi>( ranked ) );
+    }
+}
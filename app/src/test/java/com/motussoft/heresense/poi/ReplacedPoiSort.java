@@ -0,0 +1,65 @@
+package com.motussoft.heresense.poi;
+
+import com.motussoft.heresense.dwelldetection.MathHelper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * PoiSearch.sortPois() as it was before PoiRanker:  a PoiSortData per poi and
+ * Collections.sort() with POI_COMPARATOR.  Kept for PoiRankerTest and PoiRankerBenchmark.
+ */
+class ReplacedPoiSort {
+
+    private static class PoiSortData {
+        Poi mPoi;
+        float mConfidence;
+        float mDist;
+        PoiSortData(Poi poi, float confidence, float dist) {
+            mPoi = poi;
+            mConfidence = confidence;
+            mDist = dist;
+        }
+    }
+
+    private static final Comparator<PoiSortData> POI_COMPARATOR = new Comparator<PoiSortData>() {
+        @Override
+        public int compare(PoiSortData lhs, PoiSortData rhs) {
+            if ( Math.abs( lhs.mConfidence - rhs.mConfidence ) >= 0.1 ) {
+                // Compare confidence level 1st.
+                return ( lhs.mConfidence > rhs.mConfidence ? -1 : 1 );
+            } else if ( lhs.mPoi.getProminence() != rhs.mPoi.getProminence() ) {
+                // Compare prominence level 2nd.
+                return ( lhs.mPoi.getProminence() > rhs.mPoi.getProminence() ? -1 : 1 );
+            } else {
+                // Compare distance 3rd.
+                return ( lhs.mDist == rhs.mDist ? 0 :
+                        lhs.mDist < rhs.mDist ? -1 : 1 );
+            }
+        }
+    };
+
+    /** @return  Pois at or above minConfidence, best first. */
+    static List<Poi> sort(List<Poi> pois, double lat, double lon, float accuracy, float minConfidence) {
+        ArrayList<PoiSortData> poiSortData = new ArrayList<PoiSortData>();
+        for( Poi poi : pois ) {
+            float dist = (float) MathHelper.distanceBetween(
+                    lat, lon, poi.getLatitude(), poi.getLongitude() );
+            float confidence = MathHelper.getConfidenceAtDistance(
+                    poi.getRadius(), accuracy, dist );
+            if ( confidence >= minConfidence ) {
+                poiSortData.add( new PoiSortData( poi, confidence, dist ) );
+            }
+        }
+
+        Collections.sort( poiSortData, POI_COMPARATOR );
+
+        ArrayList<Poi> sortedPois = new ArrayList<Poi>( poiSortData.size() );
+        for ( PoiSortData poiData : poiSortData ) {
+            sortedPois.add( poiData.mPoi );
+        }
+        return sortedPois;
+    }
+}
@@ -0,0 +1,157 @@
+package com.motussoft.heresense.provider;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+/**
+ * GeoCell ids at the poles and the antimeridian, and the cell ranges appended for bounding
+ * boxes.  getCellIdSql() is checked against SQLite in the instrumented GeoCellSqlTest.
+ */
+public class GeoCellTest {
+
+    private static final long LAST_ROW = GeoCell.LAT_CELLS - 1;
+    private static final long LAST_COLUMN = GeoCell.LON_CELLS - 1;
+
+    private static long row(long cellId) {
+        return cellId / GeoCell.LON_CELLS;
+    }
+
+    private static long column(long cellId) {
+        return cellId % GeoCell.LON_CELLS;
+    }
+
+    /** { from, to } of each BETWEEN range appended. */
+    private static List<long[]> ranges(double minLat, double maxLat, double minLon, double maxLon) {
+        String selection = GeoCell.appendCellRangeSelection( new StringBuilder(), "cell",
+                minLat, maxLat, minLon, maxLon ).toString();
+        assertTrue( selection, selection.startsWith( "(" ) && selection.endsWith( ")" ) );
+
+        ArrayList<long[]> ranges = new ArrayList<long[]>();
+        Matcher m = Pattern.compile( "cell BETWEEN (\\d+) AND (\\d+)" ).matcher( selection );
+        while ( m.find() ) {
+            ranges.add( new long[] { Long.parseLong( m.group( 1 ) ), Long.parseLong( m.group( 2 ) ) } );
+        }
+        return ranges;
+    }
+
+    private static void assertRange(long from, long to, long[] range) {
+        assertEquals( from, range[0] );
+        assertEquals( to, range[1] );
+    }
+
+    /****************************************************************
+     * getCellId()
+     ****************************************************************/
+
+    @Test
+    public void getCellId_origin() throws Exception {
+        long cellId = GeoCell.getCellId( 0, 0 );
+        assertEquals( 90 * GeoCell.CELLS_PER_DEGREE, row( cellId ) );
+        assertEquals( 180 * GeoCell.CELLS_PER_DEGREE, column( cellId ) );
+        assertEquals( 0.0, GeoCell.getCellMinLat( cellId ), 0.0 );
+        assertEquals( 0.0, GeoCell.getCellMinLon( cellId ), 0.0 );
+    }
+
+    @Test
+    public void getCellId_edgesWithinCell() throws Exception {
+        long cellId = GeoCell.getCellId( 37.422, -122.084 );
+        assertTrue( GeoCell.getCellMinLat( cellId ) <= 37.422 );
+        assertTrue( GeoCell.getCellMinLat( cellId ) + GeoCell.CELL_SIZE > 37.422 );
+        assertTrue( GeoCell.getCellMinLon( cellId ) <= -122.084 );
+        assertTrue( GeoCell.getCellMinLon( cellId ) + GeoCell.CELL_SIZE > -122.084 );
+        // Cell south west corner is in the cell.
+        assertEquals( cellId, GeoCell.getCellId( GeoCell.getCellMinLat( cellId ), GeoCell.getCellMinLon( cellId ) ) );
+    }
+
+    @Test
+    public void getCellId_lon180WrapsToFirstColumn() throws Exception {
+        assertEquals( 0, column( GeoCell.getCellId( 10, -180 ) ) );
+        assertEquals( GeoCell.getCellId( 10, -180 ), GeoCell.getCellId( 10, 180 ) );
+        assertEquals( LAST_COLUMN, column( GeoCell.getCellId( 10, 179.9999 ) ) );
+        assertEquals( row( GeoCell.getCellId( 10, 0 ) ), row( GeoCell.getCellId( 10, 180 ) ) );
+    }
+
+    @Test
+    public void getCellId_lonNormalized() throws Exception {
+        assertEquals( GeoCell.getCellId( 10, -170 ), GeoCell.getCellId( 10, 190 ) );
+        assertEquals( GeoCell.getCellId( 10, 170 ), GeoCell.getCellId( 10, -190 ) );
+        assertEquals( GeoCell.getCellId( 10, 20 ), GeoCell.getCellId( 10, 20 + 720 ) );
+        assertEquals( GeoCell.getCellId( 10, -180 ), GeoCell.getCellId( 10, 540 ) );
+    }
+
+    @Test
+    public void getCellId_poles() throws Exception {
+        assertEquals( 0, row( GeoCell.getCellId( -90, 0 ) ) );
+        // North pole is the north edge of the last row, not a row past it.
+        assertEquals( LAST_ROW, row( GeoCell.getCellId( 90, 0 ) ) );
+        assertEquals( LAST_ROW, row( GeoCell.getCellId( 89.9999, 0 ) ) );
+        assertEquals( GeoCell.getCellId( 90, 180 ), GeoCell.getCellId( 90, -180 ) );
+        assertTrue( GeoCell.getCellId( 90, 179.9999 ) < GeoCell.LAT_CELLS * GeoCell.LON_CELLS );
+    }
+
+    @Test
+    public void getCellId_latClamped() throws Exception {
+        assertEquals( GeoCell.getCellId( 90, 5 ), GeoCell.getCellId( 95, 5 ) );
+        assertEquals( GeoCell.getCellId( -90, 5 ), GeoCell.getCellId( -95, 5 ) );
+    }
+
+    /****************************************************************
+     * appendCellRangeSelection()
+     ****************************************************************/
+
+    @Test
+    public void appendCellRangeSelection_oneRangePerRow() throws Exception {
+        double minLat = 37.42, maxLat = 37.43;
+        double minLon = -122.09, maxLon = -122.08;
+        long sw = GeoCell.getCellId( minLat, minLon );
+        long ne = GeoCell.getCellId( maxLat, maxLon );
+
+        List<long[]> ranges = ranges( minLat, maxLat, minLon, maxLon );
+        assertEquals( row( ne ) - row( sw ) + 1, ranges.size() );
+        for ( int i = 0; i < ranges.size(); i++ ) {
+            long rowBase = ( row( sw ) + i ) * GeoCell.LON_CELLS;
+            assertRange( rowBase + column( sw ), rowBase + column( ne ), ranges.get( i ) );
+        }
+    }
+
+    @Test
+    public void appendCellRangeSelection_wrapsAntimeridian() throws Exception {
+        // Fiji, both sides of 180.
+        double lat = -17.0;
+        long rowBase = row( GeoCell.getCellId( lat, 0 ) ) * GeoCell.LON_CELLS;
+        List<long[]> ranges = ranges( lat, lat, 179.99, -179.99 );
+        assertEquals( 2, ranges.size() );
+        assertRange( rowBase + column( GeoCell.getCellId( lat, 179.99 ) ), rowBase + LAST_COLUMN, ranges.get( 0 ) );
+        assertRange( rowBase, rowBase + column( GeoCell.getCellId( lat, -179.99 ) ), ranges.get( 1 ) );
+    }
+
+    @Test
+    public void appendCellRangeSelection_maxLon180() throws Exception {
+        // Box ending on 180 wraps to the first column, matching getCellId( lat, 180 ).
+        double lat = 10.0;
+        long rowBase = row( GeoCell.getCellId( lat, 0 ) ) * GeoCell.LON_CELLS;
+        List<long[]> ranges = ranges( lat, lat, 179.99, 180 );
+        assertEquals( 2, ranges.size() );
+        assertRange( rowBase + column( GeoCell.getCellId( lat, 179.99 ) ), rowBase + LAST_COLUMN, ranges.get( 0 ) );
+        assertRange( rowBase, rowBase, ranges.get( 1 ) );
+        assertTrue( ranges.get( 1 )[0] <= GeoCell.getCellId( lat, 180 ) );
+        assertTrue( ranges.get( 1 )[1] >= GeoCell.getCellId( lat, 180 ) );
+    }
+
+    @Test
+    public void appendCellRangeSelection_northPole() throws Exception {
+        List<long[]> ranges = ranges( 89.999, 90, -1, 1 );
+        assertEquals( 1, ranges.size() );
+        long rowBase = LAST_ROW * GeoCell.LON_CELLS;
+        assertRange( rowBase + column( GeoCell.getCellId( 90, -1 ) ), rowBase + column( GeoCell.getCellId( 90, 1 ) ),
+                ranges.get( 0 ) );
+        long pole = GeoCell.getCellId( 90, 0 );
+        assertTrue( ranges.get( 0 )[0] <= pole && pole <= ranges.get( 0 )[1] );
+    }
+}